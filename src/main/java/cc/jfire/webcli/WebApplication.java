@@ -17,12 +17,19 @@ import cc.jfire.webcli.agent.AgentTcpClient;
 import cc.jfire.webcli.config.WebCliConfig;
 import cc.jfire.webcli.pty.PtyManager;
 import cc.jfire.webcli.server.AgentManager;
+import cc.jfire.webcli.server.HandshakeGate;
+import cc.jfire.webcli.server.LocalAgentConnection;
 import cc.jfire.webcli.server.LoginManager;
 import cc.jfire.webcli.server.RemoteWebSocketHandler;
 import cc.jfire.webcli.server.ServerTcpHandler;
 import cc.jfire.webcli.web.WebSocketHandler;
+import cc.jfire.webcli.web.WsConnections;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+
 @Slf4j
 @EnableAutoConfiguration
 @Configuration
@@ -33,19 +40,24 @@ public class WebApplication implements AwareContextInited
     /**
      * 协议魔法值，用于帧验证
      */
-    private static final int            PROTOCOL_MAGIC = 0x57454243; // "WEBC" in hex
+    private static final int                  PROTOCOL_MAGIC = 0x57454243; // "WEBC" in hex
+    @Resource
+    private              WebCliConfig         config;
+    @Resource
+    private              PtyManager           ptyManager;
     @Resource
-    private              WebCliConfig   config;
+    private              AgentManager         agentManager;
     @Resource
-    private              PtyManager     ptyManager;
+    private              LoginManager         loginManager;
     @Resource
-    private              AgentManager   agentManager;
+    private              HandshakeGate        handshakeGate;
     @Resource
-    private              LoginManager   loginManager;
-    private              AioServer      localWebServer;
-    private              AioServer      remoteWebServer;
-    private              AioServer      tcpServer;
-    private              AgentTcpClient agentTcpClient;
+    private              WsConnections        wsConnections;
+    private              AioServer            localWebServer;
+    private              AioServer            remoteWebServer;
+    private              AioServer            tcpServer;
+    private              AgentTcpClient       agentTcpClient;
+    private              LocalAgentConnection localAgentConnection;
 
     public void start(ApplicationContext context)
     {
@@ -64,21 +76,31 @@ public class WebApplication implements AwareContextInited
     }
 
     private void startLocalMode(ApplicationContext context)
+    {
+        startLocalWebServer(context);
+        // 如果配置了远端服务器，启动 TCP 客户端
+        if (config.getServerHost() != null && !config.getServerHost().isBlank())
+        {
+            startAgentTcpClient();
+        }
+    }
+
+    private void startLocalWebServer(ApplicationContext context)
     {
         // 启动本地 Web 服务
-        WebSocketHandler         wsHandler     = new WebSocketHandler(ptyManager);
+        WebSocketHandler         wsHandler     = new WebSocketHandler(ptyManager, wsConnections.getLocal(), config.isWsLocalCompression(), config.getWsCompressionLevel());
         ChannelConfig            channelConfig = new ChannelConfig().setIp("127.0.0.1").setPort(config.getWebPort()).setChannelGroup(ChannelConfig.DEFAULT_CHANNEL_GROUP);
         HttpAppServer.StartParam startParam    = new HttpAppServer.StartParam().setChannelConfig(channelConfig).setContext(context).setWebDir("local").setWebSocketProcessor(wsHandler);
         localWebServer = HttpAppServer.start(startParam);
         log.info("本地 Web 服务已启动，监听地址: {}:{}", channelConfig.getIp(), config.getWebPort());
         log.info("请访问: http://127.0.0.1:{}/", config.getWebPort());
-        // 如果配置了远端服务器，启动 TCP 客户端
-        if (config.getServerHost() != null && !config.getServerHost().isBlank())
-        {
-            agentTcpClient = new AgentTcpClient(config, ptyManager);
-            agentTcpClient.connect();
-            log.info("正在连接远端服务器: {}:{}", config.getServerHost(), config.getServerPort());
-        }
+    }
+
+    private void startAgentTcpClient()
+    {
+        agentTcpClient = new AgentTcpClient(config, ptyManager);
+        agentTcpClient.connect();
+        log.info("正在连接远端服务器: {}:{}", config.getServerHost(), config.getServerPort());
     }
 
     private void startServerMode(ApplicationContext context)
@@ -94,7 +116,44 @@ public class WebApplication implements AwareContextInited
         // 同时启动 Agent 和 Server
         log.info("启动 All 模式：同时运行 Agent 和 Server");
         startServerMode(context);
-        startLocalMode(context);
+        startLocalWebServer(context);
+        if (isSelfServer())
+        {
+            // 本机终端直接接入本进程的 AgentManager，不再经过自己的 TCP 端口
+            localAgentConnection = new LocalAgentConnection(config.getAgentId(), ptyManager, agentManager);
+            localAgentConnection.start();
+        }
+        else
+        {
+            // 配置了其他 Server 时仍通过隧道连接过去
+            startAgentTcpClient();
+        }
+    }
+
+    /**
+     * serverHost 未配置，或指向本机且端口与本进程的 TCP 服务相同
+     */
+    private boolean isSelfServer()
+    {
+        String host = config.getServerHost();
+        if (host == null || host.isBlank())
+        {
+            return true;
+        }
+        if (config.getServerPort() != config.getTcpPort())
+        {
+            return false;
+        }
+        try
+        {
+            InetAddress address = InetAddress.getByName(host.trim());
+            return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+        }
+        catch (IOException e)
+        {
+            log.warn("无法解析 serverHost {}，按外部 Server 处理", host, e);
+            return false;
+        }
     }
 
     private void startTcpServer()
@@ -102,7 +161,7 @@ public class WebApplication implements AwareContextInited
         ChannelConfig tcpConfig = new ChannelConfig().setIp("0.0.0.0").setPort(config.getTcpPort()).setChannelGroup(ChannelConfig.DEFAULT_CHANNEL_GROUP);
         tcpServer = AioServer.newAioServer(tcpConfig, pipeline -> {
             pipeline.addReadProcessor(new ValidatedLengthFrameDecoder(PROTOCOL_MAGIC, 1024 * 1024));
-            pipeline.addReadProcessor(new ServerTcpHandler(config, agentManager));
+            pipeline.addReadProcessor(new ServerTcpHandler(config, agentManager, handshakeGate));
             pipeline.addWriteProcessor(new ValidatedLengthFrameEncoder(PROTOCOL_MAGIC, pipeline.allocator()));
         });
         tcpServer.start();
@@ -111,7 +170,8 @@ public class WebApplication implements AwareContextInited
 
     private void startRemoteWebServer(ApplicationContext context)
     {
-        RemoteWebSocketHandler   wsHandler     = new RemoteWebSocketHandler(agentManager, loginManager);
+        RemoteWebSocketHandler   wsHandler     = new RemoteWebSocketHandler(agentManager, loginManager, wsConnections.getRemote(), config.isWsRemoteCompression(), config.getWsCompressionLevel(),
+                                                                             config.getWsViewerBacklogBytes());
         int                      remoteWebPort = config.getRemoteWebPort();
         ChannelConfig            webConfig     = new ChannelConfig().setIp("0.0.0.0").setPort(remoteWebPort).setChannelGroup(ChannelConfig.DEFAULT_CHANNEL_GROUP);
         HttpAppServer.StartParam startParam    = new HttpAppServer.StartParam().setChannelConfig(webConfig).setContext(context).setWebDir("remote").setWebSocketProcessor(wsHandler);
@@ -134,6 +194,10 @@ public class WebApplication implements AwareContextInited
         {
             tcpServer.shutdown();
         }
+        if (localAgentConnection != null)
+        {
+            localAgentConnection.shutdown();
+        }
         if (ptyManager != null)
         {
             ptyManager.shutdown();
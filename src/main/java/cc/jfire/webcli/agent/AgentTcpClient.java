@@ -2,7 +2,6 @@ package cc.jfire.webcli.agent;
 
 import cc.jfire.dson.Dson;
 import cc.jfire.jnet.client.ClientChannel;
-import cc.jfire.se2.JfireSE;
 import cc.jfire.jnet.common.api.Pipeline;
 import cc.jfire.jnet.common.api.ReadProcessor;
 import cc.jfire.jnet.common.api.ReadProcessorNode;
@@ -12,21 +11,31 @@ import cc.jfire.jnet.common.coder.ValidatedLengthFrameEncoder;
 import cc.jfire.jnet.common.util.ChannelConfig;
 import cc.jfire.webcli.config.WebCliConfig;
 import cc.jfire.webcli.crypto.AesGcmCrypto;
+import cc.jfire.webcli.crypto.EndToEndCipher;
+import cc.jfire.webcli.crypto.SessionTickets;
+import cc.jfire.webcli.protocol.CompressionStats;
 import cc.jfire.webcli.protocol.PtyInfo;
+import cc.jfire.webcli.protocol.RelayFrame;
+import cc.jfire.webcli.protocol.StreamDeflater;
 import cc.jfire.webcli.protocol.TcpMessage;
+import cc.jfire.webcli.protocol.TcpMessageCodec;
 import cc.jfire.webcli.protocol.TcpMessageType;
+import cc.jfire.webcli.pty.OverflowPolicy;
 import cc.jfire.webcli.pty.PtyInstance;
 import cc.jfire.webcli.pty.PtyManager;
+import cc.jfire.webcli.pty.PtyOutputListener;
 import cc.jfire.webcli.util.AgentIdUtil;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
@@ -34,10 +43,10 @@ import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -56,21 +65,62 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
     private ClientChannel clientChannel;
     private Pipeline pipeline;
     private AesGcmCrypto crypto;
+    /** 加密后的消息都经由它按优先级发送，与 crypto 同时创建 */
+    private volatile TunnelWriter<IoBuffer> writer;
     private volatile boolean authenticated = false;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private final Map<String, Consumer<String>> ptyOutputListeners = new ConcurrentHashMap<>();
+    private final ReconnectBackoff reconnectBackoff;
+    private boolean heartbeatStarted = false;
+    private final Map<String, PtyOutputListener> ptyOutputListeners = new ConcurrentHashMap<>();
+    /** 各终端输出流的信用窗口，与 ptyOutputListeners 一起随 attach 创建 */
+    private final Map<String, OutputCredit> ptyCredits = new ConcurrentHashMap<>();
     private final Map<String, BiConsumer<String, Boolean>> ptyVisibilityListeners = new ConcurrentHashMap<>();
-    private final JfireSE jfireSE = JfireSE.config().build();
+    /** 各终端的信息变更监听器，变化时向 Server 推送增量 */
+    private final Map<String, Consumer<PtyInstance>> ptyInfoListeners = new ConcurrentHashMap<>();
     private KeyPair clientKeyPair;
     private byte[] clientNonce;
     private String clientPubKey;
     private byte[] sessionKey;
+    /** Server 签发的会话票据及对应的恢复密钥，重连时用于一次往返恢复，跨连接保留 */
+    private String ticket;
+    private byte[] ticketSecret;
+    /** 本次认证成功时派生的恢复密钥，等 SESSION_TICKET 到达后与票据配对 */
+    private byte[] issuedSecret;
+    /** 当前连接是否正在用票据恢复 */
+    private boolean resuming = false;
+    /** 当前会话密钥的启用时间，用于按时间轮换 */
+    private volatile long keyCreatedNanos;
+    /** 是否有一次密钥轮换正在进行 */
+    private volatile boolean rekeying = false;
+    private KeyPair rekeyKeyPair;
+    private byte[] rekeyNonce;
+    /** 本次连接是否协商了输出压缩 */
+    private volatile boolean compression = false;
+    private final CompressionStats compressionStats = new CompressionStats();
+    /** 端到端加密，未配置口令时为 null */
+    private final EndToEndCipher endToEnd;
 
     public AgentTcpClient(WebCliConfig config, PtyManager ptyManager) {
         this.config = config;
         this.ptyManager = ptyManager;
         this.agentIdBase = AgentIdUtil.sanitize(config.getAgentId());
         this.agentId = this.agentIdBase;
+        this.reconnectBackoff = new ReconnectBackoff(config.getTunnelReconnectBaseMillis(), config.getTunnelReconnectMaxMillis(),
+                () -> ThreadLocalRandom.current().nextDouble());
+        this.endToEnd = createEndToEnd(config.getTunnelE2eSecret());
+    }
+
+    private static EndToEndCipher createEndToEnd(String secret) {
+        if (secret == null || secret.isBlank()) {
+            return null;
+        }
+        try {
+            EndToEndCipher cipher = EndToEndCipher.fromSecret(secret);
+            log.info("端到端加密已启用：终端输出和输入只在本机与浏览器之间解密，输出不再压缩");
+            return cipher;
+        } catch (Exception e) {
+            throw new IllegalStateException("初始化端到端加密失败", e);
+        }
     }
 
     public void connect() {
@@ -96,6 +146,12 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
     }
 
     private void sendAuthRequest() {
+        compression = false;
+        if (ticket != null) {
+            sendResumeRequest();
+            return;
+        }
+        resuming = false;
         try {
             clientKeyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
             clientPubKey = Base64.getEncoder().encodeToString(clientKeyPair.getPublic().getEncoded());
@@ -113,43 +169,101 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
             msg.setClientNonce(clientNonceB64);
             msg.setClientPubKey(clientPubKey);
             msg.setClientMac(clientMac);
+            msg.setCompression(config.isTunnelCompression() ? StreamDeflater.ALGORITHM : null);
             sendMessage(msg, false); // 握手阶段明文
         } catch (Exception e) {
             log.error("发送认证请求失败", e);
         }
     }
 
+    /**
+     * 出示会话票据，Server 校验通过后直接回复 AUTH_RESULT，不再做 X25519 交换。
+     * clientNonce 以当前时间戳开头，Server 据此拒绝重放的请求
+     */
+    private void sendResumeRequest() {
+        try {
+            resuming = true;
+            clientNonce = SessionTickets.newClientNonce(secureRandom, System.currentTimeMillis());
+            String clientNonceB64 = Base64.getEncoder().encodeToString(clientNonce);
+            String macInput = String.join("|", "AUTH_RESUME", agentId, ticket, clientNonceB64);
+            String clientMac = Base64.getEncoder().encodeToString(hmacSha256(ticketSecret, macInput.getBytes(StandardCharsets.UTF_8)));
+
+            TcpMessage msg = new TcpMessage();
+            msg.setType(TcpMessageType.AUTH_REQUEST);
+            msg.setAgentId(agentId);
+            msg.setClientNonce(clientNonceB64);
+            msg.setClientMac(clientMac);
+            msg.setTicket(ticket);
+            msg.setCompression(config.isTunnelCompression() ? StreamDeflater.ALGORITHM : null);
+            sendMessage(msg, false); // 握手阶段明文
+        } catch (Exception e) {
+            log.error("发送会话恢复请求失败", e);
+        }
+    }
+
+    /**
+     * 校验 Server 的恢复响应并启用新的会话密钥：HMAC(恢复密钥, clientNonce || serverNonce)
+     */
+    private boolean completeResume(TcpMessage msg) throws Exception {
+        if (msg.getServerNonce() == null || msg.getServerMac() == null) {
+            log.error("会话恢复响应缺少必要字段");
+            return false;
+        }
+        byte[] key = hmacSha256(ticketSecret, concat(clientNonce, Base64.getDecoder().decode(msg.getServerNonce())));
+        String macInput = String.join("|", "AUTH_RESUMED", agentId);
+        if (!MessageDigest.isEqual(hmacSha256(key, macInput.getBytes(StandardCharsets.UTF_8)), Base64.getDecoder().decode(msg.getServerMac()))) {
+            log.error("会话恢复失败：serverMac 校验不通过");
+            return false;
+        }
+        sessionKey = key;
+        crypto = new AesGcmCrypto(sessionKey, true);
+        startWriter(crypto);
+        compression = config.isTunnelCompression() && StreamDeflater.ALGORITHM.equals(msg.getCompression());
+        return true;
+    }
+
     private void startHeartbeat() {
+        if (heartbeatStarted) {
+            return;
+        }
+        heartbeatStarted = true;
         scheduler.scheduleAtFixedRate(() -> {
             if (authenticated && clientChannel != null && clientChannel.alive()) {
                 TcpMessage msg = new TcpMessage();
                 msg.setType(TcpMessageType.HEARTBEAT);
                 sendMessage(msg, true);
+                maybeRekey();
             }
         }, 30, 30, TimeUnit.SECONDS);
     }
 
+    /**
+     * 按带随机抖动的指数退避安排重连，Server 重启后大量 Agent 的重连被分散开
+     */
     private void scheduleReconnect() {
+        long delay = reconnectBackoff.nextDelayMillis();
+        log.info("{} 毫秒后尝试第 {} 次重新连接", delay, reconnectBackoff.getAttempts());
         scheduler.schedule(() -> {
             log.info("尝试重新连接...");
             connect();
-        }, 5, TimeUnit.SECONDS);
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void read(IoBuffer buffer, ReadProcessorNode next) {
         try {
-            byte[] data = new byte[buffer.remainRead()];
-            buffer.get(data);
-
-            byte[] decrypted;
-            if (authenticated && crypto != null) {
-                decrypted = crypto.decrypt(data);
+            // 直接在收到的 IoBuffer 上解密和解码，不再先拷贝成数组
+            ByteBuffer frame = buffer.readableByteBuffer();
+
+            TcpMessage msg;
+            AesGcmCrypto current = crypto;
+            if (authenticated && current != null) {
+                // 原地解密，明文紧跟在帧头之后
+                int length = current.decrypt(frame);
+                msg = TcpMessageCodec.decode(frame.slice(frame.position() + AesGcmCrypto.HEADER_LENGTH, length));
             } else {
-                decrypted = data;
+                msg = TcpMessageCodec.decode(frame);
             }
-
-            TcpMessage msg = (TcpMessage) jfireSE.deSerialize(decrypted);
             handleMessage(msg);
         } catch (Exception e) {
             log.error("处理消息失败", e);
@@ -164,6 +278,7 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
             case AUTH_RESULT -> handleAuthResult(msg);
             case PTY_LIST_REQUEST -> handlePtyListRequest();
             case PTY_INPUT -> handlePtyInput(msg);
+            case PTY_SEALED_INPUT -> handlePtySealedInput(msg);
             case PTY_RESIZE -> handlePtyResize(msg);
             case PTY_CLOSE -> handlePtyClose(msg);
             case PTY_ATTACH -> handlePtyAttach(msg);
@@ -171,6 +286,10 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
             case PTY_CREATE -> handlePtyCreate(msg);
             case PTY_RENAME -> handlePtyRename(msg);
             case HEARTBEAT -> {} // 忽略心跳响应
+            case REKEY_RESPONSE -> handleRekeyResponse(msg);
+            case TUNNEL_ACK -> handleTunnelAck(msg);
+            case SESSION_TICKET -> handleSessionTicket(msg);
+            case PTY_CREDIT -> handlePtyCredit(msg);
             default -> log.warn("未知消息类型: {}", msg.getType());
         }
     }
@@ -201,7 +320,9 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
 
             // 派生会话密钥：HMAC(token, sharedSecret || clientNonce || serverNonce)
             sessionKey = hmacSha256(tokenBytes(), concat(sharedSecret, clientNonce, serverNonce));
-            crypto = new AesGcmCrypto(sessionKey);
+            crypto = new AesGcmCrypto(sessionKey, true);
+            startWriter(crypto);
+            compression = config.isTunnelCompression() && StreamDeflater.ALGORITHM.equals(msg.getCompression());
 
             // 回发 AUTH_FINISH（基于 sessionKey 的 MAC），Server 校验成功后才正式注册 Agent
             String finishInput = String.join("|", "AUTH_FINISH", agentId);
@@ -222,9 +343,32 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
         String result = msg.getData();
         if ("OK".equalsIgnoreCase(result))
         {
+            try
+            {
+                if (resuming && !completeResume(msg))
+                {
+                    // Server 无法证明自己解开了票据，丢弃票据后断开，重连时走完整握手
+                    dropTicket();
+                    closeConnection();
+                    return;
+                }
+                issuedSecret = SessionTickets.resumptionSecret(sessionKey, agentId);
+            }
+            catch (Exception e)
+            {
+                log.error("处理认证结果失败", e);
+                dropTicket();
+                closeConnection();
+                return;
+            }
+            reconnectBackoff.reset();
+            keyCreatedNanos = System.nanoTime();
+            rekeying = false;
             authenticated = true;
-            log.info("Agent 注册成功: {}", agentId);
+            log.info("Agent 注册成功: {}，{}，输出压缩: {}", agentId, resuming ? "会话票据恢复" : "完整握手", compression ? "开启" : "关闭");
             registerVisibilityListeners();
+            // 先注册监听器再推送完整列表，之后的变化都以增量推送
+            handlePtyListRequest();
             return;
         }
         if ("DUPLICATE_AGENT_ID".equalsIgnoreCase(result))
@@ -235,21 +379,64 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
             sendAuthRequest();
             return;
         }
+        if ("RESUME_REJECTED".equalsIgnoreCase(result))
+        {
+            log.info("会话票据已失效，改走完整握手");
+            dropTicket();
+            sendAuthRequest();
+            return;
+        }
+        if ("BUSY".equalsIgnoreCase(result))
+        {
+            log.warn("服务端握手繁忙，断开后退避重连");
+            closeConnection();
+            return;
+        }
         log.warn("未知认证结果: {}", result);
     }
 
+    private void handleSessionTicket(TcpMessage msg)
+    {
+        if (msg.getTicket() == null || issuedSecret == null)
+        {
+            return;
+        }
+        ticket = msg.getTicket();
+        ticketSecret = issuedSecret;
+        issuedSecret = null;
+        log.debug("已收到会话票据");
+    }
+
+    private void dropTicket()
+    {
+        ticket = null;
+        ticketSecret = null;
+        issuedSecret = null;
+    }
+
+    private void closeConnection()
+    {
+        if (pipeline != null)
+        {
+            pipeline.shutdownInput();
+        }
+    }
+
     private synchronized void bumpAgentId()
     {
         authenticated = false;
         crypto = null;
         sessionKey = null;
+        stopWriter();
+        // 票据绑定了原来的 agentId
+        dropTicket();
         agentIdIndex++;
         agentId = AgentIdUtil.withSuffix(agentIdBase, agentIdIndex);
     }
 
     private void handlePtyListRequest() {
         List<PtyInstance> remoteViewablePtys = ptyManager.getAll().stream()
-                .filter(PtyInstance::isRemoteViewable)
+                .filter(AgentTcpClient::isListed)
                 .toList();
 
         TcpMessage response = new TcpMessage();
@@ -263,17 +450,38 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
     }
 
     private void handlePtyInput(TcpMessage msg) {
+        if (endToEnd != null) {
+            // 端到端模式下只接受浏览器加密的输入，Server 不能代替用户输入
+            log.warn("端到端加密已启用，丢弃终端 {} 的未加密输入", msg.getPtyId());
+            return;
+        }
         PtyInstance pty = ptyManager.get(msg.getPtyId());
         if (pty != null && pty.isRemoteViewable()) {
             try {
-                String decoded = new String(Base64.getDecoder().decode(msg.getData()), StandardCharsets.UTF_8);
-                pty.write(decoded);
+                pty.write(msg.getPayload());
             } catch (Exception e) {
                 log.error("写入 PTY 失败", e);
             }
         }
     }
 
+    private void handlePtySealedInput(TcpMessage msg) {
+        PtyInstance pty = ptyManager.get(msg.getPtyId());
+        if (endToEnd == null || pty == null || !pty.isRemoteViewable() || msg.getPayload() == null) {
+            return;
+        }
+        byte[] input = endToEnd.openInput(msg.getPtyId(), msg.getPayload(), System.currentTimeMillis());
+        if (input == null) {
+            log.warn("终端 {} 的加密输入无法解开、已过期或是重放，已丢弃", msg.getPtyId());
+            return;
+        }
+        try {
+            pty.write(input);
+        } catch (Exception e) {
+            log.error("写入 PTY 失败", e);
+        }
+    }
+
     private void handlePtyResize(TcpMessage msg) {
         PtyInstance pty = ptyManager.get(msg.getPtyId());
         if (pty != null && pty.isRemoteViewable() && msg.getCols() != null && msg.getRows() != null) {
@@ -289,38 +497,84 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
     }
 
     private void handlePtyAttach(TcpMessage msg) {
+        if (msg.getStream() == null) {
+            log.warn("PTY_ATTACH 缺少流 ID，忽略终端 {}", msg.getPtyId());
+            return;
+        }
+        // 输出帧只携带 Server 分配的流 ID
+        int stream = msg.getStream();
         PtyInstance pty = ptyManager.get(msg.getPtyId());
         if (pty != null && pty.isRemoteViewable()) {
+            // 每次 attach 都是一个新的压缩流，第一帧总是 PTY_RESYNC
+            // 端到端模式下输出在加密前不压缩，Server 无法解压密文
+            StreamDeflater deflater = compression && endToEnd == null ? new StreamDeflater(config.getTunnelCompressionLevel(), compressionStats) : null;
+            // Server 转发跟不上时暂停读取该终端
+            OutputCredit credit = new OutputCredit(pty, Math.max(128 * 1024, config.getTunnelStreamWindow()));
+            OutputCredit previousCredit = ptyCredits.put(msg.getPtyId(), credit);
+            if (previousCredit != null) {
+                previousCredit.release();
+            }
             // 创建输出监听器，将输出转发到远端
-            Consumer<String> listener = output -> {
-                TcpMessage outMsg = new TcpMessage();
-                outMsg.setType(TcpMessageType.PTY_OUTPUT);
-                outMsg.setPtyId(pty.getId());
-                outMsg.setAgentId(agentId);
-                outMsg.setData(Base64.getEncoder().encodeToString(output.getBytes(StandardCharsets.UTF_8)));
-                sendMessage(outMsg, true);
-            };
-
-            // 保存监听器引用以便后续移除
-            ptyOutputListeners.put(msg.getPtyId(), listener);
-            // 注册到 PtyInstance
-            pty.addOutputListener(listener);
-
-            // 发送历史输出
-            String history = pty.getOutputHistory();
-            if (history != null && !history.isEmpty()) {
-                TcpMessage historyMsg = new TcpMessage();
-                historyMsg.setType(TcpMessageType.PTY_OUTPUT);
-                historyMsg.setPtyId(pty.getId());
-                historyMsg.setAgentId(agentId);
-                historyMsg.setData(Base64.getEncoder().encodeToString(history.getBytes(StandardCharsets.UTF_8)));
-                sendMessage(historyMsg, true);
+            PtyOutputListener listener = ptyManager.coalesce(pty, new PtyOutputListener() {
+                @Override
+                public void onOutput(ByteBuffer data, long offset) {
+                    int length = data.remaining();
+                    if (endToEnd != null) {
+                        sendSealedOutput(pty.getId(), stream, false, data, offset + length);
+                    } else {
+                        sendOutput(pty.getId(), stream, TcpMessageType.PTY_OUTPUT, data, offset + length, deflater);
+                    }
+                    credit.sent(offset + length, length, false);
+                }
+
+                @Override
+                public void onResync(ByteBuffer snapshot, long offset) {
+                    int length = snapshot.remaining();
+                    if (endToEnd != null) {
+                        sendSealedOutput(pty.getId(), stream, true, snapshot, offset);
+                    } else {
+                        sendOutput(pty.getId(), stream, TcpMessageType.PTY_RESYNC, snapshot, offset, deflater);
+                    }
+                    credit.sent(offset, length, true);
+                }
+
+                @Override
+                public void onDetached() {
+                    credit.release();
+                    ptyCredits.remove(pty.getId(), credit);
+                    if (deflater != null) {
+                        synchronized (deflater) {
+                            deflater.end();
+                        }
+                    }
+                }
+            });
+
+            // 保存监听器引用以便后续移除；重连后的重复 attach 替换掉旧监听器
+            PtyOutputListener previous = ptyOutputListeners.put(msg.getPtyId(), listener);
+            if (previous != null) {
+                pty.removeOutputListener(previous);
+            }
+            // 注册到 PtyInstance；隧道上承载着远端所有查看者，积压时总是重新同步而不是断开
+            pty.addOutputListener(listener, OverflowPolicy.RESYNC);
+            Long since = msg.getOffset();
+            if (since != null) {
+                // 重连恢复：Server 已有 since 之前的输出，只补发缺口，缺口已不在历史中时退回到快照
+                credit.grant(since);
+                pty.requestReplay(listener, since);
+            } else {
+                // 先发送当前画面快照，再继续实时输出
+                pty.requestResync(listener);
             }
         }
     }
 
     private void handlePtyDetach(TcpMessage msg) {
-        Consumer<String> listener = ptyOutputListeners.remove(msg.getPtyId());
+        PtyOutputListener listener = ptyOutputListeners.remove(msg.getPtyId());
+        TunnelWriter<IoBuffer> current = writer;
+        if (current != null) {
+            current.discard(msg.getPtyId());
+        }
         if (listener != null) {
             PtyInstance pty = ptyManager.get(msg.getPtyId());
             if (pty != null) {
@@ -343,18 +597,12 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
             return;
         }
 
-        String name = buildUniqueRemoteTerminalName(msg.getName());
         int cols = msg.getCols() != null ? msg.getCols() : 120;
         int rows = msg.getRows() != null ? msg.getRows() : 40;
 
         try
         {
-            PtyInstance pty = ptyManager.create(name, cols, rows);
-            pty.startReading();
-            // 远端创建的终端默认开启远端可见，便于直接 attach
-            pty.setRemoteViewable(true);
-            // 标记为远端创建
-            pty.setRemoteCreated(true);
+            PtyInstance pty = ptyManager.createRemote(agentId, msg.getName(), cols, rows);
 
             response.setData("OK");
             response.setPtyId(pty.getId());
@@ -371,41 +619,6 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
         }
     }
 
-    private String buildUniqueRemoteTerminalName(String requestedName)
-    {
-        String baseName = requestedName != null ? requestedName.trim() : "";
-        if (baseName.isBlank())
-        {
-            baseName = "终端";
-        }
-
-        String prefix = agentId + "-";
-        String nameWithPrefix = baseName.startsWith(prefix) ? baseName : prefix + baseName;
-
-        var existingNames = ptyManager.getAll().stream()
-                .map(PtyInstance::getName)
-                .filter(Objects::nonNull)
-                .collect(java.util.stream.Collectors.toSet());
-
-        // 处理重名：递增序号（-2, -3, ...）
-        if (!existingNames.contains(nameWithPrefix))
-        {
-            return nameWithPrefix;
-        }
-
-        for (int i = 2; i < 10_000; i++)
-        {
-            String candidate = nameWithPrefix + "-" + i;
-            if (!existingNames.contains(candidate))
-            {
-                return candidate;
-            }
-        }
-
-        // 极端情况下兜底，保证唯一性
-        return nameWithPrefix + "-" + System.currentTimeMillis();
-    }
-
     private void handlePtyRename(TcpMessage msg)
     {
         TcpMessage response = new TcpMessage();
@@ -452,7 +665,10 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
         for (PtyInstance pty : ptyManager.getAll()) {
             registerVisibilityListener(pty);
         }
-        ptyManager.setOnPtyCreated(this::registerVisibilityListener);
+        ptyManager.setOnPtyCreated(pty -> {
+            registerVisibilityListener(pty);
+            sendPtyInfoChanged(pty);
+        });
     }
 
     private void registerVisibilityListener(PtyInstance pty) {
@@ -463,11 +679,34 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
         };
         ptyVisibilityListeners.put(pty.getId(), listener);
         pty.addVisibilityChangeListener(listener);
+        Consumer<PtyInstance> infoListener = this::sendPtyInfoChanged;
+        ptyInfoListeners.put(pty.getId(), infoListener);
+        pty.addInfoChangeListener(infoListener);
+    }
+
+    /**
+     * 推送远端可见终端的最新信息，已关闭或已退出的终端以 remoteViewable=false 通知 Server 移出列表。
+     * 关闭远端可见由 PTY_VISIBILITY_CHANGED 通知，不可见的终端其他变化与远端无关
+     */
+    private void sendPtyInfoChanged(PtyInstance pty) {
+        if (!authenticated || !pty.isRemoteViewable()) {
+            return;
+        }
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.PTY_INFO_CHANGED);
+        msg.setPtyId(pty.getId());
+        msg.setName(pty.getName());
+        msg.setRemoteViewable(isListed(pty));
+        sendMessage(msg, true);
+    }
+
+    private static boolean isListed(PtyInstance pty) {
+        return pty.isRemoteViewable() && pty.isRunning() && !pty.isExited();
     }
 
     private void handleVisibilityDisabled(String ptyId) {
         // 移除输出监听器
-        Consumer<String> outputListener = ptyOutputListeners.remove(ptyId);
+        PtyOutputListener outputListener = ptyOutputListeners.remove(ptyId);
         if (outputListener != null) {
             PtyInstance pty = ptyManager.get(ptyId);
             if (pty != null) {
@@ -486,23 +725,245 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
         }
     }
 
+    /**
+     * 当前密钥使用时间或加解密字节数超过阈值时发起密钥轮换：
+     * <ol>
+     *     <li>Agent 用旧密钥发送 REKEY_REQUEST，带上新的 X25519 公钥和随机数，期间照常收发</li>
+     *     <li>Server 用旧密钥回复 REKEY_RESPONSE，并在同一把锁内把发送方向切换到新密钥</li>
+     *     <li>Agent 收到 REKEY_RESPONSE 后切换接收方向，用旧密钥发出 REKEY_FINISH 并随即切换发送方向</li>
+     *     <li>Server 收到 REKEY_FINISH 后切换接收方向</li>
+     * </ol>
+     * 每个方向的切换点都是该方向上一个确定的帧，TCP 保证顺序，因此不丢帧，输出也不需要暂停。
+     * 新密钥为 HMAC(旧密钥, 共享密钥 || clientNonce || serverNonce)，与旧会话绑定。
+     */
+    private void maybeRekey() {
+        AesGcmCrypto current = crypto;
+        if (!authenticated || current == null || rekeying) {
+            return;
+        }
+        long bytes = current.getEncryptedBytes() + current.getDecryptedBytes();
+        boolean bytesExceeded = config.getTunnelRekeyBytes() > 0 && bytes >= config.getTunnelRekeyBytes();
+        boolean timeExceeded = config.getTunnelRekeyMinutes() > 0
+                && System.nanoTime() - keyCreatedNanos >= TimeUnit.MINUTES.toNanos(config.getTunnelRekeyMinutes());
+        if (!bytesExceeded && !timeExceeded) {
+            return;
+        }
+        try {
+            rekeyKeyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+            rekeyNonce = new byte[32];
+            secureRandom.nextBytes(rekeyNonce);
+            rekeying = true;
+            TcpMessage msg = new TcpMessage();
+            msg.setType(TcpMessageType.REKEY_REQUEST);
+            msg.setClientPubKey(Base64.getEncoder().encodeToString(rekeyKeyPair.getPublic().getEncoded()));
+            msg.setClientNonce(Base64.getEncoder().encodeToString(rekeyNonce));
+            sendMessage(msg, true);
+            log.info("发起会话密钥轮换，当前密钥已处理 {} 字节", bytes);
+        } catch (Exception e) {
+            rekeying = false;
+            log.error("发起会话密钥轮换失败", e);
+        }
+    }
+
+    private void handleRekeyResponse(TcpMessage msg) {
+        if (!rekeying || rekeyKeyPair == null) {
+            log.warn("收到未请求的 REKEY_RESPONSE");
+            return;
+        }
+        try {
+            if (msg.getServerPubKey() == null || msg.getServerNonce() == null) {
+                log.error("REKEY_RESPONSE 缺少必要字段");
+                return;
+            }
+            byte[] sharedSecret = computeSharedSecret(rekeyKeyPair.getPrivate(), decodeX25519PublicKey(msg.getServerPubKey()));
+            byte[] newKey = hmacSha256(sessionKey, concat(sharedSecret, rekeyNonce, Base64.getDecoder().decode(msg.getServerNonce())));
+            // Server 回复之后发出的帧都已使用新密钥
+            crypto.rekeyReceive(newKey);
+            TcpMessage finish = new TcpMessage();
+            finish.setType(TcpMessageType.REKEY_FINISH);
+            sendMessage(finish, true, newKey);
+            sessionKey = newKey;
+            keyCreatedNanos = System.nanoTime();
+            log.info("会话密钥已轮换");
+        } catch (Exception e) {
+            log.error("处理 REKEY_RESPONSE 失败", e);
+        } finally {
+            rekeyKeyPair = null;
+            rekeyNonce = null;
+            rekeying = false;
+        }
+    }
+
+    private void handlePtyCredit(TcpMessage msg) {
+        OutputCredit credit = ptyCredits.get(msg.getPtyId());
+        if (credit != null && msg.getOffset() != null) {
+            credit.grant(msg.getOffset());
+        }
+    }
+
+    private void handleTunnelAck(TcpMessage msg) {
+        TunnelWriter<IoBuffer> current = writer;
+        if (current != null && msg.getOffset() != null) {
+            current.acknowledge(msg.getOffset());
+        }
+    }
+
+    private void startWriter(AesGcmCrypto current) {
+        stopWriter();
+        TunnelWriter.Sink<IoBuffer> sink = new TunnelWriter.Sink<>() {
+            @Override
+            public int write(IoBuffer frame, int plaintextLength, byte[] nextSendKey) throws Exception {
+                int length;
+                try {
+                    // 在排队的出站 IoBuffer 上原地完成；中继帧的 plaintextLength 是路由头长度，只认证不加密
+                    ByteBuffer view = frame.readableByteBuffer();
+                    length = RelayFrame.isRelay(view)
+                            ? current.sign(view, RelayFrame.COUNTER_OFFSET, plaintextLength)
+                            : current.encrypt(view, plaintextLength);
+                } catch (Exception e) {
+                    frame.free();
+                    throw e;
+                }
+                // ValidatedLengthFrameEncoder 会自动添加魔法值、长度和 CRC16
+                pipeline.fireWrite(frame);
+                if (nextSendKey != null) {
+                    current.rekeySend(nextSendKey);
+                }
+                return length;
+            }
+
+            @Override
+            public void release(IoBuffer frame) {
+                frame.free();
+            }
+        };
+        writer = new TunnelWriter<>("agent-tunnel-writer", sink, IoBuffer::remainRead,
+                Math.max(64 * 1024, config.getTunnelBulkWindow()), config.getTunnelStreamQueueBytes(), this::resyncStream);
+    }
+
+    private void stopWriter() {
+        TunnelWriter<IoBuffer> previous = writer;
+        writer = null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * 终端在发送队列中的积压被丢弃后，请求一份新的画面快照
+     */
+    private void resyncStream(String ptyId) {
+        PtyOutputListener listener = ptyOutputListeners.get(ptyId);
+        PtyInstance pty = ptyManager.get(ptyId);
+        if (listener != null && pty != null) {
+            pty.requestResync(listener);
+        }
+    }
+
     private void sendMessage(TcpMessage msg, boolean encrypt) {
+        sendMessage(msg, encrypt, null);
+    }
+
+    /**
+     * @param nextSendKey 不为 null 时，本条消息是旧密钥下的最后一帧，发出后立即把发送方向切换到该密钥
+     */
+    private void sendMessage(TcpMessage msg, boolean encrypt, byte[] nextSendKey) {
         if (pipeline == null) return;
 
         try {
-            byte[] data = jfireSE.serialize(msg);
+            TunnelWriter<IoBuffer> current = writer;
+            if (!encrypt || current == null) {
+                pipeline.fireWrite(encodeFrame(msg, 0, 0));
+                return;
+            }
+            // 直接编码进出站 IoBuffer，预留帧头和认证标签的位置，由写线程按发送顺序原地加密
+            IoBuffer frame = encodeFrame(msg, AesGcmCrypto.HEADER_LENGTH, AesGcmCrypto.TAG_LENGTH);
+            int plaintextLength = frame.remainRead() - AesGcmCrypto.HEADER_LENGTH - AesGcmCrypto.TAG_LENGTH;
+            TcpMessageType type = msg.getType();
+            if (type == TcpMessageType.PTY_OUTPUT || type == TcpMessageType.PTY_RESYNC) {
+                current.bulk(msg.getPtyId(), type == TcpMessageType.PTY_RESYNC, frame, plaintextLength);
+            } else {
+                current.control(frame, plaintextLength, nextSendKey);
+            }
+        } catch (Exception e) {
+            log.error("发送消息失败", e);
+        }
+    }
 
-            if (encrypt && crypto != null) {
-                data = crypto.encrypt(data);
+    /**
+     * 按编码长度申请出站 IoBuffer 并直接写入消息，前后留出 headroom、tailroom 字节供原地加密。
+     * ValidatedLengthFrameEncoder 会在写出时自动添加魔法值、长度和 CRC16
+     */
+    private IoBuffer encodeFrame(TcpMessage msg, int headroom, int tailroom) {
+        TcpMessageCodec.Encoding encoding = TcpMessageCodec.prepare(msg);
+        int length = headroom + encoding.length() + tailroom;
+        IoBuffer buffer = pipeline.allocator().allocate(length);
+        ByteBuffer view = buffer.writableByteBuffer();
+        encoding.writeTo(view.position(view.position() + headroom));
+        buffer.addWritePosi(length);
+        return buffer;
+    }
+
+    /**
+     * @param stream   Server 在 attach 时分配的流 ID
+     * @param end      这一帧末尾在 PTY 输出流中的偏移量，Server 按它发放信用
+     * @param deflater 该输出流的压缩上下文，未协商压缩时为 null
+     */
+    private void sendOutput(String ptyId, int stream, TcpMessageType type, ByteBuffer data, long end, StreamDeflater deflater) {
+        TcpMessage outMsg = new TcpMessage();
+        outMsg.setType(type);
+        // ptyId 只用于发送队列按终端分组，不写入帧中
+        outMsg.setPtyId(ptyId);
+        outMsg.setStream(stream);
+        outMsg.setOffset(end);
+        if (deflater == null) {
+            byte[] payload = new byte[data.remaining()];
+            data.get(payload);
+            outMsg.setPayload(payload);
+            sendMessage(outMsg, true);
+            return;
+        }
+        // 压缩和发送必须保持同一顺序，接收端按帧顺序解压
+        synchronized (deflater) {
+            if (deflater.isEnded()) {
+                return;
+            }
+            if (type == TcpMessageType.PTY_RESYNC) {
+                // 接收端收到 PTY_RESYNC 时同样重置，从这一帧开始新的压缩流
+                deflater.reset();
             }
+            outMsg.setPayload(deflater.compress(data));
+            sendMessage(outMsg, true);
+        }
+    }
 
-            // ValidatedLengthFrameEncoder 会自动添加魔法值、长度和 CRC16
-            IoBuffer buffer = pipeline.allocator().allocate(data.length);
-            buffer.put(data);
-            pipeline.fireWrite(buffer);
+    /**
+     * 端到端模式下的终端输出：在本机加密后作为中继帧发出，Server 只读取路由头，原样转发密文
+     *
+     * @param stream Server 在 attach 时分配的流 ID，写入路由头
+     * @param end    这一帧末尾在 PTY 输出流中的偏移量
+     */
+    private void sendSealedOutput(String ptyId, int stream, boolean resync, ByteBuffer data, long end) {
+        TunnelWriter<IoBuffer> current = writer;
+        if (current == null || pipeline == null) {
+            return;
+        }
+        int sealedLength = EndToEndCipher.sealedLength(data.remaining());
+        int length = RelayFrame.length(sealedLength);
+        // 路由头和端到端密文直接写进出站 IoBuffer，隧道标签由写线程原地填写
+        IoBuffer frame = pipeline.allocator().allocate(length);
+        try {
+            ByteBuffer view = frame.writableByteBuffer();
+            RelayFrame.writeHeader(view, stream, resync, end);
+            // 附加数据仍绑定 ptyId：流 ID 只在这条隧道上有意义，浏览器按 ptyId 校验
+            endToEnd.seal(data, EndToEndCipher.outputAad(ptyId, resync, end), view.position(view.position() + length - sealedLength));
+            frame.addWritePosi(length);
         } catch (Exception e) {
-            log.error("发送消息失败", e);
+            frame.free();
+            log.error("加密终端输出失败", e);
+            return;
         }
+        current.bulk(ptyId, resync, frame, RelayFrame.HEADER_LENGTH);
     }
 
     private byte[] tokenBytes() {
@@ -546,6 +1007,12 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
     public void readFailed(Throwable e, ReadProcessorNode next) {
         log.error("连接断开", e);
         authenticated = false;
+        rekeying = false;
+        stopWriter();
+        if (compression) {
+            log.info("输出压缩累计 {} 字节 -> {} 字节，压缩比 {}", compressionStats.getRawBytes(), compressionStats.getCompressedBytes(),
+                    String.format("%.2f", compressionStats.getRatio()));
+        }
         // 清理所有 PTY 输出监听器
         cleanupPtyListeners();
         scheduleReconnect();
@@ -553,9 +1020,9 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
 
     private void cleanupPtyListeners() {
         // 移除所有已注册到 PtyInstance 的输出监听器
-        for (Map.Entry<String, Consumer<String>> entry : ptyOutputListeners.entrySet()) {
+        for (Map.Entry<String, PtyOutputListener> entry : ptyOutputListeners.entrySet()) {
             String ptyId = entry.getKey();
-            Consumer<String> listener = entry.getValue();
+            PtyOutputListener listener = entry.getValue();
             PtyInstance pty = ptyManager.get(ptyId);
             if (pty != null) {
                 pty.removeOutputListener(listener);
@@ -563,6 +1030,10 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
             }
         }
         ptyOutputListeners.clear();
+        for (OutputCredit credit : ptyCredits.values()) {
+            credit.release();
+        }
+        ptyCredits.clear();
 
         // 移除所有可见性监听器
         for (Map.Entry<String, BiConsumer<String, Boolean>> entry : ptyVisibilityListeners.entrySet()) {
@@ -574,10 +1045,18 @@ public class AgentTcpClient implements ReadProcessor<IoBuffer> {
             }
         }
         ptyVisibilityListeners.clear();
+        for (Map.Entry<String, Consumer<PtyInstance>> entry : ptyInfoListeners.entrySet()) {
+            PtyInstance pty = ptyManager.get(entry.getKey());
+            if (pty != null) {
+                pty.removeInfoChangeListener(entry.getValue());
+            }
+        }
+        ptyInfoListeners.clear();
     }
 
     public void shutdown() {
         scheduler.shutdown();
+        stopWriter();
         if (clientChannel != null && pipeline != null) {
             pipeline.shutdownInput();
         }
@@ -0,0 +1,85 @@
+package cc.jfire.webcli.agent;
+
+import cc.jfire.webcli.pty.PtyInstance;
+
+/**
+ * 单个终端输出流在隧道上的信用窗口。
+ * <p>
+ * 以 PTY 输出流偏移量计：已发出的输出末尾与 Server 用 PTY_CREDIT 确认已转发的末尾之差达到窗口时暂停读取该 PTY，
+ * 由子进程自己承受背压；确认追上之后恢复读取。快照帧只按其自身长度计入，之前被丢弃的输出不占用窗口。
+ */
+final class OutputCredit
+{
+    private final PtyInstance pty;
+    private final long        window;
+    private       long        sentEnd;
+    private       long        grantedEnd;
+    private       boolean     paused;
+    private       boolean     released;
+
+    OutputCredit(PtyInstance pty, long window)
+    {
+        this.pty = pty;
+        this.window = window;
+    }
+
+    /**
+     * 记录一帧已交给隧道
+     *
+     * @param end    该帧末尾在 PTY 输出流中的偏移量
+     * @param length 该帧的输出字节数
+     * @param resync 是否为快照帧
+     */
+    synchronized void sent(long end, int length, boolean resync)
+    {
+        if (released)
+        {
+            return;
+        }
+        if (resync)
+        {
+            grantedEnd = Math.max(grantedEnd, end - length);
+        }
+        sentEnd = Math.max(sentEnd, end);
+        if (!paused && sentEnd - grantedEnd >= window)
+        {
+            paused = true;
+            pty.pauseReading(this);
+        }
+    }
+
+    /**
+     * Server 确认已转发到该偏移量
+     */
+    synchronized void grant(long end)
+    {
+        if (released || end <= grantedEnd)
+        {
+            return;
+        }
+        grantedEnd = end;
+        if (paused && sentEnd - grantedEnd < window)
+        {
+            paused = false;
+            pty.resumeReading(this);
+        }
+    }
+
+    /**
+     * 输出流不再经过隧道（detach 或断线），解除暂停
+     */
+    synchronized void release()
+    {
+        released = true;
+        if (paused)
+        {
+            paused = false;
+            pty.resumeReading(this);
+        }
+    }
+
+    synchronized boolean isPaused()
+    {
+        return paused;
+    }
+}
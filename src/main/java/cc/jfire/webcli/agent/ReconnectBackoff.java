@@ -0,0 +1,49 @@
+package cc.jfire.webcli.agent;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * 带随机抖动的指数退避。
+ * <p>
+ * 第 n 次重连的等待时间在 [0, min(最大值, 基数 * 2^n)) 内均匀取值。Server 重启时所有 Agent 同时断线，
+ * 固定间隔重试会让它们一直同步地一起重连，随机抖动把重连分散开，连续失败时间隔逐步拉长。
+ * 认证成功后重置。
+ */
+final class ReconnectBackoff
+{
+    private final long           baseMillis;
+    private final long           maxMillis;
+    private final DoubleSupplier random;
+    private       int            attempts;
+
+    ReconnectBackoff(long baseMillis, long maxMillis, DoubleSupplier random)
+    {
+        this.baseMillis = Math.max(1, baseMillis);
+        this.maxMillis = Math.max(this.baseMillis, maxMillis);
+        this.random = random;
+    }
+
+    /**
+     * 下一次重连前等待的毫秒数
+     */
+    synchronized long nextDelayMillis()
+    {
+        long ceiling = baseMillis << Math.min(attempts, 30);
+        if (ceiling <= 0 || ceiling > maxMillis)
+        {
+            ceiling = maxMillis;
+        }
+        attempts++;
+        return (long) (random.getAsDouble() * ceiling);
+    }
+
+    synchronized int getAttempts()
+    {
+        return attempts;
+    }
+
+    synchronized void reset()
+    {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,261 @@
+package cc.jfire.webcli.agent;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Agent 隧道的优先级写调度器。
+ * <p>
+ * 加密之后的所有消息都经由唯一的写线程发出，分两条通道：
+ * <ul>
+ *     <li>控制通道：心跳、RPC 结果、列表、密钥轮换等小消息，总是优先发送</li>
+ *     <li>批量通道：终端输出，每个终端一个队列，按帧轮转发送，一个终端的大量输出不会堵住其他终端的回显</li>
+ * </ul>
+ * 交给连接的批量字节数受窗口限制：Server 每收到一定字节就回复 TUNNEL_ACK，未确认的字节达到窗口后批量通道暂停，
+ * 因此排在任何控制消息前面的输出最多只有一个窗口，而不是整个写队列。
+ * <p>
+ * 单个终端排队超过上限时丢弃它的积压，等待该终端的下一个 PTY_RESYNC 快照重新开始，
+ * 由 overflowHandler 负责请求快照。nonce 计数器和密钥切换都在写线程上按发送顺序完成。
+ * <p>
+ * 帧的类型由调用方决定（Agent 直接排队出站的 IoBuffer），交给 sink 之后由 sink 负责；
+ * 未交给 sink 就被丢弃的帧（积压溢出、discard、close）通过 {@link Sink#release} 归还。
+ *
+ * @param <F> 帧的类型
+ */
+@Slf4j
+final class TunnelWriter<F>
+{
+    /**
+     * 加密并写出一帧，返回写出的字节数
+     */
+    @FunctionalInterface
+    interface Sink<F>
+    {
+        /**
+         * 无论成功与否，帧都归 sink 所有
+         */
+        int write(F frame, int plaintextLength, byte[] nextSendKey) throws Exception;
+
+        /**
+         * 帧没有交给 {@link #write} 就被丢弃时调用
+         */
+        default void release(F frame)
+        {
+        }
+    }
+
+    private final Sink<F>                  sink;
+    private final ToIntFunction<F>         frameLength;
+    private final int                      bulkWindow;
+    private final int                      streamQueueBytes;
+    private final Consumer<String>         overflowHandler;
+    private final ArrayDeque<Frame<F>>     control = new ArrayDeque<>();
+    private final Map<String, StreamQueue> streams = new HashMap<>();
+    /** 有待发送帧的终端，按轮转顺序排列 */
+    private final ArrayDeque<StreamQueue>  ready   = new ArrayDeque<>();
+    private       long                     bulkSent;
+    private       long                     bulkAcked;
+    private       boolean                  closed;
+
+    /**
+     * @param frameLength 帧的字节数，用于计算单个终端的积压
+     */
+    TunnelWriter(String name, Sink<F> sink, ToIntFunction<F> frameLength, int bulkWindow, int streamQueueBytes, Consumer<String> overflowHandler)
+    {
+        this.sink = sink;
+        this.frameLength = frameLength;
+        this.bulkWindow = bulkWindow;
+        this.streamQueueBytes = streamQueueBytes;
+        this.overflowHandler = overflowHandler;
+        Thread.ofPlatform().daemon().name(name).start(this::run);
+    }
+
+    /**
+     * 控制消息，排在所有批量输出之前
+     *
+     * @param nextSendKey 不为 null 时，这一帧发出后立即切换发送密钥
+     */
+    synchronized void control(F frame, int plaintextLength, byte[] nextSendKey)
+    {
+        if (closed)
+        {
+            sink.release(frame);
+            return;
+        }
+        control.add(new Frame<>(frame, frameLength.applyAsInt(frame), plaintextLength, nextSendKey));
+        notifyAll();
+    }
+
+    /**
+     * 终端输出
+     *
+     * @param resync 是否为快照帧：快照取代该终端之前所有未发送的输出
+     */
+    void bulk(String streamId, boolean resync, F frame, int plaintextLength)
+    {
+        int length = frameLength.applyAsInt(frame);
+        synchronized (this)
+        {
+            if (closed)
+            {
+                sink.release(frame);
+                return;
+            }
+            StreamQueue queue = streams.computeIfAbsent(streamId, id -> new StreamQueue());
+            if (resync)
+            {
+                queue.clear();
+                queue.awaitingResync = false;
+            }
+            else if (queue.awaitingResync)
+            {
+                sink.release(frame);
+                return;
+            }
+            else if (queue.bytes + length > streamQueueBytes && !queue.frames.isEmpty())
+            {
+                log.warn("终端 {} 在隧道上积压超过 {} 字节，丢弃积压并等待快照", streamId, streamQueueBytes);
+                queue.clear();
+                queue.awaitingResync = true;
+            }
+            if (!queue.awaitingResync)
+            {
+                queue.frames.add(new Frame<>(frame, length, plaintextLength, null));
+                queue.bytes += length;
+                if (!queue.scheduled)
+                {
+                    queue.scheduled = true;
+                    ready.add(queue);
+                }
+                notifyAll();
+                return;
+            }
+            sink.release(frame);
+        }
+        overflowHandler.accept(streamId);
+    }
+
+    /**
+     * 终端不再输出到隧道，丢弃它尚未发送的帧
+     */
+    synchronized void discard(String streamId)
+    {
+        StreamQueue queue = streams.remove(streamId);
+        if (queue != null)
+        {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Server 确认已收到的批量字节总数
+     */
+    synchronized void acknowledge(long bulkBytes)
+    {
+        if (bulkBytes > bulkAcked)
+        {
+            bulkAcked = bulkBytes;
+            notifyAll();
+        }
+    }
+
+    synchronized void close()
+    {
+        closed = true;
+        control.forEach(frame -> sink.release(frame.data));
+        control.clear();
+        streams.values().forEach(StreamQueue::clear);
+        streams.clear();
+        ready.clear();
+        notifyAll();
+    }
+
+    private void run()
+    {
+        while (true)
+        {
+            Frame<F> frame;
+            boolean  bulk;
+            synchronized (this)
+            {
+                while (!closed && control.isEmpty() && (ready.isEmpty() || bulkSent - bulkAcked >= bulkWindow))
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                if (closed)
+                {
+                    return;
+                }
+                bulk = control.isEmpty();
+                frame = bulk ? nextBulk() : control.poll();
+            }
+            try
+            {
+                int written = sink.write(frame.data, frame.plaintextLength, frame.nextSendKey);
+                if (bulk)
+                {
+                    synchronized (this)
+                    {
+                        bulkSent += written;
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                log.error("隧道写出失败", e);
+            }
+        }
+    }
+
+    private Frame<F> nextBulk()
+    {
+        StreamQueue queue = ready.poll();
+        Frame<F>    frame = queue.frames.poll();
+        queue.bytes -= frame.length;
+        if (queue.frames.isEmpty())
+        {
+            queue.scheduled = false;
+        }
+        else
+        {
+            ready.add(queue);
+        }
+        return frame;
+    }
+
+    private record Frame<F>(F data, int length, int plaintextLength, byte[] nextSendKey)
+    {
+    }
+
+    private final class StreamQueue
+    {
+        private final ArrayDeque<Frame<F>> frames = new ArrayDeque<>();
+        private       int                  bytes;
+        private       boolean              scheduled;
+        private       boolean              awaitingResync;
+
+        private void clear()
+        {
+            frames.forEach(frame -> sink.release(frame.data));
+            frames.clear();
+            bytes = 0;
+            if (scheduled)
+            {
+                ready.remove(this);
+                scheduled = false;
+            }
+        }
+    }
+}
@@ -79,6 +79,78 @@ public class WebCliConfig
     private String   remoteUsername = "admin";  // 远端登录用户名
     @PropertyRead("webcli.remote.password")
     private String   remotePassword = "admin";  // 远端登录密码
+    // PTY 配置
+    @PropertyRead("webcli.pty.historySize")
+    private int      historySize    = 100 * 1024; // 每个终端的历史输出缓冲区大小（字节）
+    @PropertyRead("webcli.pty.historyBudget")
+    private long     historyBudget  = 64L * 1024 * 1024; // 所有终端历史输出缓冲区的总内存预算（字节），0 表示不限制
+    @PropertyRead("webcli.pty.historyMinSize")
+    private int      historyMinSize = 16 * 1024;  // 超出预算时空闲终端的历史缓冲区最多缩小到的大小（字节）
+    @PropertyRead("webcli.pty.hibernateSeconds")
+    private int      hibernateSeconds = 1800;     // 终端无人查看且无输入输出超过该秒数后压缩休眠，0 表示不休眠
+    @PropertyRead("webcli.pty.poolSize")
+    private int      poolSize       = 0;          // 每种 Shell 命令/工作目录预先启动的空闲 PTY 数，0 表示不预热
+    @PropertyRead("webcli.pty.readerThreads")
+    private int      ptyReaderThreads = 2;        // 多路复用读取 PTY 输出的 poll 线程数
+    @PropertyRead("webcli.pty.screenModel")
+    private boolean  screenModel      = false;    // 是否在服务端维护屏幕模型，attach 时发送当前画面而不是回放历史
+    @PropertyRead("webcli.pty.screenScrollbackLines")
+    private int      screenScrollbackLines = 1000; // 屏幕模型保留的滚动历史行数
+    @PropertyRead("webcli.output.coalesceMillis")
+    private int      outputCoalesceMillis = 3;    // 输出合并时间窗口（毫秒），0 表示不合并
+    @PropertyRead("webcli.output.coalesceBytes")
+    private int      outputCoalesceBytes  = 32 * 1024; // 输出合并的最大字节数
+    @PropertyRead("webcli.output.subscriberQueueBytes")
+    private int      subscriberQueueBytes = 4 * 1024 * 1024; // 每个输出订阅者最多积压的字节数
+    @PropertyRead("webcli.output.overflowPolicy")
+    private String   overflowPolicy       = "resync"; // 积压超限策略: resync（丢弃后用快照重新同步）或 disconnect（断开）
+    // 会话录制配置
+    @PropertyRead("webcli.recording.enabled")
+    private boolean  recordingEnabled         = false;        // 是否录制终端会话
+    @PropertyRead("webcli.recording.dir")
+    private String   recordingDir             = "recordings"; // 录制文件目录，每个终端一个子目录
+    @PropertyRead("webcli.recording.segmentSize")
+    private int      recordingSegmentSize     = 64 * 1024 * 1024; // 单个内存映射分段文件的大小（字节）
+    @PropertyRead("webcli.recording.flushMillis")
+    private int      recordingFlushMillis     = 200;          // 批量写入映射文件的间隔（毫秒）
+    @PropertyRead("webcli.recording.keyframeSeconds")
+    private int      recordingKeyframeSeconds = 30;           // 写入画面关键帧（同时是时间索引点）的间隔（秒）
+    // Agent 与 Server 之间隧道的配置
+    @PropertyRead("webcli.tunnel.compression")
+    private boolean  tunnelCompression      = true; // 是否压缩终端输出，双方都开启时才生效
+    @PropertyRead("webcli.tunnel.compressionLevel")
+    private int      tunnelCompressionLevel = 6;    // Deflater 压缩级别 1-9
+    @PropertyRead("webcli.tunnel.rekeyBytes")
+    private long     tunnelRekeyBytes       = 1024L * 1024 * 1024; // 同一会话密钥累计加解密多少字节后轮换，0 表示不按字节数轮换
+    @PropertyRead("webcli.tunnel.rekeyMinutes")
+    private int      tunnelRekeyMinutes     = 60;   // 同一会话密钥使用多少分钟后轮换，0 表示不按时间轮换
+    @PropertyRead("webcli.tunnel.bulkWindow")
+    private int      tunnelBulkWindow       = 256 * 1024; // 已发出但未被 Server 确认的终端输出字节数上限，控制消息前最多排着这么多输出
+    @PropertyRead("webcli.tunnel.streamQueueBytes")
+    private int      tunnelStreamQueueBytes = 1024 * 1024; // 单个终端在隧道发送队列中最多积压的字节数，超过后丢弃积压并重新同步
+    @PropertyRead("webcli.tunnel.streamWindow")
+    private int      tunnelStreamWindow     = 512 * 1024; // 单个终端已发出但 Server 尚未确认转发的输出字节数上限，达到后暂停读取该终端
+    @PropertyRead("webcli.tunnel.ticketMinutes")
+    private int      tunnelTicketMinutes    = 1440; // 会话票据有效期（分钟），Agent 凭票据一次往返恢复连接，0 表示不签发
+    @PropertyRead("webcli.tunnel.handshakeThreads")
+    private int      tunnelHandshakeThreads = 2;    // Server 执行完整握手（X25519）的线程数
+    @PropertyRead("webcli.tunnel.handshakeQueue")
+    private int      tunnelHandshakeQueue   = 256;  // 排队等待的完整握手数上限，超过后拒绝并让 Agent 退避
+    @PropertyRead("webcli.tunnel.reconnectBaseMillis")
+    private long     tunnelReconnectBaseMillis = 1000;  // Agent 重连退避的基数（毫秒）
+    @PropertyRead("webcli.tunnel.reconnectMaxMillis")
+    private long     tunnelReconnectMaxMillis  = 60000; // Agent 重连退避的上限（毫秒）
+    @PropertyRead("webcli.tunnel.e2eSecret")
+    private String   tunnelE2eSecret           = "";    // 端到端加密口令（Agent 配置），为空表示不启用；浏览器输入相同口令，Server 只转发密文
+    // 浏览器 WebSocket 上终端输出的压缩
+    @PropertyRead("webcli.websocket.localCompression")
+    private boolean  wsLocalCompression   = false;      // 本地 Web 服务是否压缩，只监听 127.0.0.1，默认不压缩
+    @PropertyRead("webcli.websocket.remoteCompression")
+    private boolean  wsRemoteCompression  = true;       // 远端 Web 服务是否压缩，浏览器也支持时才生效
+    @PropertyRead("webcli.websocket.compressionLevel")
+    private int      wsCompressionLevel   = 6;          // Deflater 压缩级别 1-9
+    @PropertyRead("webcli.websocket.viewerBacklogBytes")
+    private int      wsViewerBacklogBytes = 256 * 1024; // 远端浏览器连接尚未写出的字节超过该值时，暂缓向 Agent 发放该终端的输出信用
 
     public String[] getShellCommand()
     {
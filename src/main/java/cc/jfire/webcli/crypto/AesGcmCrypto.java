@@ -3,53 +3,213 @@ package cc.jfire.webcli.crypto;
 import javax.crypto.Cipher;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 
+/**
+ * 隧道帧的 AES-256-GCM 加解密。
+ * <p>
+ * 每个方向各持有一个复用的 Cipher，nonce 为 [4 字节方向前缀][8 字节递增计数器]：
+ * 同一个会话密钥下两个方向的 nonce 空间互不重叠，同一方向内计数器从不重复，不再每帧取随机数。
+ * 帧格式为 [8 字节计数器][密文][16 字节认证标签]，接收方要求计数器严格递增，重放或乱序的帧会被拒绝。
+ * <p>
+ * 加解密都在调用方提供的数组或 ByteBuffer 上原地进行：发送方在明文前后预留 {@link #HEADER_LENGTH} 和
+ * {@link #TAG_LENGTH} 字节，不再产生 IV、密文拆分和拼接的中间数组。ByteBuffer 版本用于直接在连接收发的
+ * IoBuffer 上加解密，帧从 ByteBuffer 的 position 开始，调用前后 position 和 limit 都不变。
+ * <p>
+ * 两个方向的密钥可以分别轮换（{@link #rekeySend}、{@link #rekeyReceive}），换钥后计数器从 0 重新开始。
+ */
 public class AesGcmCrypto {
     private static final String ALGORITHM = "AES/GCM/NoPadding";
     private static final int GCM_IV_LENGTH = 12;
     private static final int GCM_TAG_LENGTH = 128;
+    /** 帧头：发送方计数器 */
+    public static final int HEADER_LENGTH = 8;
+    /** 帧尾：GCM 认证标签 */
+    public static final int TAG_LENGTH = GCM_TAG_LENGTH / 8;
+    /** Agent（客户端）发往 Server 的 nonce 前缀 */
+    private static final int CLIENT_PREFIX = 0x43324153; // "C2AS"
+    /** Server 发往 Agent 的 nonce 前缀 */
+    private static final int SERVER_PREFIX = 0x53324143; // "S2AC"
+    /** 中继帧的认证不加密任何数据 */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
 
-    private final SecretKeySpec secretKey;
-    private final SecureRandom secureRandom = new SecureRandom();
+    private SecretKeySpec sendKey;
+    private SecretKeySpec receiveKey;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final byte[] encryptIv = new byte[GCM_IV_LENGTH];
+    private final byte[] decryptIv = new byte[GCM_IV_LENGTH];
+    /** 下一个发送帧使用的计数器 */
+    private long sendCounter = 0;
+    /** 最近一个成功解密的帧的计数器 */
+    private long receiveCounter = -1;
+    /** 当前发送密钥累计加密的明文字节数 */
+    private long encryptedBytes = 0;
+    /** 当前接收密钥累计解密的明文字节数 */
+    private volatile long decryptedBytes = 0;
 
-    public AesGcmCrypto(byte[] key) {
-        if (key.length != 32) {
-            throw new IllegalArgumentException("Key must be 256 bits (32 bytes)");
-        }
-        this.secretKey = new SecretKeySpec(key, "AES");
+    /**
+     * @param client true 表示 Agent 端，false 表示 Server 端，决定两个方向各自的 nonce 前缀
+     */
+    public AesGcmCrypto(byte[] key, boolean client) throws GeneralSecurityException {
+        this.sendKey = keySpec(key);
+        this.receiveKey = this.sendKey;
+        this.encryptCipher = Cipher.getInstance(ALGORITHM);
+        this.decryptCipher = Cipher.getInstance(ALGORITHM);
+        putInt(encryptIv, 0, client ? CLIENT_PREFIX : SERVER_PREFIX);
+        putInt(decryptIv, 0, client ? SERVER_PREFIX : CLIENT_PREFIX);
     }
 
-    public byte[] encrypt(byte[] plaintext) throws Exception {
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        secureRandom.nextBytes(iv);
+    /**
+     * 原地加密一帧。frame 的布局为 [HEADER_LENGTH 字节预留][明文][TAG_LENGTH 字节预留]，
+     * 加密后整个数组即为要发送的帧。调用方需保证按加密顺序发送。
+     *
+     * @param plaintextLength 明文长度
+     * @return 帧长度
+     */
+    public int encrypt(byte[] frame, int plaintextLength) throws GeneralSecurityException {
+        return encrypt(ByteBuffer.wrap(frame), plaintextLength);
+    }
 
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, parameterSpec);
+    /**
+     * 原地加密从 frame 的 position 开始的一帧，布局同 {@link #encrypt(byte[], int)}
+     */
+    public synchronized int encrypt(ByteBuffer frame, int plaintextLength) throws GeneralSecurityException {
+        int start = frame.position();
+        long counter = sendCounter++;
+        putLong(frame, start, counter);
+        putLong(encryptIv, 4, counter);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(GCM_TAG_LENGTH, encryptIv));
+        int written = encryptCipher.doFinal(frame.slice(start + HEADER_LENGTH, plaintextLength),
+                frame.slice(start + HEADER_LENGTH, plaintextLength + TAG_LENGTH));
+        encryptedBytes += plaintextLength;
+        return HEADER_LENGTH + written;
+    }
+
+    /**
+     * 原地解密一帧，解密后明文位于 frame[offset + HEADER_LENGTH, offset + HEADER_LENGTH + 返回值)。
+     * 只在连接的读线程上调用，不与发送方竞争 {@link #encrypt} 的锁
+     *
+     * @return 明文长度
+     */
+    public int decrypt(byte[] frame, int offset, int length) throws GeneralSecurityException {
+        return decrypt(ByteBuffer.wrap(frame, offset, length));
+    }
+
+    /**
+     * 原地解密 frame 的 [position, limit) 这一帧，解密后明文位于 [position + HEADER_LENGTH, position + HEADER_LENGTH + 返回值)。
+     * 只在连接的读线程上调用
+     *
+     * @return 明文长度
+     */
+    public int decrypt(ByteBuffer frame) throws GeneralSecurityException {
+        int start = frame.position();
+        int length = frame.remaining();
+        if (length < HEADER_LENGTH + TAG_LENGTH) {
+            throw new GeneralSecurityException("加密帧过短");
+        }
+        long counter = getLong(frame, start);
+        if (counter <= receiveCounter) {
+            throw new GeneralSecurityException("加密帧计数器未递增，可能是重放: " + counter);
+        }
+        putLong(decryptIv, 4, counter);
+        decryptCipher.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(GCM_TAG_LENGTH, decryptIv));
+        ByteBuffer ciphertext = frame.slice(start + HEADER_LENGTH, length - HEADER_LENGTH);
+        int plaintextLength = decryptCipher.doFinal(ciphertext, ciphertext.duplicate());
+        receiveCounter = counter;
+        decryptedBytes += plaintextLength;
+        return plaintextLength;
+    }
 
-        byte[] ciphertext = cipher.doFinal(plaintext);
+    /**
+     * 端到端加密的中继帧只认证、不加密。frame 从 offset 起的布局为
+     * [HEADER_LENGTH 字节计数器][headerLength 字节路由头][TAG_LENGTH 字节预留][端到端密文]，
+     * 认证范围是路由头和端到端密文末尾的认证标签，写入预留位置的标签把它们绑定到本方向的计数器上。
+     * 端到端密文本身已由另一把密钥认证，因此开销与帧长无关。与 {@link #encrypt} 共用计数器。
+     *
+     * @return 帧长度
+     */
+    public int sign(byte[] frame, int offset, int headerLength) throws GeneralSecurityException {
+        return sign(ByteBuffer.wrap(frame), offset, headerLength);
+    }
 
-        // IV + ciphertext
-        byte[] result = new byte[iv.length + ciphertext.length];
-        System.arraycopy(iv, 0, result, 0, iv.length);
-        System.arraycopy(ciphertext, 0, result, iv.length, ciphertext.length);
+    /**
+     * 与 {@link #sign(byte[], int, int)} 相同，帧为 frame 的 [position, limit)，offset 相对于 position
+     */
+    public synchronized int sign(ByteBuffer frame, int offset, int headerLength) throws GeneralSecurityException {
+        int base = frame.position() + offset;
+        long counter = sendCounter++;
+        putLong(frame, base, counter);
+        putLong(encryptIv, 4, counter);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(GCM_TAG_LENGTH, encryptIv));
+        encryptCipher.updateAAD(frame.slice(base + HEADER_LENGTH, headerLength));
+        encryptCipher.updateAAD(frame.slice(frame.limit() - TAG_LENGTH, TAG_LENGTH));
+        encryptCipher.doFinal(EMPTY.duplicate(), frame.slice(base + HEADER_LENGTH + headerLength, TAG_LENGTH));
+        encryptedBytes += headerLength + TAG_LENGTH;
+        return frame.remaining();
+    }
 
-        return result;
+    /**
+     * 校验 {@link #sign} 生成的中继帧，frame[offset, offset + length) 为整个帧。只在连接的读线程上调用
+     */
+    public void verify(byte[] frame, int offset, int length, int headerLength) throws GeneralSecurityException {
+        verify(ByteBuffer.wrap(frame), offset, length, headerLength);
     }
 
-    public byte[] decrypt(byte[] encrypted) throws Exception {
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        System.arraycopy(encrypted, 0, iv, 0, iv.length);
+    /**
+     * 与 {@link #verify(byte[], int, int, int)} 相同，offset 相对于 frame 的 position
+     */
+    public void verify(ByteBuffer frame, int offset, int length, int headerLength) throws GeneralSecurityException {
+        if (length < HEADER_LENGTH + headerLength + 2 * TAG_LENGTH) {
+            throw new GeneralSecurityException("中继帧过短");
+        }
+        int base = frame.position() + offset;
+        long counter = getLong(frame, base);
+        if (counter <= receiveCounter) {
+            throw new GeneralSecurityException("中继帧计数器未递增，可能是重放: " + counter);
+        }
+        putLong(decryptIv, 4, counter);
+        decryptCipher.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(GCM_TAG_LENGTH, decryptIv));
+        decryptCipher.updateAAD(frame.slice(base + HEADER_LENGTH, headerLength));
+        decryptCipher.updateAAD(frame.slice(base + length - TAG_LENGTH, TAG_LENGTH));
+        decryptCipher.doFinal(frame.slice(base + HEADER_LENGTH + headerLength, TAG_LENGTH), EMPTY.duplicate());
+        receiveCounter = counter;
+        decryptedBytes += headerLength + TAG_LENGTH;
+    }
 
-        byte[] ciphertext = new byte[encrypted.length - iv.length];
-        System.arraycopy(encrypted, iv.length, ciphertext, 0, ciphertext.length);
+    /**
+     * 切换发送方向的密钥，之后加密的帧都使用新密钥。
+     * 调用方在同一把锁内先发出最后一个旧密钥帧再调用本方法，即可保证切换点在帧序列中是确定的
+     */
+    public synchronized void rekeySend(byte[] key) {
+        sendKey = keySpec(key);
+        sendCounter = 0;
+        encryptedBytes = 0;
+    }
 
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, parameterSpec);
+    /**
+     * 切换接收方向的密钥，之后到达的帧都按新密钥解密。只在读线程上调用
+     */
+    public void rekeyReceive(byte[] key) {
+        receiveKey = keySpec(key);
+        receiveCounter = -1;
+        decryptedBytes = 0;
+    }
 
-        return cipher.doFinal(ciphertext);
+    /**
+     * 当前发送密钥累计加密的明文字节数
+     */
+    public synchronized long getEncryptedBytes() {
+        return encryptedBytes;
+    }
+
+    /**
+     * 当前接收密钥累计解密的明文字节数
+     */
+    public long getDecryptedBytes() {
+        return decryptedBytes;
     }
 
     public static byte[] generateKey() {
@@ -57,4 +217,37 @@ public class AesGcmCrypto {
         new SecureRandom().nextBytes(key);
         return key;
     }
+
+    private static SecretKeySpec keySpec(byte[] key) {
+        if (key.length != 32) {
+            throw new IllegalArgumentException("Key must be 256 bits (32 bytes)");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static void putInt(byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] array, int offset, long value) {
+        putInt(array, offset, (int) (value >>> 32));
+        putInt(array, offset + 4, (int) value);
+    }
+
+    private static void putLong(ByteBuffer buffer, int index, long value) {
+        for (int i = 0; i < 8; i++) {
+            buffer.put(index + i, (byte) (value >>> (56 - 8 * i)));
+        }
+    }
+
+    private static long getLong(ByteBuffer buffer, int index) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer.get(index + i) & 0xFF);
+        }
+        return value;
+    }
 }
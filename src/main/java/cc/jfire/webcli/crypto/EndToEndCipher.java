@@ -0,0 +1,193 @@
+package cc.jfire.webcli.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 浏览器与 Agent 之间的端到端加密。
+ * <p>
+ * 密钥由双方各自配置的口令经 PBKDF2-HMAC-SHA256 派生，Server 不持有口令，只转发密文。
+ * 密文格式为 [12 字节随机 nonce][密文][16 字节认证标签]，与浏览器 WebCrypto 的 AES-GCM 输出一致。
+ * 附加数据绑定终端 ID、方向以及输出的类型和偏移量，Server 无法把一个终端的密文挪到另一个终端，
+ * 也无法把普通输出当作快照转发。
+ * <p>
+ * 浏览器发来的输入明文以 8 字节毫秒时间戳开头，Agent 只接受时间窗口内且 nonce 未出现过的输入，
+ * Server 不能重放截获的按键。
+ */
+public final class EndToEndCipher
+{
+    public static final  int    NONCE_LENGTH           = 12;
+    public static final  int    TAG_LENGTH             = 16;
+    /** PBKDF2 迭代次数，浏览器端使用相同的值 */
+    public static final  int    ITERATIONS             = 100_000;
+    private static final byte[] SALT                   = "WEBCLI_E2E".getBytes(StandardCharsets.UTF_8);
+    /** 输入的时间戳与 Agent 时钟最多相差这么久 */
+    private static final long   INPUT_FRESHNESS_MILLIS = 5 * 60 * 1000;
+    /** 已见 nonce 超过这个数量时清理过期的记录 */
+    private static final int    PRUNE_THRESHOLD        = 4096;
+
+    private final SecretKeySpec     key;
+    private final SecureRandom      secureRandom = new SecureRandom();
+    /** 时间窗口内已接受的输入 nonce 及其失效时间 */
+    private final Map<String, Long> seenInputs   = new ConcurrentHashMap<>();
+
+    public EndToEndCipher(byte[] key)
+    {
+        if (key.length != 32)
+        {
+            throw new IllegalArgumentException("Key must be 256 bits (32 bytes)");
+        }
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * 由口令派生密钥，口令相同的浏览器和 Agent 得到相同的密钥
+     */
+    public static EndToEndCipher fromSecret(String secret) throws GeneralSecurityException
+    {
+        PBEKeySpec spec = new PBEKeySpec(secret.toCharArray(), SALT, ITERATIONS, 256);
+        try
+        {
+            return new EndToEndCipher(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded());
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * 明文长度为 plaintextLength 时密文的长度
+     */
+    public static int sealedLength(int plaintextLength)
+    {
+        return NONCE_LENGTH + plaintextLength + TAG_LENGTH;
+    }
+
+    /**
+     * 终端输出的附加数据
+     *
+     * @param end 这一帧末尾在输出流中的偏移量，浏览器要求它不回退
+     */
+    public static byte[] outputAad(String ptyId, boolean resync, long end)
+    {
+        return ("OUT|" + ptyId + "|" + (resync ? 1 : 0) + "|" + end).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 浏览器输入的附加数据
+     */
+    public static byte[] inputAad(String ptyId)
+    {
+        return ("IN|" + ptyId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 把 data 的剩余内容加密到 out[outOffset, outOffset + sealedLength(data.remaining()))，不改变 data 的位置
+     */
+    public void seal(ByteBuffer data, byte[] aad, byte[] out, int outOffset) throws GeneralSecurityException
+    {
+        seal(data, aad, ByteBuffer.wrap(out, outOffset, sealedLength(data.remaining())));
+    }
+
+    /**
+     * 把 data 的剩余内容加密到 out 从 position 开始的 sealedLength(data.remaining()) 个字节，
+     * 不改变 data 和 out 的位置。out 可以是出站 IoBuffer 的视图
+     */
+    public void seal(ByteBuffer data, byte[] aad, ByteBuffer out) throws GeneralSecurityException
+    {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        secureRandom.nextBytes(nonce);
+        out.put(out.position(), nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(aad);
+        int plaintextLength = data.remaining();
+        cipher.doFinal(data.duplicate(), out.slice(out.position() + NONCE_LENGTH, plaintextLength + TAG_LENGTH));
+    }
+
+    public byte[] seal(byte[] plaintext, byte[] aad) throws GeneralSecurityException
+    {
+        byte[] sealed = new byte[sealedLength(plaintext.length)];
+        seal(ByteBuffer.wrap(plaintext), aad, sealed, 0);
+        return sealed;
+    }
+
+    /**
+     * 解密，密文被篡改或附加数据不符时抛出异常
+     */
+    public byte[] open(byte[] sealed, byte[] aad) throws GeneralSecurityException
+    {
+        if (sealed.length < NONCE_LENGTH + TAG_LENGTH)
+        {
+            throw new GeneralSecurityException("端到端密文过短");
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, sealed, 0, NONCE_LENGTH));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+    }
+
+    /**
+     * 浏览器加密的输入，明文为 [8 字节毫秒时间戳][输入字节]
+     */
+    public byte[] sealInput(String ptyId, byte[] input, long nowMillis) throws GeneralSecurityException
+    {
+        ByteBuffer plaintext = ByteBuffer.allocate(8 + input.length);
+        plaintext.putLong(nowMillis).put(input);
+        return seal(plaintext.array(), inputAad(ptyId));
+    }
+
+    /**
+     * 解开浏览器发来的输入，返回输入字节。密文无效、时间戳超出窗口或重放时返回 null
+     */
+    public byte[] openInput(String ptyId, byte[] sealed, long nowMillis)
+    {
+        byte[] plaintext;
+        try
+        {
+            plaintext = open(sealed, inputAad(ptyId));
+        }
+        catch (GeneralSecurityException e)
+        {
+            return null;
+        }
+        if (plaintext.length < 8)
+        {
+            return null;
+        }
+        long timestamp = ByteBuffer.wrap(plaintext).getLong();
+        if (Math.abs(nowMillis - timestamp) > INPUT_FRESHNESS_MILLIS)
+        {
+            return null;
+        }
+        if (seenInputs.size() > PRUNE_THRESHOLD)
+        {
+            for (Iterator<Long> it = seenInputs.values().iterator(); it.hasNext(); )
+            {
+                if (it.next() < nowMillis)
+                {
+                    it.remove();
+                }
+            }
+        }
+        String nonce = Base64.getEncoder().encodeToString(Arrays.copyOf(sealed, NONCE_LENGTH));
+        if (seenInputs.putIfAbsent(nonce, timestamp + INPUT_FRESHNESS_MILLIS) != null)
+        {
+            return null;
+        }
+        return Arrays.copyOfRange(plaintext, 8, plaintext.length);
+    }
+}
@@ -0,0 +1,178 @@
+package cc.jfire.webcli.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Agent 重连时使用的会话票据。
+ * <p>
+ * 完整握手成功后，双方各自从会话密钥派生出恢复密钥，Server 把恢复密钥连同 agentId 和过期时间用票据密钥加密成票据交给 Agent。
+ * Agent 重连时出示票据并用恢复密钥计算 MAC，Server 解开票据即可校验，一次往返完成，不需要 X25519 运算，也不保存任何会话状态。
+ * 票据密钥由预共享 token 派生，Server 重启之前签发的票据在重启后依然有效。
+ * <p>
+ * 票据格式为 [12 字节随机 IV][密文][16 字节认证标签]，明文为 [8 字节过期时间][32 字节恢复密钥][agentId 的 UTF-8 字节]。
+ * 恢复请求的 clientNonce 以 8 字节毫秒时间戳开头，Server 只接受时间窗口内且未出现过的 nonce，截获的恢复请求不能被重放。
+ */
+public final class SessionTickets
+{
+    /** 恢复请求 clientNonce 的长度：8 字节时间戳加 24 字节随机数 */
+    public static final  int    NONCE_LENGTH     = 32;
+    /** 恢复请求的时间戳与 Server 时钟最多相差这么久 */
+    private static final long   FRESHNESS_MILLIS = 2 * 60 * 1000;
+    /** 已见 nonce 超过这个数量时清理过期的记录 */
+    private static final int    PRUNE_THRESHOLD  = 1024;
+    private static final int    IV_LENGTH        = 12;
+    private static final int    TAG_BITS         = 128;
+    private static final int    SECRET_LENGTH    = 32;
+    private static final byte[] AAD              = "WEBCLI_SESSION_TICKET".getBytes(StandardCharsets.UTF_8);
+
+    private final SecretKeySpec     key;
+    private final long              lifetimeMillis;
+    private final SecureRandom      secureRandom = new SecureRandom();
+    /** 时间窗口内已接受的恢复请求 nonce 及其失效时间 */
+    private final Map<String, Long> seenNonces   = new ConcurrentHashMap<>();
+
+    /**
+     * @param key            32 字节票据密钥
+     * @param lifetimeMillis 票据有效期
+     */
+    public SessionTickets(byte[] key, long lifetimeMillis)
+    {
+        if (key.length != 32)
+        {
+            throw new IllegalArgumentException("Key must be 256 bits (32 bytes)");
+        }
+        this.key = new SecretKeySpec(key, "AES");
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * 由预共享 token 派生票据密钥，token 不变时 Server 重启前后的票据密钥相同
+     */
+    public static byte[] deriveKey(String token) throws GeneralSecurityException
+    {
+        return hmacSha256(token.getBytes(StandardCharsets.UTF_8), AAD);
+    }
+
+    /**
+     * 双方在完整握手或恢复完成时由会话密钥派生恢复密钥，下一次恢复使用
+     */
+    public static byte[] resumptionSecret(byte[] sessionKey, String agentId) throws GeneralSecurityException
+    {
+        return hmacSha256(sessionKey, ("RESUMPTION|" + agentId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Agent 生成恢复请求的 clientNonce：[8 字节毫秒时间戳][24 字节随机数]
+     */
+    public static byte[] newClientNonce(SecureRandom random, long nowMillis)
+    {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        ByteBuffer.wrap(nonce).putLong(nowMillis);
+        return nonce;
+    }
+
+    /**
+     * 签发票据，返回 Base64 字符串
+     */
+    public String issue(String agentId, byte[] secret, long nowMillis) throws GeneralSecurityException
+    {
+        if (secret.length != SECRET_LENGTH)
+        {
+            throw new IllegalArgumentException("恢复密钥必须为 32 字节");
+        }
+        byte[]     name      = agentId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer plaintext = ByteBuffer.allocate(8 + SECRET_LENGTH + name.length);
+        plaintext.putLong(nowMillis + lifetimeMillis).put(secret).put(name);
+        byte[] ticket = new byte[IV_LENGTH + plaintext.capacity() + TAG_BITS / 8];
+        secureRandom.nextBytes(ticket);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, ticket, 0, IV_LENGTH));
+        cipher.updateAAD(AAD);
+        cipher.doFinal(plaintext.array(), 0, plaintext.capacity(), ticket, IV_LENGTH);
+        return Base64.getEncoder().encodeToString(ticket);
+    }
+
+    /**
+     * 解开票据，票据被篡改、格式错误或已过期时返回 null
+     */
+    public Ticket open(String ticket, long nowMillis)
+    {
+        try
+        {
+            byte[] data = Base64.getDecoder().decode(ticket);
+            if (data.length < IV_LENGTH + TAG_BITS / 8 + 8 + SECRET_LENGTH)
+            {
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, data, 0, IV_LENGTH));
+            cipher.updateAAD(AAD);
+            ByteBuffer plaintext = ByteBuffer.wrap(cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH));
+            if (plaintext.getLong() < nowMillis)
+            {
+                return null;
+            }
+            byte[] secret = new byte[SECRET_LENGTH];
+            plaintext.get(secret);
+            return new Ticket(new String(plaintext.array(), plaintext.position(), plaintext.remaining(), StandardCharsets.UTF_8), secret);
+        }
+        catch (IllegalArgumentException | GeneralSecurityException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * 恢复请求的 nonce 在时间窗口内且第一次出现时返回 true。应在票据和 MAC 都校验通过之后调用，
+     * 记录的数量因此只随合法的恢复次数增长
+     */
+    public boolean acceptNonce(byte[] clientNonce, long nowMillis)
+    {
+        if (clientNonce.length != NONCE_LENGTH)
+        {
+            return false;
+        }
+        long timestamp = ByteBuffer.wrap(clientNonce).getLong();
+        if (Math.abs(nowMillis - timestamp) > FRESHNESS_MILLIS)
+        {
+            return false;
+        }
+        if (seenNonces.size() > PRUNE_THRESHOLD)
+        {
+            for (Iterator<Long> it = seenNonces.values().iterator(); it.hasNext(); )
+            {
+                if (it.next() < nowMillis)
+                {
+                    it.remove();
+                }
+            }
+        }
+        return seenNonces.putIfAbsent(Base64.getEncoder().encodeToString(clientNonce), timestamp + FRESHNESS_MILLIS) == null;
+    }
+
+    private static byte[] hmacSha256(byte[] key, byte[] data) throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    /**
+     * 票据中的内容
+     */
+    public record Ticket(String agentId, byte[] secret)
+    {
+    }
+}
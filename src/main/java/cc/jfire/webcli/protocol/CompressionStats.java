@@ -0,0 +1,37 @@
+package cc.jfire.webcli.protocol;
+
+import lombok.Data;
+
+/**
+ * 隧道压缩的累计字节数
+ */
+@Data
+public class CompressionStats
+{
+    /** 压缩前的字节数 */
+    private long rawBytes;
+    /** 压缩后的字节数 */
+    private long compressedBytes;
+
+    public synchronized void record(int raw, int compressed)
+    {
+        rawBytes += raw;
+        compressedBytes += compressed;
+    }
+
+    /**
+     * 压缩比（压缩前 / 压缩后），还没有数据时为 0
+     */
+    public synchronized double getRatio()
+    {
+        return compressedBytes == 0 ? 0 : (double) rawBytes / compressedBytes;
+    }
+
+    public synchronized CompressionStats copy()
+    {
+        CompressionStats copy = new CompressionStats();
+        copy.rawBytes = rawBytes;
+        copy.compressedBytes = compressedBytes;
+        return copy;
+    }
+}
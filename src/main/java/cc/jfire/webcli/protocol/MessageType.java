@@ -2,6 +2,7 @@ package cc.jfire.webcli.protocol;
 
 public enum MessageType {
     PTY_OUTPUT,
+    PTY_RESYNC,               // 输出积压被丢弃后的全量快照，前端需清屏重绘
     PTY_INPUT,
     PTY_RESIZE,
     PTY_CREATE,
@@ -0,0 +1,94 @@
+package cc.jfire.webcli.protocol;
+
+import cc.jfire.webcli.crypto.AesGcmCrypto;
+import cc.jfire.webcli.crypto.EndToEndCipher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 端到端加密模式下 Agent 发往 Server 的终端输出帧。
+ * <p>
+ * 格式为 [0xFF][8 字节隧道计数器][路由头][16 字节隧道认证标签][端到端密文]，
+ * 路由头固定为 [1 字节类型：0 输出、1 快照][8 字节输出流末尾偏移量][4 字节流 ID]，流 ID 由 Server 在 attach 时分配。
+ * Server 只解析路由头并校验隧道标签（见 {@link AesGcmCrypto#sign}），端到端密文原样转发给浏览器，不解密也不解压。
+ * <p>
+ * 普通加密帧以计数器开头，计数器的最高字节不可能达到 0xFF，因此两种帧按首字节区分。
+ *
+ * @param sealedOffset 端到端密文在帧中的起始位置，密文一直延续到帧尾
+ */
+public record RelayFrame(int stream, boolean resync, long offset, int sealedOffset)
+{
+    public static final  byte MARKER         = (byte) 0xFF;
+    /** 隧道计数器在帧中的位置 */
+    public static final  int  COUNTER_OFFSET = 1;
+    /** 路由头的长度 */
+    public static final  int  HEADER_LENGTH  = 1 + 8 + 4;
+    private static final int  HEADER_OFFSET  = COUNTER_OFFSET + AesGcmCrypto.HEADER_LENGTH;
+    private static final int  SEALED_OFFSET  = HEADER_OFFSET + HEADER_LENGTH + AesGcmCrypto.TAG_LENGTH;
+
+    public static boolean isRelay(byte[] frame)
+    {
+        return isRelay(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * 判断 frame 中从 position 开始的帧是否为中继帧
+     */
+    public static boolean isRelay(ByteBuffer frame)
+    {
+        return frame.hasRemaining() && frame.get(frame.position()) == MARKER;
+    }
+
+    /**
+     * 携带 sealedLength 字节端到端密文的中继帧总长度
+     */
+    public static int length(int sealedLength)
+    {
+        return SEALED_OFFSET + sealedLength;
+    }
+
+    /**
+     * 分配一帧并写好标记和路由头，计数器、隧道标签和端到端密文留空
+     */
+    public static byte[] allocate(int stream, boolean resync, long offset, int sealedLength)
+    {
+        byte[] frame = new byte[length(sealedLength)];
+        writeHeader(ByteBuffer.wrap(frame), stream, resync, offset);
+        return frame;
+    }
+
+    /**
+     * 在 frame 从 position 开始的位置写入标记和路由头，不改变 frame 的位置。
+     * 用于直接在出站 IoBuffer 上组帧，计数器、隧道标签和端到端密文由调用方随后填写
+     */
+    public static void writeHeader(ByteBuffer frame, int stream, boolean resync, long offset)
+    {
+        int start = frame.position();
+        frame.put(start, MARKER);
+        frame.put(start + HEADER_OFFSET, (byte) (resync ? 1 : 0));
+        frame.putLong(start + HEADER_OFFSET + 1, offset);
+        frame.putInt(start + HEADER_OFFSET + 9, stream);
+    }
+
+    public static RelayFrame parse(byte[] frame)
+    {
+        return parse(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * 解析 frame 中 [position, limit) 的中继帧路由头，不改变 frame 的位置，帧格式不正确时抛出 IllegalArgumentException。
+     * 路由头此时尚未认证，调用方随后必须校验隧道标签。sealedOffset 相对于 position
+     */
+    public static RelayFrame parse(ByteBuffer frame)
+    {
+        if (!isRelay(frame) || frame.remaining() < SEALED_OFFSET + EndToEndCipher.sealedLength(0))
+        {
+            throw new IllegalArgumentException("中继帧长度不足");
+        }
+        int  start  = frame.position();
+        byte type   = frame.get(start + HEADER_OFFSET);
+        long offset = frame.getLong(start + HEADER_OFFSET + 1);
+        int  stream = frame.getInt(start + HEADER_OFFSET + 9);
+        return new RelayFrame(stream, type == 1, offset, SEALED_OFFSET);
+    }
+}
@@ -0,0 +1,72 @@
+package cc.jfire.webcli.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * 单个终端输出流的压缩端。
+ * <p>
+ * 整个流共用一个 Deflater 上下文，每帧以 {@link Deflater#SYNC_FLUSH} 结束：帧可以立即被完整解压，
+ * 同时之前的输出仍留在滑动窗口里作为字典，几个字节的小帧（提示符、光标移动）也能压缩得很好。
+ * 使用无 zlib 头的原始 deflate 格式。非线程安全，调用方需保证按发送顺序串行调用。
+ */
+public class StreamDeflater
+{
+    public static final String ALGORITHM = "deflate";
+
+    private final Deflater              deflater;
+    private final CompressionStats      stats;
+    private final byte[]                buffer = new byte[8192];
+    private final ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    private       boolean               ended;
+
+    public StreamDeflater(int level, CompressionStats stats)
+    {
+        this.deflater = new Deflater(level, true);
+        this.stats = stats;
+    }
+
+    /**
+     * 压缩一帧，调用后 data 被消费完
+     */
+    public byte[] compress(ByteBuffer data)
+    {
+        if (ended)
+        {
+            throw new IllegalStateException("压缩流已关闭");
+        }
+        int raw = data.remaining();
+        out.reset();
+        deflater.setInput(data);
+        int n;
+        do
+        {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, n);
+        }
+        while (n == buffer.length);
+        byte[] compressed = out.toByteArray();
+        stats.record(raw, compressed.length);
+        return compressed;
+    }
+
+    /**
+     * 丢弃字典，从下一帧开始一个新的压缩流。接收端在同一帧处也必须重置
+     */
+    public void reset()
+    {
+        deflater.reset();
+    }
+
+    public boolean isEnded()
+    {
+        return ended;
+    }
+
+    public void end()
+    {
+        ended = true;
+        deflater.end();
+    }
+}
@@ -0,0 +1,43 @@
+package cc.jfire.webcli.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 单个终端输出流的解压端，与 {@link StreamDeflater} 一一对应。非线程安全。
+ */
+public class StreamInflater
+{
+    private final Inflater              inflater = new Inflater(true);
+    private final byte[]                buffer   = new byte[16384];
+    private final ByteArrayOutputStream out      = new ByteArrayOutputStream();
+
+    /**
+     * 解压一帧。发送端每帧都做了 SYNC_FLUSH，输入消费完即得到该帧的全部数据
+     */
+    public byte[] decompress(byte[] data) throws DataFormatException
+    {
+        out.reset();
+        inflater.setInput(data);
+        while (true)
+        {
+            int n = inflater.inflate(buffer);
+            out.write(buffer, 0, n);
+            if (n == 0 || n < buffer.length && inflater.needsInput())
+            {
+                return out.toByteArray();
+            }
+        }
+    }
+
+    public void reset()
+    {
+        inflater.reset();
+    }
+
+    public void end()
+    {
+        inflater.end();
+    }
+}
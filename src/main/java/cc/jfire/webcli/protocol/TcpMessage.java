@@ -17,11 +17,21 @@ public class TcpMessage {
     private String clientMac;
     private String serverMac;
     private String finishMac;
+    /** Server 签发的会话票据，Agent 重连时出示以跳过完整握手 */
+    private String ticket;
+    /** 握手时协商的输出压缩算法，null 表示不压缩 */
+    private String compression;
 
     private String ptyId;
+    /** Server 在 attach 时分配的连接内流 ID，终端输出帧用它代替 ptyId 和 agentId */
+    private Integer stream;
     private String data;
+    /** PTY 输入输出的原始字节，隧道本身是二进制且已加密，不再做 Base64 */
+    private byte[] payload;
     private Integer cols;
     private Integer rows;
+    /** 字节数或输出流偏移量 */
+    private Long offset;
     private String agentId;  // Agent 标识
     private Boolean remoteViewable;  // 远端可见性
 }
@@ -0,0 +1,454 @@
+package cc.jfire.webcli.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Agent 与 Server 之间 {@link TcpMessage} 的紧凑二进制编码。
+ * <p>
+ * 帧格式为 [类型 1 字节][按该类型布局依次排列的字段]，每种消息类型只写它实际用到的字段，
+ * 不再像通用序列化那样为十几个大多为 null 的字段写入类型信息和占位：
+ * <ul>
+ *     <li>字符串：varint(字节长度 + 1) 后跟 UTF-8 字节，0 表示 null</li>
+ *     <li>字节数组（PTY 输入输出）：varint(长度 + 1) 后跟原始字节，0 表示 null</li>
+ *     <li>整数（包括终端输出帧上代替 ptyId 的流 ID）：varint(zigzag(值) + 1)，0 表示 null</li>
+ *     <li>非负长整数（字节数、偏移量）：varint(值 + 1)，0 表示 null</li>
+ *     <li>布尔：1 字节，0 为 null，1 为 false，2 为 true</li>
+ * </ul>
+ * 编解码只做一次精确大小的分配，不使用反射。类型字节取自 {@link TcpMessageType#getCode()} 显式指定的编号，
+ * 与枚举的声明顺序无关；解码时按编号查表，未知编号直接拒绝。
+ */
+public final class TcpMessageCodec
+{
+    private enum Field
+    {
+        REQUEST_ID, NAME, CLIENT_NONCE, SERVER_NONCE, CLIENT_PUB_KEY, SERVER_PUB_KEY, CLIENT_MAC, SERVER_MAC, FINISH_MAC, COMPRESSION, TICKET,
+        PTY_ID, STREAM, DATA, PAYLOAD, COLS, ROWS, OFFSET, AGENT_ID, REMOTE_VIEWABLE
+    }
+
+    /** 下标为线上编号 */
+    private static final TcpMessageType[]             BY_CODE = new TcpMessageType[256];
+    private static final Map<TcpMessageType, Field[]> LAYOUTS = new EnumMap<>(TcpMessageType.class);
+
+    static
+    {
+        layout(TcpMessageType.AUTH_REQUEST, Field.AGENT_ID, Field.CLIENT_NONCE, Field.CLIENT_PUB_KEY, Field.CLIENT_MAC, Field.COMPRESSION, Field.TICKET);
+        layout(TcpMessageType.AUTH_RESPONSE, Field.AGENT_ID, Field.SERVER_PUB_KEY, Field.SERVER_NONCE, Field.SERVER_MAC, Field.DATA, Field.COMPRESSION);
+        layout(TcpMessageType.AUTH_FINISH, Field.AGENT_ID, Field.FINISH_MAC);
+        layout(TcpMessageType.AUTH_RESULT, Field.AGENT_ID, Field.DATA, Field.SERVER_NONCE, Field.SERVER_MAC, Field.COMPRESSION);
+        layout(TcpMessageType.PTY_LIST_REQUEST);
+        layout(TcpMessageType.PTY_LIST_RESPONSE, Field.AGENT_ID, Field.DATA);
+        layout(TcpMessageType.PTY_OUTPUT, Field.STREAM, Field.OFFSET, Field.PAYLOAD);
+        layout(TcpMessageType.PTY_RESYNC, Field.STREAM, Field.OFFSET, Field.PAYLOAD);
+        layout(TcpMessageType.PTY_INPUT, Field.PTY_ID, Field.PAYLOAD);
+        layout(TcpMessageType.PTY_RESIZE, Field.PTY_ID, Field.COLS, Field.ROWS);
+        layout(TcpMessageType.PTY_CLOSE, Field.PTY_ID);
+        layout(TcpMessageType.HEARTBEAT);
+        layout(TcpMessageType.PTY_ATTACH, Field.PTY_ID, Field.STREAM, Field.OFFSET);
+        layout(TcpMessageType.PTY_DETACH, Field.PTY_ID);
+        layout(TcpMessageType.PTY_VISIBILITY_CHANGED, Field.PTY_ID, Field.AGENT_ID, Field.REMOTE_VIEWABLE);
+        layout(TcpMessageType.PTY_CREATE, Field.REQUEST_ID, Field.NAME, Field.COLS, Field.ROWS);
+        layout(TcpMessageType.PTY_CREATE_RESULT, Field.REQUEST_ID, Field.AGENT_ID, Field.DATA, Field.PTY_ID, Field.NAME, Field.REMOTE_VIEWABLE);
+        layout(TcpMessageType.PTY_RENAME, Field.REQUEST_ID, Field.PTY_ID, Field.NAME);
+        layout(TcpMessageType.PTY_RENAME_RESULT, Field.REQUEST_ID, Field.AGENT_ID, Field.PTY_ID, Field.DATA, Field.NAME);
+        layout(TcpMessageType.REKEY_REQUEST, Field.CLIENT_PUB_KEY, Field.CLIENT_NONCE);
+        layout(TcpMessageType.REKEY_RESPONSE, Field.SERVER_PUB_KEY, Field.SERVER_NONCE);
+        layout(TcpMessageType.REKEY_FINISH);
+        layout(TcpMessageType.TUNNEL_ACK, Field.OFFSET);
+        layout(TcpMessageType.PTY_CREDIT, Field.PTY_ID, Field.OFFSET);
+        layout(TcpMessageType.SESSION_TICKET, Field.TICKET);
+        layout(TcpMessageType.PTY_INFO_CHANGED, Field.PTY_ID, Field.NAME, Field.REMOTE_VIEWABLE);
+        layout(TcpMessageType.PTY_SEALED_INPUT, Field.PTY_ID, Field.PAYLOAD);
+        for (TcpMessageType type : TcpMessageType.values())
+        {
+            if (!LAYOUTS.containsKey(type))
+            {
+                throw new IllegalStateException("消息类型缺少编码布局: " + type);
+            }
+            int code = type.getCode();
+            if (code < 0 || code >= BY_CODE.length || BY_CODE[code] != null)
+            {
+                throw new IllegalStateException("消息类型编号无效或重复: " + type + "=" + code);
+            }
+            BY_CODE[code] = type;
+        }
+    }
+
+    private TcpMessageCodec()
+    {
+    }
+
+    private static void layout(TcpMessageType type, Field... fields)
+    {
+        LAYOUTS.put(type, fields);
+    }
+
+    public static byte[] encode(TcpMessage msg)
+    {
+        return encode(msg, 0, 0);
+    }
+
+    /**
+     * 编码到 [headroom 字节预留][消息][tailroom 字节预留] 的数组中，供加密层原地写入帧头和认证标签
+     */
+    public static byte[] encode(TcpMessage msg, int headroom, int tailroom)
+    {
+        Encoding encoding = prepare(msg);
+        byte[]   out      = new byte[headroom + encoding.length() + tailroom];
+        encoding.writeTo(ByteBuffer.wrap(out, headroom, encoding.length()));
+        return out;
+    }
+
+    /**
+     * 计算消息的编码长度但先不写出，调用方按长度申请好出站缓冲区（例如连接的 IoBuffer）后
+     * 用 {@link Encoding#writeTo} 直接写入，省去一次中间数组和拷贝
+     */
+    public static Encoding prepare(TcpMessage msg)
+    {
+        Field[]  fields  = LAYOUTS.get(msg.getType());
+        byte[][] encoded = new byte[fields.length][];
+        int      size    = 1;
+        for (int i = 0; i < fields.length; i++)
+        {
+            Field field = fields[i];
+            switch (field)
+            {
+                case STREAM, COLS, ROWS -> size += varintSize(intValue(get(msg, field)));
+                case OFFSET -> size += varintSize(longValue(get(msg, field)));
+                case REMOTE_VIEWABLE -> size += 1;
+                default ->
+                {
+                    // 字符串先编码为 UTF-8，字节数组直接引用
+                    Object value = get(msg, field);
+                    encoded[i] = value instanceof String text ? text.getBytes(StandardCharsets.UTF_8) : (byte[]) value;
+                    size += encoded[i] == null ? 1 : varintSize(encoded[i].length + 1L) + encoded[i].length;
+                }
+            }
+        }
+        return new Encoding(msg, fields, encoded, size);
+    }
+
+    public static TcpMessage decode(byte[] data)
+    {
+        return decode(data, 0, data.length);
+    }
+
+    public static TcpMessage decode(byte[] data, int offset, int length)
+    {
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * 解码 data 中 [position, limit) 的一条消息，不改变 data 的位置。
+     * data 可以是连接 IoBuffer 的视图，只有字符串和字节数组字段会拷贝出来
+     */
+    public static TcpMessage decode(ByteBuffer data)
+    {
+        if (!data.hasRemaining())
+        {
+            throw new IllegalArgumentException("空消息");
+        }
+        int            code = data.get(data.position()) & 0xFF;
+        TcpMessageType type = BY_CODE[code];
+        if (type == null)
+        {
+            throw new IllegalArgumentException("未知消息类型: " + code);
+        }
+        TcpMessage msg = new TcpMessage();
+        msg.setType(type);
+        Reader reader = new Reader(data, data.position() + 1, data.limit());
+        for (Field field : LAYOUTS.get(msg.getType()))
+        {
+            switch (field)
+            {
+                case STREAM, COLS, ROWS ->
+                {
+                    long    raw   = reader.varint();
+                    Integer value = raw == 0 ? null : (int) zigzagDecode(raw - 1);
+                    set(msg, field, value);
+                }
+                case OFFSET ->
+                {
+                    long raw = reader.varint();
+                    set(msg, field, raw == 0 ? null : raw - 1);
+                }
+                case REMOTE_VIEWABLE ->
+                {
+                    int raw = reader.byteValue();
+                    set(msg, field, raw == 0 ? null : raw == 2);
+                }
+                case PAYLOAD -> set(msg, field, reader.bytes());
+                default -> set(msg, field, reader.string());
+            }
+        }
+        return msg;
+    }
+
+    private static Object get(TcpMessage msg, Field field)
+    {
+        return switch (field)
+        {
+            case REQUEST_ID -> msg.getRequestId();
+            case NAME -> msg.getName();
+            case CLIENT_NONCE -> msg.getClientNonce();
+            case SERVER_NONCE -> msg.getServerNonce();
+            case CLIENT_PUB_KEY -> msg.getClientPubKey();
+            case SERVER_PUB_KEY -> msg.getServerPubKey();
+            case CLIENT_MAC -> msg.getClientMac();
+            case SERVER_MAC -> msg.getServerMac();
+            case FINISH_MAC -> msg.getFinishMac();
+            case COMPRESSION -> msg.getCompression();
+            case TICKET -> msg.getTicket();
+            case PTY_ID -> msg.getPtyId();
+            case STREAM -> msg.getStream();
+            case DATA -> msg.getData();
+            case PAYLOAD -> msg.getPayload();
+            case COLS -> msg.getCols();
+            case ROWS -> msg.getRows();
+            case OFFSET -> msg.getOffset();
+            case AGENT_ID -> msg.getAgentId();
+            case REMOTE_VIEWABLE -> msg.getRemoteViewable();
+        };
+    }
+
+    private static void set(TcpMessage msg, Field field, Object value)
+    {
+        switch (field)
+        {
+            case REQUEST_ID -> msg.setRequestId((String) value);
+            case NAME -> msg.setName((String) value);
+            case CLIENT_NONCE -> msg.setClientNonce((String) value);
+            case SERVER_NONCE -> msg.setServerNonce((String) value);
+            case CLIENT_PUB_KEY -> msg.setClientPubKey((String) value);
+            case SERVER_PUB_KEY -> msg.setServerPubKey((String) value);
+            case CLIENT_MAC -> msg.setClientMac((String) value);
+            case SERVER_MAC -> msg.setServerMac((String) value);
+            case FINISH_MAC -> msg.setFinishMac((String) value);
+            case COMPRESSION -> msg.setCompression((String) value);
+            case TICKET -> msg.setTicket((String) value);
+            case PTY_ID -> msg.setPtyId((String) value);
+            case STREAM -> msg.setStream((Integer) value);
+            case DATA -> msg.setData((String) value);
+            case PAYLOAD -> msg.setPayload((byte[]) value);
+            case COLS -> msg.setCols((Integer) value);
+            case ROWS -> msg.setRows((Integer) value);
+            case OFFSET -> msg.setOffset((Long) value);
+            case AGENT_ID -> msg.setAgentId((String) value);
+            case REMOTE_VIEWABLE -> msg.setRemoteViewable((Boolean) value);
+        }
+    }
+
+    /**
+     * 可为 null 的整数编码为 zigzag(值) + 1，0 表示 null
+     */
+    private static long intValue(Object value)
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+        int v = (Integer) value;
+        return ((long) ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL) + 1;
+    }
+
+    /**
+     * 可为 null 的非负长整数编码为 值 + 1，0 表示 null
+     */
+    private static long longValue(Object value)
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+        long v = (Long) value;
+        if (v < 0)
+        {
+            throw new IllegalArgumentException("偏移量不能为负数: " + v);
+        }
+        return v + 1;
+    }
+
+    private static long zigzagDecode(long raw)
+    {
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    static int varintSize(long value)
+    {
+        int size = 1;
+        while ((value & ~0x7FL) != 0)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer out, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * 已算好长度、尚未写出的一条消息编码
+     */
+    public static final class Encoding
+    {
+        private final TcpMessage msg;
+        private final Field[]    fields;
+        private final byte[][]   encoded;
+        private final int        length;
+
+        private Encoding(TcpMessage msg, Field[] fields, byte[][] encoded, int length)
+        {
+            this.msg = msg;
+            this.fields = fields;
+            this.encoded = encoded;
+            this.length = length;
+        }
+
+        public int length()
+        {
+            return length;
+        }
+
+        /**
+         * 从 out 的当前位置写入 {@link #length()} 个字节，写完后 out 的位置前移同样的长度
+         */
+        public void writeTo(ByteBuffer out)
+        {
+            if (out.remaining() < length)
+            {
+                throw new IllegalArgumentException("缓冲区空间不足: " + out.remaining() + " < " + length);
+            }
+            out.put((byte) msg.getType().getCode());
+            for (int i = 0; i < fields.length; i++)
+            {
+                Field field = fields[i];
+                switch (field)
+                {
+                    case STREAM, COLS, ROWS -> putVarint(out, intValue(get(msg, field)));
+                    case OFFSET -> putVarint(out, longValue(get(msg, field)));
+                    case REMOTE_VIEWABLE ->
+                    {
+                        Boolean value = (Boolean) get(msg, field);
+                        out.put((byte) (value == null ? 0 : value ? 2 : 1));
+                    }
+                    default ->
+                    {
+                        if (encoded[i] == null)
+                        {
+                            out.put((byte) 0);
+                        }
+                        else
+                        {
+                            putVarint(out, encoded[i].length + 1L);
+                            out.put(encoded[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 按绝对位置读取，不改变底层缓冲区的位置
+     */
+    private static final class Reader
+    {
+        private final ByteBuffer data;
+        private final int        limit;
+        private       int        pos;
+
+        private Reader(ByteBuffer data, int pos, int limit)
+        {
+            this.data = data;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        int byteValue()
+        {
+            if (pos >= limit)
+            {
+                throw new IllegalArgumentException("消息被截断");
+            }
+            return data.get(pos++) & 0xFF;
+        }
+
+        long varint()
+        {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                int b = byteValue();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("varint 过长");
+        }
+
+        String string()
+        {
+            int length = length();
+            if (length < 0)
+            {
+                return null;
+            }
+            String value;
+            if (data.hasArray())
+            {
+                value = new String(data.array(), data.arrayOffset() + pos, length, StandardCharsets.UTF_8);
+            }
+            else
+            {
+                byte[] bytes = new byte[length];
+                data.get(pos, bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            pos += length;
+            return value;
+        }
+
+        byte[] bytes()
+        {
+            int length = length();
+            if (length < 0)
+            {
+                return null;
+            }
+            byte[] value = new byte[length];
+            data.get(pos, value);
+            pos += length;
+            return value;
+        }
+
+        /**
+         * 读取长度前缀，null 返回 -1
+         */
+        private int length()
+        {
+            long raw = varint();
+            if (raw == 0)
+            {
+                return -1;
+            }
+            long length = raw - 1;
+            if (length > limit - pos)
+            {
+                throw new IllegalArgumentException("消息被截断");
+            }
+            return (int) length;
+        }
+    }
+}
@@ -1,23 +1,56 @@
 package cc.jfire.webcli.protocol;
 
+/**
+ * Agent 与 Server 之间的消息类型。
+ * <p>
+ * code 是写在帧首字节上的线上编号，一经发布不能修改或复用。新增类型使用新的编号，
+ * 调整声明顺序不会改变已有类型在线上的含义。
+ */
 public enum TcpMessageType {
-    AUTH_REQUEST,
-    AUTH_RESPONSE,
-    AUTH_FINISH,
-    AUTH_RESULT,
-    PTY_LIST_REQUEST,
-    PTY_LIST_RESPONSE,
-    PTY_OUTPUT,
-    PTY_INPUT,
-    PTY_RESIZE,
-    PTY_CLOSE,
-    HEARTBEAT,
-    PTY_ATTACH,
-    PTY_DETACH,
-    PTY_VISIBILITY_CHANGED,
+    AUTH_REQUEST(0),
+    AUTH_RESPONSE(1),
+    AUTH_FINISH(2),
+    AUTH_RESULT(3),
+    PTY_LIST_REQUEST(4),
+    PTY_LIST_RESPONSE(5),
+    PTY_OUTPUT(6),
+    // 输出积压被丢弃后的全量快照
+    PTY_RESYNC(7),
+    PTY_INPUT(8),
+    PTY_RESIZE(9),
+    PTY_CLOSE(10),
+    HEARTBEAT(11),
+    PTY_ATTACH(12),
+    PTY_DETACH(13),
+    PTY_VISIBILITY_CHANGED(14),
     // 远端创建/重命名终端
-    PTY_CREATE,
-    PTY_CREATE_RESULT,
-    PTY_RENAME,
-    PTY_RENAME_RESULT
+    PTY_CREATE(15),
+    PTY_CREATE_RESULT(16),
+    PTY_RENAME(17),
+    PTY_RENAME_RESULT(18),
+    // 会话密钥轮换，在加密通道内进行
+    REKEY_REQUEST(19),
+    REKEY_RESPONSE(20),
+    REKEY_FINISH(21),
+    // Server 确认已收到的终端输出字节数，Agent 据此控制批量通道的发送窗口
+    TUNNEL_ACK(22),
+    // Server 确认某个终端的输出已转发到的偏移量，Agent 据此发放该终端的信用
+    PTY_CREDIT(23),
+    // Server 在认证成功后签发的会话票据，在加密通道内发送
+    SESSION_TICKET(24),
+    // Agent 主动推送的单个终端信息变化（创建、关闭、退出、重命名、可见性），remoteViewable 为 false 表示从远端列表移除
+    PTY_INFO_CHANGED(25),
+    // 端到端加密模式下浏览器加密的输入，Server 原样转发，只有 Agent 能解开
+    PTY_SEALED_INPUT(26);
+
+    /** 线上编号，取值 0-255 */
+    private final int code;
+
+    TcpMessageType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
 }
@@ -0,0 +1,188 @@
+package cc.jfire.webcli.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 浏览器 WebSocket 上终端输出和输入的二进制帧。
+ * <p>
+ * 格式为 [1 字节类型][4 字节流 ID][原始字节]，类型的最高位表示端到端密文，密文输出帧在流 ID 之后多出
+ * 8 字节输出流末尾偏移量。流 ID 在 PTY_ATTACH 成功时随 SUCCESS 响应告诉浏览器（见 {@link WsStreams}）。
+ * 终端输出不再包装成 JSON、不再做 Base64，其余控制消息仍然是 JSON 文本帧。
+ * <p>
+ * 浏览器在 PTY_ATTACH 中带上 binary=true 才会收到二进制帧，否则该终端仍使用 JSON 文本帧。
+ * <p>
+ * 协商了压缩的流，输出帧的类型字节带 {@link #COMPRESSED} 位，流 ID 之后是 4 字节解压后的长度，负载为原始 deflate 数据。
+ * 同一流的所有帧共用一个压缩上下文，每帧以 SYNC_FLUSH 结束并去掉末尾固定的 00 00 FF FF，浏览器解压前补回，
+ * 与 RFC 7692 permessage-deflate 的 context takeover 做法一致。
+ *
+ * @param payload   输出或输入的原始字节，端到端模式下为密文，压缩帧为压缩数据
+ * @param rawLength 压缩帧解压后的长度，未压缩时为 -1
+ */
+public record WsBinaryFrame(byte kind, boolean sealed, int stream, long offset, int rawLength, byte[] payload)
+{
+    public static final  byte OUTPUT        = 1;
+    /** 画面快照，浏览器清屏后重绘 */
+    public static final  byte RESYNC        = 2;
+    public static final  byte INPUT         = 3;
+    /** 类型字节的最高位：负载是端到端密文 */
+    public static final  int  SEALED        = 0x80;
+    /** 类型字节的次高位：负载是压缩数据 */
+    public static final  int  COMPRESSED    = 0x40;
+    public static final  int  HEADER_LENGTH = 1 + 4;
+    private static final int  OFFSET_LENGTH = 8;
+    private static final int  LENGTH_LENGTH = 4;
+
+    /** SYNC_FLUSH 产生的空存储块，每帧末尾都相同 */
+    private static final byte[] FLUSH_TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    /**
+     * 终端输出帧，直接从 data 的剩余内容复制，不改变 data 的位置
+     */
+    public static byte[] output(int stream, boolean resync, ByteBuffer data)
+    {
+        byte[] frame = header(resync ? RESYNC : OUTPUT, stream, data.remaining());
+        data.duplicate().get(frame, HEADER_LENGTH, data.remaining());
+        return frame;
+    }
+
+    public static byte[] output(int stream, boolean resync, byte[] data)
+    {
+        return output(stream, resync, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 端到端密文输出帧
+     *
+     * @param end 这一帧末尾在输出流中的偏移量，浏览器解密时作为附加数据
+     */
+    public static byte[] sealedOutput(int stream, boolean resync, long end, byte[] sealed)
+    {
+        byte[] frame = header((byte) ((resync ? RESYNC : OUTPUT) | SEALED), stream, OFFSET_LENGTH + sealed.length);
+        for (int i = 0; i < OFFSET_LENGTH; i++)
+        {
+            frame[HEADER_LENGTH + i] = (byte) (end >>> (56 - 8 * i));
+        }
+        System.arraycopy(sealed, 0, frame, HEADER_LENGTH + OFFSET_LENGTH, sealed.length);
+        return frame;
+    }
+
+    /**
+     * 压缩的终端输出帧，去掉 compressed 末尾的 SYNC_FLUSH 标记
+     *
+     * @param rawLength  压缩前的长度，浏览器据此从连续的解压输出中切出这一帧
+     * @param compressed 以 SYNC_FLUSH 结束的原始 deflate 数据
+     */
+    public static byte[] compressedOutput(int stream, boolean resync, int rawLength, byte[] compressed)
+    {
+        int length = compressed.length;
+        if (endsWithFlushTail(compressed))
+        {
+            length -= FLUSH_TAIL.length;
+        }
+        byte[] frame = header((byte) ((resync ? RESYNC : OUTPUT) | COMPRESSED), stream, LENGTH_LENGTH + length);
+        for (int i = 0; i < LENGTH_LENGTH; i++)
+        {
+            frame[HEADER_LENGTH + i] = (byte) (rawLength >>> (24 - 8 * i));
+        }
+        System.arraycopy(compressed, 0, frame, HEADER_LENGTH + LENGTH_LENGTH, length);
+        return frame;
+    }
+
+    /**
+     * 压缩帧的负载补回 SYNC_FLUSH 标记后即可交给解压上下文
+     */
+    public byte[] inflatable()
+    {
+        byte[] data = Arrays.copyOf(payload, payload.length + FLUSH_TAIL.length);
+        System.arraycopy(FLUSH_TAIL, 0, data, payload.length, FLUSH_TAIL.length);
+        return data;
+    }
+
+    /**
+     * 浏览器发来的输入帧
+     */
+    public static byte[] input(int stream, boolean sealed, byte[] data)
+    {
+        byte[] frame = header((byte) (sealed ? INPUT | SEALED : INPUT), stream, data.length);
+        System.arraycopy(data, 0, frame, HEADER_LENGTH, data.length);
+        return frame;
+    }
+
+    /**
+     * 解析一帧，格式不正确时抛出 IllegalArgumentException
+     */
+    public static WsBinaryFrame parse(byte[] frame)
+    {
+        if (frame.length < HEADER_LENGTH)
+        {
+            throw new IllegalArgumentException("二进制帧过短");
+        }
+        byte    kind       = (byte) (frame[0] & ~(SEALED | COMPRESSED));
+        boolean sealed     = (frame[0] & SEALED) != 0;
+        boolean compressed = (frame[0] & COMPRESSED) != 0;
+        int     stream = 0;
+        for (int i = 1; i < HEADER_LENGTH; i++)
+        {
+            stream = (stream << 8) | (frame[i] & 0xFF);
+        }
+        int  payloadOffset = HEADER_LENGTH;
+        long offset        = -1;
+        if (sealed && kind != INPUT)
+        {
+            if (frame.length < HEADER_LENGTH + OFFSET_LENGTH)
+            {
+                throw new IllegalArgumentException("二进制帧过短");
+            }
+            offset = 0;
+            for (int i = 0; i < OFFSET_LENGTH; i++)
+            {
+                offset = (offset << 8) | (frame[HEADER_LENGTH + i] & 0xFF);
+            }
+            payloadOffset += OFFSET_LENGTH;
+        }
+        int rawLength = -1;
+        if (compressed)
+        {
+            if (frame.length < HEADER_LENGTH + LENGTH_LENGTH)
+            {
+                throw new IllegalArgumentException("二进制帧过短");
+            }
+            rawLength = 0;
+            for (int i = 0; i < LENGTH_LENGTH; i++)
+            {
+                rawLength = (rawLength << 8) | (frame[HEADER_LENGTH + i] & 0xFF);
+            }
+            payloadOffset += LENGTH_LENGTH;
+        }
+        return new WsBinaryFrame(kind, sealed, stream, offset, rawLength, Arrays.copyOfRange(frame, payloadOffset, frame.length));
+    }
+
+    private static boolean endsWithFlushTail(byte[] compressed)
+    {
+        int start = compressed.length - FLUSH_TAIL.length;
+        if (start < 0)
+        {
+            return false;
+        }
+        for (int i = 0; i < FLUSH_TAIL.length; i++)
+        {
+            if (compressed[start + i] != FLUSH_TAIL[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] header(byte kind, int stream, int bodyLength)
+    {
+        byte[] frame = new byte[HEADER_LENGTH + bodyLength];
+        frame[0] = kind;
+        frame[1] = (byte) (stream >>> 24);
+        frame[2] = (byte) (stream >>> 16);
+        frame[3] = (byte) (stream >>> 8);
+        frame[4] = (byte) stream;
+        return frame;
+    }
+}
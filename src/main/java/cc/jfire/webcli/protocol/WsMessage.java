@@ -11,6 +11,14 @@ public class WsMessage {
     private Integer cols;
     private Integer rows;
     private Boolean remoteViewable;
+    // 端到端加密：data 为密文，offset 为输出帧末尾在输出流中的偏移量
+    private Boolean sealed;
+    private Long offset;
+    // 二进制帧：PTY_ATTACH 中 binary 为 true 时该终端的输出输入改用二进制帧，SUCCESS 响应中的 stream 为其流 ID
+    private Boolean binary;
+    private Integer stream;
+    // 输出压缩：PTY_ATTACH 中为浏览器能解压的算法（deflate），SUCCESS 响应中为该流实际使用的算法，不压缩时为空
+    private String compression;
     // 登录相关字段
     private String username;
     private String passwordHash;  // MD5(password + salt)
@@ -0,0 +1,130 @@
+package cc.jfire.webcli.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 一条浏览器 WebSocket 连接上终端与二进制帧流 ID 的对应关系（见 {@link WsBinaryFrame}）。
+ * <p>
+ * 流 ID 在连接内不复用：detach 之后仍在路上的输入帧找不到终端而被丢弃，不会写到之后 attach 的终端里。
+ * <p>
+ * 协商了压缩的流各自持有一个 {@link StreamDeflater}，生命周期与流 ID 相同：同一终端重复 attach、监听器被替换时
+ * 仍沿用原来的压缩上下文，与浏览器端按流 ID 保存的解压上下文保持一致。整条连接的压缩字节数累计在同一个统计里。
+ */
+public final class WsStreams
+{
+    private final Map<String, Integer>         ids       = new ConcurrentHashMap<>();
+    private final Map<Integer, String>         ptyIds    = new ConcurrentHashMap<>();
+    private final Map<Integer, StreamDeflater> deflaters = new ConcurrentHashMap<>();
+    private final CompressionStats             stats     = new CompressionStats();
+    private final int                          compressionLevel;
+    private       int                          nextId    = 1;
+
+    /**
+     * @param compressionLevel 压缩流使用的 Deflater 级别
+     */
+    public WsStreams(int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * 返回终端当前的流 ID，没有时分配一个。同一终端重复 attach 沿用原来的流 ID 和压缩设置
+     *
+     * @param compress 新分配的流是否压缩输出
+     */
+    public synchronized int open(String ptyId, boolean compress)
+    {
+        Integer id = ids.get(ptyId);
+        if (id == null)
+        {
+            id = nextId++;
+            ids.put(ptyId, id);
+            ptyIds.put(id, ptyId);
+            if (compress)
+            {
+                deflaters.put(id, new StreamDeflater(compressionLevel, stats));
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return 流 ID 对应的终端，未分配或已关闭时为 null
+     */
+    public String ptyId(int stream)
+    {
+        return ptyIds.get(stream);
+    }
+
+    public boolean isCompressed(int stream)
+    {
+        return deflaters.containsKey(stream);
+    }
+
+    /**
+     * 把一段终端输出编码为二进制帧交给 sink，不改变 data 的位置。
+     * 压缩流在同一把锁内压缩并交给 sink，浏览器收到帧的顺序与压缩顺序一致；流已关闭时丢弃。
+     * 空的输出（例如空白画面的快照）不经过压缩上下文，以普通帧发送
+     */
+    public void output(int stream, boolean resync, ByteBuffer data, Consumer<byte[]> sink)
+    {
+        StreamDeflater deflater = deflaters.get(stream);
+        if (deflater == null || !data.hasRemaining())
+        {
+            sink.accept(WsBinaryFrame.output(stream, resync, data));
+            return;
+        }
+        synchronized (deflater)
+        {
+            if (deflater.isEnded())
+            {
+                return;
+            }
+            int rawLength = data.remaining();
+            sink.accept(WsBinaryFrame.compressedOutput(stream, resync, rawLength, deflater.compress(data.duplicate())));
+        }
+    }
+
+    public synchronized void close(String ptyId)
+    {
+        Integer id = ids.remove(ptyId);
+        if (id != null)
+        {
+            ptyIds.remove(id);
+            end(deflaters.remove(id));
+        }
+    }
+
+    /**
+     * 连接关闭时释放所有压缩上下文
+     */
+    public synchronized void closeAll()
+    {
+        ids.clear();
+        ptyIds.clear();
+        deflaters.values().forEach(WsStreams::end);
+        deflaters.clear();
+    }
+
+    /**
+     * 该连接输出压缩的累计字节数，没有压缩流时为 0
+     */
+    public CompressionStats getCompressionStats()
+    {
+        return stats.copy();
+    }
+
+    private static void end(StreamDeflater deflater)
+    {
+        if (deflater != null)
+        {
+            synchronized (deflater)
+            {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package cc.jfire.webcli.pty;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 固定容量的字节环形缓冲区，用于保存 PTY 的原始输出历史。
+ * <p>
+ * 底层是一块堆外 DirectByteBuffer：追加为 O(1)，溢出时只覆盖最旧的数据，不搬移内存；
+ * 读取通过 {@link #snapshot()} 拿到指向缓冲区的只读视图，不复制整段历史。
+ * <p>
+ * 写入方只有 PTY 读线程一个，读取方可以在任意线程。读写之间不加锁，
+ * 而是用 reserved/written 两个偏移量做类似 seqlock 的校验：读取方在消费完视图后，
+ * 通过 {@link Snapshot#intactFrom()} 得知哪一段在读取期间被覆盖过。
+ */
+public class ByteRingBuffer
+{
+    private final    int        capacity;
+    private final    ByteBuffer buffer;
+    /** 本缓冲区创建时输出流已有的字节数，此前的数据不在本缓冲区内 */
+    private final    long       base;
+    /** 正在写入（或已写完）的末尾偏移量，写数据之前先推进 */
+    private volatile long       reserved;
+    /** 已写完的末尾偏移量，即输出流中累计写入的字节数 */
+    private volatile long       written;
+
+    public ByteRingBuffer(int capacity)
+    {
+        this(capacity, 0);
+    }
+
+    private ByteRingBuffer(int capacity, long base)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity 必须大于 0");
+        }
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.base = base;
+        this.reserved = base;
+        this.written = base;
+    }
+
+    /**
+     * 生成一个新容量的缓冲区，保留最新的 min(size, newCapacity) 个字节，输出流偏移量保持连续。
+     * 调用方需保证期间没有并发写入。
+     */
+    public ByteRingBuffer resize(int newCapacity)
+    {
+        return restore(newCapacity, written, snapshot().toByteArray());
+    }
+
+    /**
+     * 用已保存的历史重建缓冲区：data 是输出流中截止到 endOffset 的最后一段，超出容量时只保留最新部分
+     */
+    public static ByteRingBuffer restore(int capacity, long endOffset, byte[] data)
+    {
+        int            keep   = Math.min(data.length, capacity);
+        ByteRingBuffer result = new ByteRingBuffer(capacity, endOffset - keep);
+        result.append(data, data.length - keep, keep);
+        return result;
+    }
+
+    /**
+     * 追加一段数据。超过容量时只保留最后 capacity 个字节。
+     */
+    public synchronized void append(byte[] src, int off, int len)
+    {
+        if (len <= 0)
+        {
+            return;
+        }
+        long end = written + len;
+        if (len > capacity)
+        {
+            off += len - capacity;
+            len = capacity;
+        }
+        reserved = end;
+        // 保证 reserved 先于数据对读取方可见
+        VarHandle.storeStoreFence();
+        int pos   = (int) ((end - len) % capacity);
+        int first = Math.min(len, capacity - pos);
+        buffer.put(pos, src, off, first);
+        if (first < len)
+        {
+            buffer.put(0, src, off + first, len - first);
+        }
+        written = end;
+    }
+
+    /**
+     * 获取当前历史的只读视图，不复制数据。
+     */
+    public Snapshot snapshot()
+    {
+        long end   = written;
+        long start = Math.max(base, end - capacity);
+        int  len   = (int) (end - start);
+        if (len == 0)
+        {
+            return new Snapshot(this, start, end, ByteBuffer.allocate(0), ByteBuffer.allocate(0));
+        }
+        int pos   = (int) (start % capacity);
+        int first = Math.min(len, capacity - pos);
+        ByteBuffer head = buffer.slice(pos, first).asReadOnlyBuffer();
+        ByteBuffer tail = first < len ? buffer.slice(0, len - first).asReadOnlyBuffer() : ByteBuffer.allocate(0);
+        return new Snapshot(this, start, end, head, tail);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * 输出流中累计写入的字节数（下一个字节的偏移量）
+     */
+    public long getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * 当前缓冲区中实际保存的字节数
+     */
+    public int size()
+    {
+        return (int) Math.min(written - base, capacity);
+    }
+
+    /**
+     * 历史快照：[startOffset, endOffset) 区间的只读视图，可能由首尾两段组成。
+     */
+    public static final class Snapshot
+    {
+        private final ByteRingBuffer ring;
+        private final long           startOffset;
+        private final long           endOffset;
+        private final ByteBuffer     head;
+        private final ByteBuffer     tail;
+
+        private Snapshot(ByteRingBuffer ring, long startOffset, long endOffset, ByteBuffer head, ByteBuffer tail)
+        {
+            this.ring = ring;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.head = head;
+            this.tail = tail;
+        }
+
+        public long startOffset()
+        {
+            return startOffset;
+        }
+
+        public long endOffset()
+        {
+            return endOffset;
+        }
+
+        public int length()
+        {
+            return (int) (endOffset - startOffset);
+        }
+
+        public boolean isEmpty()
+        {
+            return endOffset == startOffset;
+        }
+
+        /**
+         * 较早的一段数据（只读视图，直接引用环形缓冲区）
+         */
+        public ByteBuffer head()
+        {
+            return head.duplicate();
+        }
+
+        /**
+         * 回绕后的一段数据，没有回绕时为空
+         */
+        public ByteBuffer tail()
+        {
+            return tail.duplicate();
+        }
+
+        /**
+         * 在消费完视图之后调用：返回自该偏移量起的数据在读取期间未被覆盖。
+         * 小于该偏移量的部分可能已被新的输出覆盖，应当丢弃。
+         */
+        public long intactFrom()
+        {
+            VarHandle.loadLoadFence();
+            return Math.max(startOffset, ring.reserved - ring.capacity);
+        }
+
+        /**
+         * 复制为字节数组，自动丢弃读取期间被覆盖的最旧部分。
+         */
+        public byte[] toByteArray()
+        {
+            byte[]     out = new byte[length()];
+            ByteBuffer h   = head();
+            int        n   = h.remaining();
+            h.get(out, 0, n);
+            tail().get(out, n, out.length - n);
+            long from = intactFrom();
+            if (from >= endOffset)
+            {
+                return new byte[0];
+            }
+            if (from > startOffset)
+            {
+                return Arrays.copyOfRange(out, (int) (from - startOffset), out.length);
+            }
+            return out;
+        }
+    }
+}
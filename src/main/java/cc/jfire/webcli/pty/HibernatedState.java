@@ -0,0 +1,145 @@
+package cc.jfire.webcli.pty;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 休眠终端的压缩状态：历史输出和屏幕模型序列化结果分别用 Deflater 压缩保存。
+ * 终端输出重复度很高，通常能压缩到原来的 1/5 ~ 1/10。
+ */
+final class HibernatedState
+{
+    private final int    historyCapacity;
+    private final long   historyEnd;
+    private final int    historyLength;
+    private final byte[] history;
+    /** 屏幕模型的尺寸与压缩后的序列化结果，未启用屏幕模型时 screen 为 null */
+    private final int    screenCols;
+    private final int    screenRows;
+    private final int    screenLength;
+    private final byte[] screen;
+
+    private HibernatedState(ByteRingBuffer history, TerminalScreen screen)
+    {
+        byte[] historyData = history.snapshot().toByteArray();
+        this.historyCapacity = history.getCapacity();
+        this.historyEnd = history.getWritten();
+        this.historyLength = historyData.length;
+        this.history = deflate(historyData);
+        if (screen != null)
+        {
+            byte[] screenData = screen.serialize();
+            this.screenCols = screen.getCols();
+            this.screenRows = screen.getRows();
+            this.screenLength = screenData.length;
+            this.screen = deflate(screenData);
+        }
+        else
+        {
+            this.screenCols = 0;
+            this.screenRows = 0;
+            this.screenLength = 0;
+            this.screen = null;
+        }
+    }
+
+    static HibernatedState of(ByteRingBuffer history, TerminalScreen screen)
+    {
+        return new HibernatedState(history, screen);
+    }
+
+    ByteRingBuffer restoreHistory()
+    {
+        return ByteRingBuffer.restore(historyCapacity, historyEnd, inflate(history, historyLength));
+    }
+
+    /**
+     * 在新的屏幕模型上重放序列化结果，得到休眠前的画面
+     */
+    TerminalScreen restoreScreen(int scrollbackLines)
+    {
+        if (screen == null)
+        {
+            return null;
+        }
+        TerminalScreen restored = new TerminalScreen(screenCols, screenRows, scrollbackLines);
+        byte[]         data     = inflate(screen, screenLength);
+        restored.feed(data, 0, data.length);
+        return restored;
+    }
+
+    long getHistoryEnd()
+    {
+        return historyEnd;
+    }
+
+    /**
+     * 压缩后占用的字节数
+     */
+    int compressedSize()
+    {
+        return history.length + (screen != null ? screen.length : 0);
+    }
+
+    /**
+     * 压缩前的字节数（历史缓冲区容量加屏幕序列化结果长度）
+     */
+    int originalSize()
+    {
+        return historyCapacity + screenLength;
+    }
+
+    private static byte[] deflate(byte[] data)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out    = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[]                buffer = new byte[8192];
+            while (!deflater.finished())
+            {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int length)
+    {
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(data);
+            byte[] out = new byte[length];
+            int    n   = 0;
+            while (n < length && !inflater.finished())
+            {
+                int count = inflater.inflate(out, n, length - n);
+                if (count == 0 && inflater.needsInput())
+                {
+                    throw new IllegalStateException("休眠终端状态不完整");
+                }
+                n += count;
+            }
+            return out;
+        }
+        catch (DataFormatException e)
+        {
+            // 数据由本进程压缩，不会损坏
+            throw new IllegalStateException("解压休眠终端状态失败", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package cc.jfire.webcli.pty;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 所有终端历史输出缓冲区的内存使用情况
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HistoryUsage
+{
+    /** 总内存预算（字节），0 表示不限制 */
+    private long budgetBytes;
+    /** 当前所有历史缓冲区的容量之和（字节） */
+    private long usedBytes;
+    private int  terminalCount;
+    /** 当前历史缓冲区被缩小过的终端数 */
+    private int  shrunkTerminals;
+    /** 当前处于休眠（历史已压缩）的终端数，它们的 usedBytes 按压缩后的大小计算 */
+    private int  hibernatedTerminals;
+    /** 累计缩小历史缓冲区的次数 */
+    private long evictions;
+    /** 累计因缩小而释放的字节数 */
+    private long evictedBytes;
+}
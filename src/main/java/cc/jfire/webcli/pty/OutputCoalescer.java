@@ -0,0 +1,152 @@
+package cc.jfire.webcli.pty;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按订阅者合并 PTY 输出的监听器包装。
+ * <p>
+ * 高频的小块输出（如 find /）会先在缓冲区中累积，满足以下任一条件时才整体交给下游：
+ * <ul>
+ *     <li>距离第一块未发送数据已超过时间窗口</li>
+ *     <li>累积字节数达到上限</li>
+ *     <li>上次发送之后 PTY 收到过输入：这块输出大概率是回显，立即发送以保证交互延迟</li>
+ * </ul>
+ * 下游回调总是在持有本对象锁的情况下串行调用，数据只在回调期间有效。
+ */
+@Slf4j
+public class OutputCoalescer implements PtyOutputListener
+{
+    private final PtyInstance              pty;
+    private final PtyOutputListener        downstream;
+    private final ScheduledExecutorService scheduler;
+    private final long                     windowNanos;
+    private final byte[]                   pending;
+    private       int                      pendingLength;
+    private       long                     pendingOffset;
+    private       long                     lastFlushNanos;
+    private       ScheduledFuture<?>       flushTask;
+    private       boolean                  closed;
+
+    public OutputCoalescer(PtyInstance pty, PtyOutputListener downstream, ScheduledExecutorService scheduler, int windowMillis, int maxBytes)
+    {
+        this.pty = pty;
+        this.downstream = downstream;
+        this.scheduler = scheduler;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.pending = new byte[maxBytes];
+        this.lastFlushNanos = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void onOutput(ByteBuffer data, long offset)
+    {
+        if (closed)
+        {
+            return;
+        }
+        int len = data.remaining();
+        if (pendingLength > 0 && (pendingLength + len > pending.length || pendingOffset + pendingLength != offset))
+        {
+            flush();
+        }
+        if (len >= pending.length)
+        {
+            // 单块已超过上限，无需再合并
+            deliver(data, offset);
+        }
+        else
+        {
+            if (pendingLength == 0)
+            {
+                pendingOffset = offset;
+            }
+            data.get(pending, pendingLength, len);
+            pendingLength += len;
+            if (pty.getLastInputNanos() - lastFlushNanos > 0 || pendingLength == pending.length)
+            {
+                flush();
+            }
+            else if (flushTask == null)
+            {
+                flushTask = scheduler.schedule(this::flushScheduled, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onResync(ByteBuffer snapshot, long offset)
+    {
+        if (closed)
+        {
+            return;
+        }
+        // 尚未发送的数据已包含在快照中
+        pendingLength = 0;
+        cancelFlushTask();
+        lastFlushNanos = System.nanoTime();
+        downstream.onResync(snapshot, offset);
+    }
+
+    @Override
+    public void onOverflow()
+    {
+        downstream.onOverflow();
+    }
+
+    @Override
+    public synchronized void onDetached()
+    {
+        closed = true;
+        pendingLength = 0;
+        cancelFlushTask();
+        downstream.onDetached();
+    }
+
+    private synchronized void flushScheduled()
+    {
+        flushTask = null;
+        if (!closed)
+        {
+            flush();
+        }
+    }
+
+    private void flush()
+    {
+        cancelFlushTask();
+        if (pendingLength == 0)
+        {
+            return;
+        }
+        int len = pendingLength;
+        pendingLength = 0;
+        deliver(ByteBuffer.wrap(pending, 0, len).asReadOnlyBuffer(), pendingOffset);
+    }
+
+    private void deliver(ByteBuffer data, long offset)
+    {
+        lastFlushNanos = System.nanoTime();
+        try
+        {
+            downstream.onOutput(data, offset);
+        }
+        catch (Exception e)
+        {
+            log.error("合并输出发送失败", e);
+        }
+    }
+
+    private void cancelFlushTask()
+    {
+        if (flushTask != null)
+        {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+    }
+}
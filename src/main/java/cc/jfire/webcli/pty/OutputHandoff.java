@@ -0,0 +1,124 @@
+package cc.jfire.webcli.pty;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * 多路复用 poll 线程与 PTY 输出处理之间的交接队列。
+ * <p>
+ * poll 线程由许多终端共享，它只把读到的数据复制进队列（{@link #offer}）就回去继续 poll；
+ * 唤醒休眠的终端、追加历史、更新屏幕模型和放入订阅者队列（{@link PtyInstance#onOutput}）在共享执行器上串行进行，
+ * 同一 PTY 同一时刻只有一个处理任务，输出顺序不变。
+ * 积压超过上限时暂停该 PTY 的读取，处理追上一半后恢复，期间子进程的输出停留在内核的 PTY 缓冲区中。
+ */
+@Slf4j
+class OutputHandoff implements Runnable
+{
+    private final PtyInstance        pty;
+    private final Executor           executor;
+    private final int                maxQueuedBytes;
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private       int                queuedBytes;
+    private       boolean            paused;
+    private       boolean            ended;
+    private       boolean            scheduled;
+
+    OutputHandoff(PtyInstance pty, Executor executor, int maxQueuedBytes)
+    {
+        this.pty = pty;
+        this.executor = executor;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * 由 poll 线程调用，复制数据入队后立即返回。buffer 会被 poll 线程复用
+     */
+    void offer(byte[] buffer, int len)
+    {
+        synchronized (this)
+        {
+            queue.add(Arrays.copyOf(buffer, len));
+            queuedBytes += len;
+            if (!paused && queuedBytes >= maxQueuedBytes)
+            {
+                // 暂停只是登记，poll 线程下一轮构建 fd 集合时跳过该 PTY
+                paused = true;
+                pty.pauseReading(this);
+            }
+            if (scheduled)
+            {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.execute(this);
+    }
+
+    /**
+     * 由 poll 线程调用：输出已结束，排在已读出的数据之后处理
+     */
+    void end()
+    {
+        synchronized (this)
+        {
+            ended = true;
+            if (scheduled)
+            {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.execute(this);
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            byte[]  chunk;
+            boolean readEnd = false;
+            synchronized (this)
+            {
+                chunk = queue.poll();
+                if (chunk != null)
+                {
+                    queuedBytes -= chunk.length;
+                    if (paused && queuedBytes <= maxQueuedBytes / 2)
+                    {
+                        paused = false;
+                        pty.resumeReading(this);
+                    }
+                }
+                else if (ended)
+                {
+                    ended = false;
+                    readEnd = true;
+                }
+                else
+                {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try
+            {
+                if (readEnd)
+                {
+                    pty.onReadEnd();
+                }
+                else
+                {
+                    pty.onOutput(chunk, chunk.length);
+                }
+            }
+            catch (Exception e)
+            {
+                log.error("处理 PTY {} 的输出失败", pty.getId(), e);
+            }
+        }
+    }
+}
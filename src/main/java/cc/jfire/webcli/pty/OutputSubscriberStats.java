@@ -0,0 +1,24 @@
+package cc.jfire.webcli.pty;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 单个输出订阅者的队列状态
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutputSubscriberStats
+{
+    /** 当前积压的字节数 */
+    private int    queuedBytes;
+    /** 当前积压的数据块数 */
+    private int    queuedChunks;
+    /** 因积压超限累计丢弃的字节数 */
+    private long   droppedBytes;
+    /** 积压超限的次数 */
+    private int    overflowCount;
+    private String overflowPolicy;
+}
@@ -0,0 +1,255 @@
+package cc.jfire.webcli.pty;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * PTY 与单个输出监听器之间的有界队列。
+ * <p>
+ * PTY 读线程只负责把数据复制进队列（{@link #offer}），从不等待消费者；
+ * 投递在共享执行器上串行进行，同一订阅者同一时刻只有一个投递任务。
+ * 积压超过上限时按 {@link OverflowPolicy} 处理：丢弃积压并在之后用历史快照重新同步，或直接断开订阅者。
+ */
+@Slf4j
+class OutputSubscription implements Runnable
+{
+    private final PtyInstance          pty;
+    private final PtyOutputListener    listener;
+    private final OverflowPolicy       policy;
+    private final int                  maxQueuedBytes;
+    private final Executor             executor;
+    private final ArrayDeque<Chunk>    queue         = new ArrayDeque<>();
+    private       int                  queuedBytes;
+    private       long                 droppedBytes;
+    private       int                  overflowCount;
+    private       boolean              scheduled;
+    private       boolean              resyncPending;
+    /** 不为 -1 时，重新同步改为补发自该偏移量起的历史输出 */
+    private       long                 replayFrom    = -1;
+    private       boolean              disconnectPending;
+    private       boolean              cancelled;
+    /** 已投递数据的末尾偏移量，只由投递任务访问 */
+    private       long                 deliveredEnd  = -1;
+
+    OutputSubscription(PtyInstance pty, PtyOutputListener listener, OverflowPolicy policy, int maxQueuedBytes, Executor executor)
+    {
+        this.pty = pty;
+        this.listener = listener;
+        this.policy = policy;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.executor = executor;
+    }
+
+    PtyOutputListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * 由 PTY 读线程调用，复制数据入队后立即返回
+     */
+    void offer(byte[] src, int len, long offset)
+    {
+        synchronized (this)
+        {
+            if (cancelled || disconnectPending)
+            {
+                return;
+            }
+            if (resyncPending)
+            {
+                // 等待重新同步期间的数据都会包含在快照中
+                return;
+            }
+            if (queuedBytes + len > maxQueuedBytes)
+            {
+                overflowCount++;
+                droppedBytes += queuedBytes + len;
+                queue.clear();
+                queuedBytes = 0;
+                if (policy == OverflowPolicy.DISCONNECT)
+                {
+                    disconnectPending = true;
+                }
+                else
+                {
+                    resyncPending = true;
+                }
+                log.warn("PTY {} 的订阅者输出积压超过 {} 字节，处理策略: {}", pty.getId(), maxQueuedBytes, policy);
+            }
+            else
+            {
+                queue.add(new Chunk(Arrays.copyOf(src, len), offset));
+                queuedBytes += len;
+            }
+            if (scheduled)
+            {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.execute(this);
+    }
+
+    /**
+     * 丢弃积压，下一次投递时先发送当前输出快照
+     */
+    void requestResync()
+    {
+        synchronized (this)
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            queuedBytes = 0;
+            queue.clear();
+            resyncPending = true;
+            replayFrom = -1;
+            if (scheduled)
+            {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.execute(this);
+    }
+
+    /**
+     * 丢弃积压，下一次投递时先补发自 since 起的历史输出，历史中已没有这段数据时退回到快照
+     */
+    void requestReplay(long since)
+    {
+        synchronized (this)
+        {
+            if (cancelled)
+            {
+                return;
+            }
+            queuedBytes = 0;
+            queue.clear();
+            resyncPending = true;
+            replayFrom = since;
+            if (scheduled)
+            {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.execute(this);
+    }
+
+    synchronized void cancel()
+    {
+        cancelled = true;
+        queue.clear();
+        queuedBytes = 0;
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            Chunk   chunk;
+            boolean resync;
+            boolean disconnect;
+            long    replay;
+            synchronized (this)
+            {
+                disconnect = disconnectPending && !cancelled;
+                resync = resyncPending && !cancelled;
+                resyncPending = false;
+                replay = replayFrom;
+                replayFrom = -1;
+                chunk = resync || disconnect || cancelled ? null : queue.poll();
+                if (chunk != null)
+                {
+                    queuedBytes -= chunk.data.length;
+                }
+                else if (!resync && !disconnect)
+                {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try
+            {
+                if (disconnect)
+                {
+                    listener.onOverflow();
+                    pty.removeOutputListener(listener);
+                    synchronized (this)
+                    {
+                        scheduled = false;
+                    }
+                    return;
+                }
+                if (resync && replay >= 0)
+                {
+                    deliverReplay(replay);
+                }
+                else if (resync)
+                {
+                    deliverResync();
+                }
+                else
+                {
+                    deliver(chunk);
+                }
+            }
+            catch (Exception e)
+            {
+                log.error("输出监听器处理失败", e);
+            }
+        }
+    }
+
+    private void deliver(Chunk chunk)
+    {
+        long end = chunk.offset + chunk.data.length;
+        if (end <= deliveredEnd)
+        {
+            return;
+        }
+        // 与重新同步的快照重叠的部分跳过
+        int skip = deliveredEnd > chunk.offset ? (int) (deliveredEnd - chunk.offset) : 0;
+        deliveredEnd = end;
+        listener.onOutput(ByteBuffer.wrap(chunk.data, skip, chunk.data.length - skip).asReadOnlyBuffer(), chunk.offset + skip);
+    }
+
+    private void deliverReplay(long since)
+    {
+        PtyInstance.OutputSnapshot gap = pty.outputSince(since);
+        if (gap == null)
+        {
+            deliverResync();
+            return;
+        }
+        deliveredEnd = gap.endOffset();
+        if (gap.data().length > 0)
+        {
+            listener.onOutput(ByteBuffer.wrap(gap.data()).asReadOnlyBuffer(), since);
+        }
+    }
+
+    private void deliverResync()
+    {
+        PtyInstance.OutputSnapshot snapshot = pty.snapshotOutput();
+        deliveredEnd = snapshot.endOffset();
+        listener.onResync(ByteBuffer.wrap(snapshot.data()).asReadOnlyBuffer(), snapshot.endOffset());
+    }
+
+    synchronized OutputSubscriberStats stats()
+    {
+        return new OutputSubscriberStats(queuedBytes, queue.size(), droppedBytes, overflowCount, policy.name());
+    }
+
+    private record Chunk(byte[] data, long offset)
+    {
+    }
+}
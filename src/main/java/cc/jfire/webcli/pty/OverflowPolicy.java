@@ -0,0 +1,17 @@
+package cc.jfire.webcli.pty;
+
+/**
+ * 订阅者输出积压超过上限时的处理策略
+ */
+public enum OverflowPolicy
+{
+    /** 丢弃积压的输出，之后用当前历史快照让订阅者重新同步 */
+    RESYNC,
+    /** 断开该订阅者 */
+    DISCONNECT;
+
+    public static OverflowPolicy of(String value)
+    {
+        return "disconnect".equalsIgnoreCase(value) ? DISCONNECT : RESYNC;
+    }
+}
@@ -0,0 +1,44 @@
+package cc.jfire.webcli.pty;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * 由 PtyManager 创建、其下所有 PtyInstance 共享的运行时组件与参数
+ */
+@Getter
+@AllArgsConstructor
+public class PtyContext
+{
+    private static final Executor DEFAULT_DELIVERY_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    /** 多路复用读取引擎，为 null 时每个 PTY 使用独立的平台线程阻塞读取 */
+    private final PtyReaderEngine readerEngine;
+    /** 向订阅者投递输出的执行器，读线程只负责入队 */
+    private final Executor        deliveryExecutor;
+    /** 每个订阅者最多积压的字节数 */
+    private final int             subscriberQueueBytes;
+    /** 订阅者积压超限时的默认处理策略 */
+    private final OverflowPolicy  overflowPolicy;
+    /** 屏幕模型保留的滚动历史行数，小于 0 表示不维护屏幕模型 */
+    private final int             screenScrollbackLines;
+
+    /**
+     * 不依赖 PtyManager 单独使用 PtyInstance 时的默认配置，不维护屏幕模型
+     */
+    public static PtyContext standalone()
+    {
+        return standalone(-1);
+    }
+
+    /**
+     * @param screenScrollbackLines 屏幕模型保留的滚动历史行数，小于 0 表示不维护屏幕模型
+     */
+    public static PtyContext standalone(int screenScrollbackLines)
+    {
+        return new PtyContext(null, DEFAULT_DELIVERY_EXECUTOR, 4 * 1024 * 1024, OverflowPolicy.RESYNC, screenScrollbackLines);
+    }
+}
@@ -0,0 +1,16 @@
+package cc.jfire.webcli.pty;
+
+/**
+ * PTY 输入与尺寸变化监听器，在写入 PTY 的调用线程上同步回调，实现方应尽快返回
+ */
+public interface PtyInputListener
+{
+    /**
+     * @param data 已写入 PTY 的原始输入
+     */
+    void onInput(byte[] data);
+
+    default void onResize(int cols, int rows)
+    {
+    }
+}
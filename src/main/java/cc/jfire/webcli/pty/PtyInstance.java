@@ -3,19 +3,23 @@ package cc.jfire.webcli.pty;
 import com.pty4j.PtyProcess;
 import com.pty4j.PtyProcessBuilder;
 import com.pty4j.WinSize;
+import com.pty4j.unix.UnixPtyProcess;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -23,19 +27,55 @@ import java.util.function.Consumer;
 @Slf4j
 @Getter
 public class PtyInstance {
-    private static final int MAX_HISTORY_SIZE = 100 * 1024; // 100KB 历史缓冲区
+    public static final int DEFAULT_HISTORY_SIZE = 100 * 1024; // 默认 100KB 历史缓冲区
+    /** poll 线程交给处理任务、尚未处理的输出超过该字节数时暂停读取 */
+    private static final int HANDOFF_QUEUE_BYTES = 1024 * 1024;
     private final String id;
     private volatile String name;
     private final PtyProcess process;
     private final InputStream inputStream;
     private final OutputStream outputStream;
-    private final StringBuilder outputHistory = new StringBuilder();
+    /** 历史输出缓冲区，内存预算不足时可能被替换为更小的缓冲区，休眠期间为 null；替换在 outputLock 下进行 */
+    @Getter(AccessLevel.NONE)
+    private volatile ByteRingBuffer history;
+    /** 休眠时压缩保存的历史和屏幕模型，未休眠时为 null；由 outputLock 保护 */
+    @Getter(AccessLevel.NONE)
+    private HibernatedState hibernated;
+    /** 创建时配置的历史缓冲区大小，重新被使用时恢复到该大小 */
+    private final int historySize;
+    /** 服务端屏幕模型，未启用或休眠时为 null；与 history 一起由 outputLock 保护 */
+    @Getter(AccessLevel.NONE)
+    private TerminalScreen screen;
+    @Getter(AccessLevel.NONE)
+    private final Object outputLock = new Object();
     private volatile boolean running = true;
-    private final List<Consumer<String>> outputListeners = new CopyOnWriteArrayList<>();
+    private final List<OutputSubscription> outputListeners = new CopyOnWriteArrayList<>();
     private final List<BiConsumer<String, Boolean>> visibilityChangeListeners = new CopyOnWriteArrayList<>();
+    /** 名称、可见性变化以及关闭、退出时回调，用于向远端推送终端列表增量 */
+    private final List<Consumer<PtyInstance>> infoChangeListeners = new CopyOnWriteArrayList<>();
+    /** 输出已结束，子进程已退出或 PTY 已关闭 */
+    private volatile boolean exited = false;
+    private final List<PtyInputListener> inputListeners = new CopyOnWriteArrayList<>();
     private volatile boolean remoteViewable = false;
     private volatile boolean remoteCreated = false;
+    /** 最近一次写入输入的时间（System.nanoTime），用于判断输出是否为回显 */
+    private volatile long lastInputNanos = System.nanoTime();
+    /** 最近一次 attach 的时间（System.nanoTime），与 lastInputNanos 一起决定历史回收的 LRU 顺序 */
+    private volatile long lastAttachNanos = System.nanoTime();
+    /** 最近一次产生输出的时间（System.nanoTime），持续有输出的终端不休眠 */
+    private volatile long lastOutputNanos = System.nanoTime();
+    private final PtyContext context;
+    private volatile boolean readStarted = false;
+    private volatile boolean readByEngine = false;
     private Thread readThread;
+    /** 由多路复用引擎读取时，poll 线程把输出交给它处理 */
+    @Getter(AccessLevel.NONE)
+    private final OutputHandoff outputHandoff;
+    /** 因下游流控要求暂停读取的持有者，非空时不再读取输出，子进程写满 PTY 缓冲区后自然阻塞 */
+    @Getter(AccessLevel.NONE)
+    private final Set<Object> readPausers = ConcurrentHashMap.newKeySet();
+    @Getter(AccessLevel.NONE)
+    private final Object readPauseLock = new Object();
 
     // 固定的 PTY 尺寸，足够大以适应大多数屏幕
     private static final int FIXED_COLS = 200;
@@ -46,8 +86,20 @@ public class PtyInstance {
     }
 
     public PtyInstance(String[] command, String name, String workingDirectory, int cols, int rows) throws IOException {
+        this(command, name, workingDirectory, cols, rows, DEFAULT_HISTORY_SIZE, PtyContext.standalone());
+    }
+
+    /**
+     * @param context PtyManager 共享的读取引擎、投递执行器等运行时组件
+     */
+    public PtyInstance(String[] command, String name, String workingDirectory, int cols, int rows, int historySize, PtyContext context) throws IOException {
         this.id = UUID.randomUUID().toString();
         this.name = name;
+        this.context = context;
+        this.outputHandoff = new OutputHandoff(this, context.getDeliveryExecutor(), HANDOFF_QUEUE_BYTES);
+        this.historySize = historySize > 0 ? historySize : DEFAULT_HISTORY_SIZE;
+        this.history = new ByteRingBuffer(this.historySize);
+        this.screen = context.getScreenScrollbackLines() >= 0 ? new TerminalScreen(cols, rows, context.getScreenScrollbackLines()) : null;
         Map<String, String> env = new HashMap<>(System.getenv());
         env.put("TERM", "xterm-256color");
         env.put("LANG", "en_US.UTF-8");
@@ -70,12 +122,197 @@ public class PtyInstance {
         this.outputStream = process.getOutputStream();
     }
 
-    public void addOutputListener(Consumer<String> listener) {
-        outputListeners.add(listener);
+    /**
+     * 注册输出监听器，积压超限时使用默认的处理策略
+     */
+    public void addOutputListener(PtyOutputListener listener) {
+        addOutputListener(listener, context.getOverflowPolicy());
+    }
+
+    /**
+     * 注册输出监听器。监听器在独立的投递任务中被调用，不会阻塞 PTY 读取
+     */
+    public void addOutputListener(PtyOutputListener listener, OverflowPolicy overflowPolicy) {
+        outputListeners.add(new OutputSubscription(this, listener, overflowPolicy, context.getSubscriberQueueBytes(), context.getDeliveryExecutor()));
+    }
+
+    /**
+     * 让监听器先收到一份当前输出快照（{@link PtyOutputListener#onResync}），之后继续接收实时输出。
+     * 用于 attach：新注册或重复 attach 的监听器都从完整画面开始。
+     */
+    public void requestResync(PtyOutputListener listener) {
+        if (listener.isViewer()) {
+            lastAttachNanos = System.nanoTime();
+            restoreHistory();
+        }
+        for (OutputSubscription subscription : outputListeners) {
+            if (subscription.getListener() == listener) {
+                subscription.requestResync();
+            }
+        }
+    }
+
+    /**
+     * 让监听器先收到 since 之后的历史输出（{@link PtyOutputListener#onOutput}），之后继续接收实时输出。
+     * 用于断线重连后的恢复：对端已有 since 之前的内容，只补发缺口；缺口已滚出历史缓冲区时退回到快照。
+     */
+    public void requestReplay(PtyOutputListener listener, long since) {
+        if (listener.isViewer()) {
+            lastAttachNanos = System.nanoTime();
+            restoreHistory();
+        }
+        for (OutputSubscription subscription : outputListeners) {
+            if (subscription.getListener() == listener) {
+                subscription.requestReplay(since);
+            }
+        }
+    }
+
+    public void addInputListener(PtyInputListener listener) {
+        inputListeners.add(listener);
     }
 
-    public void removeOutputListener(Consumer<String> listener) {
-        outputListeners.remove(listener);
+    public void removeInputListener(PtyInputListener listener) {
+        inputListeners.remove(listener);
+    }
+
+    public void removeOutputListener(PtyOutputListener listener) {
+        for (OutputSubscription subscription : outputListeners) {
+            if (subscription.getListener() == listener && outputListeners.remove(subscription)) {
+                subscription.cancel();
+                listener.onDetached();
+            }
+        }
+    }
+
+    /**
+     * 是否有展示端正在订阅输出
+     */
+    public boolean isViewed() {
+        for (OutputSubscription subscription : outputListeners) {
+            if (subscription.getListener().isViewer()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 最近一次被使用（attach 或输入）的时间（System.nanoTime）
+     */
+    public long getLastActiveNanos() {
+        long input = lastInputNanos;
+        long attach = lastAttachNanos;
+        return input - attach > 0 ? input : attach;
+    }
+
+    /**
+     * 从预热池中取出交给使用者时调用：在池中等待的时间不算空闲，恢复在池中被缩小或休眠的历史
+     */
+    void onClaimed() {
+        long now = System.nanoTime();
+        lastInputNanos = now;
+        lastAttachNanos = now;
+        lastOutputNanos = now;
+        restoreHistory();
+    }
+
+    /**
+     * 历史缓冲区当前占用的内存（容量，字节）
+     */
+    public int getHistoryCapacity() {
+        synchronized (outputLock) {
+            return hibernated != null ? hibernated.compressedSize() : history.getCapacity();
+        }
+    }
+
+    /**
+     * 把历史缓冲区缩小到 capacity，只保留最新的输出
+     *
+     * @return 释放的字节数，没有缩小时为 0
+     */
+    public int shrinkHistory(int capacity) {
+        synchronized (outputLock) {
+            if (hibernated != null) {
+                return 0;
+            }
+            int current = history.getCapacity();
+            if (capacity >= current) {
+                return 0;
+            }
+            history = history.resize(capacity);
+            return current - capacity;
+        }
+    }
+
+    /**
+     * 历史缓冲区曾被缩小时恢复到配置的大小，已丢弃的旧输出无法找回
+     */
+    public void restoreHistory() {
+        synchronized (outputLock) {
+            wake();
+            if (history.getCapacity() < historySize) {
+                history = history.resize(historySize);
+            }
+        }
+    }
+
+    /**
+     * 没有展示端、且超过 idleNanos 没有 attach、输入和输出时进入休眠：
+     * 历史输出和屏幕模型压缩保存，释放原有的缓冲区，下次 attach 或产生输出时再解压。
+     *
+     * @return 是否进入了休眠
+     */
+    public boolean hibernateIfIdle(long idleNanos) {
+        long now = System.nanoTime();
+        if (isViewed() || now - getLastActiveNanos() < idleNanos || now - lastOutputNanos < idleNanos) {
+            return false;
+        }
+        synchronized (outputLock) {
+            if (hibernated != null) {
+                return false;
+            }
+            hibernated = HibernatedState.of(history, screen);
+            history = null;
+            screen = null;
+            log.debug("终端 {} 进入休眠，{} 字节压缩为 {} 字节", id, hibernated.originalSize(), hibernated.compressedSize());
+            return true;
+        }
+    }
+
+    public boolean isHibernated() {
+        synchronized (outputLock) {
+            return hibernated != null;
+        }
+    }
+
+    /**
+     * 在 outputLock 下调用：休眠中则解压恢复历史和屏幕模型
+     */
+    private void wake() {
+        if (hibernated == null) {
+            return;
+        }
+        history = hibernated.restoreHistory();
+        screen = hibernated.restoreScreen(context.getScreenScrollbackLines());
+        hibernated = null;
+        log.debug("终端 {} 从休眠中恢复", id);
+    }
+
+    /**
+     * 输出流中累计的字节数，不会唤醒休眠的终端
+     */
+    public long getOutputEnd() {
+        synchronized (outputLock) {
+            return hibernated != null ? hibernated.getHistoryEnd() : history.getWritten();
+        }
+    }
+
+    /**
+     * 各输出订阅者当前的队列状态
+     */
+    public List<OutputSubscriberStats> getSubscriberStats() {
+        return outputListeners.stream().map(OutputSubscription::stats).toList();
     }
 
     public void setRemoteViewable(boolean remoteViewable) {
@@ -89,6 +326,7 @@ public class PtyInstance {
                     log.error("可见性变更监听器处理失败", e);
                 }
             }
+            fireInfoChanged();
         }
     }
 
@@ -100,34 +338,48 @@ public class PtyInstance {
         visibilityChangeListeners.remove(listener);
     }
 
+    public void addInfoChangeListener(Consumer<PtyInstance> listener) {
+        infoChangeListeners.add(listener);
+    }
+
+    public void removeInfoChangeListener(Consumer<PtyInstance> listener) {
+        infoChangeListeners.remove(listener);
+    }
+
+    private void fireInfoChanged() {
+        for (Consumer<PtyInstance> listener : infoChangeListeners) {
+            try {
+                listener.accept(this);
+            } catch (Exception e) {
+                log.error("终端信息变更监听器处理失败", e);
+            }
+        }
+    }
+
     public void clearOutputListeners() {
-        outputListeners.clear();
+        for (OutputSubscription subscription : outputListeners) {
+            removeOutputListener(subscription.getListener());
+        }
     }
 
-    public void startReading() {
-        readThread = Thread.startVirtualThread(() -> {
+    public synchronized void startReading() {
+        if (readStarted) {
+            return;
+        }
+        readStarted = true;
+        PtyReaderEngine readerEngine = context.getReaderEngine();
+        if (readerEngine != null && readerEngine.register(this)) {
+            readByEngine = true;
+            return;
+        }
+        // 不支持多路复用时退回到阻塞读取。使用平台线程，避免 native read 钉住虚拟线程的 carrier
+        readThread = Thread.ofPlatform().daemon().name("pty-reader-" + id).start(() -> {
             try {
-                InputStreamReader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
-                char[] buffer = new char[1024];
+                byte[] buffer = new byte[4096];
                 int len;
-                while (running && (len = reader.read(buffer)) != -1) {
-                    String output = new String(buffer, 0, len);
-                    log.debug("PTY 输出: {}", output.length() > 100 ? output.substring(0, 100) + "..." : output);
-                    // 保存到历史缓冲区
-                    synchronized (outputHistory) {
-                        outputHistory.append(output);
-                        // 如果超过最大大小，截断前面的内容
-                        if (outputHistory.length() > MAX_HISTORY_SIZE) {
-                            outputHistory.delete(0, outputHistory.length() - MAX_HISTORY_SIZE);
-                        }
-                    }
-                    // 通知所有监听器
-                    for (Consumer<String> listener : outputListeners) {
-                        try {
-                            listener.accept(output);
-                        } catch (Exception e) {
-                            log.error("输出监听器处理失败", e);
-                        }
+                while (awaitReadResumed() && (len = inputStream.read(buffer)) != -1) {
+                    if (len > 0) {
+                        onOutput(buffer, len);
                     }
                 }
             } catch (IOException e) {
@@ -135,18 +387,184 @@ public class PtyInstance {
                     log.error("读取 PTY 输出失败", e);
                 }
             }
+            onReadEnd();
         });
     }
 
-    public String getOutputHistory() {
-        synchronized (outputHistory) {
-            return outputHistory.toString();
+    /**
+     * 暂停读取输出，直到所有暂停过的持有者都调用 {@link #resumeReading}。
+     * 已读出的数据照常投递，之后子进程的输出停留在内核的 PTY 缓冲区中，缓冲区写满后子进程阻塞
+     *
+     * @param owner 暂停的持有者，同一持有者重复暂停只计一次
+     */
+    public void pauseReading(Object owner) {
+        if (readPausers.add(owner)) {
+            log.debug("PTY {} 暂停读取", id);
         }
     }
 
-    public synchronized void write(String input) throws IOException {
-        outputStream.write(input.getBytes(StandardCharsets.UTF_8));
+    public void resumeReading(Object owner) {
+        if (!readPausers.remove(owner) || !readPausers.isEmpty()) {
+            return;
+        }
+        log.debug("PTY {} 恢复读取", id);
+        if (readByEngine) {
+            context.getReaderEngine().wakeup();
+        } else {
+            synchronized (readPauseLock) {
+                readPauseLock.notifyAll();
+            }
+        }
+    }
+
+    public boolean isReadPaused() {
+        return !readPausers.isEmpty();
+    }
+
+    /**
+     * 阻塞读取线程在暂停期间等待，返回是否继续读取
+     */
+    private boolean awaitReadResumed() {
+        synchronized (readPauseLock) {
+            while (running && isReadPaused()) {
+                try {
+                    readPauseLock.wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return running;
+    }
+
+    /**
+     * master 端文件描述符，非 Unix 平台返回 -1
+     */
+    int getMasterFd() {
+        if (process instanceof UnixPtyProcess unixProcess) {
+            return unixProcess.getPty().getMasterFD();
+        }
+        return -1;
+    }
+
+    /**
+     * 由共享的 poll 线程调用：只复制数据交给处理任务，不在 poll 线程上唤醒休眠、保存历史或解析屏幕
+     */
+    void handOffOutput(byte[] buffer, int len) {
+        outputHandoff.offer(buffer, len);
+    }
+
+    /**
+     * 由共享的 poll 线程调用：输出已结束，在已交出的输出处理完后再通知
+     */
+    void handOffReadEnd() {
+        outputHandoff.end();
+    }
+
+    /**
+     * 由阻塞读取线程或交接队列的处理任务调用：保存历史并分发给监听器。buffer 可能被调用方复用
+     */
+    void onOutput(byte[] buffer, int len) {
+        log.debug("PTY 输出 {} 字节", len);
+        lastOutputNanos = System.nanoTime();
+        synchronized (outputLock) {
+            wake();
+            // 保存到历史环形缓冲区，超出容量时覆盖最旧的数据
+            long offset = history.getWritten();
+            history.append(buffer, 0, len);
+            if (screen != null) {
+                screen.feed(buffer, 0, len);
+            }
+            // 放入各订阅者的队列，由投递任务异步交给监听器，读线程从不等待消费者
+            for (OutputSubscription subscription : outputListeners) {
+                subscription.offer(buffer, len, offset);
+            }
+        }
+    }
+
+    /**
+     * 由阻塞读取线程或交接队列的处理任务调用：PTY 输出已结束（子进程退出或 PTY 已关闭）
+     */
+    void onReadEnd() {
+        if (running) {
+            log.debug("PTY {} 输出结束", id);
+        }
+        if (!exited) {
+            exited = true;
+            fireInfoChanged();
+        }
+    }
+
+    /**
+     * 获取历史输出的只读快照（直接引用环形缓冲区，不复制）
+     */
+    public ByteRingBuffer.Snapshot getOutputHistory() {
+        synchronized (outputLock) {
+            wake();
+            return history.snapshot();
+        }
+    }
+
+    /**
+     * 当前输出快照：启用屏幕模型时是重建当前画面的 ANSI 序列（含有限的滚动历史），否则是历史输出原文。
+     * endOffset 为快照对应的输出流位置，之后的实时输出从这里继续。
+     */
+    public OutputSnapshot snapshotOutput() {
+        synchronized (outputLock) {
+            wake();
+            long end = history.getWritten();
+            byte[] data = screen != null ? screen.serialize() : history.snapshot().toByteArray();
+            return new OutputSnapshot(data, end);
+        }
+    }
+
+    /**
+     * 自 since 起的历史输出。since 已滚出历史缓冲区或超出当前输出末尾时返回 null
+     */
+    public OutputSnapshot outputSince(long since) {
+        synchronized (outputLock) {
+            wake();
+            // 追加也在 outputLock 下进行，视图在这里不会被覆盖
+            ByteRingBuffer.Snapshot snapshot = history.snapshot();
+            if (since < snapshot.startOffset() || since > snapshot.endOffset()) {
+                return null;
+            }
+            byte[] data = new byte[(int) (snapshot.endOffset() - since)];
+            int skip = (int) (since - snapshot.startOffset());
+            ByteBuffer head = snapshot.head();
+            ByteBuffer tail = snapshot.tail();
+            if (skip < head.remaining()) {
+                head.position(head.position() + skip);
+                int n = head.remaining();
+                head.get(data, 0, n);
+                tail.get(data, n, data.length - n);
+            } else {
+                tail.position(tail.position() + skip - head.remaining());
+                tail.get(data);
+            }
+            return new OutputSnapshot(data, snapshot.endOffset());
+        }
+    }
+
+    public record OutputSnapshot(byte[] data, long endOffset) {
+    }
+
+    public void write(String input) throws IOException {
+        write(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized void write(byte[] input) throws IOException {
+        lastInputNanos = System.nanoTime();
+        outputStream.write(input);
         outputStream.flush();
+        for (PtyInputListener listener : inputListeners) {
+            try {
+                listener.onInput(input);
+            } catch (Exception e) {
+                log.error("输入监听器处理失败", e);
+            }
+        }
     }
 
     public void resize(int cols, int rows) {
@@ -154,6 +572,15 @@ public class PtyInstance {
         int safeRows = Math.max(1, rows);
         try {
             process.setWinSize(new WinSize(safeCols, safeRows));
+            synchronized (outputLock) {
+                wake();
+                if (screen != null) {
+                    screen.resize(safeCols, safeRows);
+                }
+            }
+            for (PtyInputListener listener : inputListeners) {
+                listener.onResize(safeCols, safeRows);
+            }
             log.debug("PTY resize: {}x{}", safeCols, safeRows);
         } catch (Exception e) {
             log.warn("PTY resize 失败: {}x{}", safeCols, safeRows, e);
@@ -161,7 +588,12 @@ public class PtyInstance {
     }
 
     public void close() {
+        boolean wasRunning = running;
         running = false;
+        if (readByEngine) {
+            // 先确保 poll 线程不再读取该 fd，再关闭流
+            context.getReaderEngine().unregister(this);
+        }
         try {
             outputStream.close();
             inputStream.close();
@@ -169,6 +601,9 @@ public class PtyInstance {
             log.error("关闭 PTY 流失败", e);
         }
         process.destroy();
+        if (wasRunning) {
+            fireInfoChanged();
+        }
     }
 
     public boolean isAlive() {
@@ -176,7 +611,11 @@ public class PtyInstance {
     }
 
     public void setName(String name) {
+        boolean changed = !Objects.equals(this.name, name);
         this.name = name;
+        if (changed) {
+            fireInfoChanged();
+        }
     }
 
     public void setRemoteCreated(boolean remoteCreated) {
@@ -3,11 +3,24 @@ package cc.jfire.webcli.pty;
 import cc.jfire.baseutil.PostConstruct;
 import cc.jfire.baseutil.Resource;
 import cc.jfire.webcli.config.WebCliConfig;
+import cc.jfire.webcli.recording.SessionRecorder;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 @Slf4j
@@ -18,6 +31,19 @@ public class PtyManager
     private          String[]                               defaultCommand;
     private          String                                 workingDirectory;
     private volatile Consumer<PtyInstance>                  onPtyCreated;
+    private          PtyReaderEngine                        readerEngine;
+    private          ExecutorService                        deliveryExecutor;
+    private          PtyContext                             context;
+    private final    ConcurrentHashMap<String, SessionRecorder> recorders = new ConcurrentHashMap<>();
+    /** 会话录制的批量刷盘与关键帧线程，仅在启用录制时创建 */
+    private          ScheduledExecutorService               recordingScheduler;
+    /** 输出合并的定时刷新线程 */
+    private final    ScheduledExecutorService               outputScheduler          = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("pty-output-flusher").factory());
+    /** 预热 Shell 池，poolSize 为 0 或 Server 模式下为 null */
+    private          ShellPool                              shellPool;
+    /** 累计缩小历史缓冲区的次数与释放的字节数 */
+    private final    AtomicLong                             historyEvictions         = new AtomicLong();
+    private final    AtomicLong                             historyEvictedBytes      = new AtomicLong();
     /**
      * 是否允许远端通过 Server 发起“新建终端”请求。
      * 默认关闭，由本地 Web 界面控制开关。
@@ -32,6 +58,34 @@ public class PtyManager
     {
         this.defaultCommand = config.getShellCommand();
         this.workingDirectory = config.getWorkingDirectory();
+        this.readerEngine = new PtyReaderEngine(config.getPtyReaderThreads());
+        this.deliveryExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        this.context = new PtyContext(readerEngine, deliveryExecutor, config.getSubscriberQueueBytes(), OverflowPolicy.of(config.getOverflowPolicy()),
+                                      config.isScreenModel() ? config.getScreenScrollbackLines() : -1);
+        if (config.getHistoryBudget() > 0)
+        {
+            // 重新 attach 会把历史恢复到原大小，定期检查一次总量即可
+            outputScheduler.scheduleWithFixedDelay(this::enforceHistoryBudget, 5, 5, TimeUnit.SECONDS);
+        }
+        if (config.getHibernateSeconds() > 0)
+        {
+            long period = Math.min(60, config.getHibernateSeconds());
+            outputScheduler.scheduleWithFixedDelay(this::hibernateIdle, period, period, TimeUnit.SECONDS);
+        }
+        if (config.getPoolSize() > 0 && !config.isServerMode())
+        {
+            this.shellPool = new ShellPool(config.getPoolSize(),
+                                           profile -> new PtyInstance(profile.command().toArray(String[]::new), null, profile.workingDirectory(), profile.cols(), profile.rows(),
+                                                                      profile.historySize(), context));
+            // 默认 Shell 和固定尺寸是最常用的分组，启动时就开始预热
+            shellPool.warm(profile(defaultCommand, 200, 100, config.getHistorySize()));
+            log.info("预热 Shell 池已启用，每个分组 {} 个", config.getPoolSize());
+        }
+        if (config.isRecordingEnabled())
+        {
+            this.recordingScheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("pty-recorder").factory());
+            log.info("会话录制已启用，目录: {}", Path.of(config.getRecordingDir()).toAbsolutePath());
+        }
         log.info("默认 Shell 命令: {}", String.join(" ", defaultCommand));
         log.info("默认工作目录: {}", workingDirectory);
     }
@@ -56,16 +110,238 @@ public class PtyManager
 
     public PtyInstance create(String[] command, String name, int cols, int rows) throws IOException
     {
-        PtyInstance instance = new PtyInstance(command, name, workingDirectory, cols, rows);
+        return create(command, name, cols, rows, config.getHistorySize());
+    }
+
+    /**
+     * 创建远端请求的终端：名称加上 agentId 前缀并去重，创建后开始读取，默认远端可见并标记为远端创建
+     */
+    public PtyInstance createRemote(String agentId, String requestedName, int cols, int rows) throws IOException
+    {
+        PtyInstance pty = create(uniqueRemoteName(agentId, requestedName), cols, rows);
+        pty.startReading();
+        // 远端创建的终端默认开启远端可见，便于直接 attach
+        pty.setRemoteViewable(true);
+        // 标记为远端创建
+        pty.setRemoteCreated(true);
+        return pty;
+    }
+
+    private String uniqueRemoteName(String agentId, String requestedName)
+    {
+        String baseName = requestedName != null ? requestedName.trim() : "";
+        if (baseName.isBlank())
+        {
+            baseName = "终端";
+        }
+        String      prefix         = agentId + "-";
+        String      nameWithPrefix = baseName.startsWith(prefix) ? baseName : prefix + baseName;
+        Set<String> existingNames  = new HashSet<>();
+        for (PtyInstance instance : instances.values())
+        {
+            if (instance.getName() != null)
+            {
+                existingNames.add(instance.getName());
+            }
+        }
+        // 处理重名：递增序号（-2, -3, ...）
+        if (!existingNames.contains(nameWithPrefix))
+        {
+            return nameWithPrefix;
+        }
+        for (int i = 2; i < 10_000; i++)
+        {
+            String candidate = nameWithPrefix + "-" + i;
+            if (!existingNames.contains(candidate))
+            {
+                return candidate;
+            }
+        }
+        // 极端情况下兜底，保证唯一性
+        return nameWithPrefix + "-" + System.currentTimeMillis();
+    }
+
+    /**
+     * @param historySize 该终端的历史输出缓冲区大小（字节）
+     */
+    public PtyInstance create(String[] command, String name, int cols, int rows, int historySize) throws IOException
+    {
+        PtyInstance instance = shellPool != null ? shellPool.claim(profile(command, cols, rows, historySize)) : null;
+        if (instance != null)
+        {
+            instance.setName(name);
+        }
+        else
+        {
+            instance = new PtyInstance(command, name, workingDirectory, cols, rows, historySize, context);
+        }
         instances.put(instance.getId(), instance);
         log.info("创建 PTY 实例: {}, 名称: {}, 尺寸: {}x{}", instance.getId(), name, cols, rows);
+        if (recordingScheduler != null)
+        {
+            startRecording(instance, cols, rows);
+        }
         if (onPtyCreated != null)
         {
             onPtyCreated.accept(instance);
         }
+        if (config.getHistoryBudget() > 0)
+        {
+            enforceHistoryBudget();
+        }
         return instance;
     }
 
+    /**
+     * 所有终端的历史缓冲区总容量超出预算时，按最近使用时间从旧到新缩小没有展示端的终端的历史，
+     * 直到回到预算以内。正在被查看的终端保留完整历史。预热池中的 Shell 一并计入，取走时恢复原大小。
+     */
+    synchronized void enforceHistoryBudget()
+    {
+        long              budget  = config.getHistoryBudget();
+        long              used    = 0;
+        List<PtyInstance> holders = historyHolders();
+        for (PtyInstance instance : holders)
+        {
+            used += instance.getHistoryCapacity();
+        }
+        if (budget <= 0 || used <= budget)
+        {
+            return;
+        }
+        // 排序前先固定每个终端的空闲时长：活跃时间会被 IO 线程并发更新，排序过程中键值变化会破坏比较器的约定
+        long               now  = System.nanoTime();
+        List<IdleTerminal> idle = new ArrayList<>();
+        for (PtyInstance instance : holders)
+        {
+            if (!instance.isViewed() && instance.getHistoryCapacity() > config.getHistoryMinSize())
+            {
+                idle.add(new IdleTerminal(instance, now - instance.getLastActiveNanos()));
+            }
+        }
+        // 空闲最久的排在最前
+        idle.sort(Comparator.comparingLong(IdleTerminal::idleNanos).reversed());
+        for (IdleTerminal entry : idle)
+        {
+            PtyInstance instance = entry.instance();
+            if (used <= budget)
+            {
+                break;
+            }
+            int target = (int) Math.max(config.getHistoryMinSize(), instance.getHistoryCapacity() - (used - budget));
+            int freed  = instance.shrinkHistory(target);
+            if (freed > 0)
+            {
+                used -= freed;
+                historyEvictions.incrementAndGet();
+                historyEvictedBytes.addAndGet(freed);
+                log.debug("终端 {} 空闲，历史缓冲区缩小到 {} 字节", instance.getId(), target);
+            }
+        }
+        if (used > budget)
+        {
+            log.warn("历史缓冲区总量 {} 字节超出预算 {} 字节，其余终端正在使用中", used, budget);
+        }
+    }
+
+    /**
+     * 让空闲超过 hibernateSeconds 的终端进入休眠
+     */
+    private void hibernateIdle()
+    {
+        long idleNanos = TimeUnit.SECONDS.toNanos(config.getHibernateSeconds());
+        for (PtyInstance instance : historyHolders())
+        {
+            try
+            {
+                if (instance.hibernateIfIdle(idleNanos))
+                {
+                    log.info("终端 {} 空闲超过 {} 秒，进入休眠", instance.getId(), config.getHibernateSeconds());
+                }
+            }
+            catch (Exception e)
+            {
+                log.error("终端 {} 进入休眠失败", instance.getId(), e);
+            }
+        }
+    }
+
+    public HistoryUsage getHistoryUsage()
+    {
+        long used       = 0;
+        int  count      = 0;
+        int  shrunk     = 0;
+        int  hibernated = 0;
+        for (PtyInstance instance : historyHolders())
+        {
+            int capacity = instance.getHistoryCapacity();
+            used += capacity;
+            count++;
+            if (instance.isHibernated())
+            {
+                hibernated++;
+            }
+            else if (capacity < instance.getHistorySize())
+            {
+                shrunk++;
+            }
+        }
+        return new HistoryUsage(config.getHistoryBudget(), used, count, shrunk, hibernated, historyEvictions.get(), historyEvictedBytes.get());
+    }
+
+    /**
+     * 占用历史缓冲区的所有终端：已创建的终端加上预热池中等待取走的 Shell
+     */
+    private List<PtyInstance> historyHolders()
+    {
+        List<PtyInstance> holders = new ArrayList<>(instances.values());
+        if (shellPool != null)
+        {
+            holders.addAll(shellPool.idleInstances());
+        }
+        return holders;
+    }
+
+    private ShellPool.Profile profile(String[] command, int cols, int rows, int historySize)
+    {
+        return new ShellPool.Profile(Arrays.asList(command), workingDirectory, cols, rows, historySize);
+    }
+
+    /**
+     * 预热 Shell 池的状态，未启用时返回 null
+     */
+    public ShellPoolStats getShellPoolStats()
+    {
+        return shellPool != null ? shellPool.stats() : null;
+    }
+
+    private void startRecording(PtyInstance instance, int cols, int rows)
+    {
+        try
+        {
+            SessionRecorder recorder = SessionRecorder.start(instance, Path.of(config.getRecordingDir()), cols, rows, config.getRecordingSegmentSize(), recordingScheduler,
+                                                             config.getRecordingFlushMillis(), config.getRecordingKeyframeSeconds());
+            recorders.put(instance.getId(), recorder);
+        }
+        catch (IOException e)
+        {
+            // 录制失败不影响终端本身
+            log.error("终端 {} 启动录制失败", instance.getId(), e);
+        }
+    }
+
+    /**
+     * 为某个订阅者包装一层输出合并，时间窗口为 0 时直接返回原监听器
+     */
+    public PtyOutputListener coalesce(PtyInstance pty, PtyOutputListener sink)
+    {
+        if (config.getOutputCoalesceMillis() <= 0 || config.getOutputCoalesceBytes() <= 0)
+        {
+            return sink;
+        }
+        return new OutputCoalescer(pty, sink, outputScheduler, config.getOutputCoalesceMillis(), config.getOutputCoalesceBytes());
+    }
+
     public PtyInstance get(String id)
     {
         return instances.get(id);
@@ -76,6 +352,11 @@ public class PtyManager
         PtyInstance instance = instances.remove(id);
         if (instance != null)
         {
+            SessionRecorder recorder = recorders.remove(id);
+            if (recorder != null)
+            {
+                recorder.close();
+            }
             instance.close();
             log.info("移除 PTY 实例: {}", id);
         }
@@ -88,11 +369,30 @@ public class PtyManager
 
     public void shutdown()
     {
+        if (shellPool != null)
+        {
+            shellPool.shutdown();
+        }
+        recorders.values().forEach(SessionRecorder::close);
+        recorders.clear();
         for (PtyInstance instance : instances.values())
         {
             instance.close();
         }
         instances.clear();
+        if (recordingScheduler != null)
+        {
+            recordingScheduler.shutdownNow();
+        }
+        if (readerEngine != null)
+        {
+            readerEngine.shutdown();
+        }
+        outputScheduler.shutdownNow();
+        if (deliveryExecutor != null)
+        {
+            deliveryExecutor.shutdownNow();
+        }
     }
 
     public void setOnPtyCreated(Consumer<PtyInstance> onPtyCreated)
@@ -109,4 +409,11 @@ public class PtyManager
     {
         this.remoteCreateEnabled = remoteCreateEnabled;
     }
+
+    /**
+     * 预算回收时某个终端在排序前固定下来的空闲时长
+     */
+    private record IdleTerminal(PtyInstance instance, long idleNanos)
+    {
+    }
 }
@@ -0,0 +1,52 @@
+package cc.jfire.webcli.pty;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PTY 原始输出监听器。
+ * <p>
+ * 输出以字节块的形式传递，不做字符集解码，UTF-8 多字节字符可能被拆分在相邻两块中，
+ * 由最终的展示端（浏览器中的 xterm.js）负责拼接。
+ */
+@FunctionalInterface
+public interface PtyOutputListener
+{
+    /**
+     * @param data   只读的输出数据。底层缓冲区会被读线程复用，只在回调期间有效，需要保留时请自行复制
+     * @param offset 该块数据第一个字节在 PTY 输出流中的偏移量
+     */
+    void onOutput(ByteBuffer data, long offset);
+
+    /**
+     * attach 或积压超限丢弃输出后回调。snapshot 是当前输出快照（屏幕模型序列化结果或历史输出），
+     * 展示端应当清屏后重新渲染；offset 为快照对应的输出流位置，之后的 {@link #onOutput} 从这里继续。
+     * 默认按普通输出处理。
+     */
+    default void onResync(ByteBuffer snapshot, long offset)
+    {
+        onOutput(snapshot, offset - snapshot.remaining());
+    }
+
+    /**
+     * 订阅者积压超限、按 {@link OverflowPolicy#DISCONNECT} 被断开前回调
+     */
+    default void onOverflow()
+    {
+    }
+
+    /**
+     * 是否为展示端（浏览器或远程隧道）。录制等后台订阅者返回 false，
+     * 它们的存在不代表终端正在被使用，不阻止历史缓冲区被回收
+     */
+    default boolean isViewer()
+    {
+        return true;
+    }
+
+    /**
+     * 监听器从 PTY 上移除时回调，用于释放定时任务等资源
+     */
+    default void onDetached()
+    {
+    }
+}
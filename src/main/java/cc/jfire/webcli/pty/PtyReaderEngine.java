@@ -0,0 +1,376 @@
+package cc.jfire.webcli.pty;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Structure;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多路复用的 PTY 读取引擎。
+ * <p>
+ * 用固定数量的平台线程，通过 poll(2) 同时等待大量 PTY master fd 的可读事件，
+ * 可读时读取一次，复制后交给对应的 {@link PtyInstance} 在投递执行器上处理（见 {@link OutputHandoff}），
+ * poll 线程上只有读取和交接，休眠终端的解压、历史追加和屏幕解析不会拖慢同一线程上的其他终端。
+ * 这样既不会为每个终端占用一个线程，也不会像虚拟线程阻塞在 native read 上那样钉住 carrier 线程。
+ * <p>
+ * 依赖 pty4j 自带的 JNA 调用 libc；在 Windows 或无法获取 fd 的情况下 {@link #register} 返回 false，
+ * 由调用方退回到单线程阻塞读取。
+ */
+@Slf4j
+public class PtyReaderEngine
+{
+    private static final short POLLIN   = 0x0001;
+    private static final short POLLERR  = 0x0008;
+    private static final short POLLHUP  = 0x0010;
+    private static final short POLLNVAL = 0x0020;
+    private static final int   EINTR    = 4;
+
+    private final Poller[] pollers;
+    private final boolean  nativeAvailable;
+
+    public PtyReaderEngine(int threads)
+    {
+        int     count     = Math.max(1, threads);
+        boolean available = false;
+        if (!Platform.isWindows())
+        {
+            try
+            {
+                LibC.INSTANCE.getpid();
+                available = true;
+            }
+            catch (Throwable e)
+            {
+                log.warn("无法加载 libc，PTY 读取退回到阻塞模式", e);
+            }
+        }
+        this.nativeAvailable = available;
+        this.pollers = new Poller[available ? count : 0];
+        for (int i = 0; i < pollers.length; i++)
+        {
+            pollers[i] = new Poller(i);
+        }
+        if (available)
+        {
+            log.info("PTY 读取引擎已启动，poll 线程数: {}", count);
+        }
+    }
+
+    /**
+     * 将 PTY 加入多路复用读取。
+     *
+     * @return false 表示当前平台或该 PTY 不支持，调用方需要自行读取
+     */
+    public boolean register(PtyInstance pty)
+    {
+        if (!nativeAvailable)
+        {
+            return false;
+        }
+        int fd = pty.getMasterFd();
+        if (fd < 0)
+        {
+            return false;
+        }
+        Poller target = pollers[0];
+        for (Poller poller : pollers)
+        {
+            if (poller.size.get() < target.size.get())
+            {
+                target = poller;
+            }
+        }
+        Poller chosen = target;
+        chosen.size.incrementAndGet();
+        chosen.submit(() -> chosen.members.add(new Member(pty, fd)));
+        return true;
+    }
+
+    /**
+     * 将 PTY 移出多路复用读取。返回时保证 poll 线程不会再读取该 fd，可以安全关闭。
+     */
+    public void unregister(PtyInstance pty)
+    {
+        for (Poller poller : pollers)
+        {
+            poller.remove(pty);
+        }
+    }
+
+    /**
+     * 唤醒所有 poll 线程重新构建 fd 集合，用于暂停读取的 PTY 恢复读取
+     */
+    public void wakeup()
+    {
+        for (Poller poller : pollers)
+        {
+            poller.submit(() -> {});
+        }
+    }
+
+    /**
+     * 当前由引擎负责读取的 PTY 数量
+     */
+    public int getRegisteredCount()
+    {
+        int total = 0;
+        for (Poller poller : pollers)
+        {
+            total += poller.size.get();
+        }
+        return total;
+    }
+
+    public void shutdown()
+    {
+        for (Poller poller : pollers)
+        {
+            poller.shutdown();
+        }
+    }
+
+    private record Member(PtyInstance pty, int fd)
+    {
+    }
+
+    private final class Poller implements Runnable
+    {
+        private final    Thread                          thread;
+        private final    int[]                           wakePipe      = new int[2];
+        private final    ConcurrentLinkedQueue<Runnable> pending       = new ConcurrentLinkedQueue<>();
+        private final    AtomicBoolean                   wakeupPending = new AtomicBoolean();
+        private final    byte[]                          wakeBuffer    = new byte[64];
+        private final    byte[]                          readBuffer    = new byte[8192];
+        /** 只由 poll 线程访问 */
+        private final    List<Member>                    members       = new ArrayList<>();
+        private final    AtomicInteger                   size          = new AtomicInteger();
+        private volatile boolean                         running       = true;
+        private          PollFd[]                        fds;
+        private          int                             fdsMembers    = -1;
+
+        Poller(int index)
+        {
+            if (LibC.INSTANCE.pipe(wakePipe) != 0)
+            {
+                throw new IllegalStateException("创建唤醒管道失败, errno=" + Native.getLastError());
+            }
+            thread = Thread.ofPlatform().daemon().name("pty-poller-" + index).start(this);
+        }
+
+        void submit(Runnable op)
+        {
+            pending.add(op);
+            if (wakeupPending.compareAndSet(false, true))
+            {
+                LibC.INSTANCE.write(wakePipe[1], new byte[]{1}, new NativeLong(1));
+            }
+        }
+
+        void remove(PtyInstance pty)
+        {
+            Runnable op = () -> {
+                if (members.removeIf(m -> m.pty == pty))
+                {
+                    size.decrementAndGet();
+                }
+            };
+            if (Thread.currentThread() == thread)
+            {
+                op.run();
+                return;
+            }
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            submit(() -> {
+                op.run();
+                done.complete(null);
+            });
+            // 调用方随后会关闭 fd，必须等 poll 线程真正把它移出集合：fd 关闭后编号可能被内核分配给其他文件，
+            // poll 线程若还持有旧编号就会读到别的文件。因此不设超时，只在 poll 线程已经退出时不再等待
+            boolean interrupted = false;
+            boolean warned      = false;
+            while (true)
+            {
+                try
+                {
+                    done.get(1, TimeUnit.SECONDS);
+                    break;
+                }
+                catch (TimeoutException e)
+                {
+                    if (!thread.isAlive())
+                    {
+                        break;
+                    }
+                    if (!warned)
+                    {
+                        warned = true;
+                        log.warn("poll 线程仍未移除 PTY，继续等待: {}", pty.getId());
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void shutdown()
+        {
+            running = false;
+            submit(() -> {});
+            try
+            {
+                thread.join(1000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            LibC.INSTANCE.close(wakePipe[0]);
+            LibC.INSTANCE.close(wakePipe[1]);
+        }
+
+        @Override
+        public void run()
+        {
+            while (running)
+            {
+                try
+                {
+                    pollOnce();
+                }
+                catch (Throwable e)
+                {
+                    log.error("PTY poll 循环异常", e);
+                }
+            }
+        }
+
+        private void pollOnce()
+        {
+            Runnable op;
+            while ((op = pending.poll()) != null)
+            {
+                op.run();
+            }
+            int count = members.size();
+            if (fds == null || fdsMembers != count)
+            {
+                fds = (PollFd[]) new PollFd().toArray(count + 1);
+                fdsMembers = count;
+            }
+            fds[0].fd = wakePipe[0];
+            fds[0].events = POLLIN;
+            fds[0].revents = 0;
+            for (int i = 0; i < count; i++)
+            {
+                PollFd pollFd = fds[i + 1];
+                Member member = members.get(i);
+                // 暂停读取的 PTY 以负数 fd 留在数组中，poll 会忽略它，恢复时通过 wakeup 重新构建
+                pollFd.fd = member.pty.isReadPaused() ? -1 : member.fd;
+                pollFd.events = POLLIN;
+                pollFd.revents = 0;
+            }
+            int ready = LibC.INSTANCE.poll(fds, count + 1, -1);
+            if (ready <= 0)
+            {
+                // EINTR 等情况直接重新 poll
+                return;
+            }
+            if (fds[0].revents != 0)
+            {
+                // 先清空管道再复位标记，复位之后提交的操作一定会重新写入唤醒字节
+                LibC.INSTANCE.read(wakePipe[0], wakeBuffer, new NativeLong(wakeBuffer.length));
+                wakeupPending.set(false);
+            }
+            List<Member> ended = null;
+            for (int i = 0; i < count; i++)
+            {
+                short revents = fds[i + 1].revents;
+                if (revents == 0)
+                {
+                    continue;
+                }
+                Member member = members.get(i);
+                int    len    = -1;
+                if ((revents & POLLIN) != 0)
+                {
+                    len = (int) LibC.INSTANCE.read(member.fd, readBuffer, new NativeLong(readBuffer.length)).longValue();
+                    if (len > 0)
+                    {
+                        member.pty.handOffOutput(readBuffer, len);
+                        continue;
+                    }
+                    if (len < 0 && Native.getLastError() == EINTR)
+                    {
+                        continue;
+                    }
+                }
+                else if ((revents & (POLLERR | POLLHUP | POLLNVAL)) == 0)
+                {
+                    continue;
+                }
+                // 读到 EOF、出错或对端挂断：子进程已退出
+                if (ended == null)
+                {
+                    ended = new ArrayList<>();
+                }
+                ended.add(member);
+            }
+            if (ended != null)
+            {
+                for (Member member : ended)
+                {
+                    members.remove(member);
+                    size.decrementAndGet();
+                    member.pty.handOffReadEnd();
+                }
+            }
+        }
+    }
+
+    @Structure.FieldOrder({"fd", "events", "revents"})
+    public static class PollFd extends Structure
+    {
+        public int   fd;
+        public short events;
+        public short revents;
+    }
+
+    interface LibC extends Library
+    {
+        LibC INSTANCE = Native.load(Platform.C_LIBRARY_NAME, LibC.class);
+
+        int getpid();
+
+        int pipe(int[] fds);
+
+        int poll(PollFd[] fds, int nfds, int timeout);
+
+        NativeLong read(int fd, byte[] buf, NativeLong count);
+
+        NativeLong write(int fd, byte[] buf, NativeLong count);
+
+        int close(int fd);
+    }
+}
@@ -0,0 +1,155 @@
+package cc.jfire.webcli.pty;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 预先启动的空闲 Shell 池。
+ * <p>
+ * 登录 Shell 加载 rc 文件往往需要几百毫秒，池中按“命令 + 工作目录 + 尺寸”分组预先启动若干个 PTY，
+ * 并已开始读取输出（提示符等启动输出进入历史和屏幕模型）。创建终端时直接取走一个，随后在后台补齐。
+ * 某个分组第一次被使用时才开始为它预热。
+ * <p>
+ * 池中的 Shell 与已创建的终端一样计入历史预算、参与休眠（见 {@link #idleInstances}），取走时恢复完整的历史并重新开始计算空闲时间。
+ */
+@Slf4j
+class ShellPool
+{
+    private final int                                        size;
+    private final Spawner                                    spawner;
+    private final ConcurrentHashMap<Profile, Deque<PtyInstance>> idle      = new ConcurrentHashMap<>();
+    /** 已提交补齐任务、尚未执行完的分组，避免重复提交 */
+    private final Set<Profile>                               refilling = ConcurrentHashMap.newKeySet();
+    /** 单个平台线程依次启动进程：fork 是 native 调用，也避免同时启动大量 Shell */
+    private final ExecutorService                            refillExecutor = Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("pty-pool-refill").factory());
+    private final AtomicLong                                 hits      = new AtomicLong();
+    private final AtomicLong                                 misses    = new AtomicLong();
+    private volatile boolean                                 closed;
+
+    ShellPool(int size, Spawner spawner)
+    {
+        this.size = size;
+        this.spawner = spawner;
+    }
+
+    /**
+     * 开始为该分组预热
+     */
+    void warm(Profile profile)
+    {
+        refill(profile);
+    }
+
+    /**
+     * 取走一个预热好的 PTY，池中没有存活的实例时返回 null，由调用方同步创建
+     */
+    PtyInstance claim(Profile profile)
+    {
+        Deque<PtyInstance> deque    = idle.get(profile);
+        PtyInstance        instance = null;
+        while (deque != null && (instance = deque.pollFirst()) != null && !instance.isAlive())
+        {
+            log.debug("预热的 PTY {} 已退出，丢弃", instance.getId());
+            instance.close();
+        }
+        if (instance != null)
+        {
+            hits.incrementAndGet();
+            instance.onClaimed();
+        }
+        else
+        {
+            misses.incrementAndGet();
+        }
+        refill(profile);
+        return instance;
+    }
+
+    /**
+     * 池中等待取走的 PTY，供历史预算和休眠检查一并处理
+     */
+    List<PtyInstance> idleInstances()
+    {
+        List<PtyInstance> result = new ArrayList<>();
+        for (Deque<PtyInstance> deque : idle.values())
+        {
+            result.addAll(deque);
+        }
+        return result;
+    }
+
+    ShellPoolStats stats()
+    {
+        int count = 0;
+        for (Deque<PtyInstance> deque : idle.values())
+        {
+            count += deque.size();
+        }
+        return new ShellPoolStats(size, idle.size(), count, hits.get(), misses.get());
+    }
+
+    void shutdown()
+    {
+        closed = true;
+        refillExecutor.shutdownNow();
+        for (Deque<PtyInstance> deque : idle.values())
+        {
+            PtyInstance instance;
+            while ((instance = deque.pollFirst()) != null)
+            {
+                instance.close();
+            }
+        }
+    }
+
+    private void refill(Profile profile)
+    {
+        if (closed || !refilling.add(profile))
+        {
+            return;
+        }
+        refillExecutor.execute(() -> {
+            try
+            {
+                Deque<PtyInstance> deque = idle.computeIfAbsent(profile, key -> new ConcurrentLinkedDeque<>());
+                while (!closed && deque.size() < size)
+                {
+                    PtyInstance instance = spawner.spawn(profile);
+                    instance.startReading();
+                    deque.addLast(instance);
+                }
+            }
+            catch (IOException e)
+            {
+                log.error("预热 Shell 失败: {}", String.join(" ", profile.command()), e);
+            }
+            finally
+            {
+                refilling.remove(profile);
+            }
+        });
+    }
+
+    /**
+     * 预热分组。historySize 不同的实例不能互相替代，也作为分组的一部分
+     */
+    record Profile(List<String> command, String workingDirectory, int cols, int rows, int historySize)
+    {
+    }
+
+    @FunctionalInterface
+    interface Spawner
+    {
+        PtyInstance spawn(Profile profile) throws IOException;
+    }
+}
@@ -0,0 +1,25 @@
+package cc.jfire.webcli.pty;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 预热 Shell 池的状态
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ShellPoolStats
+{
+    /** 每个分组保持的空闲 Shell 数 */
+    private int  poolSize;
+    /** 已预热的分组数 */
+    private int  profiles;
+    /** 当前空闲的 Shell 总数 */
+    private int  idleShells;
+    /** 创建终端时直接取到预热 Shell 的次数 */
+    private long hits;
+    /** 池中没有可用 Shell、只能同步启动的次数 */
+    private long misses;
+}
@@ -0,0 +1,1479 @@
+package cc.jfire.webcli.pty;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 服务端维护的终端屏幕模型（VT/xterm 子集）。
+ * <p>
+ * 持续解析 PTY 输出中的转义序列，维护主屏/备用屏的字符网格、光标、属性、常用模式和有限行数的滚动历史。
+ * attach 时通过 {@link #serialize()} 生成一段能在 xterm.js 上重建当前画面的紧凑 ANSI 序列，
+ * 替代整段历史输出的回放：全屏程序（htop、vim）的大量重绘只保留最终结果。
+ * <p>
+ * 只覆盖重建画面所需的序列，不回应终端查询（DA、DSR 等由浏览器端的 xterm.js 回应）；
+ * 组合字符（零宽字符）被忽略。非线程安全，由 {@link PtyInstance} 在输出锁内调用。
+ */
+public class TerminalScreen
+{
+    // ---------- 单元格属性：低 8 位为样式标记，其后各 26 位为前景色、背景色 ----------
+    private static final int  BOLD        = 1;
+    private static final int  DIM         = 1 << 1;
+    private static final int  ITALIC      = 1 << 2;
+    private static final int  UNDERLINE   = 1 << 3;
+    private static final int  BLINK       = 1 << 4;
+    private static final int  INVERSE     = 1 << 5;
+    private static final int  HIDDEN      = 1 << 6;
+    private static final int  STRIKE      = 1 << 7;
+    private static final int  FG_SHIFT    = 8;
+    private static final int  BG_SHIFT    = 34;
+    private static final long COLOR_MASK  = (1L << 26) - 1;
+    /** 颜色编码的高 2 位：0 默认色，1 调色板索引，2 RGB */
+    private static final int  COLOR_PALETTE = 1 << 24;
+    private static final int  COLOR_RGB     = 2 << 24;
+    private static final long BG_MASK     = COLOR_MASK << BG_SHIFT;
+
+    /** 宽字符右半格的占位 */
+    private static final int WIDE_TAIL = -1;
+    private static final int MAX_PARAMS = 32;
+
+    /** 可直接按原样回放的 DEC 私有模式：光标键、鼠标上报、焦点事件、括号粘贴等 */
+    private static final int[] REPLAY_PRIVATE_MODES = {1, 12, 1000, 1002, 1003, 1004, 1005, 1006, 1015, 2004};
+
+    /** DEC 特殊图形字符集（ESC ( 0）中 0x60-0x7e 对应的制表符 */
+    private static final char[] DEC_GRAPHICS = ("◆▒␉␌␍␊°±␤␋┘┐┌└┼⎺⎻─⎼⎽├┤┴┬│≤≥π≠£·").toCharArray();
+
+    private enum State
+    {
+        GROUND, ESCAPE, ESCAPE_SKIP_ONE, CHARSET, CSI, OSC, OSC_ESCAPE, STRING, STRING_ESCAPE
+    }
+
+    private final int               scrollbackLimit;
+    private final ArrayDeque<Line>  scrollback = new ArrayDeque<>();
+    private       int               cols;
+    private       int               rows;
+    private       Line[]            mainLines;
+    private       Line[]            altLines;
+    private       Line[]            lines;
+    private       boolean           altActive;
+    private       int               mainCursorRow;
+    private       int               mainCursorCol;
+
+    private int     cursorRow;
+    private int     cursorCol;
+    private boolean pendingWrap;
+    private long    attr;
+    private int     scrollTop;
+    private int     scrollBottom;
+    private boolean autoWrap     = true;
+    private boolean originMode;
+    private boolean insertMode;
+    private boolean cursorVisible = true;
+    private boolean appKeypad;
+    private int     cursorStyle;
+    private final BitSet privateModes = new BitSet();
+    /** G0/G1 是否为 DEC 特殊图形字符集，shiftOut 表示当前使用 G1 */
+    private final boolean[] graphicsCharset = new boolean[2];
+    private boolean shiftOut;
+    private int     lastPrinted = ' ';
+    private String  title;
+    private SavedCursor savedMain;
+    private SavedCursor savedAlt;
+
+    // ---------- 解析器状态 ----------
+    private       State         state = State.GROUND;
+    private final int[]         params = new int[MAX_PARAMS];
+    private       int           paramCount;
+    private       boolean       paramStarted;
+    private       char          privateMarker;
+    private       char          intermediate;
+    private       int           charsetTarget;
+    private       int           utf8Remaining;
+    private       int           utf8CodePoint;
+    private       byte[]        oscBytes  = new byte[64];
+    private       int           oscLength;
+
+    public TerminalScreen(int cols, int rows, int scrollbackLimit)
+    {
+        this.cols = Math.max(1, cols);
+        this.rows = Math.max(1, rows);
+        this.scrollbackLimit = Math.max(0, scrollbackLimit);
+        this.mainLines = newLines(this.rows, this.cols);
+        this.altLines = newLines(this.rows, this.cols);
+        this.lines = mainLines;
+        this.scrollBottom = this.rows - 1;
+    }
+
+    /**
+     * 解析一段 PTY 输出。多字节字符、转义序列可以跨调用被拆开。
+     */
+    public void feed(byte[] data, int off, int len)
+    {
+        for (int i = off; i < off + len; i++)
+        {
+            feed(data[i] & 0xff);
+        }
+    }
+
+    public int getCols()
+    {
+        return cols;
+    }
+
+    public int getRows()
+    {
+        return rows;
+    }
+
+    public int getCursorRow()
+    {
+        return cursorRow;
+    }
+
+    public int getCursorCol()
+    {
+        return cursorCol;
+    }
+
+    public boolean isAltScreen()
+    {
+        return altActive;
+    }
+
+    public int getScrollbackSize()
+    {
+        return scrollback.size();
+    }
+
+    /**
+     * 当前屏幕第 row 行的文本（去掉行尾空白），主要用于测试和诊断
+     */
+    public String getLineText(int row)
+    {
+        Line          line = lines[row];
+        StringBuilder sb   = new StringBuilder();
+        int           end  = line.contentEnd(false);
+        for (int c = 0; c < end; c++)
+        {
+            int ch = line.chars[c];
+            if (ch != WIDE_TAIL)
+            {
+                sb.appendCodePoint(ch == 0 ? ' ' : ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 调整屏幕尺寸。不做折行重排：行被截断或补齐，行数减少时优先把光标上方的行推入滚动历史。
+     */
+    public void resize(int newCols, int newRows)
+    {
+        newCols = Math.max(1, newCols);
+        newRows = Math.max(1, newRows);
+        if (newCols == cols && newRows == rows)
+        {
+            return;
+        }
+        int mainCursor = altActive ? mainCursorRow : cursorRow;
+        int mainShift  = Math.max(0, mainCursor - newRows + 1);
+        int altShift   = altActive ? Math.max(0, cursorRow - newRows + 1) : 0;
+        for (int i = 0; i < mainShift; i++)
+        {
+            pushScrollback(mainLines[i]);
+        }
+        mainLines = resizeLines(mainLines, mainShift, newCols, newRows);
+        altLines = resizeLines(altLines, altShift, newCols, newRows);
+        lines = altActive ? altLines : mainLines;
+        if (altActive)
+        {
+            cursorRow -= altShift;
+            mainCursorRow = Math.max(0, mainCursorRow - mainShift);
+            mainCursorCol = Math.min(mainCursorCol, newCols - 1);
+        }
+        else
+        {
+            cursorRow -= mainShift;
+        }
+        cols = newCols;
+        rows = newRows;
+        cursorRow = clamp(cursorRow, 0, rows - 1);
+        cursorCol = clamp(cursorCol, 0, cols - 1);
+        pendingWrap = false;
+        scrollTop = 0;
+        scrollBottom = rows - 1;
+    }
+
+    /**
+     * 序列化为一段 ANSI 序列：写入一个刚复位的终端后，得到与当前相同的滚动历史、画面、光标与模式。
+     */
+    public byte[] serialize()
+    {
+        StringBuilder out = new StringBuilder(cols * (rows + scrollback.size()) / 2 + 256);
+        out.append("\u001bc");
+        Serializer serializer = new Serializer(out);
+        // 主屏：滚动历史和屏幕逐行写出，多出屏幕高度的部分自然滚入浏览器端的滚动历史
+        List<Line> all = new ArrayList<>(scrollback.size() + rows);
+        all.addAll(scrollback);
+        all.addAll(Arrays.asList(mainLines));
+        for (int i = 0; i < all.size(); i++)
+        {
+            Line line = all.get(i);
+            // 折行的行写满整行、不写换行，由浏览器端自动折行；下一行为空时无法触发折行，仍需显式换行。
+            // 改变宽度前进入滚动历史的行保留旧宽度，写满它不会在当前宽度上折行，同样需要显式换行
+            boolean continues = line.wrapped && line.chars.length == cols && i + 1 < all.size() && all.get(i + 1).contentEnd(true) > 0;
+            serializer.line(line, continues);
+            if (i + 1 < all.size() && !continues)
+            {
+                serializer.newLine();
+            }
+        }
+        if (altActive)
+        {
+            serializer.resetAttr();
+            out.append("\u001b[").append(mainCursorRow + 1).append(';').append(mainCursorCol + 1).append('H');
+            out.append("\u001b[?1049h");
+            for (int r = 0; r < rows; r++)
+            {
+                if (altLines[r].contentEnd(true) > 0)
+                {
+                    out.append("\u001b[").append(r + 1).append(";1H");
+                    serializer.line(altLines[r], false);
+                }
+            }
+        }
+        serializer.resetAttr();
+        if (title != null)
+        {
+            out.append("\u001b]2;").append(title).append('\u0007');
+        }
+        if (scrollTop != 0 || scrollBottom != rows - 1)
+        {
+            out.append("\u001b[").append(scrollTop + 1).append(';').append(scrollBottom + 1).append('r');
+        }
+        for (int mode : REPLAY_PRIVATE_MODES)
+        {
+            if (privateModes.get(mode))
+            {
+                out.append("\u001b[?").append(mode).append('h');
+            }
+        }
+        if (appKeypad)
+        {
+            out.append("\u001b=");
+        }
+        if (cursorStyle != 0)
+        {
+            out.append("\u001b[").append(cursorStyle).append(" q");
+        }
+        if (graphicsCharset[0])
+        {
+            out.append("\u001b(0");
+        }
+        if (graphicsCharset[1])
+        {
+            out.append("\u001b)0");
+        }
+        if (shiftOut)
+        {
+            out.append('\u000e');
+        }
+        if (originMode)
+        {
+            out.append("\u001b[?6h");
+        }
+        int cupRow = originMode ? cursorRow - scrollTop : cursorRow;
+        if (pendingWrap)
+        {
+            // 光标停在行尾等待折行：重写最后一格以恢复这个状态
+            out.append("\u001b[").append(cupRow + 1).append(';').append(cols).append('H');
+            Line line = lines[cursorRow];
+            int  ch   = line.chars[cols - 1];
+            if (ch == WIDE_TAIL || ch == 0)
+            {
+                // 宽字符或空白格无法原样重写，退化为停在最后一列
+                serializer.resetAttr();
+            }
+            else
+            {
+                serializer.cell(ch, line.attrs[cols - 1]);
+            }
+        }
+        else
+        {
+            out.append("\u001b[").append(cupRow + 1).append(';').append(cursorCol + 1).append('H');
+        }
+        serializer.attr(attr);
+        if (!autoWrap)
+        {
+            out.append("\u001b[?7l");
+        }
+        if (!cursorVisible)
+        {
+            out.append("\u001b[?25l");
+        }
+        if (insertMode)
+        {
+            out.append("\u001b[4h");
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // =====================================================================
+    // 解析
+    // =====================================================================
+
+    private void feed(int b)
+    {
+        if (utf8Remaining > 0)
+        {
+            if ((b & 0xc0) == 0x80)
+            {
+                utf8CodePoint = (utf8CodePoint << 6) | (b & 0x3f);
+                if (--utf8Remaining == 0)
+                {
+                    print(utf8CodePoint);
+                }
+                return;
+            }
+            utf8Remaining = 0;
+            print(0xfffd);
+        }
+        switch (state)
+        {
+            case GROUND -> ground(b);
+            case ESCAPE -> escape(b);
+            case ESCAPE_SKIP_ONE -> state = State.GROUND;
+            case CHARSET ->
+            {
+                graphicsCharset[charsetTarget] = b == '0';
+                state = State.GROUND;
+            }
+            case CSI -> csi(b);
+            case OSC -> osc(b);
+            case OSC_ESCAPE ->
+            {
+                state = State.GROUND;
+                finishOsc();
+                if (b != '\\')
+                {
+                    escape(b);
+                }
+            }
+            case STRING ->
+            {
+                if (b == 0x1b)
+                {
+                    state = State.STRING_ESCAPE;
+                }
+                else if (b == 0x18 || b == 0x1a || b == 0x07)
+                {
+                    state = State.GROUND;
+                }
+            }
+            case STRING_ESCAPE -> state = b == '\\' ? State.GROUND : State.STRING;
+        }
+    }
+
+    private void ground(int b)
+    {
+        if (b < 0x20 || b == 0x7f)
+        {
+            control(b);
+        }
+        else if (b < 0x80)
+        {
+            print(b);
+        }
+        else if (b >= 0xc2 && b <= 0xdf)
+        {
+            utf8Remaining = 1;
+            utf8CodePoint = b & 0x1f;
+        }
+        else if (b >= 0xe0 && b <= 0xef)
+        {
+            utf8Remaining = 2;
+            utf8CodePoint = b & 0x0f;
+        }
+        else if (b >= 0xf0 && b <= 0xf4)
+        {
+            utf8Remaining = 3;
+            utf8CodePoint = b & 0x07;
+        }
+        else
+        {
+            print(0xfffd);
+        }
+    }
+
+    private void control(int b)
+    {
+        switch (b)
+        {
+            case 0x08 ->
+            {
+                if (cursorCol > 0)
+                {
+                    cursorCol--;
+                }
+                pendingWrap = false;
+            }
+            case 0x09 -> tab(1);
+            case 0x0a, 0x0b, 0x0c -> lineFeed();
+            case 0x0d ->
+            {
+                cursorCol = 0;
+                pendingWrap = false;
+            }
+            case 0x0e -> shiftOut = true;
+            case 0x0f -> shiftOut = false;
+            case 0x18, 0x1a -> state = State.GROUND;
+            case 0x1b -> state = State.ESCAPE;
+            default ->
+            {
+                // BEL 等其余控制字符不影响画面
+            }
+        }
+    }
+
+    private void escape(int b)
+    {
+        state = State.GROUND;
+        switch (b)
+        {
+            case '[' ->
+            {
+                paramCount = 0;
+                paramStarted = false;
+                privateMarker = 0;
+                intermediate = 0;
+                Arrays.fill(params, 0);
+                state = State.CSI;
+            }
+            case ']' ->
+            {
+                oscLength = 0;
+                state = State.OSC;
+            }
+            case 'P', 'X', '^', '_' -> state = State.STRING;
+            case '(', ')' ->
+            {
+                charsetTarget = b == '(' ? 0 : 1;
+                state = State.CHARSET;
+            }
+            case '*', '+', '-', '.', '/', '#', '%', ' ' -> state = State.ESCAPE_SKIP_ONE;
+            case '7' -> saveCursor();
+            case '8' -> restoreCursor();
+            case 'D' -> lineFeed();
+            case 'E' ->
+            {
+                cursorCol = 0;
+                lineFeed();
+            }
+            case 'M' -> reverseIndex();
+            case 'c' -> fullReset();
+            case '=' -> appKeypad = true;
+            case '>' -> appKeypad = false;
+            case 0x1b -> state = State.ESCAPE;
+            default ->
+            {
+                if (b < 0x20)
+                {
+                    control(b);
+                }
+            }
+        }
+    }
+
+    private void csi(int b)
+    {
+        if (b >= '0' && b <= '9')
+        {
+            if (paramCount < MAX_PARAMS)
+            {
+                params[paramCount] = Math.min(params[paramCount] * 10 + (b - '0'), 65535);
+            }
+            paramStarted = true;
+        }
+        else if (b == ';' || b == ':')
+        {
+            if (paramCount < MAX_PARAMS)
+            {
+                paramCount++;
+            }
+            paramStarted = true;
+        }
+        else if (b >= '<' && b <= '?')
+        {
+            privateMarker = (char) b;
+        }
+        else if (b >= 0x20 && b <= 0x2f)
+        {
+            intermediate = (char) b;
+        }
+        else if (b >= 0x40 && b <= 0x7e)
+        {
+            if (paramStarted && paramCount < MAX_PARAMS)
+            {
+                paramCount++;
+            }
+            state = State.GROUND;
+            dispatchCsi((char) b);
+        }
+        else if (b == 0x1b)
+        {
+            state = State.ESCAPE;
+        }
+        else if (b == 0x18 || b == 0x1a)
+        {
+            state = State.GROUND;
+        }
+        else if (b < 0x20)
+        {
+            control(b);
+        }
+    }
+
+    private void osc(int b)
+    {
+        if (b == 0x07)
+        {
+            state = State.GROUND;
+            finishOsc();
+        }
+        else if (b == 0x1b)
+        {
+            state = State.OSC_ESCAPE;
+        }
+        else if (b == 0x18 || b == 0x1a)
+        {
+            state = State.GROUND;
+        }
+        else if (oscLength < 1024)
+        {
+            if (oscLength == oscBytes.length)
+            {
+                oscBytes = Arrays.copyOf(oscBytes, oscBytes.length * 2);
+            }
+            oscBytes[oscLength++] = (byte) b;
+        }
+    }
+
+    private void finishOsc()
+    {
+        // 只关心窗口标题：OSC 0 / OSC 2
+        String text = new String(oscBytes, 0, oscLength, StandardCharsets.UTF_8);
+        if (text.startsWith("0;") || text.startsWith("2;"))
+        {
+            title = text.substring(2);
+        }
+    }
+
+    private int param(int index, int defaultValue)
+    {
+        return index < paramCount && params[index] != 0 ? params[index] : defaultValue;
+    }
+
+    private void dispatchCsi(char command)
+    {
+        if (privateMarker == '?')
+        {
+            switch (command)
+            {
+                case 'h' -> setPrivateModes(true);
+                case 'l' -> setPrivateModes(false);
+                case 'J' -> eraseInDisplay(param(0, 0));
+                case 'K' -> eraseInLine(param(0, 0));
+                default ->
+                {
+                }
+            }
+            return;
+        }
+        if (privateMarker != 0)
+        {
+            // CSI > / CSI = 开头的都是查询或 xterm 扩展，不影响画面
+            return;
+        }
+        if (intermediate == ' ')
+        {
+            if (command == 'q')
+            {
+                cursorStyle = param(0, 0);
+            }
+            return;
+        }
+        if (intermediate == '!')
+        {
+            if (command == 'p')
+            {
+                softReset();
+            }
+            return;
+        }
+        if (intermediate != 0)
+        {
+            return;
+        }
+        switch (command)
+        {
+            case '@' -> insertChars(param(0, 1));
+            case 'A' -> moveCursor(cursorRow - param(0, 1), cursorCol, true);
+            case 'B', 'e' -> moveCursor(cursorRow + param(0, 1), cursorCol, true);
+            case 'C', 'a' -> moveCursor(cursorRow, cursorCol + param(0, 1), true);
+            case 'D' -> moveCursor(cursorRow, cursorCol - param(0, 1), true);
+            case 'E' -> moveCursor(cursorRow + param(0, 1), 0, true);
+            case 'F' -> moveCursor(cursorRow - param(0, 1), 0, true);
+            case 'G', '`' -> moveCursor(cursorRow, param(0, 1) - 1, true);
+            case 'H', 'f' -> cursorPosition(param(0, 1) - 1, param(1, 1) - 1);
+            case 'd' -> cursorPosition(param(0, 1) - 1, cursorCol);
+            case 'I' -> tab(param(0, 1));
+            case 'Z' -> backTab(param(0, 1));
+            case 'J' -> eraseInDisplay(param(0, 0));
+            case 'K' -> eraseInLine(param(0, 0));
+            case 'L' -> insertLines(param(0, 1));
+            case 'M' -> deleteLines(param(0, 1));
+            case 'P' -> deleteChars(param(0, 1));
+            case 'X' -> eraseChars(param(0, 1));
+            case 'S' -> scrollUp(param(0, 1));
+            case 'T' ->
+            {
+                if (paramCount <= 1)
+                {
+                    scrollDown(param(0, 1));
+                }
+            }
+            case 'b' ->
+            {
+                int n = Math.min(param(0, 1), cols * rows);
+                for (int i = 0; i < n; i++)
+                {
+                    print(lastPrinted);
+                }
+            }
+            case 'm' -> sgr();
+            case 'r' -> setScrollRegion(param(0, 1) - 1, param(1, rows) - 1);
+            case 's' -> saveCursor();
+            case 'u' -> restoreCursor();
+            case 'h' -> setAnsiModes(true);
+            case 'l' -> setAnsiModes(false);
+            default ->
+            {
+            }
+        }
+    }
+
+    private void setPrivateModes(boolean enable)
+    {
+        for (int i = 0; i < paramCount; i++)
+        {
+            int mode = params[i];
+            switch (mode)
+            {
+                case 6 ->
+                {
+                    originMode = enable;
+                    cursorPosition(0, 0);
+                }
+                case 7 -> autoWrap = enable;
+                case 25 -> cursorVisible = enable;
+                case 47, 1047 -> switchScreen(enable, false);
+                case 1048 ->
+                {
+                    if (enable)
+                    {
+                        saveCursor();
+                    }
+                    else
+                    {
+                        restoreCursor();
+                    }
+                }
+                case 1049 -> switchScreen(enable, true);
+                default ->
+                {
+                    if (mode < 10000)
+                    {
+                        privateModes.set(mode, enable);
+                    }
+                }
+            }
+        }
+    }
+
+    private void setAnsiModes(boolean enable)
+    {
+        for (int i = 0; i < paramCount; i++)
+        {
+            if (params[i] == 4)
+            {
+                insertMode = enable;
+            }
+        }
+    }
+
+    private void sgr()
+    {
+        if (paramCount == 0)
+        {
+            attr = 0;
+            return;
+        }
+        for (int i = 0; i < paramCount; i++)
+        {
+            int p = params[i];
+            switch (p)
+            {
+                case 0 -> attr = 0;
+                case 1 -> attr |= BOLD;
+                case 2 -> attr |= DIM;
+                case 3 -> attr |= ITALIC;
+                case 4 -> attr |= UNDERLINE;
+                case 5, 6 -> attr |= BLINK;
+                case 7 -> attr |= INVERSE;
+                case 8 -> attr |= HIDDEN;
+                case 9 -> attr |= STRIKE;
+                case 21, 22 -> attr &= ~(BOLD | DIM);
+                case 23 -> attr &= ~ITALIC;
+                case 24 -> attr &= ~UNDERLINE;
+                case 25 -> attr &= ~BLINK;
+                case 27 -> attr &= ~INVERSE;
+                case 28 -> attr &= ~HIDDEN;
+                case 29 -> attr &= ~STRIKE;
+                case 39 -> attr = withColor(attr, FG_SHIFT, 0);
+                case 49 -> attr = withColor(attr, BG_SHIFT, 0);
+                case 38, 48 ->
+                {
+                    int shift = p == 38 ? FG_SHIFT : BG_SHIFT;
+                    int mode  = i + 1 < paramCount ? params[i + 1] : -1;
+                    if (mode == 5 && i + 2 < paramCount)
+                    {
+                        attr = withColor(attr, shift, COLOR_PALETTE | (params[i + 2] & 0xff));
+                        i += 2;
+                    }
+                    else if (mode == 2 && i + 4 < paramCount)
+                    {
+                        int rgb = (params[i + 2] & 0xff) << 16 | (params[i + 3] & 0xff) << 8 | (params[i + 4] & 0xff);
+                        attr = withColor(attr, shift, COLOR_RGB | rgb);
+                        i += 4;
+                    }
+                    else
+                    {
+                        return;
+                    }
+                }
+                default ->
+                {
+                    if (p >= 30 && p <= 37)
+                    {
+                        attr = withColor(attr, FG_SHIFT, COLOR_PALETTE | (p - 30));
+                    }
+                    else if (p >= 40 && p <= 47)
+                    {
+                        attr = withColor(attr, BG_SHIFT, COLOR_PALETTE | (p - 40));
+                    }
+                    else if (p >= 90 && p <= 97)
+                    {
+                        attr = withColor(attr, FG_SHIFT, COLOR_PALETTE | (p - 90 + 8));
+                    }
+                    else if (p >= 100 && p <= 107)
+                    {
+                        attr = withColor(attr, BG_SHIFT, COLOR_PALETTE | (p - 100 + 8));
+                    }
+                }
+            }
+        }
+    }
+
+    private static long withColor(long attr, int shift, int color)
+    {
+        return (attr & ~(COLOR_MASK << shift)) | ((long) color << shift);
+    }
+
+    // =====================================================================
+    // 画面操作
+    // =====================================================================
+
+    private void print(int codePoint)
+    {
+        if (codePoint < 0x80 && graphicsCharset[shiftOut ? 1 : 0] && codePoint >= 0x60 && codePoint <= 0x7e)
+        {
+            codePoint = DEC_GRAPHICS[codePoint - 0x60];
+        }
+        int width = charWidth(codePoint);
+        if (width == 0)
+        {
+            return;
+        }
+        if (pendingWrap && autoWrap)
+        {
+            lines[cursorRow].wrapped = true;
+            cursorCol = 0;
+            lineFeed();
+        }
+        pendingWrap = false;
+        if (width == 2 && cursorCol == cols - 1)
+        {
+            if (cols < 2)
+            {
+                return;
+            }
+            if (autoWrap)
+            {
+                lines[cursorRow].set(cursorCol, 0, attr & BG_MASK);
+                lines[cursorRow].wrapped = true;
+                cursorCol = 0;
+                lineFeed();
+            }
+            else
+            {
+                cursorCol = cols - 2;
+            }
+        }
+        Line line = lines[cursorRow];
+        if (insertMode)
+        {
+            line.insert(cursorCol, width, attr & BG_MASK);
+        }
+        line.set(cursorCol, codePoint, attr);
+        if (width == 2)
+        {
+            line.set(cursorCol + 1, WIDE_TAIL, attr);
+        }
+        lastPrinted = codePoint;
+        cursorCol += width;
+        if (cursorCol >= cols)
+        {
+            cursorCol = cols - 1;
+            pendingWrap = autoWrap;
+        }
+    }
+
+    private void lineFeed()
+    {
+        pendingWrap = false;
+        if (cursorRow == scrollBottom)
+        {
+            scrollUp(1);
+        }
+        else if (cursorRow < rows - 1)
+        {
+            cursorRow++;
+        }
+    }
+
+    private void reverseIndex()
+    {
+        pendingWrap = false;
+        if (cursorRow == scrollTop)
+        {
+            scrollDown(1);
+        }
+        else if (cursorRow > 0)
+        {
+            cursorRow--;
+        }
+    }
+
+    private void tab(int count)
+    {
+        pendingWrap = false;
+        for (int i = 0; i < count && cursorCol < cols - 1; i++)
+        {
+            cursorCol = Math.min(cols - 1, (cursorCol / 8 + 1) * 8);
+        }
+    }
+
+    private void backTab(int count)
+    {
+        pendingWrap = false;
+        for (int i = 0; i < count && cursorCol > 0; i++)
+        {
+            cursorCol = (cursorCol - 1) / 8 * 8;
+        }
+    }
+
+    private void moveCursor(int row, int col, boolean clampToRegion)
+    {
+        pendingWrap = false;
+        int top    = 0;
+        int bottom = rows - 1;
+        if (clampToRegion && cursorRow >= scrollTop && cursorRow <= scrollBottom)
+        {
+            top = scrollTop;
+            bottom = scrollBottom;
+        }
+        cursorRow = clamp(row, top, bottom);
+        cursorCol = clamp(col, 0, cols - 1);
+    }
+
+    private void cursorPosition(int row, int col)
+    {
+        pendingWrap = false;
+        if (originMode)
+        {
+            cursorRow = clamp(row + scrollTop, scrollTop, scrollBottom);
+        }
+        else
+        {
+            cursorRow = clamp(row, 0, rows - 1);
+        }
+        cursorCol = clamp(col, 0, cols - 1);
+    }
+
+    private void eraseInDisplay(int mode)
+    {
+        long blank = attr & BG_MASK;
+        switch (mode)
+        {
+            case 0 ->
+            {
+                lines[cursorRow].clear(cursorCol, cols, blank);
+                for (int r = cursorRow + 1; r < rows; r++)
+                {
+                    lines[r].clear(0, cols, blank);
+                }
+            }
+            case 1 ->
+            {
+                for (int r = 0; r < cursorRow; r++)
+                {
+                    lines[r].clear(0, cols, blank);
+                }
+                lines[cursorRow].clear(0, cursorCol + 1, blank);
+            }
+            case 2 ->
+            {
+                for (int r = 0; r < rows; r++)
+                {
+                    lines[r].clear(0, cols, blank);
+                }
+            }
+            case 3 -> scrollback.clear();
+            default ->
+            {
+            }
+        }
+        pendingWrap = false;
+    }
+
+    private void eraseInLine(int mode)
+    {
+        long blank = attr & BG_MASK;
+        Line line  = lines[cursorRow];
+        switch (mode)
+        {
+            case 0 -> line.clear(cursorCol, cols, blank);
+            case 1 -> line.clear(0, cursorCol + 1, blank);
+            case 2 -> line.clear(0, cols, blank);
+            default ->
+            {
+            }
+        }
+        pendingWrap = false;
+    }
+
+    private void eraseChars(int count)
+    {
+        lines[cursorRow].clear(cursorCol, Math.min(cols, cursorCol + count), attr & BG_MASK);
+        pendingWrap = false;
+    }
+
+    private void insertChars(int count)
+    {
+        lines[cursorRow].insert(cursorCol, Math.min(count, cols - cursorCol), attr & BG_MASK);
+        pendingWrap = false;
+    }
+
+    private void deleteChars(int count)
+    {
+        lines[cursorRow].delete(cursorCol, Math.min(count, cols - cursorCol), attr & BG_MASK);
+        pendingWrap = false;
+    }
+
+    private void insertLines(int count)
+    {
+        if (cursorRow < scrollTop || cursorRow > scrollBottom)
+        {
+            return;
+        }
+        shiftDown(cursorRow, scrollBottom, count);
+        cursorCol = 0;
+        pendingWrap = false;
+    }
+
+    private void deleteLines(int count)
+    {
+        if (cursorRow < scrollTop || cursorRow > scrollBottom)
+        {
+            return;
+        }
+        shiftUp(cursorRow, scrollBottom, count, false);
+        cursorCol = 0;
+        pendingWrap = false;
+    }
+
+    private void scrollUp(int count)
+    {
+        // 只有主屏在整屏滚动时，滚出顶部的行才进入滚动历史
+        shiftUp(scrollTop, scrollBottom, count, !altActive && scrollTop == 0);
+    }
+
+    private void scrollDown(int count)
+    {
+        shiftDown(scrollTop, scrollBottom, count);
+    }
+
+    private void shiftUp(int top, int bottom, int count, boolean keepHistory)
+    {
+        int  n     = Math.min(count, bottom - top + 1);
+        long blank = attr & BG_MASK;
+        for (int i = 0; i < n; i++)
+        {
+            Line removed = lines[top];
+            if (keepHistory)
+            {
+                pushScrollback(removed);
+            }
+            System.arraycopy(lines, top + 1, lines, top, bottom - top);
+            lines[bottom] = keepHistory ? new Line(cols) : removed;
+            lines[bottom].clear(0, cols, blank);
+            lines[bottom].wrapped = false;
+        }
+    }
+
+    private void shiftDown(int top, int bottom, int count)
+    {
+        int  n     = Math.min(count, bottom - top + 1);
+        long blank = attr & BG_MASK;
+        for (int i = 0; i < n; i++)
+        {
+            Line removed = lines[bottom];
+            System.arraycopy(lines, top, lines, top + 1, bottom - top);
+            lines[top] = removed;
+            removed.clear(0, cols, blank);
+            removed.wrapped = false;
+        }
+    }
+
+    private void pushScrollback(Line line)
+    {
+        if (scrollbackLimit == 0)
+        {
+            return;
+        }
+        if (scrollback.size() == scrollbackLimit)
+        {
+            scrollback.pollFirst();
+        }
+        scrollback.addLast(line);
+    }
+
+    private void setScrollRegion(int top, int bottom)
+    {
+        top = clamp(top, 0, rows - 1);
+        bottom = clamp(bottom, 0, rows - 1);
+        if (top >= bottom)
+        {
+            return;
+        }
+        scrollTop = top;
+        scrollBottom = bottom;
+        cursorPosition(0, 0);
+    }
+
+    private void switchScreen(boolean alt, boolean saveCursor)
+    {
+        if (alt == altActive)
+        {
+            return;
+        }
+        if (alt)
+        {
+            if (saveCursor)
+            {
+                saveCursor();
+            }
+            mainCursorRow = cursorRow;
+            mainCursorCol = cursorCol;
+            altActive = true;
+            lines = altLines;
+            for (Line line : altLines)
+            {
+                line.clear(0, cols, 0);
+                line.wrapped = false;
+            }
+        }
+        else
+        {
+            altActive = false;
+            lines = mainLines;
+            cursorRow = mainCursorRow;
+            cursorCol = mainCursorCol;
+            if (saveCursor)
+            {
+                restoreCursor();
+            }
+        }
+        pendingWrap = false;
+    }
+
+    private void saveCursor()
+    {
+        SavedCursor saved = new SavedCursor(cursorRow, cursorCol, attr, originMode, graphicsCharset[0], graphicsCharset[1], shiftOut);
+        if (altActive)
+        {
+            savedAlt = saved;
+        }
+        else
+        {
+            savedMain = saved;
+        }
+    }
+
+    private void restoreCursor()
+    {
+        SavedCursor saved = altActive ? savedAlt : savedMain;
+        if (saved == null)
+        {
+            cursorRow = 0;
+            cursorCol = 0;
+            pendingWrap = false;
+            return;
+        }
+        cursorRow = clamp(saved.row, 0, rows - 1);
+        cursorCol = clamp(saved.col, 0, cols - 1);
+        attr = saved.attr;
+        originMode = saved.originMode;
+        graphicsCharset[0] = saved.g0Graphics;
+        graphicsCharset[1] = saved.g1Graphics;
+        shiftOut = saved.shiftOut;
+        pendingWrap = false;
+    }
+
+    private void softReset()
+    {
+        attr = 0;
+        autoWrap = true;
+        originMode = false;
+        insertMode = false;
+        cursorVisible = true;
+        appKeypad = false;
+        graphicsCharset[0] = false;
+        graphicsCharset[1] = false;
+        shiftOut = false;
+        scrollTop = 0;
+        scrollBottom = rows - 1;
+        privateModes.clear(1);
+        savedMain = null;
+        savedAlt = null;
+        pendingWrap = false;
+    }
+
+    private void fullReset()
+    {
+        softReset();
+        privateModes.clear();
+        cursorStyle = 0;
+        title = null;
+        scrollback.clear();
+        mainLines = newLines(rows, cols);
+        altLines = newLines(rows, cols);
+        lines = mainLines;
+        altActive = false;
+        cursorRow = 0;
+        cursorCol = 0;
+    }
+
+    // =====================================================================
+    // 工具
+    // =====================================================================
+
+    private static int clamp(int value, int min, int max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static Line[] newLines(int rows, int cols)
+    {
+        Line[] result = new Line[rows];
+        for (int i = 0; i < rows; i++)
+        {
+            result[i] = new Line(cols);
+        }
+        return result;
+    }
+
+    private static Line[] resizeLines(Line[] source, int skip, int newCols, int newRows)
+    {
+        Line[] result = new Line[newRows];
+        for (int i = 0; i < newRows; i++)
+        {
+            int src = i + skip;
+            result[i] = src < source.length ? source[src].resized(newCols) : new Line(newCols);
+        }
+        return result;
+    }
+
+    /**
+     * 字符显示宽度，与 xterm.js 默认的 Unicode 6 宽度表保持一致
+     */
+    static int charWidth(int cp)
+    {
+        if (cp < 0x300)
+        {
+            return 1;
+        }
+        if ((cp >= 0x300 && cp <= 0x36f) || (cp >= 0x200b && cp <= 0x200f) || (cp >= 0xfe00 && cp <= 0xfe0f) || (cp >= 0x20d0 && cp <= 0x20ff))
+        {
+            return 0;
+        }
+        if ((cp >= 0x1100 && cp <= 0x115f)
+                || cp == 0x2329 || cp == 0x232a
+                || (cp >= 0x2e80 && cp <= 0xa4cf && cp != 0x303f)
+                || (cp >= 0xac00 && cp <= 0xd7a3)
+                || (cp >= 0xf900 && cp <= 0xfaff)
+                || (cp >= 0xfe10 && cp <= 0xfe19)
+                || (cp >= 0xfe30 && cp <= 0xfe6f)
+                || (cp >= 0xff00 && cp <= 0xff60)
+                || (cp >= 0xffe0 && cp <= 0xffe6)
+                || (cp >= 0x1f300 && cp <= 0x1f64f)
+                || (cp >= 0x1f900 && cp <= 0x1f9ff)
+                || (cp >= 0x20000 && cp <= 0x2fffd)
+                || (cp >= 0x30000 && cp <= 0x3fffd))
+        {
+            return 2;
+        }
+        return 1;
+    }
+
+    private record SavedCursor(int row, int col, long attr, boolean originMode, boolean g0Graphics, boolean g1Graphics, boolean shiftOut)
+    {
+    }
+
+    /**
+     * 一行单元格：chars 为码点（0 表示空白，{@link #WIDE_TAIL} 表示宽字符右半格），attrs 为属性
+     */
+    private static final class Line
+    {
+        private final int[]   chars;
+        private final long[]  attrs;
+        /** 该行因自动折行延续到下一行 */
+        private       boolean wrapped;
+
+        Line(int cols)
+        {
+            chars = new int[cols];
+            attrs = new long[cols];
+        }
+
+        void set(int col, int ch, long attr)
+        {
+            // 覆盖宽字符的一半时，另一半变成空白
+            if (ch != WIDE_TAIL && chars[col] == WIDE_TAIL && col > 0)
+            {
+                chars[col - 1] = 0;
+            }
+            if (chars[col] > 0 && col + 1 < chars.length && chars[col + 1] == WIDE_TAIL)
+            {
+                chars[col + 1] = 0;
+            }
+            chars[col] = ch;
+            attrs[col] = attr;
+        }
+
+        void clear(int from, int to, long blank)
+        {
+            if (from >= to)
+            {
+                return;
+            }
+            if (chars[from] == WIDE_TAIL && from > 0)
+            {
+                chars[from - 1] = 0;
+            }
+            if (to < chars.length && chars[to] == WIDE_TAIL)
+            {
+                chars[to] = 0;
+            }
+            Arrays.fill(chars, from, to, 0);
+            Arrays.fill(attrs, from, to, blank);
+        }
+
+        void insert(int col, int count, long blank)
+        {
+            int n = Math.min(count, chars.length - col);
+            if (chars[col] == WIDE_TAIL)
+            {
+                chars[col] = 0;
+                if (col > 0)
+                {
+                    chars[col - 1] = 0;
+                }
+            }
+            System.arraycopy(chars, col, chars, col + n, chars.length - col - n);
+            System.arraycopy(attrs, col, attrs, col + n, attrs.length - col - n);
+            Arrays.fill(chars, col, col + n, 0);
+            Arrays.fill(attrs, col, col + n, blank);
+            // 行尾宽字符的右半格被挤出
+            int last = chars.length - 1;
+            if (chars[last] > 0 && charWidth(chars[last]) == 2)
+            {
+                chars[last] = 0;
+            }
+        }
+
+        void delete(int col, int count, long blank)
+        {
+            int n = Math.min(count, chars.length - col);
+            if (chars[col] == WIDE_TAIL && col > 0)
+            {
+                chars[col - 1] = 0;
+            }
+            System.arraycopy(chars, col + n, chars, col, chars.length - col - n);
+            System.arraycopy(attrs, col + n, attrs, col, attrs.length - col - n);
+            Arrays.fill(chars, chars.length - n, chars.length, 0);
+            Arrays.fill(attrs, attrs.length - n, attrs.length, blank);
+            if (chars[col] == WIDE_TAIL)
+            {
+                chars[col] = 0;
+            }
+        }
+
+        Line resized(int newCols)
+        {
+            Line line = new Line(newCols);
+            int  n    = Math.min(newCols, chars.length);
+            System.arraycopy(chars, 0, line.chars, 0, n);
+            System.arraycopy(attrs, 0, line.attrs, 0, n);
+            if (newCols < chars.length && line.chars[n - 1] > 0 && chars[n] == WIDE_TAIL)
+            {
+                // 宽字符的右半格被截掉
+                line.chars[n - 1] = 0;
+            }
+            line.wrapped = wrapped && newCols == chars.length;
+            return line;
+        }
+
+        /**
+         * 需要输出的单元格数：去掉行尾默认属性的空白；keepColored 为 true 时带背景色的空白也保留
+         */
+        int contentEnd(boolean keepColored)
+        {
+            int end = chars.length;
+            while (end > 0 && (chars[end - 1] == 0 || chars[end - 1] == ' ') && (attrs[end - 1] == 0 || !keepColored))
+            {
+                end--;
+            }
+            return end;
+        }
+    }
+
+    /**
+     * 把单元格转换成字符与最少的 SGR 序列
+     */
+    private final class Serializer
+    {
+        private final StringBuilder out;
+        private       long          current;
+
+        Serializer(StringBuilder out)
+        {
+            this.out = out;
+        }
+
+        void line(Line line, boolean full)
+        {
+            int end = full ? line.chars.length : line.contentEnd(true);
+            for (int c = 0; c < end; c++)
+            {
+                int ch = line.chars[c];
+                if (ch == WIDE_TAIL)
+                {
+                    continue;
+                }
+                cell(ch == 0 ? ' ' : ch, line.attrs[c]);
+            }
+        }
+
+        void cell(int ch, long cellAttr)
+        {
+            attr(cellAttr);
+            out.appendCodePoint(ch);
+        }
+
+        void newLine()
+        {
+            // 换行滚屏时浏览器会用当前背景色填充新行，先复位属性
+            resetAttr();
+            out.append("\r\n");
+        }
+
+        void resetAttr()
+        {
+            if (current != 0)
+            {
+                out.append("\u001b[0m");
+                current = 0;
+            }
+        }
+
+        void attr(long target)
+        {
+            if (target == current)
+            {
+                return;
+            }
+            out.append("\u001b[0");
+            int flags = (int) (target & 0xff);
+            appendFlag(flags, BOLD, 1);
+            appendFlag(flags, DIM, 2);
+            appendFlag(flags, ITALIC, 3);
+            appendFlag(flags, UNDERLINE, 4);
+            appendFlag(flags, BLINK, 5);
+            appendFlag(flags, INVERSE, 7);
+            appendFlag(flags, HIDDEN, 8);
+            appendFlag(flags, STRIKE, 9);
+            appendColor((int) ((target >>> FG_SHIFT) & COLOR_MASK), 30, 90, 38);
+            appendColor((int) ((target >>> BG_SHIFT) & COLOR_MASK), 40, 100, 48);
+            out.append('m');
+            current = target;
+        }
+
+        private void appendFlag(int flags, int flag, int code)
+        {
+            if ((flags & flag) != 0)
+            {
+                out.append(';').append(code);
+            }
+        }
+
+        private void appendColor(int color, int base, int brightBase, int extended)
+        {
+            int type  = color & ~0xffffff;
+            int value = color & 0xffffff;
+            if (type == COLOR_PALETTE)
+            {
+                if (value < 8)
+                {
+                    out.append(';').append(base + value);
+                }
+                else if (value < 16)
+                {
+                    out.append(';').append(brightBase + value - 8);
+                }
+                else
+                {
+                    out.append(';').append(extended).append(";5;").append(value);
+                }
+            }
+            else if (type == COLOR_RGB)
+            {
+                out.append(';').append(extended).append(";2;").append(value >> 16).append(';').append((value >> 8) & 0xff).append(';').append(value & 0xff);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package cc.jfire.webcli.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 会话录制的写入端：只追加的内存映射分段文件 + 稀疏时间索引。
+ * <p>
+ * 目录结构：
+ * <ul>
+ *     <li>{@code seg-000000.rec} ...：内存映射的分段文件，顺序写入记录，写满后切换到下一个分段</li>
+ *     <li>{@code index.idx}：文件头（魔数、版本、开始时间）之后是定长的索引项 [时间(微秒), 分段号, 分段内位置]，
+ *     只在会话开始和每个关键帧处写一项，回放时二分查找即可跳到任意时间点附近</li>
+ * </ul>
+ * 每条记录的布局为 [记录总长度 int][相对开始时间的微秒数 long][类型 byte][输出流偏移量 long][数据]，
+ * 总长度为 0 表示分段结束。
+ * <p>
+ * 记录先编码进批量缓冲区，满了或定时 {@link #flush()} 时才整体复制进映射区域。线程安全。
+ */
+public class RecordingWriter implements Closeable
+{
+    public static final byte OUTPUT   = 1;
+    public static final byte INPUT    = 2;
+    public static final byte RESIZE   = 3;
+    /** 定期写入的画面快照，回放时可以从这里开始而不必从头解析 */
+    public static final byte KEYFRAME = 4;
+    /** 订阅积压超限后收到的快照：之前的输出有缺口，顺序回放时也必须应用 */
+    public static final byte RESYNC   = 5;
+
+    static final int    RECORD_HEADER = 4 + 8 + 1 + 8;
+    static final int    INDEX_MAGIC   = 0x57435249;
+    static final int    INDEX_VERSION = 1;
+    static final int    INDEX_HEADER  = 16;
+    static final int    INDEX_ENTRY   = 16;
+    static final String INDEX_FILE    = "index.idx";
+
+    private final Path        dir;
+    private final int         segmentSize;
+    private final long        startNanos;
+    private final ByteBuffer  batch;
+    private final FileChannel indexChannel;
+    private final ByteBuffer  indexEntry = ByteBuffer.allocate(INDEX_ENTRY);
+    private       FileChannel segmentChannel;
+    private       MappedByteBuffer segment;
+    private       int         segmentIndex = -1;
+    private       boolean     closed;
+
+    public RecordingWriter(Path dir, int segmentSize, int batchSize) throws IOException
+    {
+        this.dir = dir;
+        this.segmentSize = Math.max(segmentSize, batchSize + RECORD_HEADER);
+        this.startNanos = System.nanoTime();
+        this.batch = ByteBuffer.allocate(batchSize);
+        Files.createDirectories(dir);
+        this.indexChannel = FileChannel.open(dir.resolve(INDEX_FILE), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+        header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(System.currentTimeMillis()).flip();
+        writeFully(indexChannel, header);
+        openSegment(this.segmentSize);
+        // 会话开头作为第一个索引点，早于首个关键帧的时间从这里开始回放
+        writeIndex(0);
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param streamOffset 输出类记录在 PTY 输出流中的偏移量，其余记录为 -1
+     */
+    public synchronized void append(byte type, long streamOffset, ByteBuffer data) throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        int  length = RECORD_HEADER + data.remaining();
+        long micros = micros();
+        if (length > batch.capacity())
+        {
+            // 超过批量缓冲区的大记录直接写入映射区域
+            flush();
+            ensureSegmentSpace(length);
+            putRecord(segment, length, micros, type, streamOffset, data);
+            return;
+        }
+        if (length > batch.remaining())
+        {
+            flush();
+        }
+        putRecord(batch, length, micros, type, streamOffset, data);
+    }
+
+    /**
+     * 追加一条快照类记录（关键帧或重新同步），并在它之前的 preamble 记录处写入索引点
+     *
+     * @param preamble 回放快照前需要先应用的记录（如当前终端尺寸），可以为 null
+     */
+    public synchronized void appendSnapshot(byte type, long streamOffset, ByteBuffer data, byte preambleType, ByteBuffer preamble) throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        flush();
+        int length = RECORD_HEADER + data.remaining() + (preamble != null ? RECORD_HEADER + preamble.remaining() : 0);
+        ensureSegmentSpace(length);
+        long micros = micros();
+        writeIndex(micros);
+        if (preamble != null)
+        {
+            putRecord(segment, RECORD_HEADER + preamble.remaining(), micros, preambleType, -1, preamble);
+        }
+        putRecord(segment, RECORD_HEADER + data.remaining(), micros, type, streamOffset, data);
+    }
+
+    /**
+     * 把批量缓冲区中的记录写入映射区域
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (closed || batch.position() == 0)
+        {
+            return;
+        }
+        batch.flip();
+        ensureSegmentSpace(batch.remaining());
+        segment.put(batch);
+        batch.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        flush();
+        closed = true;
+        closeSegment();
+        indexChannel.close();
+    }
+
+    private long micros()
+    {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    private void ensureSegmentSpace(int length) throws IOException
+    {
+        if (segment.remaining() < length)
+        {
+            closeSegment();
+            openSegment(Math.max(segmentSize, length));
+        }
+    }
+
+    private void openSegment(int size) throws IOException
+    {
+        segmentIndex++;
+        segmentChannel = FileChannel.open(segmentPath(dir, segmentIndex), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void closeSegment() throws IOException
+    {
+        int used = segment.position();
+        segment.force();
+        // 截掉未使用的映射区域
+        segmentChannel.truncate(used);
+        segmentChannel.close();
+    }
+
+    private void writeIndex(long micros) throws IOException
+    {
+        indexEntry.clear();
+        indexEntry.putLong(micros).putInt(segmentIndex).putInt(segment.position()).flip();
+        writeFully(indexChannel, indexEntry);
+    }
+
+    private static void putRecord(ByteBuffer target, int length, long micros, byte type, long streamOffset, ByteBuffer data)
+    {
+        target.putInt(length).putLong(micros).put(type).putLong(streamOffset).put(data);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    static Path segmentPath(Path dir, int index)
+    {
+        return dir.resolve(String.format("seg-%06d.rec", index));
+    }
+}
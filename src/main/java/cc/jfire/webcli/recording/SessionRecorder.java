@@ -0,0 +1,192 @@
+package cc.jfire.webcli.recording;
+
+import cc.jfire.webcli.pty.OverflowPolicy;
+import cc.jfire.webcli.pty.PtyInputListener;
+import cc.jfire.webcli.pty.PtyInstance;
+import cc.jfire.webcli.pty.PtyOutputListener;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把单个终端的输出、输入和尺寸变化录制到 {@link RecordingWriter}。
+ * <p>
+ * 输出通过普通的订阅者队列在投递线程上到达，输入在写入线程上到达，都只编码进批量缓冲区；
+ * 定时任务负责把批量缓冲区刷入映射文件，并按固定间隔写入画面关键帧供回放时定位。
+ * PTY 读线程不参与任何录制工作。
+ */
+@Slf4j
+public class SessionRecorder implements PtyOutputListener, PtyInputListener
+{
+    private final    PtyInstance        pty;
+    private final    RecordingWriter    writer;
+    private final    ScheduledFuture<?> flushTask;
+    private final    ScheduledFuture<?> keyframeTask;
+    private volatile int                cols;
+    private volatile int                rows;
+    /** 上一个关键帧对应的输出流位置，没有新输出时不重复写关键帧 */
+    private          long               lastKeyframeOffset = -1;
+    private volatile boolean            closed;
+
+    private SessionRecorder(PtyInstance pty, RecordingWriter writer, int cols, int rows, ScheduledExecutorService scheduler, int flushMillis, int keyframeSeconds)
+    {
+        this.pty = pty;
+        this.writer = writer;
+        this.cols = cols;
+        this.rows = rows;
+        this.flushTask = scheduler.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        this.keyframeTask = scheduler.scheduleWithFixedDelay(this::keyframe, keyframeSeconds, keyframeSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 开始录制，录制文件写入 baseDir/ptyId 目录
+     */
+    public static SessionRecorder start(PtyInstance pty, Path baseDir, int cols, int rows, int segmentSize, ScheduledExecutorService scheduler, int flushMillis, int keyframeSeconds) throws IOException
+    {
+        RecordingWriter writer   = new RecordingWriter(baseDir.resolve(pty.getId()), segmentSize, 64 * 1024);
+        SessionRecorder recorder = new SessionRecorder(pty, writer, cols, rows, scheduler, Math.max(1, flushMillis), Math.max(1, keyframeSeconds));
+        writer.append(RecordingWriter.RESIZE, -1, sizeRecord(cols, rows));
+        // 录制不能悄悄丢数据：积压时以快照的形式记录缺口
+        pty.addOutputListener(recorder, OverflowPolicy.RESYNC);
+        pty.addInputListener(recorder);
+        log.info("开始录制终端 {}", pty.getId());
+        return recorder;
+    }
+
+    @Override
+    public void onOutput(ByteBuffer data, long offset)
+    {
+        append(RecordingWriter.OUTPUT, offset, data);
+    }
+
+    @Override
+    public void onResync(ByteBuffer snapshot, long offset)
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            writer.appendSnapshot(RecordingWriter.RESYNC, offset, snapshot, RecordingWriter.RESIZE, sizeRecord(cols, rows));
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    @Override
+    public boolean isViewer()
+    {
+        return false;
+    }
+
+    @Override
+    public void onInput(byte[] data)
+    {
+        append(RecordingWriter.INPUT, -1, ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void onResize(int cols, int rows)
+    {
+        this.cols = cols;
+        this.rows = rows;
+        append(RecordingWriter.RESIZE, -1, sizeRecord(cols, rows));
+    }
+
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        flushTask.cancel(false);
+        keyframeTask.cancel(false);
+        pty.removeOutputListener(this);
+        pty.removeInputListener(this);
+        try
+        {
+            writer.close();
+            log.info("终端 {} 录制结束", pty.getId());
+        }
+        catch (IOException e)
+        {
+            log.error("关闭终端 {} 的录制文件失败", pty.getId(), e);
+        }
+    }
+
+    private void append(byte type, long offset, ByteBuffer data)
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            writer.append(type, offset, data);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void flush()
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            writer.flush();
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void keyframe()
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            // 先比较输出位置，没有新输出时不取快照，也不会唤醒休眠的终端
+            if (pty.getOutputEnd() == lastKeyframeOffset)
+            {
+                return;
+            }
+            // 快照之后的输出记录按 offset 丢弃与快照重叠的部分即可，不需要与输出流严格对齐
+            PtyInstance.OutputSnapshot snapshot = pty.snapshotOutput();
+            lastKeyframeOffset = snapshot.endOffset();
+            writer.appendSnapshot(RecordingWriter.KEYFRAME, snapshot.endOffset(), ByteBuffer.wrap(snapshot.data()), RecordingWriter.RESIZE, sizeRecord(cols, rows));
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e)
+    {
+        log.error("终端 {} 录制失败，停止录制", pty.getId(), e);
+        close();
+    }
+
+    private static ByteBuffer sizeRecord(int cols, int rows)
+    {
+        return ByteBuffer.allocate(8).putInt(cols).putInt(rows).flip();
+    }
+}
@@ -0,0 +1,148 @@
+package cc.jfire.webcli.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * 会话录制的读取端。通过稀疏时间索引定位到目标时间之前最近的关键帧，
+ * 只顺序读取从那里开始的记录，不需要扫描整个会话。
+ */
+public class SessionRecording
+{
+    private final Path   dir;
+    private final long   startEpochMillis;
+    private final long[] indexMicros;
+    private final int[]  indexSegments;
+    private final int[]  indexPositions;
+
+    private SessionRecording(Path dir, long startEpochMillis, long[] indexMicros, int[] indexSegments, int[] indexPositions)
+    {
+        this.dir = dir;
+        this.startEpochMillis = startEpochMillis;
+        this.indexMicros = indexMicros;
+        this.indexSegments = indexSegments;
+        this.indexPositions = indexPositions;
+    }
+
+    public static SessionRecording open(Path dir) throws IOException
+    {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(RecordingWriter.INDEX_FILE)));
+        if (data.remaining() < RecordingWriter.INDEX_HEADER || data.getInt() != RecordingWriter.INDEX_MAGIC)
+        {
+            throw new IOException("不是有效的会话录制: " + dir);
+        }
+        int version = data.getInt();
+        if (version != RecordingWriter.INDEX_VERSION)
+        {
+            throw new IOException("不支持的录制版本: " + version);
+        }
+        long   start     = data.getLong();
+        int    count     = data.remaining() / RecordingWriter.INDEX_ENTRY;
+        long[] micros    = new long[count];
+        int[]  segments  = new int[count];
+        int[]  positions = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            micros[i] = data.getLong();
+            segments[i] = data.getInt();
+            positions[i] = data.getInt();
+        }
+        return new SessionRecording(dir, start, micros, segments, positions);
+    }
+
+    public long getStartEpochMillis()
+    {
+        return startEpochMillis;
+    }
+
+    public int getIndexSize()
+    {
+        return indexMicros.length;
+    }
+
+    /**
+     * 回放 [fromMicros, toMicros] 区间。
+     * <p>
+     * 从 fromMicros 之前最近的索引点（关键帧）开始交给 visitor，因此最先收到的可能是早于 fromMicros 的
+     * 尺寸与快照记录：展示端先应用快照、再应用其后的输出即可得到目标时刻的画面。
+     * 快照之后的输出记录可能与快照重叠，应按 {@link Record#streamOffset()} 丢弃快照已包含的部分。
+     */
+    public void replay(long fromMicros, long toMicros, Consumer<Record> visitor) throws IOException
+    {
+        int entry = floorIndex(fromMicros);
+        if (entry < 0)
+        {
+            return;
+        }
+        int segmentIndex = indexSegments[entry];
+        int position     = indexPositions[entry];
+        while (Files.exists(RecordingWriter.segmentPath(dir, segmentIndex)))
+        {
+            try (FileChannel channel = FileChannel.open(RecordingWriter.segmentPath(dir, segmentIndex), StandardOpenOption.READ))
+            {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                segment.position(position);
+                while (segment.remaining() >= RecordingWriter.RECORD_HEADER)
+                {
+                    int length = segment.getInt();
+                    if (length < RecordingWriter.RECORD_HEADER || length - 4 > segment.remaining())
+                    {
+                        // 分段结束（未写满的映射区域为 0）或进程异常退出留下的残缺记录
+                        break;
+                    }
+                    long   micros       = segment.getLong();
+                    byte   type         = segment.get();
+                    long   streamOffset = segment.getLong();
+                    byte[] data         = new byte[length - RecordingWriter.RECORD_HEADER];
+                    segment.get(data);
+                    if (micros > toMicros)
+                    {
+                        return;
+                    }
+                    visitor.accept(new Record(type, micros, streamOffset, data));
+                }
+            }
+            segmentIndex++;
+            position = 0;
+        }
+    }
+
+    /**
+     * 时间不晚于 micros 的最后一个索引项
+     */
+    private int floorIndex(long micros)
+    {
+        int low   = 0;
+        int high  = indexMicros.length - 1;
+        int found = indexMicros.length > 0 ? 0 : -1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (indexMicros[mid] <= micros)
+            {
+                found = mid;
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param type         记录类型，见 {@link RecordingWriter} 中的常量
+     * @param timeMicros   相对会话开始的微秒数
+     * @param streamOffset 输出类记录在 PTY 输出流中的偏移量（快照为其对应的输出流末尾），其余为 -1
+     */
+    public record Record(byte type, long timeMicros, long streamOffset, byte[] data)
+    {
+    }
+}
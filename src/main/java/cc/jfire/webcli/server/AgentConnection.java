@@ -0,0 +1,63 @@
+package cc.jfire.webcli.server;
+
+import cc.jfire.webcli.protocol.CompressionStats;
+import cc.jfire.webcli.protocol.TcpMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Server 到某个 Agent 的连接。
+ * <p>
+ * 远端 Agent 通过 TCP 隧道接入，对应 {@link ServerTcpHandler}；All 模式下本进程的终端通过 {@link LocalAgentConnection} 直接接入，
+ * 不经过序列化和加密。终端输出、列表变化和可见性变化都通过 {@link AgentManager} 回到 Server。
+ */
+public interface AgentConnection
+{
+    boolean isAuthenticated();
+
+    /**
+     * 该连接上的终端输出是否压缩
+     */
+    boolean isCompression();
+
+    /**
+     * 该连接输出压缩的累计字节数
+     */
+    CompressionStats getCompressionStats();
+
+    /**
+     * @param data 原始输入字节
+     */
+    void sendPtyInput(String ptyId, byte[] data);
+
+    /**
+     * @param sealed 浏览器用端到端密钥加密的输入，原样转发给 Agent
+     */
+    void sendPtySealedInput(String ptyId, byte[] sealed);
+
+    void sendPtyResize(String ptyId, int cols, int rows);
+
+    void sendPtyClose(String ptyId);
+
+    default void sendPtyAttach(String ptyId)
+    {
+        sendPtyAttach(ptyId, null);
+    }
+
+    /**
+     * @param since 不为 null 时请求从该输出流偏移量恢复，只用于重连后的恢复
+     */
+    void sendPtyAttach(String ptyId, Long since);
+
+    void sendPtyDetach(String ptyId);
+
+    /**
+     * @return 结果的 data 为 "OK" 时 ptyId 和 name 为新终端的信息，否则为错误描述
+     */
+    CompletableFuture<TcpMessage> sendPtyCreate(String name, Integer cols, Integer rows);
+
+    /**
+     * @return 结果的 data 为 "OK" 时 name 为新名称，否则为错误描述
+     */
+    CompletableFuture<TcpMessage> sendPtyRename(String ptyId, String newName);
+}
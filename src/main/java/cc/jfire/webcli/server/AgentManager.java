@@ -4,6 +4,7 @@ import cc.jfire.baseutil.Resource;
 import cc.jfire.baseutil.reflect.TypeUtil;
 import cc.jfire.dson.Dson;
 import cc.jfire.webcli.protocol.PtyInfo;
+import cc.jfire.webcli.web.dto.PtyListChanges;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
@@ -16,50 +17,81 @@ import java.util.function.BiConsumer;
 @Resource
 public class AgentManager
 {
-    private final Map<String, ServerTcpHandler>                                                   agents                      = new ConcurrentHashMap<>();
-    private final Map<String, List<PtyInfo>>                                                      agentPtyLists               = new ConcurrentHashMap<>();
-    private final Map<String, ConcurrentHashMap<String, BiConsumer<String, String>>>             ptyOutputListeners          = new ConcurrentHashMap<>();
+    private final Map<String, AgentConnection>                                                   agents                      = new ConcurrentHashMap<>();
+    // 所有 Agent 的远端可见终端，由 Agent 推送的列表和增量维护
+    private final PtyIndex                                                                       ptyIndex                    = new PtyIndex();
+    private final Map<String, ConcurrentHashMap<String, RemotePtyOutputListener>>                ptyOutputListeners          = new ConcurrentHashMap<>();
     private final Map<String, ConcurrentHashMap<String, BiConsumer<String, String>>>             visibilityDisabledCallbacks = new ConcurrentHashMap<>();
     // 记录每个 Agent 当前被 attach 的 ptyId 及其引用计数（不含 agentId 前缀）
     private final Map<String, ConcurrentHashMap<String, Integer>>                                agentAttachedPtys           = new ConcurrentHashMap<>();
+    // Agent 断线时各终端已转发到的输出流偏移量，重连后据此只补发缺口（不含 agentId 前缀）
+    private final Map<String, ConcurrentHashMap<String, Long>>                                   resumeOffsets               = new ConcurrentHashMap<>();
 
     /**
      * 尝试注册 Agent（同名不覆盖）。
      *
      * @return true 表示注册成功；false 表示 agentId 已存在
      */
-    public boolean tryRegisterAgent(String agentId, ServerTcpHandler handler)
+    public boolean tryRegisterAgent(String agentId, AgentConnection handler)
     {
-        ServerTcpHandler existing = agents.putIfAbsent(agentId, handler);
+        AgentConnection existing = agents.putIfAbsent(agentId, handler);
         if (existing != null)
         {
             return false;
         }
         log.info("Agent 已注册: {}", agentId);
-        // 检查是否有之前 attach 的终端需要重新 attach
-        reattachPtysForAgent(agentId, handler);
         return true;
     }
 
-    private void reattachPtysForAgent(String agentId, ServerTcpHandler handler)
+    /**
+     * 重新 attach Agent 断线前已 attach 的终端。必须在 AUTH_RESULT 发出之后调用，
+     * 否则加密的 PTY_ATTACH 会先于明文的认证结果到达 Agent
+     */
+    public void reattachPtysForAgent(String agentId, AgentConnection handler)
     {
         ConcurrentHashMap<String, Integer> attachedPtys = agentAttachedPtys.get(agentId);
         if (attachedPtys != null && !attachedPtys.isEmpty())
         {
-            List<String> ptyIds = new ArrayList<>(attachedPtys.keySet());
+            List<String>      ptyIds  = new ArrayList<>(attachedPtys.keySet());
+            Map<String, Long> offsets = resumeOffsets.remove(agentId);
             log.info("Agent {} 重连，重新 attach {} 个终端", agentId, ptyIds.size());
             for (String ptyId : ptyIds)
             {
-                handler.sendPtyAttach(ptyId);
-                log.debug("重新发送 PTY_ATTACH: {}", ptyId);
+                Long since = offsets != null ? offsets.get(ptyId) : null;
+                handler.sendPtyAttach(ptyId, since);
+                log.debug("重新发送 PTY_ATTACH: {}，恢复位置: {}", ptyId, since);
             }
         }
+        else
+        {
+            resumeOffsets.remove(agentId);
+        }
+    }
+
+    /**
+     * Agent 断线时保存各终端已转发到的位置，只保留仍有浏览器 attach 的终端
+     */
+    public void saveResumeOffsets(String agentId, Map<String, Long> offsets)
+    {
+        ConcurrentHashMap<String, Integer> attachedPtys = agentAttachedPtys.get(agentId);
+        if (attachedPtys == null || offsets.isEmpty())
+        {
+            return;
+        }
+        ConcurrentHashMap<String, Long> saved = new ConcurrentHashMap<>();
+        offsets.forEach((ptyId, offset) -> {
+            if (attachedPtys.containsKey(ptyId))
+            {
+                saved.put(ptyId, offset);
+            }
+        });
+        resumeOffsets.put(agentId, saved);
     }
 
     public void unregisterAgent(String agentId)
     {
         agents.remove(agentId);
-        agentPtyLists.remove(agentId);
+        ptyIndex.removeAgent(agentId);
         log.info("Agent 已注销: {}", agentId);
     }
 
@@ -70,7 +102,7 @@ public class AgentManager
             List<PtyInfo> list = Dson.fromString(new TypeUtil<List<PtyInfo>>()
             {
             }.getType(), ptyListJson);
-            agentPtyLists.put(agentId, list);
+            replacePtyList(agentId, list);
         }
         catch (Exception e)
         {
@@ -78,51 +110,107 @@ public class AgentManager
         }
     }
 
+    /**
+     * 用 Agent 的完整终端列表替换索引中该 Agent 的条目
+     *
+     * @param ptys 不带 agentId 前缀的终端列表
+     */
+    public void replacePtyList(String agentId, List<PtyInfo> ptys)
+    {
+        ptyIndex.replaceAgent(agentId, ptys);
+    }
+
+    /**
+     * 所有远端可见终端，ID 带 agentId 前缀
+     */
     public List<PtyInfo> getAllRemotePtys()
     {
-        List<PtyInfo> result = new ArrayList<>();
-        for (Map.Entry<String, List<PtyInfo>> entry : agentPtyLists.entrySet())
+        return ptyIndex.list();
+    }
+
+    /**
+     * 远端终端列表自 since 版本以来的变化
+     */
+    public PtyListChanges getPtyChanges(long since)
+    {
+        return ptyIndex.changesSince(since);
+    }
+
+    /**
+     * Agent 推送的单个终端增量
+     *
+     * @param listed false 表示终端已关闭、已退出或不再远端可见，从列表中移除
+     */
+    public void applyPtyDelta(String agentId, String ptyId, String name, boolean listed)
+    {
+        if (listed)
         {
-            String agentId = entry.getKey();
-            for (PtyInfo pty : entry.getValue())
-            {
-                // 创建新的 PtyInfo，ID 前缀加上 agentId
-                PtyInfo remotePty = new PtyInfo(agentId + ":" + pty.getId(), pty.getName(), pty.isAlive(), pty.isRemoteViewable(), pty.isRemoteCreated());
-                result.add(remotePty);
-            }
+            ptyIndex.upsert(agentId, new PtyInfo(ptyId, name, true, true));
+        }
+        else
+        {
+            ptyIndex.remove(agentId, ptyId);
         }
-        return result;
     }
 
-    public void refreshAllPtyLists()
+    /**
+     * 把终端输出交给该终端的各浏览器连接。fullPtyId 由调用方在 attach 时算好，转发路径上不再拼接字符串
+     *
+     * @param fullPtyId 带 agentId 前缀的终端 ID
+     * @param resync    data 是否为 Agent 丢弃积压后发送的全量快照
+     */
+    public void forwardPtyOutput(String fullPtyId, byte[] data, boolean resync)
     {
-        for (ServerTcpHandler handler : agents.values())
+        ConcurrentHashMap<String, RemotePtyOutputListener> listeners = ptyOutputListeners.get(fullPtyId);
+        if (listeners != null)
         {
-            if (handler.isAuthenticated())
-            {
-                handler.requestPtyList();
-            }
+            listeners.values().forEach(listener -> listener.onOutput(fullPtyId, data, resync));
         }
     }
 
-    public void forwardPtyOutput(String agentId, String ptyId, String data)
+    /**
+     * 端到端加密的输出，Server 无法解密，原样交给各浏览器连接
+     *
+     * @param end 这一帧末尾在输出流中的偏移量，是密文附加数据的一部分
+     */
+    public void forwardSealedOutput(String fullPtyId, byte[] sealed, boolean resync, long end)
     {
-        String fullPtyId = agentId + ":" + ptyId;
-        ConcurrentHashMap<String, BiConsumer<String, String>> listeners = ptyOutputListeners.get(fullPtyId);
+        ConcurrentHashMap<String, RemotePtyOutputListener> listeners = ptyOutputListeners.get(fullPtyId);
+        if (listeners != null)
+        {
+            listeners.values().forEach(listener -> listener.onSealedOutput(fullPtyId, sealed, resync, end));
+        }
+    }
+
+    /**
+     * 检查终端的各浏览器连接是否都已把输出写出到阈值以下。
+     * 有连接积压时返回 false，并在它排空后执行 onDrained；多个连接积压时只等待其中一个，onDrained 应再次调用本方法检查其余连接
+     */
+    public boolean awaitViewersDrained(String fullPtyId, Runnable onDrained)
+    {
+        ConcurrentHashMap<String, RemotePtyOutputListener> listeners = ptyOutputListeners.get(fullPtyId);
         if (listeners != null)
         {
-            listeners.values().forEach(listener -> listener.accept(fullPtyId, data));
+            for (RemotePtyOutputListener listener : listeners.values())
+            {
+                WsBacklog backlog = listener.backlog();
+                if (backlog != null && backlog.isCongested() && backlog.whenDrained(onDrained))
+                {
+                    return false;
+                }
+            }
         }
+        return true;
     }
 
-    public void registerPtyOutputListener(String fullPtyId, String listenerId, BiConsumer<String, String> listener)
+    public void registerPtyOutputListener(String fullPtyId, String listenerId, RemotePtyOutputListener listener)
     {
         ptyOutputListeners.computeIfAbsent(fullPtyId, k -> new ConcurrentHashMap<>()).put(listenerId, listener);
     }
 
     public void unregisterPtyOutputListener(String fullPtyId, String listenerId)
     {
-        ConcurrentHashMap<String, BiConsumer<String, String>> listeners = ptyOutputListeners.get(fullPtyId);
+        ConcurrentHashMap<String, RemotePtyOutputListener> listeners = ptyOutputListeners.get(fullPtyId);
         if (listeners != null)
         {
             listeners.remove(listenerId);
@@ -174,6 +262,10 @@ public class AgentManager
                 agentAttachedPtys.remove(agentId);
             }
             boolean detached = !ptys.containsKey(ptyId);
+            if (detached)
+            {
+                forgetResumeOffset(agentId, ptyId);
+            }
             log.debug("移除 PTY attach 记录: agentId={}, ptyId={}, detached={}", agentId, ptyId, detached);
             return detached;
         }
@@ -196,12 +288,23 @@ public class AgentManager
         {
             agentAttachedPtys.remove(agentId);
         }
+        forgetResumeOffset(agentId, ptyId);
         log.debug("清空 PTY attach 记录: agentId={}, ptyId={}", agentId, ptyId);
     }
 
+    private void forgetResumeOffset(String agentId, String ptyId)
+    {
+        ConcurrentHashMap<String, Long> offsets = resumeOffsets.get(agentId);
+        if (offsets != null)
+        {
+            offsets.remove(ptyId);
+        }
+    }
+
     public void handlePtyVisibilityDisabled(String agentId, String ptyId)
     {
         String fullPtyId = agentId + ":" + ptyId;
+        ptyIndex.remove(agentId, ptyId);
         // 移除输出监听器
         ptyOutputListeners.remove(fullPtyId);
         // 清空 attach 计数，避免后续重连误恢复
@@ -242,7 +345,7 @@ public class AgentManager
         visibilityDisabledCallbacks.remove(fullPtyId);
     }
 
-    public ServerTcpHandler getAgentHandler(String agentId)
+    public AgentConnection getAgentHandler(String agentId)
     {
         return agents.get(agentId);
     }
@@ -269,42 +372,11 @@ public class AgentManager
 
     public void upsertPty(String agentId, String ptyId, String name, boolean alive, boolean remoteViewable, boolean remoteCreated)
     {
-        agentPtyLists.compute(agentId, (k, oldList) -> {
-            List<PtyInfo> list = oldList != null ? new ArrayList<>(oldList) : new ArrayList<>();
-            boolean found = false;
-            for (int i = 0; i < list.size(); i++)
-            {
-                PtyInfo existing = list.get(i);
-                if (existing != null && ptyId.equals(existing.getId()))
-                {
-                    existing.setName(name);
-                    existing.setAlive(alive);
-                    existing.setRemoteViewable(remoteViewable);
-                    existing.setRemoteCreated(remoteCreated);
-                    found = true;
-                    break;
-                }
-            }
-            if (!found)
-            {
-                list.add(new PtyInfo(ptyId, name, alive, remoteViewable, remoteCreated));
-            }
-            return list;
-        });
+        ptyIndex.upsert(agentId, new PtyInfo(ptyId, name, alive, remoteViewable, remoteCreated));
     }
 
     public void updatePtyName(String agentId, String ptyId, String name)
     {
-        agentPtyLists.computeIfPresent(agentId, (k, oldList) -> {
-            List<PtyInfo> list = new ArrayList<>(oldList);
-            for (PtyInfo pty : list)
-            {
-                if (pty != null && ptyId.equals(pty.getId()))
-                {
-                    pty.setName(name);
-                }
-            }
-            return list;
-        });
+        ptyIndex.rename(agentId, ptyId, name);
     }
 }
@@ -0,0 +1,81 @@
+package cc.jfire.webcli.server;
+
+import cc.jfire.baseutil.PostConstruct;
+import cc.jfire.baseutil.Resource;
+import cc.jfire.webcli.config.WebCliConfig;
+import cc.jfire.webcli.crypto.SessionTickets;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Agent 握手的准入控制。
+ * <p>
+ * 完整握手的 X25519 运算交给固定数量的握手线程执行，不占用与浏览器连接共享的 IO 线程；
+ * 排队的握手达到上限时直接拒绝，Agent 收到 BUSY 后按退避时间重连。Server 重启后大量 Agent 同时重连时，
+ * 握手被限制在握手线程上排队，已连接浏览器的读写不受影响。
+ * <p>
+ * 持有会话票据的 Agent 走一次往返的恢复流程，只有几次对称运算，不经过握手线程。
+ */
+@Resource
+@Slf4j
+public class HandshakeGate
+{
+    @Resource
+    private WebCliConfig       config;
+    private ThreadPoolExecutor executor;
+    private SessionTickets     tickets;
+
+    @PostConstruct
+    public void init()
+    {
+        int           threads = Math.max(1, config.getTunnelHandshakeThreads());
+        AtomicInteger index   = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, config.getTunnelHandshakeQueue())), runnable -> {
+            Thread thread = new Thread(runnable, "agent-handshake-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        // 只有 Server 模式会用到，空闲时不保留线程
+        executor.allowCoreThreadTimeOut(true);
+        if (config.getTunnelTicketMinutes() > 0)
+        {
+            try
+            {
+                tickets = new SessionTickets(SessionTickets.deriveKey(config.getToken()), TimeUnit.MINUTES.toMillis(config.getTunnelTicketMinutes()));
+            }
+            catch (Exception e)
+            {
+                log.error("初始化会话票据失败，Agent 重连将只使用完整握手", e);
+            }
+        }
+    }
+
+    /**
+     * 提交一次完整握手，排队已满时返回 false
+     */
+    public boolean submit(Runnable handshake)
+    {
+        try
+        {
+            executor.execute(handshake);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * 会话票据，未启用时为 null
+     */
+    public SessionTickets getTickets()
+    {
+        return tickets;
+    }
+}
@@ -0,0 +1,340 @@
+package cc.jfire.webcli.server;
+
+import cc.jfire.webcli.protocol.CompressionStats;
+import cc.jfire.webcli.protocol.PtyInfo;
+import cc.jfire.webcli.protocol.TcpMessage;
+import cc.jfire.webcli.protocol.TcpMessageType;
+import cc.jfire.webcli.pty.OverflowPolicy;
+import cc.jfire.webcli.pty.PtyInstance;
+import cc.jfire.webcli.pty.PtyManager;
+import cc.jfire.webcli.pty.PtyOutputListener;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * All 模式下本进程终端的进程内连接。
+ * <p>
+ * 本地 PtyManager 以一个 agentId 直接注册到 AgentManager，浏览器的输入、attach 等请求直接调用 PtyManager，
+ * 终端输出、列表变化和可见性变化直接回调 AgentManager，不经过 TCP、序列化和加密，
+ * 远端页面上本机终端的延迟和 CPU 开销与本地模式相同。
+ * <p>
+ * 与 AgentTcpClient 一样只暴露开启了远端可见的终端，远端新建受本地开关控制。
+ */
+@Slf4j
+public class LocalAgentConnection implements AgentConnection
+{
+    private final    String                                   agentId;
+    private final    PtyManager                               ptyManager;
+    private final    AgentManager                             agentManager;
+    private final    CompressionStats                         compressionStats    = new CompressionStats();
+    private final    Map<String, PtyOutputListener>           outputListeners     = new ConcurrentHashMap<>();
+    private final    Map<String, BiConsumer<String, Boolean>> visibilityListeners = new ConcurrentHashMap<>();
+    private final    Map<String, Consumer<PtyInstance>>       infoListeners       = new ConcurrentHashMap<>();
+    private volatile boolean                                  started;
+
+    public LocalAgentConnection(String agentId, PtyManager ptyManager, AgentManager agentManager)
+    {
+        this.agentId = agentId;
+        this.ptyManager = ptyManager;
+        this.agentManager = agentManager;
+    }
+
+    /**
+     * 注册到 AgentManager 并同步当前的远端可见终端
+     *
+     * @return false 表示 agentId 已被其他 Agent 占用
+     */
+    public boolean start()
+    {
+        if (!agentManager.tryRegisterAgent(agentId, this))
+        {
+            log.error("agentId {} 已被占用，本机终端不会出现在远端页面", agentId);
+            return false;
+        }
+        started = true;
+        ptyManager.setOnPtyCreated(pty -> {
+            registerListeners(pty);
+            publish(pty);
+        });
+        List<PtyInfo> listed = new ArrayList<>();
+        for (PtyInstance pty : ptyManager.getAll())
+        {
+            registerListeners(pty);
+            if (isListed(pty))
+            {
+                listed.add(new PtyInfo(pty.getId(), pty.getName(), pty.isAlive(), true, pty.isRemoteCreated()));
+            }
+        }
+        agentManager.replacePtyList(agentId, listed);
+        log.info("本机终端已通过进程内连接接入，agentId: {}", agentId);
+        return true;
+    }
+
+    public void shutdown()
+    {
+        if (!started)
+        {
+            return;
+        }
+        started = false;
+        ptyManager.setOnPtyCreated(null);
+        outputListeners.forEach((ptyId, listener) -> {
+            PtyInstance pty = ptyManager.get(ptyId);
+            if (pty != null)
+            {
+                pty.removeOutputListener(listener);
+            }
+        });
+        outputListeners.clear();
+        visibilityListeners.forEach((ptyId, listener) -> {
+            PtyInstance pty = ptyManager.get(ptyId);
+            if (pty != null)
+            {
+                pty.removeVisibilityChangeListener(listener);
+            }
+        });
+        visibilityListeners.clear();
+        infoListeners.forEach((ptyId, listener) -> {
+            PtyInstance pty = ptyManager.get(ptyId);
+            if (pty != null)
+            {
+                pty.removeInfoChangeListener(listener);
+            }
+        });
+        infoListeners.clear();
+        agentManager.unregisterAgent(agentId);
+    }
+
+    @Override
+    public boolean isAuthenticated()
+    {
+        return started;
+    }
+
+    @Override
+    public boolean isCompression()
+    {
+        return false;
+    }
+
+    @Override
+    public CompressionStats getCompressionStats()
+    {
+        return compressionStats.copy();
+    }
+
+    @Override
+    public void sendPtyInput(String ptyId, byte[] data)
+    {
+        PtyInstance pty = viewable(ptyId);
+        if (pty != null)
+        {
+            try
+            {
+                pty.write(data);
+            }
+            catch (Exception e)
+            {
+                log.error("写入 PTY 失败", e);
+            }
+        }
+    }
+
+    /**
+     * 终端就在本进程中，输出不做端到端加密，浏览器也就不会发来加密的输入
+     */
+    @Override
+    public void sendPtySealedInput(String ptyId, byte[] sealed)
+    {
+        log.warn("本机终端不支持端到端加密的输入，已丢弃: {}", ptyId);
+    }
+
+    @Override
+    public void sendPtyResize(String ptyId, int cols, int rows)
+    {
+        PtyInstance pty = viewable(ptyId);
+        if (pty != null)
+        {
+            pty.resize(cols, rows);
+        }
+    }
+
+    @Override
+    public void sendPtyClose(String ptyId)
+    {
+        if (viewable(ptyId) != null)
+        {
+            ptyManager.remove(ptyId);
+        }
+    }
+
+    /**
+     * 进程内连接不会断开，since 总是为 null，每次 attach 都从当前画面快照开始
+     */
+    @Override
+    public void sendPtyAttach(String ptyId, Long since)
+    {
+        PtyInstance pty = viewable(ptyId);
+        if (pty == null)
+        {
+            return;
+        }
+        String fullPtyId = agentId + ":" + ptyId;
+        PtyOutputListener listener = ptyManager.coalesce(pty, new PtyOutputListener()
+        {
+            @Override
+            public void onOutput(ByteBuffer data, long offset)
+            {
+                agentManager.forwardPtyOutput(fullPtyId, copy(data), false);
+            }
+
+            @Override
+            public void onResync(ByteBuffer snapshot, long offset)
+            {
+                agentManager.forwardPtyOutput(fullPtyId, copy(snapshot), true);
+            }
+        });
+        PtyOutputListener previous = outputListeners.put(ptyId, listener);
+        if (previous != null)
+        {
+            pty.removeOutputListener(previous);
+        }
+        // 与隧道一样承载着远端所有查看者，积压时总是重新同步而不是断开
+        pty.addOutputListener(listener, OverflowPolicy.RESYNC);
+        pty.requestResync(listener);
+    }
+
+    @Override
+    public void sendPtyDetach(String ptyId)
+    {
+        PtyOutputListener listener = outputListeners.remove(ptyId);
+        if (listener != null)
+        {
+            PtyInstance pty = ptyManager.get(ptyId);
+            if (pty != null)
+            {
+                pty.removeOutputListener(listener);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<TcpMessage> sendPtyCreate(String name, Integer cols, Integer rows)
+    {
+        TcpMessage result = new TcpMessage();
+        result.setType(TcpMessageType.PTY_CREATE_RESULT);
+        result.setAgentId(agentId);
+        if (!ptyManager.isRemoteCreateEnabled())
+        {
+            result.setData("远端新建终端已被本地禁用");
+            return CompletableFuture.completedFuture(result);
+        }
+        try
+        {
+            PtyInstance pty = ptyManager.createRemote(agentId, name, cols != null ? cols : 120, rows != null ? rows : 40);
+            agentManager.upsertPty(agentId, pty.getId(), pty.getName(), true, true, true);
+            result.setData("OK");
+            result.setPtyId(pty.getId());
+            result.setName(pty.getName());
+            result.setRemoteViewable(true);
+            log.info("远端创建终端成功: id={}, name={}", pty.getId(), pty.getName());
+        }
+        catch (Exception e)
+        {
+            log.error("远端创建终端失败", e);
+            result.setData("创建终端失败: " + e.getMessage());
+        }
+        return CompletableFuture.completedFuture(result);
+    }
+
+    @Override
+    public CompletableFuture<TcpMessage> sendPtyRename(String ptyId, String newName)
+    {
+        TcpMessage result = new TcpMessage();
+        result.setType(TcpMessageType.PTY_RENAME_RESULT);
+        result.setAgentId(agentId);
+        result.setPtyId(ptyId);
+        PtyInstance pty = ptyId != null ? ptyManager.get(ptyId) : null;
+        if (newName == null || newName.isBlank())
+        {
+            result.setData("终端名称不能为空");
+        }
+        else if (pty == null)
+        {
+            result.setData("终端不存在");
+        }
+        else if (!pty.isRemoteViewable())
+        {
+            result.setData("终端未开启远端可见，禁止远端重命名");
+        }
+        else
+        {
+            // 名称变化通过信息变化监听更新列表
+            pty.setName(newName);
+            result.setData("OK");
+            result.setName(pty.getName());
+            log.info("远端重命名终端成功: id={}, name={}", ptyId, newName);
+        }
+        return CompletableFuture.completedFuture(result);
+    }
+
+    private PtyInstance viewable(String ptyId)
+    {
+        PtyInstance pty = ptyManager.get(ptyId);
+        return pty != null && pty.isRemoteViewable() ? pty : null;
+    }
+
+    private void registerListeners(PtyInstance pty)
+    {
+        BiConsumer<String, Boolean> visibilityListener = (ptyId, visible) -> {
+            if (!visible)
+            {
+                sendPtyDetach(ptyId);
+                agentManager.handlePtyVisibilityDisabled(agentId, ptyId);
+            }
+        };
+        visibilityListeners.put(pty.getId(), visibilityListener);
+        pty.addVisibilityChangeListener(visibilityListener);
+        Consumer<PtyInstance> infoListener = this::publish;
+        infoListeners.put(pty.getId(), infoListener);
+        pty.addInfoChangeListener(infoListener);
+    }
+
+    /**
+     * 更新远端列表中该终端的信息；关闭远端可见由可见性监听处理
+     */
+    private void publish(PtyInstance pty)
+    {
+        if (pty.isRemoteViewable())
+        {
+            agentManager.applyPtyDelta(agentId, pty.getId(), pty.getName(), isListed(pty));
+        }
+        if (ptyManager.get(pty.getId()) == null)
+        {
+            // 已从 PtyManager 移除，不会再有变化
+            visibilityListeners.remove(pty.getId());
+            infoListeners.remove(pty.getId());
+            outputListeners.remove(pty.getId());
+        }
+    }
+
+    private static boolean isListed(PtyInstance pty)
+    {
+        return pty.isRemoteViewable() && pty.isRunning() && !pty.isExited();
+    }
+
+    private static byte[] copy(ByteBuffer data)
+    {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,177 @@
+package cc.jfire.webcli.server;
+
+import cc.jfire.webcli.protocol.PtyInfo;
+import cc.jfire.webcli.web.dto.PtyListChanges;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * 所有 Agent 的远端可见终端的带版本索引。
+ * <p>
+ * Agent 在终端创建、关闭、退出、重命名和可见性变化时主动推送增量，索引据此更新，列表接口直接从内存返回，
+ * 不再向每个 Agent 发请求再等待。每次实际变化都会递增全局版本号并记在变化的条目上，
+ * 移除的终端保留一段墓碑记录，客户端可以只取某个版本之后的变化；墓碑被淘汰后更旧的版本只能拿到完整列表。
+ * <p>
+ * 条目中的 ID 带 agentId 前缀，保存的 PtyInfo 不会被外部修改。
+ */
+final class PtyIndex
+{
+    /** 最多保留的墓碑数量 */
+    private static final int MAX_TOMBSTONES = 4096;
+
+    private final Map<String, Entry> entries    = new HashMap<>();
+    /** 已移除终端的 ID 及移除时的版本，按版本从旧到新排列 */
+    private final Map<String, Long>  tombstones = new LinkedHashMap<>();
+    private       long               version;
+    /** 早于该版本的 since 无法得知期间的移除，只能返回完整列表 */
+    private       long               floor;
+
+    /**
+     * 用 Agent 推送的完整列表替换它的全部条目
+     *
+     * @param ptys 不带 agentId 前缀的终端列表
+     */
+    synchronized void replaceAgent(String agentId, List<PtyInfo> ptys)
+    {
+        Set<String> present = new HashSet<>();
+        for (PtyInfo pty : ptys)
+        {
+            if (pty != null && pty.getId() != null)
+            {
+                present.add(agentId + ":" + pty.getId());
+                put(agentId, pty);
+            }
+        }
+        List<String> stale = new ArrayList<>();
+        for (String fullPtyId : entries.keySet())
+        {
+            if (fullPtyId.startsWith(agentId + ":") && !present.contains(fullPtyId))
+            {
+                stale.add(fullPtyId);
+            }
+        }
+        stale.forEach(this::delete);
+    }
+
+    /**
+     * @param pty 不带 agentId 前缀的终端信息
+     */
+    synchronized void upsert(String agentId, PtyInfo pty)
+    {
+        put(agentId, pty);
+    }
+
+    synchronized void rename(String agentId, String ptyId, String name)
+    {
+        Entry entry = entries.get(agentId + ":" + ptyId);
+        if (entry != null && !Objects.equals(entry.info.getName(), name))
+        {
+            PtyInfo info = copy(entry.info);
+            info.setName(name);
+            entries.put(info.getId(), new Entry(info, ++version));
+        }
+    }
+
+    synchronized void remove(String agentId, String ptyId)
+    {
+        delete(agentId + ":" + ptyId);
+    }
+
+    synchronized void removeAgent(String agentId)
+    {
+        List<String> ids = new ArrayList<>();
+        for (String fullPtyId : entries.keySet())
+        {
+            if (fullPtyId.startsWith(agentId + ":"))
+            {
+                ids.add(fullPtyId);
+            }
+        }
+        ids.forEach(this::delete);
+    }
+
+    synchronized List<PtyInfo> list()
+    {
+        List<PtyInfo> result = new ArrayList<>(entries.size());
+        entries.values().forEach(entry -> result.add(copy(entry.info)));
+        return result;
+    }
+
+    synchronized long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * since 之后的变化；since 早于最旧的墓碑或晚于当前版本（如 Server 重启）时返回完整列表
+     */
+    synchronized PtyListChanges changesSince(long since)
+    {
+        if (since < floor || since > version)
+        {
+            return new PtyListChanges(version, true, list(), List.of());
+        }
+        List<PtyInfo> changed = new ArrayList<>();
+        for (Entry entry : entries.values())
+        {
+            if (entry.version > since)
+            {
+                changed.add(copy(entry.info));
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        tombstones.forEach((fullPtyId, removedAt) -> {
+            if (removedAt > since)
+            {
+                removed.add(fullPtyId);
+            }
+        });
+        return new PtyListChanges(version, false, changed, removed);
+    }
+
+    private void put(String agentId, PtyInfo pty)
+    {
+        PtyInfo info  = new PtyInfo(agentId + ":" + pty.getId(), pty.getName(), pty.isAlive(), pty.isRemoteViewable(), pty.isRemoteCreated());
+        Entry   entry = entries.get(info.getId());
+        if (entry != null && entry.info.equals(info))
+        {
+            return;
+        }
+        tombstones.remove(info.getId());
+        entries.put(info.getId(), new Entry(info, ++version));
+    }
+
+    private void delete(String fullPtyId)
+    {
+        if (entries.remove(fullPtyId) == null)
+        {
+            return;
+        }
+        tombstones.remove(fullPtyId);
+        tombstones.put(fullPtyId, ++version);
+        if (tombstones.size() > MAX_TOMBSTONES)
+        {
+            Iterator<Map.Entry<String, Long>> it     = tombstones.entrySet().iterator();
+            Map.Entry<String, Long>           oldest = it.next();
+            floor = oldest.getValue();
+            it.remove();
+        }
+    }
+
+    private static PtyInfo copy(PtyInfo info)
+    {
+        return new PtyInfo(info.getId(), info.getName(), info.isAlive(), info.isRemoteViewable(), info.isRemoteCreated());
+    }
+
+    private record Entry(PtyInfo info, long version)
+    {
+    }
+}
@@ -0,0 +1,30 @@
+package cc.jfire.webcli.server;
+
+/**
+ * 远端终端输出监听器，由 {@link AgentManager} 在收到 Agent 转发的输出时回调
+ */
+public interface RemotePtyOutputListener
+{
+    /**
+     * @param fullPtyId 带 agentId 前缀的终端 ID
+     * @param data      原始输出字节，转换成展示端需要的格式由监听器负责
+     * @param resync    为 true 时 data 是 Agent 丢弃积压后发送的全量快照，展示端需清屏重绘
+     */
+    void onOutput(String fullPtyId, byte[] data, boolean resync);
+
+    /**
+     * 端到端加密的输出，由浏览器解密
+     *
+     * @param sealed 端到端密文
+     * @param end    这一帧末尾在输出流中的偏移量，浏览器解密时作为附加数据的一部分
+     */
+    void onSealedOutput(String fullPtyId, byte[] sealed, boolean resync, long end);
+
+    /**
+     * 监听器所在浏览器连接的发送积压，发放输出信用前检查；null 表示不参与背压
+     */
+    default WsBacklog backlog()
+    {
+        return null;
+    }
+}
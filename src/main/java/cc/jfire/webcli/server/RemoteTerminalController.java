@@ -3,15 +3,20 @@ package cc.jfire.webcli.server;
 import cc.jfire.baseutil.Resource;
 import cc.jfire.boot.forward.path.Path;
 import cc.jfire.boot.http.HttpRequestExtend;
+import cc.jfire.webcli.protocol.CompressionStats;
 import cc.jfire.webcli.protocol.PtyInfo;
 import cc.jfire.webcli.web.dto.ApiResponse;
 import cc.jfire.webcli.web.dto.LoginRequest;
 import cc.jfire.webcli.web.dto.LoginResponse;
+import cc.jfire.webcli.web.dto.PtyListChanges;
 import cc.jfire.webcli.web.dto.RemoteCreateTerminalRequest;
+import cc.jfire.webcli.web.WsConnections;
 import cc.jfire.webcli.web.dto.RenameTerminalRequest;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Remote 模式终端管理 HTTP Controller
@@ -26,6 +31,9 @@ public class RemoteTerminalController {
     @Resource
     private AgentManager agentManager;
 
+    @Resource
+    private WsConnections wsConnections;
+
     /**
      * 获取 Agent 列表
      * GET /api/remote/agents
@@ -44,6 +52,51 @@ public class RemoteTerminalController {
         return ApiResponse.ok(agentManager.getAgentIds());
     }
 
+    /**
+     * 各 Agent 隧道的输出压缩情况，未协商压缩的 Agent 不在结果中
+     * GET /api/remote/agents/compression
+     */
+    @Path("/api/remote/agents/compression")
+    public ApiResponse<Map<String, CompressionStats>> compressionStats(HttpRequestExtend request)
+    {
+        if (!"GET".equalsIgnoreCase(request.getMethod()))
+        {
+            return ApiResponse.error("Method not allowed");
+        }
+        if (agentManager == null)
+        {
+            return ApiResponse.error("服务未初始化");
+        }
+        Map<String, CompressionStats> result = new LinkedHashMap<>();
+        for (String agentId : agentManager.getAgentIds())
+        {
+            AgentConnection handler = agentManager.getAgentHandler(agentId);
+            if (handler != null && handler.isCompression())
+            {
+                result.put(agentId, handler.getCompressionStats());
+            }
+        }
+        return ApiResponse.ok(result);
+    }
+
+    /**
+     * 查看远端浏览器各 WebSocket 连接的终端输出压缩情况
+     * GET /api/remote/ws/compression
+     */
+    @Path("/api/remote/ws/compression")
+    public ApiResponse<Map<String, CompressionStats>> wsCompressionStats(HttpRequestExtend request)
+    {
+        if (!"GET".equalsIgnoreCase(request.getMethod()))
+        {
+            return ApiResponse.error("Method not allowed");
+        }
+        if (wsConnections == null)
+        {
+            return ApiResponse.error("服务未初始化");
+        }
+        return ApiResponse.ok(WsConnections.compressionStats(wsConnections.getRemote()));
+    }
+
     /**
      * 登录
      * POST /api/remote/login
@@ -88,16 +141,42 @@ public class RemoteTerminalController {
             return ApiResponse.error("服务未初始化");
         }
 
-        // 刷新所有 Agent 的 PTY 列表
-        agentManager.refreshAllPtyLists();
-
-        // 等待短暂时间让 Agent 响应
-        try { Thread.sleep(100); } catch (InterruptedException ignored) {}
-
+        // Agent 主动推送终端变化，索引始终是最新的，直接从内存返回
         List<PtyInfo> list = agentManager.getAllRemotePtys();
         return ApiResponse.ok(list);
     }
 
+    /**
+     * 获取远程终端列表自某个版本以来的变化，since 缺省或过旧时返回完整列表
+     * GET /api/remote/terminals/changes?since=N
+     */
+    @Path("/api/remote/terminals/changes")
+    public ApiResponse<PtyListChanges> listTerminalChanges(HttpRequestExtend request)
+    {
+        if (!"GET".equalsIgnoreCase(request.getMethod()))
+        {
+            return ApiResponse.error("Method not allowed");
+        }
+        if (agentManager == null)
+        {
+            return ApiResponse.error("服务未初始化");
+        }
+        long   since = -1;
+        Object param = request.getParamMap() != null ? request.getParamMap().get("since") : null;
+        if (param != null)
+        {
+            try
+            {
+                since = Long.parseLong(param.toString().trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return ApiResponse.error("无效的 since 参数");
+            }
+        }
+        return ApiResponse.ok(agentManager.getPtyChanges(since));
+    }
+
     /**
      * 创建远程终端（在指定 Agent 上创建）
      * POST /api/remote/terminal
@@ -119,7 +198,7 @@ public class RemoteTerminalController {
         }
 
         String agentId = body.getAgentId().trim();
-        ServerTcpHandler handler = agentManager.getAgentHandler(agentId);
+        AgentConnection handler = agentManager.getAgentHandler(agentId);
         if (handler == null)
         {
             return ApiResponse.error("Agent 不存在");
@@ -170,7 +249,7 @@ public class RemoteTerminalController {
 
         String agentId = parts[0];
         String ptyId = parts[1];
-        ServerTcpHandler handler = agentManager.getAgentHandler(agentId);
+        AgentConnection handler = agentManager.getAgentHandler(agentId);
         if (handler == null) {
             return ApiResponse.error("Agent 不存在");
         }
@@ -214,7 +293,7 @@ public class RemoteTerminalController {
         String agentId = parts[0];
         String ptyId = parts[1];
 
-        ServerTcpHandler handler = agentManager.getAgentHandler(agentId);
+        AgentConnection handler = agentManager.getAgentHandler(agentId);
         if (handler == null)
         {
             return ApiResponse.error("Agent 不存在");
@@ -6,11 +6,17 @@ import cc.jfire.jnet.common.api.ReadProcessor;
 import cc.jfire.jnet.common.api.ReadProcessorNode;
 import cc.jfire.jnet.common.buffer.buffer.IoBuffer;
 import cc.jfire.jnet.extend.websocket.dto.WebSocketFrame;
+import cc.jfire.webcli.protocol.CompressionStats;
 import cc.jfire.webcli.protocol.MessageType;
+import cc.jfire.webcli.protocol.StreamDeflater;
+import cc.jfire.webcli.protocol.WsBinaryFrame;
 import cc.jfire.webcli.protocol.WsMessage;
+import cc.jfire.webcli.protocol.WsStreams;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
@@ -18,10 +24,28 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
     private final AgentManager agentManager;
     private final LoginManager loginManager;
     private final ConcurrentHashMap<String, String> pipelinePtyMap = new ConcurrentHashMap<>();
+    // 各连接上二进制帧的流 ID 和压缩上下文，终端 ID 带 agentId 前缀
+    private final ConcurrentHashMap<String, WsStreams> pipelineStreams;
+    // 各连接尚未写出的字节数，Server 发放输出信用前检查
+    private final ConcurrentHashMap<String, WsBacklog> pipelineBacklogs = new ConcurrentHashMap<>();
+    private final boolean compression;
+    private final int compressionLevel;
+    private final int backlogThreshold;
 
-    public RemoteWebSocketHandler(AgentManager agentManager, LoginManager loginManager) {
+    /**
+     * @param pipelineStreams  各连接的流表，由 WsConnections 持有以便查询压缩统计
+     * @param compression      浏览器支持时是否压缩终端输出，端到端密文不压缩
+     * @param compressionLevel Deflater 压缩级别
+     * @param backlogThreshold 连接尚未写出的字节超过该值时暂缓向 Agent 发放它所看终端的输出信用
+     */
+    public RemoteWebSocketHandler(AgentManager agentManager, LoginManager loginManager, ConcurrentHashMap<String, WsStreams> pipelineStreams,
+                                  boolean compression, int compressionLevel, int backlogThreshold) {
         this.agentManager = agentManager;
         this.loginManager = loginManager;
+        this.pipelineStreams = pipelineStreams;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+        this.backlogThreshold = backlogThreshold;
     }
 
     @Override
@@ -39,6 +63,11 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
                     payload.get(bytes);
                     String text = new String(bytes, StandardCharsets.UTF_8);
                     handleMessage(pipeline, text);
+                } else if (frame.getOpcode() == WebSocketFrame.OPCODE_BINARY) {
+                    IoBuffer payload = frame.getPayload();
+                    byte[] bytes = new byte[payload.remainRead()];
+                    payload.get(bytes);
+                    handleBinary(pipeline, bytes);
                 }
             } finally {
                 frame.free();
@@ -51,7 +80,6 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
     private void handleMessage(Pipeline pipeline, String text) {
         try {
             WsMessage msg = Dson.fromString(WsMessage.class, text);
-            String pipelineId = pipeline.pipelineId();
 
             // AUTH 消息用于通过 token 认证 WebSocket 连接
             if (msg.getType() == MessageType.AUTH) {
@@ -60,16 +88,7 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
             }
 
             // 其他消息需要先验证是否已登录
-            if (!loginManager.isAuthenticated(pipelineId)) {
-                sendLoginRequired(pipeline);
-                return;
-            }
-            // 检查关联的 Session 是否仍有效（同时刷新活跃时间）
-            if (!loginManager.refreshSessionByPipeline(pipelineId))
-            {
-                // Session 已过期，清除认证状态并通知前端
-                loginManager.removeAuthentication(pipelineId);
-                sendSessionExpired(pipeline);
+            if (!checkSession(pipeline)) {
                 return;
             }
 
@@ -86,6 +105,46 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
         }
     }
 
+    /**
+     * 二进制帧只用于终端输入，与 JSON 消息一样要求已登录
+     */
+    private void handleBinary(Pipeline pipeline, byte[] bytes) {
+        try {
+            if (!checkSession(pipeline)) {
+                return;
+            }
+            WsBinaryFrame frame = WsBinaryFrame.parse(bytes);
+            WsStreams streams = pipelineStreams.get(pipeline.pipelineId());
+            String fullPtyId = streams != null ? streams.ptyId(frame.stream()) : null;
+            if (frame.kind() != WsBinaryFrame.INPUT || fullPtyId == null) {
+                log.warn("丢弃无法处理的二进制帧: kind={}, stream={}", frame.kind(), frame.stream());
+                return;
+            }
+            sendInput(fullPtyId, frame.payload(), frame.sealed());
+        } catch (Exception e) {
+            log.error("处理二进制帧失败", e);
+        }
+    }
+
+    /**
+     * @return 连接已登录且 Session 仍有效（同时刷新活跃时间）；否则通知前端并返回 false
+     */
+    private boolean checkSession(Pipeline pipeline) {
+        String pipelineId = pipeline.pipelineId();
+        if (!loginManager.isAuthenticated(pipelineId)) {
+            sendLoginRequired(pipeline);
+            return false;
+        }
+        if (!loginManager.refreshSessionByPipeline(pipelineId))
+        {
+            // Session 已过期，清除认证状态并通知前端
+            loginManager.removeAuthentication(pipelineId);
+            sendSessionExpired(pipeline);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * 处理 token 认证请求
      */
@@ -130,12 +189,22 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
     }
 
     private void handlePtyInput(Pipeline pipeline, WsMessage msg) {
-        String fullPtyId = msg.getPtyId();
+        sendInput(msg.getPtyId(), Base64.getDecoder().decode(msg.getData()), Boolean.TRUE.equals(msg.getSealed()));
+    }
+
+    /**
+     * @param sealed data 是否为浏览器用端到端密钥加密的输入
+     */
+    private void sendInput(String fullPtyId, byte[] data, boolean sealed) {
         String[] parts = agentManager.parseFullPtyId(fullPtyId);
         if (parts != null) {
-            ServerTcpHandler handler = agentManager.getAgentHandler(parts[0]);
+            AgentConnection handler = agentManager.getAgentHandler(parts[0]);
             if (handler != null) {
-                handler.sendPtyInput(parts[1], msg.getData());
+                if (sealed) {
+                    handler.sendPtySealedInput(parts[1], data);
+                } else {
+                    handler.sendPtyInput(parts[1], data);
+                }
             }
         }
     }
@@ -144,7 +213,7 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
         String fullPtyId = msg.getPtyId();
         String[] parts = agentManager.parseFullPtyId(fullPtyId);
         if (parts != null && msg.getCols() != null && msg.getRows() != null) {
-            ServerTcpHandler handler = agentManager.getAgentHandler(parts[0]);
+            AgentConnection handler = agentManager.getAgentHandler(parts[0]);
             if (handler != null) {
                 handler.sendPtyResize(parts[1], msg.getCols(), msg.getRows());
             }
@@ -161,7 +230,7 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
         if (parts != null) {
             String agentId = parts[0];
             String ptyId = parts[1];
-            ServerTcpHandler handler = agentManager.getAgentHandler(agentId);
+            AgentConnection handler = agentManager.getAgentHandler(agentId);
             boolean detached = agentManager.removePtyAttach(agentId, ptyId);
             if (detached && handler != null) {
                 // 只在最后一个订阅方离开时发送 detach，不发送 close
@@ -170,6 +239,10 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
             agentManager.unregisterPtyOutputListener(fullPtyId, pipelineId);
             agentManager.unregisterVisibilityDisabledCallback(fullPtyId, pipelineId);
             pipelinePtyMap.remove(pipelineId);
+            WsStreams streams = pipelineStreams.get(pipelineId);
+            if (streams != null) {
+                streams.close(fullPtyId);
+            }
         }
 
         WsMessage response = new WsMessage();
@@ -184,20 +257,69 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
         if (parts != null) {
             String agentId = parts[0];
             String ptyId = parts[1];
-            ServerTcpHandler handler = agentManager.getAgentHandler(agentId);
+            AgentConnection handler = agentManager.getAgentHandler(agentId);
             if (handler != null) {
                 pipelinePtyMap.put(pipelineId, fullPtyId);
 
                 // 记录 attach 状态，用于 Agent 重连后恢复
                 boolean firstAttach = agentManager.recordPtyAttach(agentId, ptyId);
 
+                // 浏览器支持时输出改用二进制帧，浏览器能解压且本服务开启压缩时新分配的流压缩输出；
+                // 先发送成功响应，浏览器拿到流 ID 和压缩方式后才能识别随后的输出帧
+                boolean binary = Boolean.TRUE.equals(msg.getBinary());
+                boolean compress = binary && compression && StreamDeflater.ALGORITHM.equals(msg.getCompression());
+                WsStreams streams = binary ? pipelineStreams.computeIfAbsent(pipelineId, k -> new WsStreams(compressionLevel)) : null;
+                Integer stream = binary ? streams.open(fullPtyId, compress) : null;
+                WsMessage response = new WsMessage();
+                response.setType(MessageType.SUCCESS);
+                response.setPtyId(fullPtyId);
+                response.setStream(stream);
+                response.setCompression(stream != null && streams.isCompressed(stream) ? StreamDeflater.ALGORITHM : null);
+                sendMessage(pipeline, response);
+
+                // 从 pipeline 的写出回调统计积压，信用随浏览器实际接收的速度发放
+                WsBacklog backlog = pipelineBacklogs.computeIfAbsent(pipelineId, k -> {
+                    WsBacklog created = new WsBacklog(backlogThreshold);
+                    pipeline.setWriteListener(created);
+                    return created;
+                });
+
                 // 注册输出监听器
-                agentManager.registerPtyOutputListener(fullPtyId, pipelineId, (ptyIdParam, data) -> {
-                    WsMessage outMsg = new WsMessage();
-                    outMsg.setType(MessageType.PTY_OUTPUT);
-                    outMsg.setPtyId(ptyIdParam);
-                    outMsg.setData(data);
-                    sendMessage(pipeline, outMsg);
+                agentManager.registerPtyOutputListener(fullPtyId, pipelineId, new RemotePtyOutputListener() {
+                    @Override
+                    public WsBacklog backlog() {
+                        return backlog;
+                    }
+
+                    @Override
+                    public void onOutput(String ptyIdParam, byte[] data, boolean resync) {
+                        if (stream != null) {
+                            streams.output(stream, resync, ByteBuffer.wrap(data), bytes -> sendBinary(pipeline, bytes));
+                            return;
+                        }
+                        WsMessage outMsg = new WsMessage();
+                        outMsg.setType(resync ? MessageType.PTY_RESYNC : MessageType.PTY_OUTPUT);
+                        outMsg.setPtyId(ptyIdParam);
+                        // 浏览器通过 JSON 文本帧接收，只在这里转换为 Base64
+                        outMsg.setData(Base64.getEncoder().encodeToString(data));
+                        sendMessage(pipeline, outMsg);
+                    }
+
+                    @Override
+                    public void onSealedOutput(String ptyIdParam, byte[] sealed, boolean resync, long end) {
+                        if (stream != null) {
+                            // 密文无法压缩，压缩流上也以原样发送，不经过压缩上下文
+                            sendBinary(pipeline, WsBinaryFrame.sealedOutput(stream, resync, end, sealed));
+                            return;
+                        }
+                        WsMessage outMsg = new WsMessage();
+                        outMsg.setType(resync ? MessageType.PTY_RESYNC : MessageType.PTY_OUTPUT);
+                        outMsg.setPtyId(ptyIdParam);
+                        outMsg.setData(Base64.getEncoder().encodeToString(sealed));
+                        outMsg.setSealed(true);
+                        outMsg.setOffset(end);
+                        sendMessage(pipeline, outMsg);
+                    }
                 });
 
                 // 注册可见性禁用回调
@@ -210,6 +332,10 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
                     sendMessage(pipeline, closeMsg);
                     // 清理本地状态
                     pipelinePtyMap.remove(pipelineId);
+                    WsStreams current = pipelineStreams.get(pipelineId);
+                    if (current != null) {
+                        current.close(fullPtyId);
+                    }
                     // 移除 attach 记录
                     agentManager.removePtyAttach(agentId, ptyId);
                     log.info("终端 {} 已关闭远端可见，通知远端客户端断开", ptyIdParam);
@@ -219,11 +345,6 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
                 if (firstAttach) {
                     handler.sendPtyAttach(ptyId);
                 }
-
-                WsMessage response = new WsMessage();
-                response.setType(MessageType.SUCCESS);
-                response.setPtyId(fullPtyId);
-                sendMessage(pipeline, response);
             } else {
                 sendError(pipeline, "Agent 不存在");
             }
@@ -236,6 +357,20 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
         String pipelineId = pipeline.pipelineId();
         // 清理登录状态
         loginManager.removeAuthentication(pipelineId);
+        WsStreams streams = pipelineStreams.remove(pipelineId);
+        if (streams != null) {
+            streams.closeAll();
+            CompressionStats stats = streams.getCompressionStats();
+            if (stats.getRawBytes() > 0) {
+                log.info("远端 WebSocket 连接 {} 输出压缩累计 {} 字节 -> {} 字节，压缩比 {}", pipelineId, stats.getRawBytes(), stats.getCompressedBytes(),
+                        String.format("%.2f", stats.getRatio()));
+            }
+        }
+
+        WsBacklog backlog = pipelineBacklogs.remove(pipelineId);
+        if (backlog != null) {
+            backlog.close();
+        }
 
         String fullPtyId = pipelinePtyMap.remove(pipelineId);
         if (fullPtyId != null) {
@@ -246,7 +381,7 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
                 String agentId = parts[0];
                 String ptyId = parts[1];
                 boolean detached = agentManager.removePtyAttach(agentId, ptyId);
-                ServerTcpHandler handler = agentManager.getAgentHandler(agentId);
+                AgentConnection handler = agentManager.getAgentHandler(agentId);
                 if (detached && handler != null) {
                     handler.sendPtyDetach(ptyId);
                 }
@@ -259,12 +394,30 @@ public class RemoteWebSocketHandler implements ReadProcessor<Object> {
         byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
         IoBuffer payload = pipeline.allocator().allocate(bytes.length);
         payload.put(bytes);
+        queued(pipeline, bytes.length);
         WebSocketFrame frame = new WebSocketFrame();
         frame.setOpcode(WebSocketFrame.OPCODE_TEXT);
         frame.setPayload(payload);
         pipeline.fireWrite(frame);
     }
 
+    private void sendBinary(Pipeline pipeline, byte[] bytes) {
+        IoBuffer payload = pipeline.allocator().allocate(bytes.length);
+        payload.put(bytes);
+        queued(pipeline, bytes.length);
+        WebSocketFrame frame = new WebSocketFrame();
+        frame.setOpcode(WebSocketFrame.OPCODE_BINARY);
+        frame.setPayload(payload);
+        pipeline.fireWrite(frame);
+    }
+
+    private void queued(Pipeline pipeline, int bytes) {
+        WsBacklog backlog = pipelineBacklogs.get(pipeline.pipelineId());
+        if (backlog != null) {
+            backlog.queued(bytes);
+        }
+    }
+
     private void sendError(Pipeline pipeline, String error) {
         WsMessage msg = new WsMessage();
         msg.setType(MessageType.ERROR);
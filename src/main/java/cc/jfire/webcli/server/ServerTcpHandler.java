@@ -1,39 +1,53 @@
 package cc.jfire.webcli.server;
 
 import cc.jfire.jnet.common.api.Pipeline;
-import cc.jfire.se2.JfireSE;
 import cc.jfire.jnet.common.api.ReadProcessor;
 import cc.jfire.jnet.common.api.ReadProcessorNode;
 import cc.jfire.jnet.common.buffer.buffer.IoBuffer;
 import cc.jfire.webcli.config.WebCliConfig;
 import cc.jfire.webcli.crypto.AesGcmCrypto;
+import cc.jfire.webcli.crypto.SessionTickets;
+import cc.jfire.webcli.protocol.CompressionStats;
+import cc.jfire.webcli.protocol.RelayFrame;
+import cc.jfire.webcli.protocol.StreamDeflater;
+import cc.jfire.webcli.protocol.StreamInflater;
 import cc.jfire.webcli.protocol.TcpMessage;
+import cc.jfire.webcli.protocol.TcpMessageCodec;
 import cc.jfire.webcli.protocol.TcpMessageType;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
 @Slf4j
-public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
+public class ServerTcpHandler implements ReadProcessor<IoBuffer>, AgentConnection {
+    /** 每收到这么多终端输出字节回复一次 TUNNEL_ACK，须小于 Agent 的发送窗口 */
+    private static final int BULK_ACK_BYTES = 16 * 1024;
+    /** 每个终端每转发这么多输出字节发放一次信用，须小于 Agent 的终端信用窗口 */
+    private static final int CREDIT_GRANT_BYTES = 32 * 1024;
     private final WebCliConfig config;
     private final AgentManager agentManager;
+    private final HandshakeGate handshakeGate;
     private final SecureRandom secureRandom = new SecureRandom();
-    private final JfireSE jfireSE = JfireSE.config().build();
     private Pipeline pipeline;
     private AesGcmCrypto crypto;
     private volatile boolean authenticated = false;
@@ -43,30 +57,52 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
     private byte[] clientNonce;
     private String clientPubKey;
     private byte[] serverNonce;
-    private byte[] sessionKey;
+    /** 完整握手在握手线程上写入，其余握手字段在它之前写入，读线程先读它再读其余字段 */
+    private volatile byte[] sessionKey;
+    /** 已发出 REKEY_RESPONSE、等待 REKEY_FINISH 后启用的接收密钥，只在读线程中访问 */
+    private byte[] pendingReceiveKey;
+    /** 收到的终端输出帧字节总数及最近一次确认的值，只在读线程中访问 */
+    private long bulkReceived;
+    private long bulkAcked;
     private final ConcurrentHashMap<String, CompletableFuture<TcpMessage>> pendingRequests = new ConcurrentHashMap<>();
+    /** 本次连接是否协商了输出压缩 */
+    private boolean compression = false;
+    /** 本连接上 attach 过的终端输出流，按流 ID 路由输出帧 */
+    private final StreamTable streams = new StreamTable();
+    private final CompressionStats compressionStats = new CompressionStats();
 
-    public ServerTcpHandler(WebCliConfig config, AgentManager agentManager) {
+    public ServerTcpHandler(WebCliConfig config, AgentManager agentManager, HandshakeGate handshakeGate) {
         this.config = config;
         this.agentManager = agentManager;
+        this.handshakeGate = handshakeGate;
     }
 
     @Override
     public void read(IoBuffer buffer, ReadProcessorNode next) {
         this.pipeline = next.pipeline();
         try {
-            byte[] data = new byte[buffer.remainRead()];
-            buffer.get(data);
-
-            byte[] decrypted;
-            if (authenticated && crypto != null) {
-                decrypted = crypto.decrypt(data);
+            // 直接在收到的 IoBuffer 上校验、解密和解码，不再先拷贝成数组
+            ByteBuffer frame = buffer.readableByteBuffer();
+            int frameLength = frame.remaining();
+
+            TcpMessage msg;
+            AesGcmCrypto current = crypto;
+            if (authenticated && current != null && RelayFrame.isRelay(frame)) {
+                handleRelayFrame(current, frame);
+                acknowledgeBulk(frameLength);
+                return;
+            }
+            if (authenticated && current != null) {
+                // 原地解密，明文紧跟在帧头之后
+                int length = current.decrypt(frame);
+                msg = TcpMessageCodec.decode(frame.slice(frame.position() + AesGcmCrypto.HEADER_LENGTH, length));
             } else {
-                decrypted = data;
+                msg = TcpMessageCodec.decode(frame);
             }
-
-            TcpMessage msg = (TcpMessage) jfireSE.deSerialize(decrypted);
             handleMessage(msg);
+            if (msg.getType() == TcpMessageType.PTY_OUTPUT || msg.getType() == TcpMessageType.PTY_RESYNC) {
+                acknowledgeBulk(frameLength);
+            }
         } catch (Exception e) {
             log.error("处理消息失败", e);
         } finally {
@@ -79,15 +115,123 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
             case AUTH_REQUEST -> handleAuthRequest(msg);
             case AUTH_FINISH -> handleAuthFinish(msg);
             case PTY_LIST_RESPONSE -> handlePtyListResponse(msg);
-            case PTY_OUTPUT -> handlePtyOutput(msg);
+            case PTY_OUTPUT -> handlePtyOutput(msg, false);
+            case PTY_RESYNC -> handlePtyOutput(msg, true);
             case PTY_VISIBILITY_CHANGED -> handlePtyVisibilityChanged(msg);
+            case PTY_INFO_CHANGED -> handlePtyInfoChanged(msg);
             case PTY_CREATE_RESULT, PTY_RENAME_RESULT -> handleRequestResult(msg);
             case HEARTBEAT -> sendHeartbeatResponse();
+            case REKEY_REQUEST -> handleRekeyRequest(msg);
+            case REKEY_FINISH -> handleRekeyFinish();
             default -> log.warn("未知消息类型: {}", msg.getType());
         }
     }
 
     private void handleAuthRequest(TcpMessage msg) {
+        if (msg.getTicket() != null) {
+            handleResume(msg);
+            return;
+        }
+        // X25519 运算交给握手线程，不占用与浏览器连接共享的 IO 线程；排队已满时让 Agent 退避后重连
+        if (!handshakeGate.submit(() -> performHandshake(msg))) {
+            log.warn("握手排队已满，拒绝 Agent {} 的握手", msg.getAgentId());
+            sendAuthResult(msg.getAgentId(), "BUSY");
+        }
+    }
+
+    /**
+     * 会话票据恢复：解开票据、校验 MAC 后直接注册，只需一次往返和几次对称运算。
+     * 票据无效、过期或请求已出现过时回复 RESUME_REJECTED，Agent 随即在同一连接上改走完整握手
+     */
+    private void handleResume(TcpMessage msg) {
+        try {
+            String agentId = msg.getAgentId();
+            SessionTickets tickets = handshakeGate.getTickets();
+            long now = System.currentTimeMillis();
+            SessionTickets.Ticket ticket = tickets == null || agentId == null || msg.getClientNonce() == null || msg.getClientMac() == null
+                    ? null : tickets.open(msg.getTicket(), now);
+            if (ticket == null || !ticket.agentId().equals(agentId)) {
+                rejectResume(agentId, "票据无效或已过期");
+                return;
+            }
+            // 校验 clientMac：HMAC(恢复密钥, "AUTH_RESUME"||agentId||ticket||clientNonce)
+            String macInput = String.join("|", "AUTH_RESUME", agentId, msg.getTicket(), msg.getClientNonce());
+            byte[] expectedClientMac = hmacSha256(ticket.secret(), macInput.getBytes(StandardCharsets.UTF_8));
+            byte[] clientNonce = Base64.getDecoder().decode(msg.getClientNonce());
+            if (!MessageDigest.isEqual(expectedClientMac, Base64.getDecoder().decode(msg.getClientMac()))) {
+                rejectResume(agentId, "clientMac 校验不通过");
+                return;
+            }
+            if (!tickets.acceptNonce(clientNonce, now)) {
+                rejectResume(agentId, "请求已过期或被重放");
+                return;
+            }
+
+            byte[] nonce = new byte[32];
+            secureRandom.nextBytes(nonce);
+            this.agentId = agentId;
+            this.serverNonce = nonce;
+            this.sessionKey = hmacSha256(ticket.secret(), concat(clientNonce, nonce));
+            this.crypto = new AesGcmCrypto(sessionKey, false);
+            compression = config.isTunnelCompression() && StreamDeflater.ALGORITHM.equals(msg.getCompression());
+            if (!agentManager.tryRegisterAgent(agentId, this)) {
+                sendAuthResult(agentId, "DUPLICATE_AGENT_ID");
+                log.warn("Agent 恢复失败：agentId 重名: {}", agentId);
+                return;
+            }
+
+            this.authenticated = true;
+            this.registeredToManager = true;
+            // serverMac：HMAC(会话密钥, "AUTH_RESUMED"||agentId)，证明 Server 能解开票据
+            String serverMacInput = String.join("|", "AUTH_RESUMED", agentId);
+            TcpMessage result = new TcpMessage();
+            result.setType(TcpMessageType.AUTH_RESULT);
+            result.setAgentId(agentId);
+            result.setData("OK");
+            result.setServerNonce(Base64.getEncoder().encodeToString(nonce));
+            result.setServerMac(Base64.getEncoder().encodeToString(hmacSha256(sessionKey, serverMacInput.getBytes(StandardCharsets.UTF_8))));
+            result.setCompression(compression ? StreamDeflater.ALGORITHM : null);
+            sendMessage(result, false); // 认证阶段保持明文，避免双方状态不同步
+            log.info("Agent 通过会话票据恢复: {}", agentId);
+            issueTicket();
+            agentManager.reattachPtysForAgent(agentId, this);
+        } catch (Exception e) {
+            log.error("处理会话票据恢复失败", e);
+        }
+    }
+
+    private void rejectResume(String agentId, String reason) {
+        log.info("Agent {} 的会话票据恢复被拒绝（{}），改走完整握手", agentId, reason);
+        sendAuthResult(agentId, "RESUME_REJECTED");
+    }
+
+    /**
+     * 认证成功后签发新票据。恢复密钥由当前会话密钥派生，Agent 收到 AUTH_RESULT 时做同样的派生
+     */
+    private void issueTicket() {
+        SessionTickets tickets = handshakeGate.getTickets();
+        if (tickets == null) {
+            return;
+        }
+        try {
+            TcpMessage msg = new TcpMessage();
+            msg.setType(TcpMessageType.SESSION_TICKET);
+            msg.setTicket(tickets.issue(agentId, SessionTickets.resumptionSecret(sessionKey, agentId), System.currentTimeMillis()));
+            sendMessage(msg, true);
+        } catch (Exception e) {
+            log.error("签发会话票据失败", e);
+        }
+    }
+
+    private void sendAuthResult(String agentId, String result) {
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.AUTH_RESULT);
+        msg.setAgentId(agentId);
+        msg.setData(result);
+        sendMessage(msg, false); // 认证阶段保持明文，避免双方状态不同步
+    }
+
+    private void performHandshake(TcpMessage msg) {
         try {
             String agentId = msg.getAgentId();
             String clientNonceB64 = msg.getClientNonce();
@@ -129,6 +273,7 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
             // 派生会话密钥（等 AUTH_FINISH 校验通过后再标记 authenticated）
             PublicKey clientPublicKey = decodeX25519PublicKey(clientPubKey);
             byte[] sharedSecret = computeSharedSecret(serverKeyPair.getPrivate(), clientPublicKey);
+            compression = config.isTunnelCompression() && StreamDeflater.ALGORITHM.equals(msg.getCompression());
             sessionKey = hmacSha256(tokenBytes(), concat(sharedSecret, this.clientNonce, serverNonce));
 
             TcpMessage response = new TcpMessage();
@@ -137,6 +282,7 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
             response.setServerPubKey(serverPubKey);
             response.setServerNonce(serverNonceB64);
             response.setServerMac(serverMac);
+            response.setCompression(compression ? StreamDeflater.ALGORITHM : null);
             sendMessage(response, false); // 握手阶段明文
         } catch (Exception e) {
             log.error("处理 AUTH_REQUEST 失败", e);
@@ -161,47 +307,250 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
                 return;
             }
 
-            this.crypto = new AesGcmCrypto(sessionKey);
+            this.crypto = new AesGcmCrypto(sessionKey, false);
             boolean registered = agentManager.tryRegisterAgent(agentId, this);
             if (!registered)
             {
-                TcpMessage result = new TcpMessage();
-                result.setType(TcpMessageType.AUTH_RESULT);
-                result.setAgentId(agentId);
-                result.setData("DUPLICATE_AGENT_ID");
-                sendMessage(result, false); // 认证阶段保持明文，避免双方状态不同步
+                sendAuthResult(agentId, "DUPLICATE_AGENT_ID");
                 log.warn("Agent 注册失败：agentId 重名: {}", agentId);
                 return;
             }
 
             this.authenticated = true;
             this.registeredToManager = true;
-            TcpMessage result = new TcpMessage();
-            result.setType(TcpMessageType.AUTH_RESULT);
-            result.setAgentId(agentId);
-            result.setData("OK");
-            sendMessage(result, false); // 认证阶段保持明文，避免双方状态不同步
+            sendAuthResult(agentId, "OK");
             log.info("Agent 认证成功: {}", agentId);
+            issueTicket();
+            // 检查是否有之前 attach 的终端需要重新 attach
+            agentManager.reattachPtysForAgent(agentId, this);
         } catch (Exception e) {
             log.error("处理 AUTH_FINISH 失败", e);
         }
     }
 
+    /**
+     * Agent 发起的密钥轮换：用旧密钥回复 REKEY_RESPONSE 后立即切换发送方向，
+     * 接收方向等 Agent 用旧密钥发来的 REKEY_FINISH 到达后再切换
+     */
+    private void handleRekeyRequest(TcpMessage msg) {
+        if (!authenticated) {
+            log.warn("未认证的连接发来 REKEY_REQUEST");
+            return;
+        }
+        try {
+            if (msg.getClientPubKey() == null || msg.getClientNonce() == null) {
+                log.warn("REKEY_REQUEST 缺少必要字段");
+                return;
+            }
+            KeyPair keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+            byte[] nonce = new byte[32];
+            secureRandom.nextBytes(nonce);
+            byte[] sharedSecret = computeSharedSecret(keyPair.getPrivate(), decodeX25519PublicKey(msg.getClientPubKey()));
+            byte[] newKey = hmacSha256(sessionKey, concat(sharedSecret, Base64.getDecoder().decode(msg.getClientNonce()), nonce));
+
+            TcpMessage response = new TcpMessage();
+            response.setType(TcpMessageType.REKEY_RESPONSE);
+            response.setServerPubKey(Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()));
+            response.setServerNonce(Base64.getEncoder().encodeToString(nonce));
+            sendMessage(response, true, newKey);
+            pendingReceiveKey = newKey;
+        } catch (Exception e) {
+            log.error("处理 REKEY_REQUEST 失败", e);
+        }
+    }
+
+    /**
+     * Agent 的终端输出受发送窗口限制，按收到的加密帧长度累计并定期确认
+     */
+    private void acknowledgeBulk(int frameLength) {
+        bulkReceived += frameLength;
+        if (bulkReceived - bulkAcked < BULK_ACK_BYTES) {
+            return;
+        }
+        bulkAcked = bulkReceived;
+        TcpMessage ack = new TcpMessage();
+        ack.setType(TcpMessageType.TUNNEL_ACK);
+        ack.setOffset(bulkReceived);
+        sendMessage(ack, true);
+    }
+
+    private void handleRekeyFinish() {
+        if (pendingReceiveKey == null) {
+            log.warn("收到未预期的 REKEY_FINISH");
+            return;
+        }
+        // Agent 在 REKEY_FINISH 之后发出的帧都已使用新密钥
+        crypto.rekeyReceive(pendingReceiveKey);
+        sessionKey = pendingReceiveKey;
+        pendingReceiveKey = null;
+        log.info("Agent {} 会话密钥已轮换", agentId);
+    }
+
     private void handlePtyListResponse(TcpMessage msg) {
         agentManager.updatePtyList(agentId, msg.getData());
     }
 
-    private void handlePtyOutput(TcpMessage msg) {
-        agentManager.forwardPtyOutput(agentId, msg.getPtyId(), msg.getData());
+    /**
+     * @param resync 是否为 Agent 丢弃积压后发送的全量快照
+     */
+    private void handlePtyOutput(TcpMessage msg, boolean resync) {
+        StreamTable.Stream stream = msg.getStream() == null ? null : streams.get(msg.getStream());
+        if (stream == null) {
+            log.debug("丢弃未知流 {} 的终端输出", msg.getStream());
+            return;
+        }
+        byte[] data = inflate(stream, msg.getPayload(), resync);
+        if (data != null) {
+            agentManager.forwardPtyOutput(stream.fullPtyId, data, resync);
+            recordDelivered(stream, msg.getOffset());
+            grantCredit(stream, msg.getOffset(), resync);
+        }
+    }
+
+    /**
+     * 端到端加密的终端输出：只解析路由头、校验隧道标签，密文原样交给浏览器连接，不解密、不解压、不反序列化
+     */
+    private void handleRelayFrame(AesGcmCrypto current, ByteBuffer frame) throws Exception {
+        RelayFrame relay = RelayFrame.parse(frame);
+        current.verify(frame, RelayFrame.COUNTER_OFFSET, frame.remaining() - RelayFrame.COUNTER_OFFSET, RelayFrame.HEADER_LENGTH);
+        StreamTable.Stream stream = streams.get(relay.stream());
+        if (stream == null) {
+            log.debug("丢弃未知流 {} 的中继帧", relay.stream());
+            return;
+        }
+        // 只把端到端密文拷贝出来交给浏览器连接，接收缓冲区随后即归还
+        byte[] sealed = new byte[frame.remaining() - relay.sealedOffset()];
+        frame.get(frame.position() + relay.sealedOffset(), sealed);
+        agentManager.forwardSealedOutput(stream.fullPtyId, sealed, relay.resync(), relay.offset());
+        recordDelivered(stream, relay.offset());
+        grantCredit(stream, relay.offset(), relay.resync());
+    }
+
+    private void recordDelivered(StreamTable.Stream stream, Long end) {
+        if (end != null) {
+            stream.deliveredOffset = end;
+        }
+    }
+
+    /**
+     * 输出已交给各浏览器连接后向 Agent 发放信用。快照总是立即确认，
+     * 普通输出每累计 {@link #CREDIT_GRANT_BYTES} 字节确认一次。
+     * <p>
+     * 交给浏览器连接只是进了 pipeline 的写队列：任何一个浏览器连接尚未写出的字节超过阈值时暂缓确认，
+     * 等它写出后按那时已转发的位置补发（见 {@link WsBacklog}），Agent 的输出不会快过最慢的浏览器
+     */
+    private void grantCredit(StreamTable.Stream stream, Long end, boolean resync) {
+        if (end == null) {
+            return;
+        }
+        synchronized (stream) {
+            if (stream.creditDeferred) {
+                // 已在等待浏览器写出，届时一并确认
+                return;
+            }
+            if (!resync && stream.grantedOffset >= 0 && end - stream.grantedOffset < CREDIT_GRANT_BYTES) {
+                return;
+            }
+            if (!agentManager.awaitViewersDrained(stream.fullPtyId, () -> resumeCredit(stream))) {
+                stream.creditDeferred = true;
+                return;
+            }
+            sendCredit(stream, end);
+        }
+    }
+
+    /**
+     * 浏览器连接写出到阈值以下后补发暂缓的信用，在该连接的写出线程上执行
+     */
+    private void resumeCredit(StreamTable.Stream stream) {
+        synchronized (stream) {
+            stream.creditDeferred = false;
+            long delivered = stream.deliveredOffset;
+            if (delivered > stream.grantedOffset) {
+                // 暂缓期间已经攒够或超过一个批次，按快照的规则立即确认，其余浏览器仍积压时继续等待
+                grantCredit(stream, delivered, true);
+            }
+        }
+    }
+
+    private void sendCredit(StreamTable.Stream stream, long end) {
+        stream.grantedOffset = end;
+        TcpMessage credit = new TcpMessage();
+        credit.setType(TcpMessageType.PTY_CREDIT);
+        credit.setPtyId(stream.ptyId);
+        credit.setOffset(end);
+        sendMessage(credit, true);
+    }
+
+    /**
+     * 未协商压缩时原样返回。解压失败时重新 attach 让 Agent 从 PTY_RESYNC 开始一个新的压缩流，
+     * 在此之前的帧都丢弃，返回 null
+     */
+    private byte[] inflate(StreamTable.Stream stream, byte[] payload, boolean resync) {
+        if (!compression || payload == null) {
+            return payload;
+        }
+        if (stream.inflater == null) {
+            stream.inflater = new StreamInflater();
+        }
+        StreamInflater inflater = stream.inflater;
+        if (resync) {
+            inflater.reset();
+            stream.awaitingResync = false;
+        } else if (stream.awaitingResync) {
+            return null;
+        }
+        try {
+            byte[] data = inflater.decompress(payload);
+            compressionStats.record(data.length, payload.length);
+            return data;
+        } catch (DataFormatException e) {
+            log.warn("终端 {} 的压缩输出无法解压，重新 attach 以重新同步", stream.fullPtyId, e);
+            stream.awaitingResync = true;
+            sendPtyAttach(stream.ptyId);
+            return null;
+        }
+    }
+
+    /**
+     * 本连接输出压缩的累计字节数
+     */
+    @Override
+    public CompressionStats getCompressionStats() {
+        return compressionStats.copy();
+    }
+
+    @Override
+    public boolean isCompression() {
+        return compression;
     }
 
     private void handlePtyVisibilityChanged(TcpMessage msg) {
         if (msg.getRemoteViewable() != null && !msg.getRemoteViewable()) {
+            releaseStream(msg.getPtyId());
             agentManager.handlePtyVisibilityDisabled(agentId, msg.getPtyId());
             log.info("终端 {}:{} 已关闭远端可见", agentId, msg.getPtyId());
         }
     }
 
+    private void handlePtyInfoChanged(TcpMessage msg) {
+        if (msg.getPtyId() != null) {
+            boolean listed = Boolean.TRUE.equals(msg.getRemoteViewable());
+            if (!listed) {
+                // 终端已退出、关闭或不再远端可见，不会再有输出，释放它的流和解压上下文
+                releaseStream(msg.getPtyId());
+            }
+            agentManager.applyPtyDelta(agentId, msg.getPtyId(), msg.getName(), listed);
+        }
+    }
+
+    private void releaseStream(String ptyId) {
+        StreamTable.Stream stream = streams.release(ptyId);
+        if (stream != null && stream.inflater != null) {
+            stream.inflater.end();
+        }
+    }
+
     private void handleRequestResult(TcpMessage msg)
     {
         String requestId = msg.getRequestId();
@@ -242,24 +591,56 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
     }
 
     public void sendMessage(TcpMessage msg, boolean encrypt) {
+        sendMessage(msg, encrypt, null);
+    }
+
+    /**
+     * @param nextSendKey 不为 null 时，本条消息是旧密钥下的最后一帧，发出后立即把发送方向切换到该密钥
+     */
+    private void sendMessage(TcpMessage msg, boolean encrypt, byte[] nextSendKey) {
         if (pipeline == null) return;
 
         try {
-            byte[] data = jfireSE.serialize(msg);
-
-            if (encrypt && crypto != null) {
-                data = crypto.encrypt(data);
+            AesGcmCrypto current = crypto;
+            if (!encrypt || current == null) {
+                pipeline.fireWrite(encodeFrame(msg, 0, 0));
+                return;
+            }
+            // 直接编码进出站 IoBuffer，预留帧头和认证标签的位置，加密在同一个缓冲区上原地完成
+            IoBuffer frame = encodeFrame(msg, AesGcmCrypto.HEADER_LENGTH, AesGcmCrypto.TAG_LENGTH);
+            int plaintextLength = frame.remainRead() - AesGcmCrypto.HEADER_LENGTH - AesGcmCrypto.TAG_LENGTH;
+            // nonce 计数器要求按加密顺序发出，加密与写出在同一把锁内完成
+            synchronized (current) {
+                try {
+                    current.encrypt(frame.readableByteBuffer(), plaintextLength);
+                } catch (Exception e) {
+                    frame.free();
+                    throw e;
+                }
+                pipeline.fireWrite(frame);
+                if (nextSendKey != null) {
+                    current.rekeySend(nextSendKey);
+                }
             }
-
-            // ValidatedLengthFrameEncoder 会自动添加魔法值、长度和 CRC16
-            IoBuffer buffer = pipeline.allocator().allocate(data.length);
-            buffer.put(data);
-            pipeline.fireWrite(buffer);
         } catch (Exception e) {
             log.error("发送消息失败", e);
         }
     }
 
+    /**
+     * 按编码长度申请出站 IoBuffer 并直接写入消息，前后留出 headroom、tailroom 字节供原地加密。
+     * ValidatedLengthFrameEncoder 会在写出时自动添加魔法值、长度和 CRC16
+     */
+    private IoBuffer encodeFrame(TcpMessage msg, int headroom, int tailroom) {
+        TcpMessageCodec.Encoding encoding = TcpMessageCodec.prepare(msg);
+        int length = headroom + encoding.length() + tailroom;
+        IoBuffer buffer = pipeline.allocator().allocate(length);
+        ByteBuffer view = buffer.writableByteBuffer();
+        encoding.writeTo(view.position(view.position() + headroom));
+        buffer.addWritePosi(length);
+        return buffer;
+    }
+
     private byte[] tokenBytes() {
         return config.getToken().getBytes(StandardCharsets.UTF_8);
     }
@@ -297,20 +678,28 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
         return agreement.generateSecret();
     }
 
-    public void requestPtyList() {
+    /**
+     * @param data 原始输入字节
+     */
+    @Override
+    public void sendPtyInput(String ptyId, byte[] data) {
         TcpMessage msg = new TcpMessage();
-        msg.setType(TcpMessageType.PTY_LIST_REQUEST);
+        msg.setType(TcpMessageType.PTY_INPUT);
+        msg.setPtyId(ptyId);
+        msg.setPayload(data);
         sendMessage(msg, true);
     }
 
-    public void sendPtyInput(String ptyId, String data) {
+    @Override
+    public void sendPtySealedInput(String ptyId, byte[] sealed) {
         TcpMessage msg = new TcpMessage();
-        msg.setType(TcpMessageType.PTY_INPUT);
+        msg.setType(TcpMessageType.PTY_SEALED_INPUT);
         msg.setPtyId(ptyId);
-        msg.setData(data);
+        msg.setPayload(sealed);
         sendMessage(msg, true);
     }
 
+    @Override
     public void sendPtyResize(String ptyId, int cols, int rows) {
         TcpMessage msg = new TcpMessage();
         msg.setType(TcpMessageType.PTY_RESIZE);
@@ -320,6 +709,7 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
         sendMessage(msg, true);
     }
 
+    @Override
     public void sendPtyClose(String ptyId) {
         TcpMessage msg = new TcpMessage();
         msg.setType(TcpMessageType.PTY_CLOSE);
@@ -327,13 +717,22 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
         sendMessage(msg, true);
     }
 
-    public void sendPtyAttach(String ptyId) {
+    /**
+     * @param since 不为 null 时请求从该输出流偏移量恢复：Agent 只补发之后的输出，浏览器上已有的内容保持不变。
+     *              补发的第一帧是普通 PTY_OUTPUT，要求本连接上该终端还没有解压上下文，因此只用于重连后的恢复
+     */
+    @Override
+    public void sendPtyAttach(String ptyId, Long since) {
         TcpMessage msg = new TcpMessage();
         msg.setType(TcpMessageType.PTY_ATTACH);
         msg.setPtyId(ptyId);
+        // 同一终端在本连接上总是沿用同一个流 ID
+        msg.setStream(streams.open(ptyId, agentId + ":" + ptyId).id);
+        msg.setOffset(since);
         sendMessage(msg, true);
     }
 
+    @Override
     public void sendPtyDetach(String ptyId) {
         TcpMessage msg = new TcpMessage();
         msg.setType(TcpMessageType.PTY_DETACH);
@@ -341,6 +740,7 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
         sendMessage(msg, true);
     }
 
+    @Override
     public CompletableFuture<TcpMessage> sendPtyCreate(String name, Integer cols, Integer rows)
     {
         if (!authenticated)
@@ -362,6 +762,7 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
         return future;
     }
 
+    @Override
     public CompletableFuture<TcpMessage> sendPtyRename(String ptyId, String newName)
     {
         if (!authenticated)
@@ -390,7 +791,17 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
             future.completeExceptionally(e);
         }
         pendingRequests.clear();
+        Map<String, Long> deliveredOffsets = new HashMap<>();
+        for (StreamTable.Stream stream : streams.all()) {
+            if (stream.inflater != null) {
+                stream.inflater.end();
+            }
+            if (stream.deliveredOffset >= 0) {
+                deliveredOffsets.put(stream.ptyId, stream.deliveredOffset);
+            }
+        }
         if (registeredToManager && agentId != null) {
+            agentManager.saveResumeOffsets(agentId, deliveredOffsets);
             agentManager.unregisterAgent(agentId);
         }
     }
@@ -399,6 +810,7 @@ public class ServerTcpHandler implements ReadProcessor<IoBuffer> {
         return agentId;
     }
 
+    @Override
     public boolean isAuthenticated() {
         return authenticated;
     }
@@ -0,0 +1,157 @@
+package cc.jfire.webcli.server;
+
+import cc.jfire.webcli.protocol.StreamInflater;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一条 Agent 连接上终端输出流的路由表。
+ * <p>
+ * Server 在 attach 时为终端分配连接内的整数流 ID，随 PTY_ATTACH 发给 Agent，此后 PTY_OUTPUT、PTY_RESYNC 和中继帧
+ * 只携带流 ID，不再携带 ptyId 和 agentId。读线程按 ID 在数组中找到流及其解压上下文和偏移量，
+ * 不再为每帧拼接 fullPtyId、查多张以字符串为键的表。
+ * <p>
+ * 流 ID 在连接内不复用：终端关闭后仍在路上的输出帧找不到流而被丢弃，不会串到之后 attach 的终端上。
+ * ID 只增不减，因此数组不按 ID 直接下标，而是以 ID 为键做线性探测，容量只随同时存在的流数变化，
+ * 长期连接上反复开关终端不会让数组一直变大。分配和释放很少发生，每次都重建数组（写时复制），读线程无锁读取。
+ */
+final class StreamTable
+{
+    private static final int MIN_CAPACITY = 16;
+
+    /** 以流 ID 线性探测的开放寻址表，长度为 2 的幂，至少一半为空 */
+    private volatile Stream[]            streams = new Stream[MIN_CAPACITY];
+    private final    Map<String, Stream> byPtyId = new HashMap<>();
+    private          int                 nextId  = 1;
+
+    /**
+     * 返回终端当前的流，没有时分配一个新的流 ID。同一终端重复 attach 沿用原来的流
+     */
+    synchronized Stream open(String ptyId, String fullPtyId)
+    {
+        Stream stream = byPtyId.get(ptyId);
+        if (stream != null)
+        {
+            return stream;
+        }
+        stream = new Stream(nextId++, ptyId, fullPtyId);
+        byPtyId.put(ptyId, stream);
+        rebuild();
+        return stream;
+    }
+
+    /**
+     * 终端关闭或不再远端可见时释放它的流，之后到达的帧不再路由
+     *
+     * @return 被释放的流，没有时为 null
+     */
+    synchronized Stream release(String ptyId)
+    {
+        Stream stream = byPtyId.remove(ptyId);
+        if (stream != null)
+        {
+            rebuild();
+        }
+        return stream;
+    }
+
+    /**
+     * @return 流 ID 对应的流，未分配或已释放时为 null
+     */
+    Stream get(int id)
+    {
+        if (id <= 0)
+        {
+            return null;
+        }
+        Stream[] current = streams;
+        int      mask    = current.length - 1;
+        for (int i = id & mask; ; i = (i + 1) & mask)
+        {
+            Stream stream = current[i];
+            if (stream == null || stream.id == id)
+            {
+                return stream;
+            }
+        }
+    }
+
+    /**
+     * 当前数组长度
+     */
+    int capacity()
+    {
+        return streams.length;
+    }
+
+    /**
+     * 按当前存活的流重建数组，负载不超过一半
+     */
+    private void rebuild()
+    {
+        int capacity = MIN_CAPACITY;
+        while (capacity < byPtyId.size() * 2)
+        {
+            capacity <<= 1;
+        }
+        Stream[] next = new Stream[capacity];
+        int      mask = capacity - 1;
+        for (Stream stream : byPtyId.values())
+        {
+            int i = stream.id & mask;
+            while (next[i] != null)
+            {
+                i = (i + 1) & mask;
+            }
+            next[i] = stream;
+        }
+        streams = next;
+    }
+
+    /**
+     * 当前所有流
+     */
+    List<Stream> all()
+    {
+        List<Stream> all = new ArrayList<>();
+        for (Stream stream : streams)
+        {
+            if (stream != null)
+            {
+                all.add(stream);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * 一个终端的输出流。除 ID 外的状态只在连接的读线程中访问
+     */
+    static final class Stream
+    {
+        final int      id;
+        final String   ptyId;
+        /** 带 agentId 前缀的终端 ID，浏览器连接按它注册监听器 */
+        final String   fullPtyId;
+        /** 输出流的解压上下文，未协商压缩时为 null */
+        StreamInflater inflater;
+        /** 解压失败、正在等待 PTY_RESYNC 重新开始压缩流 */
+        boolean        awaitingResync;
+        /** 最近一次发放信用时的输出流偏移量，-1 表示尚未发放 */
+        long           grantedOffset   = -1;
+        /** 浏览器连接积压、信用正在等待它们写出 */
+        boolean        creditDeferred;
+        /** 已转发给浏览器的输出末尾偏移量，断线后用于重连恢复，-1 表示尚未转发。暂缓的信用在浏览器写出后按它补发 */
+        volatile long  deliveredOffset = -1;
+
+        private Stream(int id, String ptyId, String fullPtyId)
+        {
+            this.id = id;
+            this.ptyId = ptyId;
+            this.fullPtyId = fullPtyId;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package cc.jfire.webcli.server;
+
+import cc.jfire.jnet.common.api.WriteListener;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一条远端浏览器 WebSocket 连接上已经交给 pipeline、还没有真正写进 socket 的字节数。
+ * <p>
+ * 发送消息时累加，pipeline 每写出一部分（{@link #partWriteFinish}）就扣减。Server 向 Agent 发放输出信用前检查终端的
+ * 每个浏览器连接，任何一个积压超过阈值就暂缓，等它写出到阈值以下再补发，Agent 的输出速度因此跟随最慢的浏览器实际的接收速度，
+ * 而不是 fireWrite 返回的速度。
+ * <p>
+ * 写出的字节包含 WebSocket 帧头，积压会略微低估，扣减到 0 为止。连接写失败或关闭后不再计数，并唤醒所有等待者，不再挡住 Agent。
+ */
+@Slf4j
+public final class WsBacklog implements WriteListener
+{
+    private final    AtomicLong                      pending = new AtomicLong();
+    private final    ConcurrentLinkedQueue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+    private final    long                            threshold;
+    private volatile boolean                         closed;
+
+    /**
+     * @param threshold 积压超过该字节数视为拥塞
+     */
+    public WsBacklog(long threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    /**
+     * 一条消息已交给 pipeline 等待写出
+     */
+    public void queued(int bytes)
+    {
+        if (!closed)
+        {
+            pending.addAndGet(bytes);
+        }
+    }
+
+    public boolean isCongested()
+    {
+        return !closed && pending.get() > threshold;
+    }
+
+    /**
+     * 登记积压降到阈值以下时要执行的动作，在写出线程上执行一次。
+     *
+     * @return false 表示此时已不拥塞、动作没有登记，调用方应自行继续
+     */
+    public boolean whenDrained(Runnable action)
+    {
+        waiters.add(action);
+        // 登记之后再检查一次：写出线程可能恰好在登记前扣减到阈值以下，此时由调用方自己继续。
+        // 撤回失败说明写出线程已经取走并会执行它
+        return isCongested() || !waiters.remove(action);
+    }
+
+    @Override
+    public void partWriteFinish(long currentSend)
+    {
+        long left = pending.updateAndGet(value -> Math.max(0, value - currentSend));
+        if (left <= threshold && !waiters.isEmpty())
+        {
+            runWaiters();
+        }
+    }
+
+    @Override
+    public void writeFailed(Throwable e)
+    {
+        close();
+    }
+
+    /**
+     * 连接关闭后不再挡住任何终端的信用
+     */
+    public void close()
+    {
+        closed = true;
+        pending.set(0);
+        runWaiters();
+    }
+
+    private void runWaiters()
+    {
+        Runnable action;
+        while ((action = waiters.poll()) != null)
+        {
+            try
+            {
+                action.run();
+            }
+            catch (Exception e)
+            {
+                log.error("浏览器连接积压排空后的回调执行失败", e);
+            }
+        }
+    }
+}
@@ -3,9 +3,13 @@ package cc.jfire.webcli.web;
 import cc.jfire.baseutil.Resource;
 import cc.jfire.boot.forward.path.Path;
 import cc.jfire.boot.http.HttpRequestExtend;
+import cc.jfire.webcli.protocol.CompressionStats;
 import cc.jfire.webcli.protocol.PtyInfo;
+import cc.jfire.webcli.pty.HistoryUsage;
+import cc.jfire.webcli.pty.OutputSubscriberStats;
 import cc.jfire.webcli.pty.PtyInstance;
 import cc.jfire.webcli.pty.PtyManager;
+import cc.jfire.webcli.pty.ShellPoolStats;
 import cc.jfire.webcli.web.dto.ApiResponse;
 import cc.jfire.webcli.web.dto.CreateTerminalRequest;
 import cc.jfire.webcli.web.dto.RenameTerminalRequest;
@@ -15,6 +19,7 @@ import lombok.extern.slf4j.Slf4j;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Local 模式终端管理 HTTP Controller
@@ -26,6 +31,9 @@ public class LocalTerminalController {
     @Resource
     private PtyManager ptyManager;
 
+    @Resource
+    private WsConnections wsConnections;
+
     /**
      * 获取终端列表
      * GET /api/terminals
@@ -144,4 +152,69 @@ public class LocalTerminalController {
         log.info("通过 HTTP API 设置终端 {} 远程可见: {}", id, remoteViewable);
         return ApiResponse.ok(info);
     }
+
+    /**
+     * 查看终端各输出订阅者的队列积压情况
+     * GET /api/terminal/${id}/subscribers
+     */
+    @Path("/api/terminal/${id}/subscribers")
+    public ApiResponse<List<OutputSubscriberStats>> subscriberStats(HttpRequestExtend request, String id) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            return ApiResponse.error("Method not allowed");
+        }
+        if (ptyManager == null) {
+            return ApiResponse.error("PtyManager 未初始化");
+        }
+        PtyInstance pty = ptyManager.get(id);
+        if (pty == null) {
+            return ApiResponse.error("终端不存在: " + id);
+        }
+        return ApiResponse.ok(pty.getSubscriberStats());
+    }
+
+    /**
+     * 查看预热 Shell 池的命中情况
+     * GET /api/terminals/pool
+     */
+    @Path("/api/terminals/pool")
+    public ApiResponse<ShellPoolStats> poolStats(HttpRequestExtend request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            return ApiResponse.error("Method not allowed");
+        }
+        if (ptyManager == null) {
+            return ApiResponse.error("PtyManager 未初始化");
+        }
+        ShellPoolStats stats = ptyManager.getShellPoolStats();
+        return stats != null ? ApiResponse.ok(stats) : ApiResponse.error("预热 Shell 池未启用");
+    }
+
+    /**
+     * 查看所有终端历史缓冲区的内存占用与回收情况
+     * GET /api/terminals/history
+     */
+    @Path("/api/terminals/history")
+    public ApiResponse<HistoryUsage> historyUsage(HttpRequestExtend request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            return ApiResponse.error("Method not allowed");
+        }
+        if (ptyManager == null) {
+            return ApiResponse.error("PtyManager 未初始化");
+        }
+        return ApiResponse.ok(ptyManager.getHistoryUsage());
+    }
+
+    /**
+     * 查看本地浏览器各 WebSocket 连接的终端输出压缩情况
+     * GET /api/terminals/compression
+     */
+    @Path("/api/terminals/compression")
+    public ApiResponse<Map<String, CompressionStats>> compressionStats(HttpRequestExtend request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            return ApiResponse.error("Method not allowed");
+        }
+        if (wsConnections == null) {
+            return ApiResponse.error("WsConnections 未初始化");
+        }
+        return ApiResponse.ok(WsConnections.compressionStats(wsConnections.getLocal()));
+    }
 }
@@ -6,28 +6,45 @@ import cc.jfire.jnet.common.api.ReadProcessor;
 import cc.jfire.jnet.common.api.ReadProcessorNode;
 import cc.jfire.jnet.common.buffer.buffer.IoBuffer;
 import cc.jfire.jnet.extend.websocket.dto.WebSocketFrame;
+import cc.jfire.webcli.protocol.CompressionStats;
 import cc.jfire.webcli.protocol.MessageType;
+import cc.jfire.webcli.protocol.StreamDeflater;
+import cc.jfire.webcli.protocol.WsBinaryFrame;
 import cc.jfire.webcli.protocol.WsMessage;
+import cc.jfire.webcli.protocol.WsStreams;
 import cc.jfire.webcli.pty.PtyInstance;
 import cc.jfire.webcli.pty.PtyManager;
+import cc.jfire.webcli.pty.PtyOutputListener;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Consumer;
 
 @Slf4j
 public class WebSocketHandler implements ReadProcessor<Object>
 {
     private final PtyManager                                                      ptyManager;
     private final ConcurrentHashMap<String, String>                               pipelinePtyMap          = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Consumer<String>>> pipelinePtyListeners    = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, PtyOutputListener>> pipelinePtyListeners    = new ConcurrentHashMap<>();
+    // 各连接上二进制帧的流 ID 和压缩上下文
+    private final ConcurrentHashMap<String, WsStreams>                            pipelineStreams;
+    private final boolean                                                         compression;
+    private final int                                                             compressionLevel;
 
-    public WebSocketHandler(PtyManager ptyManager)
+    /**
+     * @param pipelineStreams  各连接的流表，由 {@link WsConnections} 持有以便查询压缩统计
+     * @param compression      浏览器支持时是否压缩终端输出
+     * @param compressionLevel Deflater 压缩级别
+     */
+    public WebSocketHandler(PtyManager ptyManager, ConcurrentHashMap<String, WsStreams> pipelineStreams, boolean compression, int compressionLevel)
     {
         this.ptyManager = ptyManager;
+        this.pipelineStreams = pipelineStreams;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
     }
 
     @Override
@@ -52,6 +69,13 @@ public class WebSocketHandler implements ReadProcessor<Object>
                     log.debug("收到消息:{}", text);
                     handleMessage(pipeline, text);
                 }
+                else if (frame.getOpcode() == WebSocketFrame.OPCODE_BINARY)
+                {
+                    IoBuffer payload = frame.getPayload();
+                    byte[]   bytes   = new byte[payload.remainRead()];
+                    payload.get(bytes);
+                    handleBinary(pipeline, bytes);
+                }
             }
             finally
             {
@@ -64,7 +88,7 @@ public class WebSocketHandler implements ReadProcessor<Object>
         }
     }
 
-    private void handleMessage(Pipeline pipeline, String text)
+    void handleMessage(Pipeline pipeline, String text)
     {
         try
         {
@@ -85,15 +109,41 @@ public class WebSocketHandler implements ReadProcessor<Object>
         }
     }
 
+    /**
+     * 二进制帧只用于终端输入
+     */
+    private void handleBinary(Pipeline pipeline, byte[] bytes)
+    {
+        try
+        {
+            WsBinaryFrame frame   = WsBinaryFrame.parse(bytes);
+            WsStreams     streams = pipelineStreams.get(pipeline.pipelineId());
+            String        ptyId   = streams != null ? streams.ptyId(frame.stream()) : null;
+            if (frame.kind() != WsBinaryFrame.INPUT || frame.sealed() || ptyId == null)
+            {
+                log.warn("丢弃无法处理的二进制帧: kind={}, stream={}", frame.kind(), frame.stream());
+                return;
+            }
+            PtyInstance pty = ptyManager.get(ptyId);
+            if (pty != null)
+            {
+                pty.write(frame.payload());
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("处理二进制帧失败", e);
+        }
+    }
+
     private void handlePtyInput(Pipeline pipeline, WsMessage msg) throws IOException
     {
         String      ptyId = msg.getPtyId() != null ? msg.getPtyId() : pipelinePtyMap.get(pipeline.pipelineId());
         PtyInstance pty   = ptyManager.get(ptyId);
         if (pty != null)
         {
-            // 对 Base64 编码的数据进行解码
-            String decoded = new String(Base64.getDecoder().decode(msg.getData()), StandardCharsets.UTF_8);
-            pty.write(decoded);
+            // 对 Base64 编码的数据进行解码，原样写入 PTY
+            pty.write(Base64.getDecoder().decode(msg.getData()));
         }
     }
 
@@ -134,34 +184,52 @@ public class WebSocketHandler implements ReadProcessor<Object>
 
             // 每个连接允许同时监听多个 PTY，避免打开新终端后旧终端失去输出
             String pipelineId = pipeline.pipelineId();
-            ConcurrentHashMap<String, Consumer<String>> listeners = pipelinePtyListeners.computeIfAbsent(pipelineId, k -> new ConcurrentHashMap<>());
-            listeners.computeIfAbsent(pty.getId(), k -> {
-                Consumer<String> listener = output -> {
-                    WsMessage outMsg = new WsMessage();
-                    outMsg.setType(MessageType.PTY_OUTPUT);
-                    outMsg.setPtyId(pty.getId());
-                    outMsg.setData(Base64.getEncoder().encodeToString(output.getBytes(StandardCharsets.UTF_8)));
-                    sendMessage(pipeline, outMsg);
-                };
-                pty.addOutputListener(listener);
-                return listener;
-            });
+            // 浏览器支持时输出改用二进制帧，流 ID 在监听器创建时确定；浏览器能解压且本服务开启压缩时新分配的流压缩输出
+            boolean   binary   = Boolean.TRUE.equals(msg.getBinary());
+            boolean   compress = binary && compression && StreamDeflater.ALGORITHM.equals(msg.getCompression());
+            WsStreams streams  = binary ? pipelineStreams.computeIfAbsent(pipelineId, k -> new WsStreams(compressionLevel)) : null;
+            Integer   stream   = binary ? streams.open(pty.getId(), compress) : null;
 
-            // 发送历史输出
-            String history = pty.getOutputHistory();
-            if (history != null && !history.isEmpty())
-            {
-                WsMessage historyMsg = new WsMessage();
-                historyMsg.setType(MessageType.PTY_OUTPUT);
-                historyMsg.setPtyId(pty.getId());
-                historyMsg.setData(Base64.getEncoder().encodeToString(history.getBytes(StandardCharsets.UTF_8)));
-                sendMessage(pipeline, historyMsg);
-            }
-            // 发送成功响应
+            // 先发送成功响应再注册监听器：浏览器拿到流 ID 和压缩方式后才能识别随后的二进制输出帧。
+            // 反过来时正在输出的终端可能抢先送出一帧压缩输出，浏览器因不认识流 ID 丢弃它，
+            // 而服务端的压缩上下文已经前进，此后该流的每一帧都无法解压
             WsMessage response = new WsMessage();
             response.setType(MessageType.SUCCESS);
             response.setPtyId(msg.getPtyId());
+            response.setStream(stream);
+            response.setCompression(stream != null && streams.isCompressed(stream) ? StreamDeflater.ALGORITHM : null);
             sendMessage(pipeline, response);
+
+            ConcurrentHashMap<String, PtyOutputListener> listeners = pipelinePtyListeners.computeIfAbsent(pipelineId, k -> new ConcurrentHashMap<>());
+            PtyOutputListener attached = listeners.computeIfAbsent(pty.getId(), k -> {
+                PtyOutputListener listener = ptyManager.coalesce(pty, new PtyOutputListener()
+                {
+                    @Override
+                    public void onOutput(ByteBuffer data, long offset)
+                    {
+                        sendOutput(pipeline, pty.getId(), streams, stream, MessageType.PTY_OUTPUT, data);
+                    }
+
+                    @Override
+                    public void onResync(ByteBuffer snapshot, long offset)
+                    {
+                        // attach 时的初始画面，或浏览器消费过慢、中间输出被丢弃后的快照：前端清屏后重绘
+                        sendOutput(pipeline, pty.getId(), streams, stream, MessageType.PTY_RESYNC, snapshot);
+                    }
+
+                    @Override
+                    public void onOverflow()
+                    {
+                        sendError(pipeline, "终端输出积压过多，已停止推送: " + pty.getId());
+                        listeners.remove(pty.getId());
+                    }
+                });
+                pty.addOutputListener(listener);
+                return listener;
+            });
+
+            // 再推送当前画面快照（PTY_RESYNC），然后继续实时输出；重复 attach 同样从完整画面开始
+            pty.requestResync(attached);
         }
         else
         {
@@ -173,8 +241,18 @@ public class WebSocketHandler implements ReadProcessor<Object>
     {
         String pipelineId = pipeline.pipelineId();
         pipelinePtyMap.remove(pipelineId);
+        WsStreams streams = pipelineStreams.remove(pipelineId);
+        if (streams != null)
+        {
+            streams.closeAll();
+            CompressionStats stats = streams.getCompressionStats();
+            if (stats.getRawBytes() > 0)
+            {
+                log.info("WebSocket 连接 {} 输出压缩累计 {} 字节 -> {} 字节，压缩比 {}", pipelineId, stats.getRawBytes(), stats.getCompressedBytes(), String.format("%.2f", stats.getRatio()));
+            }
+        }
 
-        ConcurrentHashMap<String, Consumer<String>> listeners = pipelinePtyListeners.remove(pipelineId);
+        ConcurrentHashMap<String, PtyOutputListener> listeners = pipelinePtyListeners.remove(pipelineId);
         if (listeners != null)
         {
             listeners.forEach((ptyId, listener) ->
@@ -190,17 +268,55 @@ public class WebSocketHandler implements ReadProcessor<Object>
 
     private void sendMessage(Pipeline pipeline, WsMessage msg)
     {
-        String   json    = Dson.toJson(msg);
+        String json = Dson.toJson(msg);
         log.debug("发送消息: {}", json.length() > 100 ? json.substring(0, 100) + "..." : json);
-        byte[]   bytes   = json.getBytes(StandardCharsets.UTF_8);
+        write(pipeline, false, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param stream 不为 null 时以二进制帧发送，按该流的设置压缩或发送原始字节；否则包装为 JSON 并做 Base64
+     */
+    private void sendOutput(Pipeline pipeline, String ptyId, WsStreams streams, Integer stream, MessageType type, ByteBuffer data)
+    {
+        if (stream != null)
+        {
+            streams.output(stream, type == MessageType.PTY_RESYNC, data, bytes -> sendBinary(pipeline, bytes));
+            return;
+        }
+        WsMessage outMsg = new WsMessage();
+        outMsg.setType(type);
+        outMsg.setPtyId(ptyId);
+        outMsg.setData(base64(data));
+        sendMessage(pipeline, outMsg);
+    }
+
+    private void sendBinary(Pipeline pipeline, byte[] bytes)
+    {
+        write(pipeline, true, bytes);
+    }
+
+    /**
+     * 把一帧交给连接写出，消息和输出都经过这里，发出顺序即浏览器收到的顺序
+     */
+    void write(Pipeline pipeline, boolean binary, byte[] bytes)
+    {
         IoBuffer payload = pipeline.allocator().allocate(bytes.length);
         payload.put(bytes);
         WebSocketFrame frame = new WebSocketFrame();
-        frame.setOpcode(WebSocketFrame.OPCODE_TEXT);
+        frame.setOpcode(binary ? WebSocketFrame.OPCODE_BINARY : WebSocketFrame.OPCODE_TEXT);
         frame.setPayload(payload);
         pipeline.fireWrite(frame);
     }
 
+    /**
+     * 直接对原始字节做 Base64，避免先复制成 byte[] 再编码
+     */
+    private static String base64(ByteBuffer data)
+    {
+        ByteBuffer encoded = Base64.getEncoder().encode(data);
+        return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1);
+    }
+
     private void sendError(Pipeline pipeline, String error)
     {
         WsMessage msg = new WsMessage();
@@ -0,0 +1,39 @@
+package cc.jfire.webcli.web;
+
+import cc.jfire.baseutil.Resource;
+import cc.jfire.webcli.protocol.CompressionStats;
+import cc.jfire.webcli.protocol.WsStreams;
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 浏览器 WebSocket 连接的二进制流表（pipelineId -> {@link WsStreams}），本地和远端 Web 服务分开保存。
+ * WebSocket 处理器在 attach 时登记、连接关闭时移除，查询接口从这里读取各连接的输出压缩统计
+ */
+@Resource
+@Getter
+public class WsConnections
+{
+    private final ConcurrentHashMap<String, WsStreams> local  = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, WsStreams> remote = new ConcurrentHashMap<>();
+
+    /**
+     * @return pipelineId -> 该连接输出压缩的累计字节数，只包含已经压缩过输出的连接
+     */
+    public static Map<String, CompressionStats> compressionStats(Map<String, WsStreams> connections)
+    {
+        Map<String, CompressionStats> result = new LinkedHashMap<>();
+        connections.forEach((pipelineId, streams) ->
+        {
+            CompressionStats stats = streams.getCompressionStats();
+            if (stats.getRawBytes() > 0)
+            {
+                result.put(pipelineId, stats);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,26 @@
+package cc.jfire.webcli.web.dto;
+
+import cc.jfire.webcli.protocol.PtyInfo;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 远端终端列表自某个版本以来的变化
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PtyListChanges
+{
+    /** 当前版本，下次请求时作为 since 传回 */
+    private long          version;
+    /** true 表示 since 过旧，terminals 是完整列表，客户端应丢弃本地列表 */
+    private boolean       full;
+    /** 新增或发生变化的终端 */
+    private List<PtyInfo> terminals;
+    /** 已移除的终端 ID */
+    private List<String>  removed;
+}
@@ -0,0 +1,33 @@
+package cc.jfire.webcli.agent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBackoffTest
+{
+    @Test
+    public void nextDelay_shouldDoubleUpToMaximum()
+    {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 5000, () -> 0.999999);
+        assertEquals(999, backoff.nextDelayMillis());
+        assertEquals(1999, backoff.nextDelayMillis());
+        assertEquals(3999, backoff.nextDelayMillis());
+        assertEquals(4999, backoff.nextDelayMillis());
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(4999, backoff.nextDelayMillis());
+        }
+    }
+
+    @Test
+    public void nextDelay_shouldSpreadWithJitterAndRestartAfterReset()
+    {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, () -> 0.5);
+        backoff.nextDelayMillis();
+        assertEquals(1000, backoff.nextDelayMillis());
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertEquals(500, backoff.nextDelayMillis());
+    }
+}
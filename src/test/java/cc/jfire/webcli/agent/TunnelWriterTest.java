@@ -0,0 +1,151 @@
+package cc.jfire.webcli.agent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TunnelWriterTest
+{
+    @Test
+    public void control_shouldOvertakeBulkWhenWindowIsFull() throws Exception
+    {
+        List<String>         sent   = new CopyOnWriteArrayList<>();
+        TunnelWriter<byte[]> writer = new TunnelWriter<>("test-writer", (frame, length, key) ->
+        {
+            sent.add(new String(frame));
+            return frame.length;
+        }, frame -> frame.length, 4, 1024, id -> {});
+        try
+        {
+            writer.bulk("a", false, "a1".getBytes(), 2);
+            writer.bulk("a", false, "a2".getBytes(), 2);
+            writer.bulk("a", false, "a3".getBytes(), 2);
+            awaitSize(sent, 2);
+            // 窗口已满，批量通道暂停，控制消息照常发出
+            writer.control("c1".getBytes(), 2, null);
+            awaitSize(sent, 3);
+            assertEquals(List.of("a1", "a2", "c1"), sent);
+            writer.acknowledge(4);
+            awaitSize(sent, 4);
+            assertEquals("a3", sent.get(3));
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void bulk_shouldRoundRobinAcrossStreams() throws Exception
+    {
+        List<String>         sent   = new CopyOnWriteArrayList<>();
+        TunnelWriter<byte[]> writer = new TunnelWriter<>("test-writer", (frame, length, key) ->
+        {
+            sent.add(new String(frame));
+            return frame.length;
+        }, frame -> frame.length, 2, 1024, id -> {});
+        try
+        {
+            writer.bulk("a", false, "a1".getBytes(), 2);
+            awaitSize(sent, 1);
+            // 窗口已满时排队：a 的积压不会挡住 b
+            writer.bulk("a", false, "a2".getBytes(), 2);
+            writer.bulk("a", false, "a3".getBytes(), 2);
+            writer.bulk("b", false, "b1".getBytes(), 2);
+            for (int i = 1; i <= 3; i++)
+            {
+                writer.acknowledge(2L * i);
+                awaitSize(sent, i + 1);
+            }
+            assertEquals(List.of("a1", "a2", "b1", "a3"), sent);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void bulk_shouldDropBacklogUntilResyncOnOverflow() throws Exception
+    {
+        List<String>         sent       = new CopyOnWriteArrayList<>();
+        List<String>         overflowed = new ArrayList<>();
+        TunnelWriter<byte[]> writer = new TunnelWriter<>("test-writer", (frame, length, key) ->
+        {
+            sent.add(new String(frame));
+            return frame.length;
+        }, frame -> frame.length, 2, 4, overflowed::add);
+        try
+        {
+            writer.bulk("a", false, "a1".getBytes(), 2);
+            awaitSize(sent, 1);
+            writer.bulk("a", false, "a2".getBytes(), 2);
+            writer.bulk("a", false, "a3".getBytes(), 2);
+            writer.bulk("a", false, "a4".getBytes(), 2);
+            writer.bulk("a", false, "a5".getBytes(), 2);
+            assertEquals(List.of("a"), overflowed);
+            writer.bulk("a", true, "r1".getBytes(), 2);
+            writer.acknowledge(2);
+            awaitSize(sent, 2);
+            assertEquals(List.of("a1", "r1"), sent);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void bulk_shouldReleaseFramesThatAreNeverWritten() throws Exception
+    {
+        List<String> sent     = new CopyOnWriteArrayList<>();
+        List<String> released = new CopyOnWriteArrayList<>();
+        TunnelWriter.Sink<byte[]> sink = new TunnelWriter.Sink<>()
+        {
+            @Override
+            public int write(byte[] frame, int plaintextLength, byte[] nextSendKey)
+            {
+                sent.add(new String(frame));
+                return frame.length;
+            }
+
+            @Override
+            public void release(byte[] frame)
+            {
+                released.add(new String(frame));
+            }
+        };
+        TunnelWriter<byte[]> writer = new TunnelWriter<>("test-writer", sink, frame -> frame.length, 2, 4, id -> {});
+        writer.bulk("a", false, "a1".getBytes(), 2);
+        awaitSize(sent, 1);
+        writer.bulk("a", false, "a2".getBytes(), 2);
+        writer.bulk("a", false, "a3".getBytes(), 2);
+        // 超出积压上限：丢弃已排队的 a2、a3 和新到的 a4，等待快照期间的 a5 也直接归还
+        writer.bulk("a", false, "a4".getBytes(), 2);
+        writer.bulk("a", false, "a5".getBytes(), 2);
+        assertEquals(List.of("a2", "a3", "a4", "a5"), released);
+        writer.bulk("b", false, "b1".getBytes(), 2);
+        writer.control("c1".getBytes(), 2, null);
+        awaitSize(sent, 2);
+        writer.close();
+        writer.control("c2".getBytes(), 2, null);
+        assertEquals(List.of("a2", "a3", "a4", "a5", "b1", "c2"), released);
+        assertEquals(List.of("a1", "c1"), sent);
+    }
+
+    private static void awaitSize(List<String> list, int size) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (list.size() < size && System.nanoTime() < deadline)
+        {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        assertEquals(size, list.size());
+    }
+}
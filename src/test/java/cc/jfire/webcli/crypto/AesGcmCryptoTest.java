@@ -0,0 +1,129 @@
+package cc.jfire.webcli.crypto;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AesGcmCryptoTest
+{
+    @Test
+    public void encrypt_shouldRoundTripInPlaceInBothDirections() throws Exception
+    {
+        byte[]       key    = AesGcmCrypto.generateKey();
+        AesGcmCrypto agent  = new AesGcmCrypto(key, true);
+        AesGcmCrypto server = new AesGcmCrypto(key, false);
+        for (int i = 0; i < 3; i++)
+        {
+            byte[] up = frame("input-" + i);
+            assertEquals("input-" + i, open(server, up, agent.encrypt(up, up.length - AesGcmCrypto.HEADER_LENGTH - AesGcmCrypto.TAG_LENGTH)));
+            byte[] down = frame("output-" + i);
+            assertEquals("output-" + i, open(agent, down, server.encrypt(down, down.length - AesGcmCrypto.HEADER_LENGTH - AesGcmCrypto.TAG_LENGTH)));
+        }
+    }
+
+    @Test
+    public void encrypt_shouldNeverRepeatNonceAcrossFrames() throws Exception
+    {
+        AesGcmCrypto crypto = new AesGcmCrypto(AesGcmCrypto.generateKey(), true);
+        byte[]       first  = frame("same");
+        byte[]       second = frame("same");
+        crypto.encrypt(first, 4);
+        crypto.encrypt(second, 4);
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void decrypt_shouldRejectReplayedFrame() throws Exception
+    {
+        byte[]       key    = AesGcmCrypto.generateKey();
+        AesGcmCrypto agent  = new AesGcmCrypto(key, true);
+        AesGcmCrypto server = new AesGcmCrypto(key, false);
+        byte[]       frame  = frame("ls\n");
+        int          length = agent.encrypt(frame, 3);
+        byte[]       replay = Arrays.copyOf(frame, length);
+        server.decrypt(frame, 0, length);
+        server.decrypt(replay, 0, length);
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void decrypt_shouldRejectFrameReflectedFromSameDirection() throws Exception
+    {
+        byte[]       key    = AesGcmCrypto.generateKey();
+        AesGcmCrypto agent  = new AesGcmCrypto(key, true);
+        byte[]       frame  = frame("ls\n");
+        int          length = agent.encrypt(frame, 3);
+        // 方向前缀不同，Agent 自己发出的帧不能被当作 Server 的帧接受
+        new AesGcmCrypto(key, true).decrypt(frame, 0, length);
+    }
+
+    @Test
+    public void rekey_shouldSwitchKeyAtFrameBoundary() throws Exception
+    {
+        byte[]       key    = AesGcmCrypto.generateKey();
+        byte[]       next   = AesGcmCrypto.generateKey();
+        AesGcmCrypto agent  = new AesGcmCrypto(key, true);
+        AesGcmCrypto server = new AesGcmCrypto(key, false);
+        // 旧密钥下的最后一帧发出后立即切换发送方向
+        byte[] last    = frame("REKEY_RESPONSE");
+        int    lastLen = server.encrypt(last, 14);
+        server.rekeySend(next);
+        byte[] first    = frame("output");
+        int    firstLen = server.encrypt(first, 6);
+        assertEquals("REKEY_RESPONSE", open(agent, last, lastLen));
+        agent.rekeyReceive(next);
+        assertEquals("output", open(agent, first, firstLen));
+        // 另一个方向尚未切换，仍使用旧密钥
+        byte[] input = frame("ls");
+        assertEquals("ls", open(server, input, agent.encrypt(input, 2)));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void rekey_shouldRejectFrameUnderStaleReceiveKey() throws Exception
+    {
+        byte[]       key    = AesGcmCrypto.generateKey();
+        AesGcmCrypto agent  = new AesGcmCrypto(key, true);
+        AesGcmCrypto server = new AesGcmCrypto(key, false);
+        server.rekeySend(AesGcmCrypto.generateKey());
+        byte[] frame = frame("output");
+        agent.decrypt(frame, 0, server.encrypt(frame, 6));
+    }
+
+    @Test
+    public void encrypt_shouldWorkInPlaceOnDirectBufferAtPosition() throws Exception
+    {
+        byte[]       key    = AesGcmCrypto.generateKey();
+        AesGcmCrypto agent  = new AesGcmCrypto(key, true);
+        AesGcmCrypto server = new AesGcmCrypto(key, false);
+        byte[]       plain  = "top -b -n 1".getBytes(StandardCharsets.UTF_8);
+        // 模拟连接的 IoBuffer：帧不从缓冲区开头开始
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.position(5).limit(5 + AesGcmCrypto.HEADER_LENGTH + plain.length + AesGcmCrypto.TAG_LENGTH);
+        buffer.put(5 + AesGcmCrypto.HEADER_LENGTH, plain);
+        int length = agent.encrypt(buffer, plain.length);
+        assertEquals(buffer.remaining(), length);
+        assertEquals(5, buffer.position());
+        int    plainLength = server.decrypt(buffer);
+        byte[] decrypted   = new byte[plainLength];
+        buffer.get(5 + AesGcmCrypto.HEADER_LENGTH, decrypted);
+        assertArrayEquals(plain, decrypted);
+    }
+
+    private static byte[] frame(String text)
+    {
+        byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[AesGcmCrypto.HEADER_LENGTH + plain.length + AesGcmCrypto.TAG_LENGTH];
+        System.arraycopy(plain, 0, frame, AesGcmCrypto.HEADER_LENGTH, plain.length);
+        return frame;
+    }
+
+    private static String open(AesGcmCrypto crypto, byte[] frame, int length) throws GeneralSecurityException
+    {
+        int plain = crypto.decrypt(frame, 0, length);
+        return new String(frame, AesGcmCrypto.HEADER_LENGTH, plain, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+package cc.jfire.webcli.crypto;
+
+import cc.jfire.webcli.protocol.RelayFrame;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class EndToEndCipherTest
+{
+    @Test
+    public void fromSecret_shouldDeriveSameKeyForSameSecret() throws Exception
+    {
+        EndToEndCipher agent   = EndToEndCipher.fromSecret("correct horse");
+        EndToEndCipher browser = EndToEndCipher.fromSecret("correct horse");
+        byte[]         aad     = EndToEndCipher.outputAad("pty-1", false, 42);
+        byte[]         sealed  = agent.seal("hello".getBytes(StandardCharsets.UTF_8), aad);
+        assertEquals("hello", new String(browser.open(sealed, aad), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void open_shouldRejectOutputMovedToAnotherOffset() throws Exception
+    {
+        EndToEndCipher cipher = EndToEndCipher.fromSecret("secret");
+        byte[]         sealed = cipher.seal("ls".getBytes(StandardCharsets.UTF_8), EndToEndCipher.outputAad("pty-1", false, 10));
+        cipher.open(sealed, EndToEndCipher.outputAad("pty-1", true, 10));
+    }
+
+    @Test
+    public void openInput_shouldRejectReplayAndStaleInput() throws Exception
+    {
+        EndToEndCipher cipher = EndToEndCipher.fromSecret("secret");
+        long           now    = System.currentTimeMillis();
+        byte[]         sealed = cipher.sealInput("pty-1", "rm -rf /tmp/x\n".getBytes(StandardCharsets.UTF_8), now);
+        assertNull(cipher.openInput("pty-2", sealed, now));
+        assertEquals("rm -rf /tmp/x\n", new String(cipher.openInput("pty-1", sealed, now), StandardCharsets.UTF_8));
+        assertNull(cipher.openInput("pty-1", sealed, now));
+        byte[] stale = cipher.sealInput("pty-1", "ls\n".getBytes(StandardCharsets.UTF_8), now - 10 * 60 * 1000);
+        assertNull(cipher.openInput("pty-1", stale, now));
+    }
+
+    @Test
+    public void relayFrame_shouldForwardCiphertextWithoutDecrypting() throws Exception
+    {
+        byte[]         key      = AesGcmCrypto.generateKey();
+        AesGcmCrypto   agent    = new AesGcmCrypto(key, true);
+        AesGcmCrypto   server   = new AesGcmCrypto(key, false);
+        EndToEndCipher endToEnd = EndToEndCipher.fromSecret("secret");
+        byte[]         output   = "top secret output".getBytes(StandardCharsets.UTF_8);
+        int            sealed   = EndToEndCipher.sealedLength(output.length);
+        byte[]         frame    = RelayFrame.allocate(7, true, 1234, sealed);
+        endToEnd.seal(ByteBuffer.wrap(output), EndToEndCipher.outputAad("pty-1", true, 1234), frame, frame.length - sealed);
+        assertEquals(frame.length, agent.sign(frame, RelayFrame.COUNTER_OFFSET, RelayFrame.HEADER_LENGTH));
+
+        RelayFrame relay = RelayFrame.parse(frame);
+        assertEquals(7, relay.stream());
+        assertTrue(relay.resync());
+        assertEquals(1234, relay.offset());
+        server.verify(frame, RelayFrame.COUNTER_OFFSET, frame.length - RelayFrame.COUNTER_OFFSET, RelayFrame.HEADER_LENGTH);
+        byte[] forwarded = Arrays.copyOfRange(frame, relay.sealedOffset(), frame.length);
+        assertArrayEquals(output, endToEnd.open(forwarded, EndToEndCipher.outputAad("pty-1", relay.resync(), relay.offset())));
+    }
+
+    @Test
+    public void relayFrame_shouldBuildAndVerifyInPlaceOnDirectBuffer() throws Exception
+    {
+        byte[]         key      = AesGcmCrypto.generateKey();
+        AesGcmCrypto   agent    = new AesGcmCrypto(key, true);
+        AesGcmCrypto   server   = new AesGcmCrypto(key, false);
+        EndToEndCipher endToEnd = EndToEndCipher.fromSecret("secret");
+        byte[]         output   = "direct output".getBytes(StandardCharsets.UTF_8);
+        int            sealed   = EndToEndCipher.sealedLength(output.length);
+        int            length   = RelayFrame.length(sealed);
+        // 模拟出站 IoBuffer：帧从缓冲区中间开始
+        ByteBuffer buffer = ByteBuffer.allocateDirect(3 + length);
+        buffer.position(3);
+        RelayFrame.writeHeader(buffer, 5, false, 77);
+        endToEnd.seal(ByteBuffer.wrap(output), EndToEndCipher.outputAad("pty-1", false, 77), buffer.duplicate().position(3 + length - sealed));
+        buffer.limit(3 + length);
+        assertEquals(length, agent.sign(buffer, RelayFrame.COUNTER_OFFSET, RelayFrame.HEADER_LENGTH));
+
+        assertTrue(RelayFrame.isRelay(buffer));
+        RelayFrame relay = RelayFrame.parse(buffer);
+        assertEquals(5, relay.stream());
+        assertEquals(77, relay.offset());
+        server.verify(buffer, RelayFrame.COUNTER_OFFSET, length - RelayFrame.COUNTER_OFFSET, RelayFrame.HEADER_LENGTH);
+        byte[] forwarded = new byte[length - relay.sealedOffset()];
+        buffer.get(buffer.position() + relay.sealedOffset(), forwarded);
+        assertArrayEquals(output, endToEnd.open(forwarded, EndToEndCipher.outputAad("pty-1", false, 77)));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void relayFrame_shouldRejectTamperedRoutingHeader() throws Exception
+    {
+        byte[]       key    = AesGcmCrypto.generateKey();
+        AesGcmCrypto agent  = new AesGcmCrypto(key, true);
+        AesGcmCrypto server = new AesGcmCrypto(key, false);
+        int          sealed = EndToEndCipher.sealedLength(3);
+        byte[]       frame  = RelayFrame.allocate(1, false, 99, sealed);
+        EndToEndCipher.fromSecret("secret").seal(ByteBuffer.wrap(new byte[]{'a', 'b', 'c'}), EndToEndCipher.outputAad("pty-1", false, 99), frame, frame.length - sealed);
+        agent.sign(frame, RelayFrame.COUNTER_OFFSET, RelayFrame.HEADER_LENGTH);
+        // 把流 ID 改成另一个终端
+        frame[frame.length - sealed - AesGcmCrypto.TAG_LENGTH - 1] = 2;
+        server.verify(frame, RelayFrame.COUNTER_OFFSET, frame.length - RelayFrame.COUNTER_OFFSET, RelayFrame.HEADER_LENGTH);
+    }
+}
@@ -0,0 +1,55 @@
+package cc.jfire.webcli.crypto;
+
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class SessionTicketsTest
+{
+    private static final long NOW = 1_700_000_000_000L;
+
+    @Test
+    public void open_shouldRecoverAgentIdAndSecret() throws Exception
+    {
+        SessionTickets        tickets = new SessionTickets(SessionTickets.deriveKey("token"), 60_000);
+        byte[]                secret  = SessionTickets.resumptionSecret(AesGcmCrypto.generateKey(), "agent-1");
+        SessionTickets.Ticket ticket  = tickets.open(tickets.issue("agent-1", secret, NOW), NOW + 1000);
+        assertNotNull(ticket);
+        assertEquals("agent-1", ticket.agentId());
+        assertArrayEquals(secret, ticket.secret());
+    }
+
+    @Test
+    public void open_shouldSurviveServerRestartWithSameToken() throws Exception
+    {
+        byte[] secret = AesGcmCrypto.generateKey();
+        String ticket = new SessionTickets(SessionTickets.deriveKey("token"), 60_000).issue("agent-1", secret, NOW);
+        assertNotNull(new SessionTickets(SessionTickets.deriveKey("token"), 60_000).open(ticket, NOW));
+        assertNull(new SessionTickets(SessionTickets.deriveKey("other"), 60_000).open(ticket, NOW));
+    }
+
+    @Test
+    public void open_shouldRejectExpiredOrTamperedTicket() throws Exception
+    {
+        SessionTickets tickets = new SessionTickets(SessionTickets.deriveKey("token"), 60_000);
+        String         ticket  = tickets.issue("agent-1", AesGcmCrypto.generateKey(), NOW);
+        assertNull(tickets.open(ticket, NOW + 60_001));
+        byte[] raw = Base64.getDecoder().decode(ticket);
+        raw[raw.length / 2] ^= 1;
+        assertNull(tickets.open(Base64.getEncoder().encodeToString(raw), NOW));
+        assertNull(tickets.open("not base64!", NOW));
+    }
+
+    @Test
+    public void acceptNonce_shouldRejectReplayAndStaleRequests() throws Exception
+    {
+        SessionTickets tickets = new SessionTickets(SessionTickets.deriveKey("token"), 60_000);
+        byte[]         nonce   = SessionTickets.newClientNonce(new SecureRandom(), NOW);
+        assertTrue(tickets.acceptNonce(nonce, NOW + 1000));
+        assertFalse(tickets.acceptNonce(nonce, NOW + 2000));
+        assertFalse(tickets.acceptNonce(SessionTickets.newClientNonce(new SecureRandom(), NOW - 10 * 60_000), NOW));
+    }
+}
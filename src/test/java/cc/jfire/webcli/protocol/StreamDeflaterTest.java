@@ -0,0 +1,47 @@
+package cc.jfire.webcli.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class StreamDeflaterTest
+{
+    @Test
+    public void compress_shouldDecodeEachFrameAndShareDictionary() throws Exception
+    {
+        CompressionStats stats    = new CompressionStats();
+        StreamDeflater   deflater = new StreamDeflater(Deflater.DEFAULT_COMPRESSION, stats);
+        StreamInflater   inflater = new StreamInflater();
+        String           prompt   = "\u001b[1;32muser@host\u001b[0m:\u001b[1;34m~/project\u001b[0m$ ";
+        byte[]           first    = deflater.compress(utf8(prompt));
+        assertEquals(prompt, new String(inflater.decompress(first), StandardCharsets.UTF_8));
+        byte[] second = deflater.compress(utf8(prompt));
+        assertEquals(prompt, new String(inflater.decompress(second), StandardCharsets.UTF_8));
+        // 第二帧可以直接引用第一帧的内容
+        assertTrue(second.length < first.length / 2);
+        assertTrue(stats.getRatio() > 1);
+    }
+
+    @Test
+    public void compress_shouldHandleLargeIncompressibleFrames() throws Exception
+    {
+        StreamDeflater deflater = new StreamDeflater(Deflater.DEFAULT_COMPRESSION, new CompressionStats());
+        StreamInflater inflater = new StreamInflater();
+        byte[]         data     = new byte[100000];
+        new Random(7).nextBytes(data);
+        assertArrayEquals(data, inflater.decompress(deflater.compress(ByteBuffer.wrap(data))));
+        deflater.reset();
+        inflater.reset();
+        assertArrayEquals(data, inflater.decompress(deflater.compress(ByteBuffer.wrap(data))));
+    }
+
+    private static ByteBuffer utf8(String text)
+    {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,86 @@
+package cc.jfire.webcli.protocol;
+
+import cc.jfire.se2.JfireSE;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TcpMessageCodec} 与原先 JfireSE 序列化整个 {@link TcpMessage} 的对比，
+ * 分别以单次按键（PTY_INPUT）和 4KB 输出块（PTY_OUTPUT）为样本。
+ * <p>
+ * 运行：先 {@code mvn test-compile}，再以测试 classpath 执行本类的 main 方法。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TcpMessageCodecBenchmark
+{
+    @Param({"PTY_INPUT", "PTY_OUTPUT"})
+    public String sample;
+
+    private final JfireSE    jfireSE = JfireSE.config().build();
+    private       TcpMessage message;
+    private       byte[]     jfireBytes;
+    private       byte[]     codecBytes;
+
+    @Setup
+    public void setup()
+    {
+        message = new TcpMessage();
+        message.setPtyId(UUID.randomUUID().toString());
+        if ("PTY_INPUT".equals(sample))
+        {
+            message.setType(TcpMessageType.PTY_INPUT);
+            message.setPayload(new byte[]{'a'});
+        }
+        else
+        {
+            byte[] output = new byte[4096];
+            new Random(1).nextBytes(output);
+            message.setType(TcpMessageType.PTY_OUTPUT);
+            message.setStream(1);
+            message.setOffset(1L << 20);
+            message.setPayload(output);
+        }
+        jfireBytes = jfireSE.serialize(message);
+        codecBytes = TcpMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] jfireSeEncode()
+    {
+        return jfireSE.serialize(message);
+    }
+
+    @Benchmark
+    public Object jfireSeDecode()
+    {
+        return jfireSE.deSerialize(jfireBytes);
+    }
+
+    @Benchmark
+    public byte[] codecEncode()
+    {
+        return TcpMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public TcpMessage codecDecode()
+    {
+        return TcpMessageCodec.decode(codecBytes);
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(TcpMessageCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
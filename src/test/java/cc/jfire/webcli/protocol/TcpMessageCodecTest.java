@@ -0,0 +1,123 @@
+package cc.jfire.webcli.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TcpMessageCodecTest
+{
+    @Test
+    public void encode_shouldRoundTripLayoutFields()
+    {
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.PTY_CREATE_RESULT);
+        msg.setRequestId("req-1");
+        msg.setAgentId("agent");
+        msg.setData("创建终端失败: 中文");
+        msg.setPtyId("pty-1");
+        msg.setName(null);
+        msg.setRemoteViewable(true);
+        TcpMessage decoded = TcpMessageCodec.decode(TcpMessageCodec.encode(msg));
+        assertEquals(msg, decoded);
+    }
+
+    @Test
+    public void encode_shouldKeepNullAndNegativeIntegers()
+    {
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.PTY_CREATE);
+        msg.setRequestId("req-2");
+        msg.setCols(-3);
+        TcpMessage decoded = TcpMessageCodec.decode(TcpMessageCodec.encode(msg));
+        assertEquals(Integer.valueOf(-3), decoded.getCols());
+        assertNull(decoded.getRows());
+        assertNull(decoded.getName());
+    }
+
+    @Test
+    public void encode_shouldBeCompactForKeystrokes()
+    {
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.HEARTBEAT);
+        assertEquals(1, TcpMessageCodec.encode(msg).length);
+        msg.setType(TcpMessageType.PTY_INPUT);
+        msg.setPtyId("0123456789abcdef0123456789abcdef0123");
+        msg.setPayload(new byte[]{'a'});
+        // 类型 + 带长度前缀的 ptyId 和原始按键字节
+        assertEquals(1 + 1 + 36 + 1 + 1, TcpMessageCodec.encode(msg).length);
+    }
+
+    @Test
+    public void encode_shouldCarryRawPayload()
+    {
+        byte[] output = new byte[256];
+        for (int i = 0; i < output.length; i++)
+        {
+            output[i] = (byte) i;
+        }
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.PTY_OUTPUT);
+        msg.setStream(3);
+        msg.setOffset(4096L);
+        msg.setPayload(output);
+        byte[] encoded = TcpMessageCodec.encode(msg);
+        // 类型 + 流 ID + 偏移量 + 长度前缀，不再携带 ptyId 和 agentId
+        assertEquals(1 + 1 + 2 + 2 + output.length, encoded.length);
+        TcpMessage decoded = TcpMessageCodec.decode(encoded);
+        assertArrayEquals(output, decoded.getPayload());
+        assertEquals(Integer.valueOf(3), decoded.getStream());
+        assertEquals(Long.valueOf(4096), decoded.getOffset());
+        assertNull(decoded.getPtyId());
+    }
+
+    @Test
+    public void encode_shouldWriteStableTypeCode()
+    {
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.PTY_OUTPUT);
+        msg.setStream(1);
+        // 线上编号固定，不随枚举声明顺序变化
+        assertEquals(6, TcpMessageCodec.encode(msg)[0]);
+        msg.setType(TcpMessageType.PTY_SEALED_INPUT);
+        assertEquals(26, TcpMessageCodec.encode(msg)[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_shouldRejectUnknownTypeCode()
+    {
+        TcpMessageCodec.decode(new byte[]{(byte) 200});
+    }
+
+    @Test
+    public void prepare_shouldWriteIntoDirectBufferAndDecodeInPlace()
+    {
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.PTY_RENAME_RESULT);
+        msg.setRequestId("req-3");
+        msg.setPtyId("pty-1");
+        msg.setName("构建");
+        TcpMessageCodec.Encoding encoding = TcpMessageCodec.prepare(msg);
+        // 模拟出站 IoBuffer：消息前后留有帧头和标签的空间
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 + encoding.length() + 4);
+        buffer.position(4);
+        encoding.writeTo(buffer);
+        assertEquals(4 + encoding.length(), buffer.position());
+        buffer.flip().position(4);
+        TcpMessage decoded = TcpMessageCodec.decode(buffer);
+        assertEquals(msg, decoded);
+        assertEquals(4, buffer.position());
+        assertArrayEquals(TcpMessageCodec.encode(msg), TcpMessageCodec.encode(decoded));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_shouldRejectTruncatedFrame()
+    {
+        TcpMessage msg = new TcpMessage();
+        msg.setType(TcpMessageType.PTY_ATTACH);
+        msg.setPtyId("pty-1");
+        byte[] data = TcpMessageCodec.encode(msg);
+        TcpMessageCodec.decode(data, 0, data.length - 1);
+    }
+}
@@ -0,0 +1,95 @@
+package cc.jfire.webcli.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WsBinaryFrameTest
+{
+    @Test
+    public void output_shouldPrefixRawBytesWithKindAndStream()
+    {
+        ByteBuffer data  = ByteBuffer.wrap("ls\r\n".getBytes(StandardCharsets.UTF_8));
+        byte[]     frame = WsBinaryFrame.output(0x01020304, true, data);
+        assertArrayEquals(new byte[]{WsBinaryFrame.RESYNC, 1, 2, 3, 4, 'l', 's', '\r', '\n'}, frame);
+        // 不改变调用方缓冲区的位置
+        assertEquals(4, data.remaining());
+    }
+
+    @Test
+    public void sealedOutput_shouldCarryOffsetAfterStream()
+    {
+        byte[]        sealed = {9, 8, 7};
+        WsBinaryFrame frame  = WsBinaryFrame.parse(WsBinaryFrame.sealedOutput(5, false, 1L << 40, sealed));
+        assertEquals(WsBinaryFrame.OUTPUT, frame.kind());
+        assertTrue(frame.sealed());
+        assertEquals(5, frame.stream());
+        assertEquals(1L << 40, frame.offset());
+        assertArrayEquals(sealed, frame.payload());
+    }
+
+    @Test
+    public void parse_shouldReadBrowserInput()
+    {
+        WsBinaryFrame frame = WsBinaryFrame.parse(WsBinaryFrame.input(7, false, new byte[]{0x03}));
+        assertEquals(WsBinaryFrame.INPUT, frame.kind());
+        assertFalse(frame.sealed());
+        assertEquals(7, frame.stream());
+        assertArrayEquals(new byte[]{0x03}, frame.payload());
+
+        WsBinaryFrame sealed = WsBinaryFrame.parse(WsBinaryFrame.input(7, true, new byte[]{1, 2}));
+        assertTrue(sealed.sealed());
+        assertArrayEquals(new byte[]{1, 2}, sealed.payload());
+    }
+
+    @Test
+    public void compressedOutput_shouldShareContextAcrossFramesOfAStream() throws Exception
+    {
+        WsStreams    streams = new WsStreams(6);
+        int          stream  = streams.open("pty-1", true);
+        List<byte[]> frames  = new ArrayList<>();
+        byte[]       prompt  = "\u001b[32muser@host\u001b[0m:~$ ".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer   first   = ByteBuffer.wrap(prompt);
+        streams.output(stream, true, first, frames::add);
+        streams.output(stream, false, ByteBuffer.wrap(prompt), frames::add);
+        assertEquals(prompt.length, first.remaining());
+
+        StreamInflater inflater = new StreamInflater();
+        WsBinaryFrame  snapshot = WsBinaryFrame.parse(frames.get(0));
+        assertEquals(WsBinaryFrame.RESYNC, snapshot.kind());
+        assertEquals(stream, snapshot.stream());
+        assertEquals(prompt.length, snapshot.rawLength());
+        assertArrayEquals(prompt, inflater.decompress(snapshot.inflatable()));
+        // 第二帧引用第一帧的内容，比单独压缩小得多
+        WsBinaryFrame repeat = WsBinaryFrame.parse(frames.get(1));
+        assertTrue(repeat.payload().length < prompt.length / 2);
+        assertArrayEquals(prompt, inflater.decompress(repeat.inflatable()));
+        assertEquals(2L * prompt.length, streams.getCompressionStats().getRawBytes());
+    }
+
+    @Test
+    public void output_shouldStayUncompressedWhenNotNegotiated()
+    {
+        WsStreams    streams = new WsStreams(6);
+        int          stream  = streams.open("pty-1", false);
+        List<byte[]> frames  = new ArrayList<>();
+        streams.output(stream, false, ByteBuffer.wrap(new byte[]{'a'}), frames::add);
+        assertArrayEquals(WsBinaryFrame.output(stream, false, new byte[]{'a'}), frames.get(0));
+        assertEquals(-1, WsBinaryFrame.parse(frames.get(0)).rawLength());
+        // 关闭后流 ID 不复用
+        streams.close("pty-1");
+        assertNull(streams.ptyId(stream));
+        assertNotEquals(stream, streams.open("pty-1", true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_shouldRejectTruncatedHeader()
+    {
+        WsBinaryFrame.parse(new byte[]{WsBinaryFrame.INPUT, 0, 0});
+    }
+}
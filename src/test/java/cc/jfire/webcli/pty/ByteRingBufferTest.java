@@ -0,0 +1,78 @@
+package cc.jfire.webcli.pty;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ByteRingBufferTest
+{
+    @Test
+    public void append_shouldKeepAllWhenNotFull()
+    {
+        ByteRingBuffer ring = new ByteRingBuffer(16);
+        append(ring, "hello ");
+        append(ring, "world");
+        ByteRingBuffer.Snapshot snapshot = ring.snapshot();
+        assertEquals(0, snapshot.startOffset());
+        assertEquals(11, snapshot.endOffset());
+        assertEquals("hello world", new String(snapshot.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void append_shouldOverwriteOldestWhenWrapped()
+    {
+        ByteRingBuffer ring = new ByteRingBuffer(8);
+        append(ring, "abcdef");
+        append(ring, "ghijk");
+        ByteRingBuffer.Snapshot snapshot = ring.snapshot();
+        assertEquals(3, snapshot.startOffset());
+        assertEquals(11, snapshot.endOffset());
+        assertEquals("defghijk", new String(snapshot.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void append_shouldKeepTailOfOversizedChunk()
+    {
+        ByteRingBuffer ring = new ByteRingBuffer(4);
+        append(ring, "ab");
+        append(ring, "0123456789");
+        assertEquals(12, ring.getWritten());
+        assertEquals("6789", new String(ring.snapshot().toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void snapshot_shouldDropOverwrittenHead()
+    {
+        ByteRingBuffer ring = new ByteRingBuffer(8);
+        append(ring, "abcdefgh");
+        ByteRingBuffer.Snapshot snapshot = ring.snapshot();
+        append(ring, "XY");
+        assertEquals(2, snapshot.intactFrom());
+        assertEquals("cdefgh", new String(snapshot.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void resize_shouldKeepNewestBytesAndOffsets()
+    {
+        ByteRingBuffer ring = new ByteRingBuffer(16);
+        append(ring, "0123456789");
+        ByteRingBuffer shrunk = ring.resize(4);
+        assertEquals(4, shrunk.getCapacity());
+        assertEquals(10, shrunk.getWritten());
+        assertEquals(6, shrunk.snapshot().startOffset());
+        assertEquals("6789", new String(shrunk.snapshot().toByteArray(), StandardCharsets.UTF_8));
+        ByteRingBuffer grown = shrunk.resize(16);
+        append(grown, "ab");
+        assertEquals(6, grown.size());
+        assertEquals(6, grown.snapshot().startOffset());
+        assertEquals("6789ab", new String(grown.snapshot().toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static void append(ByteRingBuffer ring, String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ring.append(bytes, 0, bytes.length);
+    }
+}
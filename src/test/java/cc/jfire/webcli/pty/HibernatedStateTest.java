@@ -0,0 +1,39 @@
+package cc.jfire.webcli.pty;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class HibernatedStateTest
+{
+    @Test
+    public void restore_shouldRebuildHistoryAndScreen()
+    {
+        ByteRingBuffer history = new ByteRingBuffer(4096);
+        TerminalScreen screen  = new TerminalScreen(40, 10, 100);
+        for (int i = 0; i < 200; i++)
+        {
+            byte[] line = ("\u001b[32mline " + i + "\u001b[0m\r\n").getBytes(StandardCharsets.UTF_8);
+            history.append(line, 0, line.length);
+            screen.feed(line, 0, line.length);
+        }
+        HibernatedState state = HibernatedState.of(history, screen);
+        assertTrue(state.compressedSize() < history.getCapacity() / 2);
+        assertEquals(history.getWritten(), state.getHistoryEnd());
+
+        ByteRingBuffer restoredHistory = state.restoreHistory();
+        assertEquals(history.getCapacity(), restoredHistory.getCapacity());
+        assertEquals(history.getWritten(), restoredHistory.getWritten());
+        assertArrayEquals(history.snapshot().toByteArray(), restoredHistory.snapshot().toByteArray());
+
+        TerminalScreen restoredScreen = state.restoreScreen(100);
+        for (int r = 0; r < screen.getRows(); r++)
+        {
+            assertEquals(screen.getLineText(r), restoredScreen.getLineText(r));
+        }
+        assertEquals(screen.getCursorRow(), restoredScreen.getCursorRow());
+        assertArrayEquals(screen.serialize(), restoredScreen.serialize());
+    }
+}
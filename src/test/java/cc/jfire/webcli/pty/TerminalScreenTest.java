@@ -0,0 +1,126 @@
+package cc.jfire.webcli.pty;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TerminalScreenTest
+{
+    @Test
+    public void feed_shouldTrackTextAndCursor()
+    {
+        TerminalScreen screen = new TerminalScreen(20, 5, 100);
+        feed(screen, "hello\r\nworld");
+        assertEquals("hello", screen.getLineText(0));
+        assertEquals("world", screen.getLineText(1));
+        assertEquals(1, screen.getCursorRow());
+        assertEquals(5, screen.getCursorCol());
+    }
+
+    @Test
+    public void feed_shouldHandleCursorMovementAndErase()
+    {
+        TerminalScreen screen = new TerminalScreen(20, 5, 100);
+        feed(screen, "aaaaaaaaaa\r\nbbbbbbbbbb");
+        feed(screen, "\u001b[1;4H\u001b[K");
+        feed(screen, "\u001b[2;3H\u001b[2P");
+        assertEquals("aaa", screen.getLineText(0));
+        assertEquals("bbbbbbbb", screen.getLineText(1));
+        feed(screen, "\u001b[2J\u001b[HX");
+        assertEquals("X", screen.getLineText(0));
+        assertEquals("", screen.getLineText(1));
+    }
+
+    @Test
+    public void feed_shouldDecodeUtf8SplitAcrossChunksAndWideChars()
+    {
+        TerminalScreen screen = new TerminalScreen(20, 5, 100);
+        byte[]         bytes  = "中文ab".getBytes(StandardCharsets.UTF_8);
+        screen.feed(bytes, 0, 2);
+        screen.feed(bytes, 2, bytes.length - 2);
+        assertEquals("中文ab", screen.getLineText(0));
+        assertEquals(6, screen.getCursorCol());
+    }
+
+    @Test
+    public void feed_shouldKeepBoundedScrollback()
+    {
+        TerminalScreen screen = new TerminalScreen(10, 3, 5);
+        for (int i = 0; i < 20; i++)
+        {
+            feed(screen, "line" + i + "\r\n");
+        }
+        assertEquals(5, screen.getScrollbackSize());
+        assertEquals("line18", screen.getLineText(0));
+        assertEquals("line19", screen.getLineText(1));
+    }
+
+    @Test
+    public void serialize_shouldRebuildSameScreen()
+    {
+        TerminalScreen screen = new TerminalScreen(12, 4, 50);
+        feed(screen, "\u001b[31mred\u001b[0m plain\r\n");
+        feed(screen, "a long line that wraps around\r\n");
+        feed(screen, "中文字符\u001b[1;3r\u001b[?2004h");
+        feed(screen, "\u001b[4;5H");
+        assertRoundTrip(screen);
+    }
+
+    @Test
+    public void serialize_shouldRebuildAltScreen()
+    {
+        TerminalScreen screen = new TerminalScreen(20, 5, 50);
+        feed(screen, "$ htop\r\n");
+        feed(screen, "\u001b[?1049h\u001b[H\u001b[2J");
+        for (int i = 0; i < 200; i++)
+        {
+            feed(screen, "\u001b[1;1H\u001b[7mCPU " + i + "%\u001b[0m\u001b[3;2Hmem " + (i * 3));
+        }
+        assertTrue(screen.isAltScreen());
+        assertRoundTrip(screen);
+        feed(screen, "\u001b[?1049l");
+        assertFalse(screen.isAltScreen());
+        assertEquals("$ htop", screen.getLineText(0));
+    }
+
+    @Test
+    public void serialize_shouldRebuildScreenAfterWidthChange()
+    {
+        // 折行的行在改变宽度前进入滚动历史，仍保留旧宽度
+        TerminalScreen screen = new TerminalScreen(5, 2, 50);
+        feed(screen, "\t中");
+        screen.resize(8, 1);
+        assertEquals("中", screen.getLineText(0));
+        assertRoundTrip(screen);
+
+        screen = new TerminalScreen(10, 3, 50);
+        feed(screen, "abcdefghijklmnopqrstuvwxyz\r\n$ ");
+        screen.resize(14, 2);
+        assertEquals("uvwxyz", screen.getLineText(0));
+        assertRoundTrip(screen);
+    }
+
+    private static void assertRoundTrip(TerminalScreen screen)
+    {
+        TerminalScreen copy = new TerminalScreen(screen.getCols(), screen.getRows(), 50);
+        byte[]         data = screen.serialize();
+        copy.feed(data, 0, data.length);
+        for (int r = 0; r < screen.getRows(); r++)
+        {
+            assertEquals("row " + r, screen.getLineText(r), copy.getLineText(r));
+        }
+        assertEquals(screen.getCursorRow(), copy.getCursorRow());
+        assertEquals(screen.getCursorCol(), copy.getCursorCol());
+        assertEquals(screen.isAltScreen(), copy.isAltScreen());
+        assertEquals(screen.getScrollbackSize(), copy.getScrollbackSize());
+        assertArrayEquals(data, copy.serialize());
+    }
+
+    private static void feed(TerminalScreen screen, String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        screen.feed(bytes, 0, bytes.length);
+    }
+}
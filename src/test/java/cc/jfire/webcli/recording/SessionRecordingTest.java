@@ -0,0 +1,77 @@
+package cc.jfire.webcli.recording;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionRecordingTest
+{
+    @Test
+    public void replay_shouldReturnAllRecordsInOrderAcrossSegments() throws Exception
+    {
+        Path dir = Files.createTempDirectory("webcli-rec").resolve("pty");
+        try (RecordingWriter writer = new RecordingWriter(dir, 256, 64))
+        {
+            long offset = 0;
+            for (int i = 0; i < 100; i++)
+            {
+                byte[] data = ("line" + i + "\r\n").getBytes(StandardCharsets.UTF_8);
+                writer.append(RecordingWriter.OUTPUT, offset, ByteBuffer.wrap(data));
+                offset += data.length;
+            }
+            writer.append(RecordingWriter.INPUT, -1, ByteBuffer.wrap("ls\r".getBytes(StandardCharsets.UTF_8)));
+        }
+        assertTrue(Files.exists(RecordingWriter.segmentPath(dir, 3)));
+        List<SessionRecording.Record> records = new ArrayList<>();
+        SessionRecording.open(dir).replay(0, Long.MAX_VALUE, records::add);
+        assertEquals(101, records.size());
+        assertEquals("line0\r\n", text(records.get(0)));
+        assertEquals("line99\r\n", text(records.get(99)));
+        assertEquals(RecordingWriter.INPUT, records.get(100).type());
+        for (int i = 1; i < 100; i++)
+        {
+            SessionRecording.Record prev = records.get(i - 1);
+            assertEquals(prev.streamOffset() + prev.data().length, records.get(i).streamOffset());
+        }
+    }
+
+    @Test
+    public void replay_shouldSeekToNearestKeyframe() throws Exception
+    {
+        Path dir = Files.createTempDirectory("webcli-rec").resolve("pty");
+        try (RecordingWriter writer = new RecordingWriter(dir, 1024 * 1024, 4096))
+        {
+            writer.append(RecordingWriter.OUTPUT, 0, ByteBuffer.wrap("before".getBytes(StandardCharsets.UTF_8)));
+            Thread.sleep(5);
+            writer.appendSnapshot(RecordingWriter.KEYFRAME, 6, ByteBuffer.wrap("screen".getBytes(StandardCharsets.UTF_8)),
+                                  RecordingWriter.RESIZE, ByteBuffer.allocate(8).putInt(80).putInt(24).flip());
+            Thread.sleep(5);
+            writer.append(RecordingWriter.OUTPUT, 6, ByteBuffer.wrap("after".getBytes(StandardCharsets.UTF_8)));
+        }
+        SessionRecording recording = SessionRecording.open(dir);
+        assertEquals(2, recording.getIndexSize());
+        List<SessionRecording.Record> all = new ArrayList<>();
+        recording.replay(0, Long.MAX_VALUE, all::add);
+        assertEquals(4, all.size());
+
+        List<SessionRecording.Record> seeked = new ArrayList<>();
+        recording.replay(all.get(3).timeMicros(), Long.MAX_VALUE, seeked::add);
+        assertEquals(3, seeked.size());
+        assertEquals(RecordingWriter.RESIZE, seeked.get(0).type());
+        assertEquals(RecordingWriter.KEYFRAME, seeked.get(1).type());
+        assertEquals("screen", text(seeked.get(1)));
+        assertEquals("after", text(seeked.get(2)));
+    }
+
+    private static String text(SessionRecording.Record record)
+    {
+        return new String(record.data(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+package cc.jfire.webcli.server;
+
+import cc.jfire.webcli.protocol.PtyInfo;
+import cc.jfire.webcli.web.dto.PtyListChanges;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PtyIndexTest
+{
+    @Test
+    public void changesSince_shouldReturnOnlyLaterUpsertsAndRemovals()
+    {
+        PtyIndex index = new PtyIndex();
+        index.replaceAgent("a", List.of(new PtyInfo("1", "one", true, true), new PtyInfo("2", "two", true, true)));
+        long version = index.getVersion();
+
+        index.rename("a", "1", "renamed");
+        index.remove("a", "2");
+        index.upsert("b", new PtyInfo("3", "three", true, true));
+
+        PtyListChanges changes = index.changesSince(version);
+        assertFalse(changes.isFull());
+        assertEquals(List.of("a:2"), changes.getRemoved());
+        assertEquals(2, changes.getTerminals().size());
+        assertTrue(changes.getTerminals().stream().anyMatch(pty -> "a:1".equals(pty.getId()) && "renamed".equals(pty.getName())));
+        assertTrue(changes.getTerminals().stream().anyMatch(pty -> "b:3".equals(pty.getId())));
+
+        PtyListChanges none = index.changesSince(changes.getVersion());
+        assertTrue(none.getTerminals().isEmpty());
+        assertTrue(none.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void upsert_shouldNotBumpVersionWhenNothingChanged()
+    {
+        PtyIndex index = new PtyIndex();
+        index.upsert("a", new PtyInfo("1", "one", true, true));
+        long version = index.getVersion();
+        index.upsert("a", new PtyInfo("1", "one", true, true));
+        index.replaceAgent("a", List.of(new PtyInfo("1", "one", true, true)));
+        assertEquals(version, index.getVersion());
+    }
+
+    @Test
+    public void replaceAgent_shouldDropMissingAndLeaveOtherAgents()
+    {
+        PtyIndex index = new PtyIndex();
+        index.replaceAgent("a", List.of(new PtyInfo("1", "one", true, true), new PtyInfo("2", "two", true, true)));
+        index.upsert("b", new PtyInfo("1", "other", true, true));
+        index.replaceAgent("a", List.of(new PtyInfo("2", "two", true, true)));
+        assertEquals(2, index.list().size());
+        index.removeAgent("a");
+        assertEquals("b:1", index.list().get(0).getId());
+    }
+
+    @Test
+    public void changesSince_shouldFallBackToFullListForUnknownVersion()
+    {
+        PtyIndex index = new PtyIndex();
+        index.upsert("a", new PtyInfo("1", "one", true, true));
+        assertTrue(index.changesSince(-1).isFull());
+        // Server 重启后版本号重新开始，客户端持有的版本比当前还新
+        assertTrue(index.changesSince(index.getVersion() + 10).isFull());
+        assertEquals(1, index.changesSince(-1).getTerminals().size());
+    }
+}
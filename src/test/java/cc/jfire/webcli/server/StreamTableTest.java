@@ -0,0 +1,71 @@
+package cc.jfire.webcli.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StreamTableTest
+{
+    @Test
+    public void open_shouldReuseStreamForSamePty()
+    {
+        StreamTable        table = new StreamTable();
+        StreamTable.Stream one   = table.open("pty-1", "a:pty-1");
+        StreamTable.Stream two   = table.open("pty-2", "a:pty-2");
+        assertNotEquals(one.id, two.id);
+        assertSame(one, table.open("pty-1", "a:pty-1"));
+        assertSame(two, table.get(two.id));
+        assertEquals("a:pty-2", table.get(two.id).fullPtyId);
+        assertNull(table.get(0));
+        assertNull(table.get(-1));
+        assertNull(table.get(1000));
+    }
+
+    @Test
+    public void release_shouldNeverReuseStreamId()
+    {
+        StreamTable        table    = new StreamTable();
+        StreamTable.Stream released = table.open("pty-1", "a:pty-1");
+        assertSame(released, table.release("pty-1"));
+        assertNull(table.get(released.id));
+        // 已关闭终端仍在路上的帧不能路由到新终端
+        StreamTable.Stream next = table.open("pty-1", "a:pty-1");
+        assertNotEquals(released.id, next.id);
+        assertNull(table.get(released.id));
+    }
+
+    @Test
+    public void open_shouldGrowTable()
+    {
+        StreamTable table = new StreamTable();
+        for (int i = 0; i < 100; i++)
+        {
+            table.open("pty-" + i, "a:pty-" + i);
+        }
+        assertEquals(100, table.all().size());
+        assertEquals("pty-99", table.get(table.open("pty-99", "a:pty-99").id).ptyId);
+    }
+
+    @Test
+    public void release_shouldKeepTableBoundedWhenTerminalsComeAndGo()
+    {
+        StreamTable        table     = new StreamTable();
+        StreamTable.Stream longLived = table.open("shell", "a:shell");
+        int                lastId    = 0;
+        for (int i = 0; i < 10_000; i++)
+        {
+            StreamTable.Stream stream = table.open("pty-" + i, "a:pty-" + i);
+            lastId = stream.id;
+            assertSame(stream, table.get(stream.id));
+            assertSame(stream, table.release("pty-" + i));
+            assertNull(table.get(stream.id));
+        }
+        // 重新打开已关闭的终端分配新 ID，旧 ID 仍然找不到
+        StreamTable.Stream reopened = table.open("pty-0", "a:pty-0");
+        assertTrue(reopened.id > lastId);
+        assertSame(reopened, table.get(reopened.id));
+        assertSame(longLived, table.get(longLived.id));
+        assertEquals(2, table.all().size());
+        assertEquals(16, table.capacity());
+    }
+}
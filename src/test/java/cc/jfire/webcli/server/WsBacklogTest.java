@@ -0,0 +1,56 @@
+package cc.jfire.webcli.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WsBacklogTest
+{
+    @Test
+    public void whenDrained_shouldRunOnceWrittenBelowThreshold()
+    {
+        WsBacklog     backlog = new WsBacklog(100);
+        AtomicInteger resumed = new AtomicInteger();
+        backlog.queued(80);
+        backlog.queued(80);
+        assertTrue(backlog.isCongested());
+        assertTrue(backlog.whenDrained(resumed::incrementAndGet));
+        backlog.partWriteFinish(30);
+        assertEquals(0, resumed.get());
+        backlog.partWriteFinish(40);
+        assertEquals(1, resumed.get());
+        assertFalse(backlog.isCongested());
+        // 写出的字节包含帧头，扣减不会低于 0
+        backlog.partWriteFinish(1000);
+        backlog.queued(100);
+        assertFalse(backlog.isCongested());
+        assertEquals(1, resumed.get());
+    }
+
+    @Test
+    public void whenDrained_shouldNotRegisterWhenNotCongested()
+    {
+        WsBacklog     backlog = new WsBacklog(100);
+        AtomicInteger resumed = new AtomicInteger();
+        backlog.queued(50);
+        assertFalse(backlog.whenDrained(resumed::incrementAndGet));
+        backlog.queued(100);
+        backlog.partWriteFinish(150);
+        assertEquals(0, resumed.get());
+    }
+
+    @Test
+    public void close_shouldReleaseWaiters()
+    {
+        WsBacklog     backlog = new WsBacklog(10);
+        AtomicInteger resumed = new AtomicInteger();
+        backlog.queued(20);
+        assertTrue(backlog.whenDrained(resumed::incrementAndGet));
+        backlog.writeFailed(new RuntimeException("closed"));
+        assertEquals(1, resumed.get());
+        backlog.queued(20);
+        assertFalse(backlog.isCongested());
+    }
+}
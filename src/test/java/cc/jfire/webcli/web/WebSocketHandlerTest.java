@@ -0,0 +1,113 @@
+package cc.jfire.webcli.web;
+
+import cc.jfire.dson.Dson;
+import cc.jfire.jnet.common.api.Pipeline;
+import cc.jfire.webcli.protocol.MessageType;
+import cc.jfire.webcli.protocol.StreamDeflater;
+import cc.jfire.webcli.protocol.StreamInflater;
+import cc.jfire.webcli.protocol.WsBinaryFrame;
+import cc.jfire.webcli.protocol.WsMessage;
+import cc.jfire.webcli.pty.PtyInstance;
+import cc.jfire.webcli.pty.PtyManager;
+import cc.jfire.webcli.pty.PtyOutputListener;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WebSocketHandlerTest
+{
+    @Test
+    public void attach_shouldAnnounceStreamBeforeOutputOfBusyTerminal() throws Exception
+    {
+        PtyInstance pty = new PtyInstance(new String[]{"/bin/sh", "-c", "while :; do echo tick; done"}, "busy", System.getProperty("java.io.tmpdir"), 80, 24);
+        try
+        {
+            pty.startReading();
+            List<Sent>       sent    = new CopyOnWriteArrayList<>();
+            WebSocketHandler handler = new WebSocketHandler(manager(pty), new ConcurrentHashMap<>(), true, 6)
+            {
+                @Override
+                void write(Pipeline pipeline, boolean binary, byte[] bytes)
+                {
+                    sent.add(new Sent(binary, bytes));
+                }
+            };
+            // 终端已经在持续输出，监听器一注册投递线程就会送出输出帧
+            Thread.sleep(100);
+            WsMessage attach = new WsMessage();
+            attach.setType(MessageType.PTY_ATTACH);
+            attach.setPtyId(pty.getId());
+            attach.setBinary(true);
+            attach.setCompression(StreamDeflater.ALGORITHM);
+            handler.handleMessage(pipeline(), Dson.toJson(attach));
+            awaitAtLeast(sent, 20);
+
+            // 浏览器先收到流 ID 和压缩方式
+            assertFalse(sent.get(0).binary());
+            WsMessage success = Dson.fromString(WsMessage.class, new String(sent.get(0).bytes(), StandardCharsets.UTF_8));
+            assertEquals(MessageType.SUCCESS, success.getType());
+            assertEquals(StreamDeflater.ALGORITHM, success.getCompression());
+            // 之后的每一帧都属于这个流，并且能按顺序用同一个解压上下文解开
+            StreamInflater inflater = new StreamInflater();
+            for (Sent frame : sent.subList(1, sent.size()))
+            {
+                assertTrue(frame.binary());
+                WsBinaryFrame output = WsBinaryFrame.parse(frame.bytes());
+                assertEquals(success.getStream().intValue(), output.stream());
+                if (output.rawLength() >= 0)
+                {
+                    assertEquals(output.rawLength(), inflater.decompress(output.inflatable()).length);
+                }
+            }
+        }
+        finally
+        {
+            pty.close();
+        }
+    }
+
+    private record Sent(boolean binary, byte[] bytes)
+    {
+    }
+
+    private static PtyManager manager(PtyInstance pty)
+    {
+        return new PtyManager()
+        {
+            @Override
+            public PtyInstance get(String id)
+            {
+                return pty.getId().equals(id) ? pty : null;
+            }
+
+            @Override
+            public PtyOutputListener coalesce(PtyInstance instance, PtyOutputListener sink)
+            {
+                return sink;
+            }
+        };
+    }
+
+    private static Pipeline pipeline()
+    {
+        return (Pipeline) Proxy.newProxyInstance(WebSocketHandlerTest.class.getClassLoader(), new Class<?>[]{Pipeline.class},
+                                                 (proxy, method, args) -> "pipelineId".equals(method.getName()) ? "test-pipeline" : null);
+    }
+
+    private static void awaitAtLeast(List<Sent> sent, int size) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sent.size() < size && System.nanoTime() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        assertTrue("只收到 " + sent.size() + " 帧", sent.size() >= size);
+    }
+}